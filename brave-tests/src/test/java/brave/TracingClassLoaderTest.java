@@ -44,6 +44,21 @@ public class TracingClassLoaderTest {
     }
   }
 
+  @Test public void unloadable_withThreadLocalIdGenerator() {
+    assertRunIsUnloadable(ThreadLocalIdGeneratorUsage.class, getClass().getClassLoader());
+  }
+
+  static class ThreadLocalIdGeneratorUsage implements Runnable {
+    @Override public void run() {
+      try (Tracing tracing = Tracing.newBuilder()
+        .idGenerator(IdGenerator.threadLocal())
+        .traceId128Bit(true)
+        .build()) {
+        tracing.tracer().newTrace().start().finish();
+      }
+    }
+  }
+
   @Test public void unloadable_forgetClose() {
     assertRunIsUnloadable(ForgetClose.class, getClass().getClassLoader());
   }
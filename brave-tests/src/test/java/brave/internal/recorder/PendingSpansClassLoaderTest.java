@@ -13,6 +13,7 @@
  */
 package brave.internal.recorder;
 
+import brave.TracingMetrics;
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
 import brave.internal.InternalPropagation;
@@ -53,7 +54,8 @@ public class PendingSpansClassLoaderTest {
   static class CreateAndRemove implements Runnable {
     @Override public void run() {
       PendingSpans pendingSpans = new PendingSpans(new MutableSpan(),
-        Platform.get().clock(), FinishedSpanHandler.NOOP, true, new AtomicBoolean());
+        Platform.get().clock(), FinishedSpanHandler.NOOP, true, new AtomicBoolean(), null, null,
+        TracingMetrics.NOOP);
 
       TraceContext context = CONTEXT.toBuilder().build(); // intentionally make a copy
       pendingSpans.getOrCreate(null, context, true);
@@ -69,7 +71,8 @@ public class PendingSpansClassLoaderTest {
 
     @Override public void run() {
       PendingSpans pendingSpans = new PendingSpans(new MutableSpan(),
-        Platform.get().clock(), FinishedSpanHandler.NOOP, true, new AtomicBoolean());
+        Platform.get().clock(), FinishedSpanHandler.NOOP, true, new AtomicBoolean(), null, null,
+        TracingMetrics.NOOP);
 
       TraceContext context = CONTEXT.toBuilder().build(); // intentionally make a copy
       pendingSpans.getOrCreate(null, context, true);
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.internal.Platform;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Clock} which reads wall time once, then derives microseconds from {@link
+ * System#nanoTime()}. This avoids allocation, such as the {@code java.time.Instant} the default
+ * clock allocates on JRE 9+.
+ *
+ * <p>As {@link System#nanoTime()} drifts from wall time, wall time is re-read after each {@link
+ * #create(long, TimeUnit) interval}. Timestamps can jump when this happens, by the amount of drift
+ * accumulated. Durations inside a trace are not affected, as they are already derived from {@link
+ * System#nanoTime()}.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *                  .clock(AnchoredClock.create())
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * @see Tracing.Builder#clock(Clock)
+ * @since 5.12
+ */
+public final class AnchoredClock implements Clock {
+  /** Re-anchors every second, which bounds drift to what {@link System#nanoTime()} has in that. */
+  public static AnchoredClock create() {
+    return create(1, TimeUnit.SECONDS);
+  }
+
+  /** @param interval how often wall time is re-read. */
+  public static AnchoredClock create(long interval, TimeUnit unit) {
+    if (unit == null) throw new NullPointerException("unit == null");
+    if (interval < 1) throw new IllegalArgumentException("interval < 1");
+    return new AnchoredClock(Platform.get().clock(), unit.toNanos(interval));
+  }
+
+  final Clock wallClock;
+  final long intervalNanos;
+  volatile Anchor anchor;
+
+  AnchoredClock(Clock wallClock, long intervalNanos) {
+    this.wallClock = wallClock;
+    this.intervalNanos = intervalNanos;
+    this.anchor = new Anchor(wallClock.currentTimeMicroseconds(), System.nanoTime());
+  }
+
+  @Override public long currentTimeMicroseconds() {
+    long nanoTime = System.nanoTime();
+    Anchor anchor = this.anchor;
+    long elapsedNanos = nanoTime - anchor.nanoTime;
+    if (elapsedNanos < intervalNanos) return anchor.epochMicros + elapsedNanos / 1000;
+
+    // Racing threads may both re-anchor. This is harmless as either result is valid.
+    long epochMicros = wallClock.currentTimeMicroseconds();
+    this.anchor = new Anchor(epochMicros, nanoTime);
+    return epochMicros;
+  }
+
+  @Override public String toString() {
+    return "AnchoredClock{wallClock=" + wallClock + ", intervalNanos=" + intervalNanos + "}";
+  }
+
+  static final class Anchor {
+    final long epochMicros, nanoTime;
+
+    Anchor(long epochMicros, long nanoTime) {
+      this.epochMicros = epochMicros;
+      this.nanoTime = nanoTime;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.internal.Platform;
+
+/**
+ * Generates span and trace IDs for new {@linkplain brave.propagation.TraceContext trace contexts}.
+ *
+ * <p>The default is {@link #threadLocal()}, which is faster than reading {@linkplain #platform()
+ * platform randomness} for each ID.
+ *
+ * <p>Ex. to use platform randomness for each ID
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *                  .idGenerator(IdGenerator.platform())
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * @see Tracing.Builder#idGenerator(IdGenerator)
+ * @since 5.12
+ */
+public abstract class IdGenerator {
+  /**
+   * Reads {@code java.util.concurrent.ThreadLocalRandom}, or {@link java.util.Random} on JRE 6, for
+   * each ID. Trace IDs read the current time for their epoch seconds prefix.
+   */
+  public static IdGenerator platform() {
+    return PlatformIdGenerator.INSTANCE;
+  }
+
+  /**
+   * Generates IDs in batches from a per-thread pseudorandom sequence, seeded with {@linkplain
+   * #platform() platform randomness}.
+   *
+   * <p><em>Note</em>: The epoch seconds prefix of {@link #nextTraceIdHigh()} is cached per thread
+   * and refreshed each time its batch of 64 IDs refills. On a thread that rarely starts traces, it
+   * can be older than the trace. Use {@link #platform()} if you need exact timestamps.
+   */
+  public static IdGenerator threadLocal() {
+    return new ThreadLocalIdGenerator();
+  }
+
+  /** Returns a random 64-bit ID, which is never zero. */
+  public abstract long nextId();
+
+  /**
+   * Returns the high 8-bytes for {@linkplain Tracing.Builder#traceId128Bit(boolean) 128-bit trace
+   * IDs}.
+   *
+   * <p>The upper 4-bytes are epoch seconds and the lower 4-bytes are random. This makes it
+   * convertible to <a href="http://docs.aws.amazon.com/elasticloadbalancing/latest/application/load-balancer-request-tracing.html">Amazon
+   * X-Ray trace ID format v1</a>.
+   */
+  public abstract long nextTraceIdHigh();
+
+  static final class PlatformIdGenerator extends IdGenerator {
+    static final IdGenerator INSTANCE = new PlatformIdGenerator();
+
+    @Override public long nextId() {
+      long nextId = Platform.get().randomLong();
+      while (nextId == 0L) {
+        nextId = Platform.get().randomLong();
+      }
+      return nextId;
+    }
+
+    @Override public long nextTraceIdHigh() {
+      return Platform.get().nextTraceIdHigh();
+    }
+
+    @Override public String toString() {
+      return "PlatformIdGenerator{}";
+    }
+  }
+
+  static final class ThreadLocalIdGenerator extends IdGenerator {
+    /** The increment of SplitMix64, the same as used by {@code java.util.SplittableRandom}. */
+    static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    static final int BATCH_SIZE = 64;
+    /** Offsets of per-thread state, which precedes the batch of IDs. */
+    static final int SEED = 0, INDEX = 1, EPOCH_SECONDS = 2, BATCH = 3;
+
+    /**
+     * Per-thread state is a JRE type, so that values left on threads don't pin this class loader.
+     * As it is only read by its thread, it needs no synchronization.
+     */
+    final ThreadLocal<long[]> ids = new ThreadLocal<>();
+
+    @Override public long nextId() {
+      return nextId(ids());
+    }
+
+    @Override public long nextTraceIdHigh() {
+      long[] ids = ids();
+      long random = nextId(ids); // refreshes the epoch seconds when the batch refills
+      return (ids[EPOCH_SECONDS] & 0xffffffffL) << 32 | (random & 0xffffffffL);
+    }
+
+    long[] ids() {
+      long[] result = ids.get();
+      if (result == null) ids.set(result = newIds(Platform.get().randomLong()));
+      return result;
+    }
+
+    static long[] newIds(long seed) {
+      long[] ids = new long[BATCH + BATCH_SIZE];
+      ids[SEED] = seed;
+      ids[INDEX] = ids.length; // so that the first call fills the batch
+      return ids;
+    }
+
+    static long nextId(long[] ids) {
+      int index = (int) ids[INDEX];
+      if (index == ids.length) index = fillBatch(ids);
+      ids[INDEX] = index + 1L;
+      return ids[index];
+    }
+
+    /** Returns the index of the first ID in the batch. */
+    static int fillBatch(long[] ids) {
+      ids[EPOCH_SECONDS] = System.currentTimeMillis() / 1000;
+      long seed = ids[SEED];
+      for (int i = BATCH; i < ids.length; i++) {
+        long id;
+        do {
+          id = mix64(seed += GOLDEN_GAMMA);
+        } while (id == 0L);
+        ids[i] = id;
+      }
+      ids[SEED] = seed;
+      return BATCH;
+    }
+
+    /** The output function of SplitMix64. */
+    static long mix64(long z) {
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      return z ^ (z >>> 31);
+    }
+
+    @Override public String toString() {
+      return "ThreadLocalIdGenerator{}";
+    }
+  }
+}
@@ -24,14 +24,18 @@ final class RealScopedSpan extends ScopedSpan {
   final TraceContext context;
   final Scope scope;
   final MutableSpan state;
+  final int generation; // of the state, to detect if it was recycled
   final Clock clock;
   final PendingSpans pendingSpans;
   final FinishedSpanHandler finishedSpanHandler;
+  /** When false, only the owning thread uses the state, so writes needn't lock or be checked. */
+  final boolean guarded;
 
   RealScopedSpan(
     TraceContext context,
     Scope scope,
     MutableSpan state,
+    int generation,
     Clock clock,
     PendingSpans pendingSpans,
     FinishedSpanHandler finishedSpanHandler
@@ -40,8 +44,10 @@ final class RealScopedSpan extends ScopedSpan {
     this.scope = scope;
     this.pendingSpans = pendingSpans;
     this.state = state;
+    this.generation = generation;
     this.clock = clock;
     this.finishedSpanHandler = finishedSpanHandler;
+    this.guarded = pendingSpans.sharesInProgressSpans();
   }
 
   @Override public boolean isNoop() {
@@ -53,22 +59,46 @@ final class RealScopedSpan extends ScopedSpan {
   }
 
   @Override public ScopedSpan name(String name) {
-    state.name(name);
+    if (!guarded) {
+      state.name(name);
+      return this;
+    }
+    synchronized (state) {
+      if (!isRecycled()) state.name(name);
+    }
     return this;
   }
 
   @Override public ScopedSpan tag(String key, String value) {
-    state.tag(key, value);
+    if (!guarded) {
+      pendingSpans.tag(state, key, value);
+      return this;
+    }
+    synchronized (state) {
+      if (!isRecycled()) pendingSpans.tag(state, key, value);
+    }
     return this;
   }
 
   @Override public ScopedSpan annotate(String value) {
-    state.annotate(clock.currentTimeMicroseconds(), value);
+    if (!guarded) {
+      pendingSpans.annotate(state, clock.currentTimeMicroseconds(), value);
+      return this;
+    }
+    synchronized (state) {
+      if (!isRecycled()) pendingSpans.annotate(state, clock.currentTimeMicroseconds(), value);
+    }
     return this;
   }
 
   @Override public ScopedSpan error(Throwable throwable) {
-    state.error(throwable);
+    if (!guarded) {
+      state.error(throwable);
+      return this;
+    }
+    synchronized (state) {
+      if (!isRecycled()) state.error(throwable);
+    }
     return this;
   }
 
@@ -78,6 +108,11 @@ final class RealScopedSpan extends ScopedSpan {
     finishedSpanHandler.handle(context, state);
   }
 
+  /** Call while holding the lock on {@link #state}, before changing it. */
+  boolean isRecycled() {
+    return pendingSpans.isRecycled(context, state, generation);
+  }
+
   @Override public boolean equals(Object o) {
     if (o == this) return true;
     if (!(o instanceof RealScopedSpan)) return false;
@@ -24,18 +24,21 @@ final class RealSpan extends Span {
   final TraceContext context;
   final PendingSpans pendingSpans;
   final MutableSpan state;
+  final int generation; // of the state, to detect if it was recycled
   final Clock clock;
   final FinishedSpanHandler finishedSpanHandler;
 
   RealSpan(TraceContext context,
     PendingSpans pendingSpans,
     MutableSpan state,
+    int generation,
     Clock clock,
     FinishedSpanHandler finishedSpanHandler
   ) {
     this.context = context;
     this.pendingSpans = pendingSpans;
     this.state = state;
+    this.generation = generation;
     this.clock = clock;
     this.finishedSpanHandler = finishedSpanHandler;
   }
@@ -58,6 +61,7 @@ final class RealSpan extends Span {
 
   @Override public Span start(long timestamp) {
     synchronized (state) {
+      if (isRecycled()) return this;
       state.startTimestamp(timestamp);
     }
     return this;
@@ -65,6 +69,7 @@ final class RealSpan extends Span {
 
   @Override public Span name(String name) {
     synchronized (state) {
+      if (isRecycled()) return this;
       state.name(name);
     }
     return this;
@@ -72,6 +77,7 @@ final class RealSpan extends Span {
 
   @Override public Span kind(Kind kind) {
     synchronized (state) {
+      if (isRecycled()) return this;
       state.kind(kind);
     }
     return this;
@@ -86,27 +92,32 @@ final class RealSpan extends Span {
     // accept them rather than fail. This for example allows old bridges like to Brave v3 to work
     if ("cs".equals(value)) {
       synchronized (state) {
+        if (isRecycled()) return this;
         state.kind(Span.Kind.CLIENT);
         state.startTimestamp(timestamp);
       }
     } else if ("sr".equals(value)) {
       synchronized (state) {
+        if (isRecycled()) return this;
         state.kind(Span.Kind.SERVER);
         state.startTimestamp(timestamp);
       }
     } else if ("cr".equals(value)) {
       synchronized (state) {
+        if (isRecycled()) return this;
         state.kind(Span.Kind.CLIENT);
       }
       finish(timestamp);
     } else if ("ss".equals(value)) {
       synchronized (state) {
+        if (isRecycled()) return this;
         state.kind(Span.Kind.SERVER);
       }
       finish(timestamp);
     } else {
       synchronized (state) {
-        state.annotate(timestamp, value);
+        if (isRecycled()) return this;
+        pendingSpans.annotate(state, timestamp, value);
       }
     }
     return this;
@@ -114,13 +125,15 @@ final class RealSpan extends Span {
 
   @Override public Span tag(String key, String value) {
     synchronized (state) {
-      state.tag(key, value);
+      if (isRecycled()) return this;
+      pendingSpans.tag(state, key, value);
     }
     return this;
   }
 
   @Override public Span error(Throwable throwable) {
     synchronized (state) {
+      if (isRecycled()) return this;
       state.error(throwable);
     }
     return this;
@@ -128,6 +141,7 @@ final class RealSpan extends Span {
 
   @Override public Span remoteServiceName(String remoteServiceName) {
     synchronized (state) {
+      if (isRecycled()) return this;
       state.remoteServiceName(remoteServiceName);
     }
     return this;
@@ -135,6 +149,7 @@ final class RealSpan extends Span {
 
   @Override public boolean remoteIpAndPort(String remoteIp, int remotePort) {
     synchronized (state) {
+      if (isRecycled()) return false;
       return state.remoteIpAndPort(remoteIp, remotePort);
     }
   }
@@ -159,6 +174,11 @@ final class RealSpan extends Span {
     finishedSpanHandler.handle(context, state);
   }
 
+  /** Call while holding the lock on {@link #state}, before changing it. */
+  boolean isRecycled() {
+    return pendingSpans.isRecycled(context, state, generation);
+  }
+
   @Override public String toString() {
     return "RealSpan(" + context + ")";
   }
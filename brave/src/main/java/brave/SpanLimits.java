@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.handler.MutableSpan;
+import brave.internal.recorder.SpanLimiter;
+
+/**
+ * Limits the count of spans in a local root, and the size of each span, so that a pathological
+ * trace, such as one created in a runaway loop, cannot exhaust the heap or overwhelm the
+ * collector.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * spanLimits = SpanLimits.newBuilder().maxSpansPerLocalRoot(1000).build();
+ * tracing = Tracing.newBuilder()
+ *                  .spanLimits(spanLimits)
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * <h3>Implications</h3>
+ * Once a local root has {@link Builder#maxSpansPerLocalRoot(int) the maximum count of spans}, new
+ * spans under it are {@linkplain Span#isNoop() noop}, though their context still propagates.
+ * Tags and annotations over their limits are dropped, and tag values over the maximum length are
+ * truncated. Each is counted, so that you can tell when data was lost.
+ *
+ * <p>Counts are shared by all {@link Tracing} instances built with this object.
+ *
+ * @see Tracing.Builder#spanLimits(SpanLimits)
+ * @since 5.12
+ */
+public final class SpanLimits {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int maxSpansPerLocalRoot = 10000, maxTagsPerSpan = 128, maxAnnotationsPerSpan = 128;
+    int maxTagValueLength = 4096;
+
+    /**
+     * Maximum count of spans created in the same {@linkplain MutableSpan#localRootId() local
+     * root}, including the local root. Defaults to 10000.
+     */
+    public Builder maxSpansPerLocalRoot(int maxSpansPerLocalRoot) {
+      if (maxSpansPerLocalRoot < 1) throw new IllegalArgumentException("maxSpansPerLocalRoot < 1");
+      this.maxSpansPerLocalRoot = maxSpansPerLocalRoot;
+      return this;
+    }
+
+    /** Maximum count of distinct tag keys in a span. Defaults to 128. */
+    public Builder maxTagsPerSpan(int maxTagsPerSpan) {
+      if (maxTagsPerSpan < 0) throw new IllegalArgumentException("maxTagsPerSpan < 0");
+      this.maxTagsPerSpan = maxTagsPerSpan;
+      return this;
+    }
+
+    /** Maximum count of annotations in a span. Defaults to 128. */
+    public Builder maxAnnotationsPerSpan(int maxAnnotationsPerSpan) {
+      if (maxAnnotationsPerSpan < 0) {
+        throw new IllegalArgumentException("maxAnnotationsPerSpan < 0");
+      }
+      this.maxAnnotationsPerSpan = maxAnnotationsPerSpan;
+      return this;
+    }
+
+    /** Tag values longer than this count of characters are truncated. Defaults to 4096. */
+    public Builder maxTagValueLength(int maxTagValueLength) {
+      if (maxTagValueLength < 1) throw new IllegalArgumentException("maxTagValueLength < 1");
+      this.maxTagValueLength = maxTagValueLength;
+      return this;
+    }
+
+    public SpanLimits build() {
+      return new SpanLimits(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final SpanLimiter limiter;
+  final int maxSpansPerLocalRoot, maxTagsPerSpan, maxAnnotationsPerSpan, maxTagValueLength;
+
+  SpanLimits(Builder builder) {
+    this.maxSpansPerLocalRoot = builder.maxSpansPerLocalRoot;
+    this.maxTagsPerSpan = builder.maxTagsPerSpan;
+    this.maxAnnotationsPerSpan = builder.maxAnnotationsPerSpan;
+    this.maxTagValueLength = builder.maxTagValueLength;
+    this.limiter = new SpanLimiter(maxSpansPerLocalRoot, maxTagsPerSpan, maxAnnotationsPerSpan,
+      maxTagValueLength);
+  }
+
+  public int maxSpansPerLocalRoot() {
+    return maxSpansPerLocalRoot;
+  }
+
+  public int maxTagsPerSpan() {
+    return maxTagsPerSpan;
+  }
+
+  public int maxAnnotationsPerSpan() {
+    return maxAnnotationsPerSpan;
+  }
+
+  public int maxTagValueLength() {
+    return maxTagValueLength;
+  }
+
+  /** Returns the count of spans that were noop as their local root had too many spans. */
+  public long droppedSpans() {
+    return limiter.droppedSpans();
+  }
+
+  /** Returns the count of tags dropped as their span had too many. */
+  public long droppedTags() {
+    return limiter.droppedTags();
+  }
+
+  /** Returns the count of annotations dropped as their span had too many. */
+  public long droppedAnnotations() {
+    return limiter.droppedAnnotations();
+  }
+
+  /** Returns the count of tag values that were truncated. */
+  public long truncatedTagValues() {
+    return limiter.truncatedTagValues();
+  }
+
+  @Override public String toString() {
+    return "SpanLimits{maxSpansPerLocalRoot=" + maxSpansPerLocalRoot
+      + ", maxTagsPerSpan=" + maxTagsPerSpan
+      + ", maxAnnotationsPerSpan=" + maxAnnotationsPerSpan
+      + ", maxTagValueLength=" + maxTagValueLength + "}";
+  }
+}
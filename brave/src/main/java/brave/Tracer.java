@@ -17,9 +17,9 @@ import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
 import brave.internal.InternalPropagation;
 import brave.internal.Nullable;
-import brave.internal.Platform;
 import brave.internal.recorder.PendingSpan;
 import brave.internal.recorder.PendingSpans;
+import brave.internal.recorder.SpanLimiter;
 import brave.propagation.CurrentTraceContext;
 import brave.propagation.CurrentTraceContext.Scope;
 import brave.propagation.Propagation;
@@ -93,8 +93,10 @@ public class Tracer {
   final PendingSpans pendingSpans;
   final Sampler sampler;
   final CurrentTraceContext currentTraceContext;
+  final IdGenerator idGenerator;
   final boolean traceId128Bit, supportsJoin, alwaysSampleLocal;
   final AtomicBoolean noop;
+  final TracingMetrics metrics;
 
   Tracer(
     Clock clock,
@@ -103,10 +105,12 @@ public class Tracer {
     PendingSpans pendingSpans,
     Sampler sampler,
     CurrentTraceContext currentTraceContext,
+    IdGenerator idGenerator,
     boolean traceId128Bit,
     boolean supportsJoin,
     boolean alwaysSampleLocal,
-    AtomicBoolean noop
+    AtomicBoolean noop,
+    TracingMetrics metrics
   ) {
     this.clock = clock;
     this.propagationFactory = propagationFactory;
@@ -114,10 +118,12 @@ public class Tracer {
     this.pendingSpans = pendingSpans;
     this.sampler = sampler;
     this.currentTraceContext = currentTraceContext;
+    this.idGenerator = idGenerator;
     this.traceId128Bit = traceId128Bit;
     this.supportsJoin = supportsJoin;
     this.alwaysSampleLocal = alwaysSampleLocal;
     this.noop = noop;
+    this.metrics = metrics;
   }
 
   /**
@@ -134,10 +140,12 @@ public class Tracer {
       pendingSpans,
       sampler,
       currentTraceContext,
+      idGenerator,
       traceId128Bit,
       supportsJoin,
       alwaysSampleLocal,
-      noop
+      noop,
+      metrics
     );
   }
 
@@ -272,12 +280,14 @@ public class Tracer {
     if (spanId == 0L) spanId = nextId();
 
     if (traceId == 0L) { // make a new trace ID
-      traceIdHigh = traceId128Bit ? Platform.get().nextTraceIdHigh() : 0L;
+      traceIdHigh = traceId128Bit ? idGenerator.nextTraceIdHigh() : 0L;
       traceId = spanId;
     }
 
     if ((flags & FLAG_SAMPLED_SET) != FLAG_SAMPLED_SET) { // cheap check for not yet sampled
-      flags = InternalPropagation.sampled(sampler.isSampled(traceId), flags);
+      boolean sampled = sampler.isSampled(traceId);
+      metrics.samplerDecision(sampled);
+      flags = InternalPropagation.sampled(sampled, flags);
       flags &= ~FLAG_SHARED; // cannot be shared if not yet sampled
     }
 
@@ -406,15 +416,23 @@ public class Tracer {
 
   Span _toSpan(@Nullable TraceContext parent, TraceContext context) {
     if (isNoop(context)) return new NoopSpan(context);
+    // Looking up a span over the limit, rather than creating a child, isn't another dropped span
+    if (SpanLimiter.isOverLimit(context)
+      && (parent == null || parent.spanId() == context.spanId())) {
+      return new NoopSpan(context);
+    }
 
     // allocate a mutable span in case multiple threads call this method.. they'll use the same data
     PendingSpan pendingSpan = pendingSpans.getOrCreate(parent, context, false);
+    if (pendingSpan == null) { // over the limit of its local root
+      return new NoopSpan(SpanLimiter.markOverLimit(context));
+    }
     TraceContext pendingContext = pendingSpan.context();
     // A lost race of Tracer.toSpan(context) is the only known situation where "context" won't be
     // the same as pendingSpan.context()
     if (pendingContext != null) context = pendingContext;
-    return new RealSpan(context, pendingSpans, pendingSpan.state(), pendingSpan.clock(),
-      finishedSpanHandler);
+    return new RealSpan(context, pendingSpans, pendingSpan.state(), pendingSpan.generation(),
+      pendingSpan.clock(), finishedSpanHandler);
   }
 
   /**
@@ -579,6 +597,7 @@ public class Tracer {
     if (parent != null) return decorateContext(parent, parent.spanId());
 
     Boolean sampled = samplerFunction.trySample(arg);
+    if (sampled != null) metrics.samplerDecision(sampled);
     SamplingFlags flags = sampled != null ? (sampled ? SAMPLED : NOT_SAMPLED) : EMPTY;
     return newRootContext(InternalPropagation.instance.flags(flags));
   }
@@ -598,14 +617,21 @@ public class Tracer {
   }
 
   ScopedSpan newScopedSpan(@Nullable TraceContext parent, TraceContext context, String name) {
-    Scope scope = currentTraceContext.newScope(context);
-    if (isNoop(context)) return new NoopScopedSpan(context, scope);
+    if (isNoop(context)) {
+      return new NoopScopedSpan(context, currentTraceContext.newScope(context));
+    }
 
     PendingSpan pendingSpan = pendingSpans.getOrCreate(parent, context, true);
+    if (pendingSpan == null) { // over the limit of its local root
+      context = SpanLimiter.markOverLimit(context);
+      return new NoopScopedSpan(context, currentTraceContext.newScope(context));
+    }
+    Scope scope = currentTraceContext.newScope(context);
     Clock clock = pendingSpan.clock();
     MutableSpan state = pendingSpan.state();
     state.name(name);
-    return new RealScopedSpan(context, scope, state, clock, pendingSpans, finishedSpanHandler);
+    return new RealScopedSpan(context, scope, state, pendingSpan.generation(), clock, pendingSpans,
+      finishedSpanHandler);
   }
 
   /** A span remains in the scope it was bound to until close is called. */
@@ -646,9 +672,9 @@ public class Tracer {
 
   /** Generates a new 64-bit ID, taking care to dodge zero which can be confused with absent */
   long nextId() {
-    long nextId = Platform.get().randomLong();
-    while (nextId == 0L) {
-      nextId = Platform.get().randomLong();
+    long nextId = idGenerator.nextId();
+    while (nextId == 0L) { // defend against a buggy generator
+      nextId = idGenerator.nextId();
     }
     return nextId;
   }
@@ -14,14 +14,24 @@
 package brave;
 
 import brave.baggage.BaggageField;
+import brave.handler.AsyncFinishedSpanHandling;
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
+import brave.handler.MutableSpanRecycling;
+import brave.handler.OrphanReaping;
 import brave.internal.IpLiteral;
 import brave.internal.Nullable;
 import brave.internal.Platform;
+import brave.internal.handler.AsyncFinishedSpanHandler;
+import brave.internal.handler.InternalAsyncFinishedSpanHandling;
 import brave.internal.handler.NoopAwareFinishedSpanHandler;
+import brave.internal.handler.RecyclingFinishedSpanHandler;
 import brave.internal.handler.ZipkinFinishedSpanHandler;
+import brave.internal.recorder.InternalOrphanReaping;
+import brave.internal.recorder.MutableSpanPool;
+import brave.internal.recorder.PendingSpan;
 import brave.internal.recorder.PendingSpans;
+import brave.internal.recorder.SpanLimiter;
 import brave.propagation.B3Propagation;
 import brave.propagation.CurrentTraceContext;
 import brave.propagation.Propagation;
@@ -29,6 +39,7 @@ import brave.propagation.TraceContext;
 import brave.sampler.Sampler;
 import brave.sampler.SamplerFunction;
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -89,11 +100,25 @@ public abstract class Tracing implements Closeable {
    * @param context references a potentially unstarted span you'd like a clock correlated with
    */
   public final Clock clock(TraceContext context) {
-    return tracer().pendingSpans.getOrCreate(null, context, false).clock();
+    if (SpanLimiter.isOverLimit(context)) return tracer().clock;
+    PendingSpan pendingSpan = tracer().pendingSpans.getOrCreate(null, context, false);
+    // null when over the span limit of the local root
+    return pendingSpan != null ? pendingSpan.clock() : tracer().clock;
   }
 
   abstract public ErrorParser errorParser();
 
+  /**
+   * Returns an estimate of how many spans were started, but not yet finished, abandoned or
+   * reported as orphans. This is cheap enough to poll as a gauge.
+   *
+   * @see TracingMetrics
+   * @since 5.12
+   */
+  public final int pendingSpanCount() {
+    return tracer().pendingSpans.size();
+  }
+
   /**
    * Returns the most recently created tracing component iff it hasn't been closed. null otherwise.
    *
@@ -143,6 +168,12 @@ public abstract class Tracing implements Closeable {
     Propagation.Factory propagationFactory = B3Propagation.FACTORY;
     ErrorParser errorParser = ErrorParser.get();
     Set<FinishedSpanHandler> finishedSpanHandlers = new LinkedHashSet<>(); // dupes not ok
+    AsyncFinishedSpanHandling asyncFinishedSpanHandling;
+    MutableSpanRecycling mutableSpanRecycling;
+    OrphanReaping orphanReaping;
+    SpanLimits spanLimits;
+    TracingMetrics metrics = TracingMetrics.NOOP;
+    IdGenerator idGenerator = IdGenerator.threadLocal();
 
     Builder() {
       defaultSpan.localServiceName("unknown");
@@ -244,6 +275,8 @@ public abstract class Tracing implements Closeable {
      * <p>Note: timestamps are read once per trace, then {@link System#nanoTime() ticks}
      * thereafter. This ensures there's no clock skew problems inside a single trace.
      *
+     * <p>Use {@link AnchoredClock} to avoid allocating on each read of wall time.
+     *
      * See {@link Tracing#clock(TraceContext)}
      */
     public Builder clock(Clock clock) {
@@ -358,6 +391,103 @@ public abstract class Tracing implements Closeable {
       return this;
     }
 
+    /**
+     * When set, {@link FinishedSpanHandler handlers}, including the {@link #spanReporter(Reporter)
+     * span reporter}, are invoked on a worker thread instead of the one that finished the span.
+     * This takes span conversion and reporting overhead off the request path. Defaults to unset.
+     *
+     * <p>Worker threads stop on {@link Tracing#close()}, after a bounded attempt to drain pending
+     * spans. Handlers themselves are not closed, as they are owned by the caller.
+     *
+     * @see AsyncFinishedSpanHandling
+     * @see #addFinishedSpanHandler(FinishedSpanHandler)
+     * @since 5.12
+     */
+    public Builder asyncFinishedSpanHandling(AsyncFinishedSpanHandling asyncFinishedSpanHandling) {
+      if (asyncFinishedSpanHandling == null) {
+        throw new NullPointerException("asyncFinishedSpanHandling == null");
+      }
+      this.asyncFinishedSpanHandling = asyncFinishedSpanHandling;
+      return this;
+    }
+
+    /**
+     * When set, {@link MutableSpan} instances are recycled after all {@link FinishedSpanHandler
+     * handlers} complete. This reduces allocation when spans are created at a high rate. Defaults to
+     * unset.
+     *
+     * <p><em>Note</em>: Handlers must not retain a reference to the {@link MutableSpan} they are
+     * passed. See {@link MutableSpanRecycling} for details.
+     *
+     * @see MutableSpanRecycling
+     * @since 5.12
+     */
+    public Builder mutableSpanRecycling(MutableSpanRecycling mutableSpanRecycling) {
+      if (mutableSpanRecycling == null) {
+        throw new NullPointerException("mutableSpanRecycling == null");
+      }
+      this.mutableSpanRecycling = mutableSpanRecycling;
+      return this;
+    }
+
+    /**
+     * When set, spans orphaned by garbage collection are reported in the background, instead of by
+     * whichever traced operation happens to run next. This avoids latency spikes on unrelated
+     * requests after a large collection. Defaults to unset.
+     *
+     * <p>Background reaping stops on {@link Tracing#close()}.
+     *
+     * @see OrphanReaping
+     * @see FinishedSpanHandler#supportsOrphans()
+     * @since 5.12
+     */
+    public Builder orphanReaping(OrphanReaping orphanReaping) {
+      if (orphanReaping == null) throw new NullPointerException("orphanReaping == null");
+      this.orphanReaping = orphanReaping;
+      return this;
+    }
+
+    /**
+     * When set, the count of spans in a local root, and the count of tags and annotations in each
+     * span, are limited. This protects the heap and the collector from pathological traces.
+     * Defaults to unset, which means no limits.
+     *
+     * @see SpanLimits
+     * @since 5.12
+     */
+    public Builder spanLimits(SpanLimits spanLimits) {
+      if (spanLimits == null) throw new NullPointerException("spanLimits == null");
+      this.spanLimits = spanLimits;
+      return this;
+    }
+
+    /**
+     * Receives events such as spans started, orphaned or failing in a {@link FinishedSpanHandler}.
+     * Defaults to {@link TracingMetrics#NOOP}.
+     *
+     * @see TracingMetrics
+     * @see Tracing#pendingSpanCount()
+     * @since 5.12
+     */
+    public Builder metrics(TracingMetrics metrics) {
+      if (metrics == null) throw new NullPointerException("metrics == null");
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * Generates span and trace IDs for new trace contexts. Defaults to {@link
+     * IdGenerator#threadLocal()}.
+     *
+     * @see IdGenerator
+     * @since 5.12
+     */
+    public Builder idGenerator(IdGenerator idGenerator) {
+      if (idGenerator == null) throw new NullPointerException("idGenerator == null");
+      this.idGenerator = idGenerator;
+      return this;
+    }
+
     /**
      * When true, all spans become real spans even if they aren't sampled remotely. This allows
      * finished span handlers (such as metrics) to consider attributes that are not always visible
@@ -451,6 +581,7 @@ public abstract class Tracing implements Closeable {
     final Clock clock;
     final ErrorParser errorParser;
     final AtomicBoolean noop;
+    @Nullable final Closeable asyncFinishedSpanHandler, orphanReaper;
 
     Default(Builder builder) {
       this.clock = builder.clock != null ? builder.clock : Platform.get().clock();
@@ -474,7 +605,7 @@ public abstract class Tracing implements Closeable {
 
       // Make sure any exceptions caused by handlers don't crash callers
       FinishedSpanHandler finishedSpanHandler =
-        NoopAwareFinishedSpanHandler.create(spanHandlers, noop);
+        NoopAwareFinishedSpanHandler.create(spanHandlers, noop, builder.metrics);
       boolean alwaysSampleLocal = builder.alwaysSampleLocal;
       for (FinishedSpanHandler handler : spanHandlers) {
         // Handle deprecated FinishedSpanHandler.alwaysSampleLocal
@@ -492,23 +623,49 @@ public abstract class Tracing implements Closeable {
       FinishedSpanHandler orphanedSpanHandler = finishedSpanHandler;
       boolean allHandlersSupportOrphans = spanHandlers.equals(orphanedSpanHandlers);
       if (!allHandlersSupportOrphans) {
-        orphanedSpanHandler = NoopAwareFinishedSpanHandler.create(orphanedSpanHandlers, noop);
+        orphanedSpanHandler =
+          NoopAwareFinishedSpanHandler.create(orphanedSpanHandlers, noop, builder.metrics);
+      }
+
+      MutableSpanRecycling recycling = builder.mutableSpanRecycling;
+      MutableSpanPool pool = recycling != null
+        ? new MutableSpanPool(recycling.poolSize(), recycling.detectUseAfterRecycle())
+        : null;
+      SpanLimiter limiter = builder.spanLimits != null ? builder.spanLimits.limiter : null;
+      PendingSpans pendingSpans = new PendingSpans(defaultSpan, clock, orphanedSpanHandler,
+        builder.trackOrphans, noop, pool, limiter, builder.metrics);
+      // Recycling must happen after the handlers, so it is inside any asynchronous handling
+      if (pool != null) {
+        finishedSpanHandler = new RecyclingFinishedSpanHandler(finishedSpanHandler, pendingSpans);
       }
 
-      PendingSpans pendingSpans =
-        new PendingSpans(defaultSpan, clock, orphanedSpanHandler, builder.trackOrphans, noop);
+      // Orphans are handled synchronously as they are already off the critical path of the caller
+      if (builder.asyncFinishedSpanHandling != null) {
+        AsyncFinishedSpanHandler asyncHandler = InternalAsyncFinishedSpanHandling.instance
+          .decorate(builder.asyncFinishedSpanHandling, finishedSpanHandler);
+        finishedSpanHandler = asyncHandler;
+        this.asyncFinishedSpanHandler = asyncHandler;
+      } else {
+        this.asyncFinishedSpanHandler = null;
+      }
+      // Started after asynchronous handling, which throws if its configuration is already in use
+      this.orphanReaper = builder.orphanReaping != null
+        ? InternalOrphanReaping.instance.start(builder.orphanReaping, pendingSpans)
+        : null;
 
       this.tracer = new Tracer(
-        builder.clock,
+        clock,
         builder.propagationFactory,
         finishedSpanHandler,
         pendingSpans,
         builder.sampler,
         builder.currentTraceContext,
+        builder.idGenerator,
         builder.traceId128Bit || propagationFactory.requires128BitTraceId(),
         builder.supportsJoin && propagationFactory.supportsJoin(),
         alwaysSampleLocal,
-        noop
+        noop,
+        builder.metrics
       );
       // assign current IFF there's no instance already current
       CURRENT.compareAndSet(null, this);
@@ -553,6 +710,17 @@ public abstract class Tracing implements Closeable {
     @Override public void close() {
       // only set null if we are the outer-most instance
       CURRENT.compareAndSet(this, null);
+      closeQuietly(asyncFinishedSpanHandler);
+      closeQuietly(orphanReaper);
+    }
+
+    static void closeQuietly(@Nullable Closeable closeable) {
+      if (closeable == null) return;
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        Platform.get().log("error closing {0}", closeable, e);
+      }
     }
   }
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.handler.FinishedSpanHandler;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+
+/**
+ * Receives events about the tracer itself, so that you can tell if it is leaking, dropping or
+ * slowing down spans. Implement this to bridge to your metrics library, for example by
+ * incrementing counters.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *                  .metrics(new TracingMetrics() {
+ *                    @Override public void spanOrphaned() {
+ *                      orphanedSpans.increment();
+ *                    }
+ *                  })
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * <p>The count of spans not yet finished is a gauge, read with {@link Tracing#pendingSpanCount()}.
+ *
+ * <h3>Implementation notes</h3>
+ * Methods are called inline with traced operations, on any thread. They must be cheap, thread-safe
+ * and must not throw. Incrementing an atomic counter is fine, but blocking or allocating is not.
+ *
+ * @see Tracing.Builder#metrics(TracingMetrics)
+ * @since 5.12
+ */
+public abstract class TracingMetrics {
+  /** Use to avoid the overhead of metrics, such as timing handlers. This is the default. */
+  public static final TracingMetrics NOOP = new TracingMetrics() {
+    @Override public String toString() {
+      return "NoopTracingMetrics{}";
+    }
+  };
+
+  /** Called when a span is first recorded, such as when it {@linkplain Span#start() starts}. */
+  public void spanStarted() {
+  }
+
+  /**
+   * Called when a span is {@linkplain Span#finish() finished} or {@linkplain Span#flush()
+   * flushed}.
+   */
+  public void spanFinished() {
+  }
+
+  /** Called when a span is {@linkplain Span#abandon() abandoned}. */
+  public void spanAbandoned() {
+  }
+
+  /**
+   * Called when a span is orphaned: it was garbage collected before it finished, or it outlived
+   * its max lifetime. Non-zero counts indicate instrumentation bugs.
+   */
+  public void spanOrphaned() {
+  }
+
+  /**
+   * Called when a new trace is sampled, either by the {@link Sampler} or a {@link
+   * SamplerFunction}. This is not called when the decision was made upstream.
+   */
+  public void samplerDecision(boolean sampled) {
+  }
+
+  /** Called when a {@link FinishedSpanHandler} raised an error, which was logged and suppressed. */
+  public void handlerFailed(TraceContext context, Throwable error) {
+  }
+
+  /**
+   * Called after {@link FinishedSpanHandler handlers} process a span, with the time they took.
+   *
+   * <p>This is not called for {@link #NOOP}, which avoids overhead of reading the clock.
+   */
+  public void spanHandled(long durationNanos) {
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span;
+import brave.Tracing;
+import brave.internal.handler.AsyncFinishedSpanHandler;
+import brave.internal.handler.InternalAsyncFinishedSpanHandling;
+
+/**
+ * Moves {@linkplain FinishedSpanHandler finished span handling} off the application thread. When
+ * configured, {@link Span#finish()} places the span into a bounded ring buffer, which is drained by
+ * {@linkplain Builder#threads(int) worker threads}.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * asyncHandling = AsyncFinishedSpanHandling.newBuilder()
+ *                                          .queueSize(8192)
+ *                                          .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+ *                                          .build();
+ * tracing = Tracing.newBuilder()
+ *                  .asyncFinishedSpanHandling(asyncHandling)
+ *                  ...
+ *                  .build();
+ *
+ * // later, export the drop counter to your metrics system
+ * droppedSpans.set(asyncHandling.droppedSpans());
+ * }</pre>
+ *
+ * <h3>Implications</h3>
+ * {@link FinishedSpanHandler handlers} will be invoked on a worker thread, so they must not rely
+ * on thread-local state of the application, such as the current span. Data added to a span after
+ * it finished is undefined, as it races with the handler. Spans orphaned by garbage collection are
+ * still processed synchronously.
+ *
+ * <p>An instance can only be used by one {@link Tracing} component, as it owns the queue and
+ * worker threads that {@link #droppedSpans()} and {@link #queueDepth()} report on.
+ *
+ * @see Tracing.Builder#asyncFinishedSpanHandling(AsyncFinishedSpanHandling)
+ * @since 5.12
+ */
+public final class AsyncFinishedSpanHandling {
+  static {
+    InternalAsyncFinishedSpanHandling.instance = new InternalAsyncFinishedSpanHandling() {
+      @Override public AsyncFinishedSpanHandler decorate(AsyncFinishedSpanHandling asyncHandling,
+        FinishedSpanHandler delegate) {
+        return asyncHandling.decorate(delegate);
+      }
+    };
+  }
+
+  /** What to do when the queue is full. */
+  public enum OverflowPolicy {
+    /** Drops the span that didn't fit. This is the default as it never blocks the caller. */
+    DROP_NEWEST,
+    /** Drops the oldest span in the queue to make room for the new one. */
+    DROP_OLDEST,
+    /** Waits until there is room, which means the caller can be blocked on a slow handler. */
+    BLOCK
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int queueSize = 1024, threads = 1;
+    OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+    /** Maximum count of finished spans waiting to be handled. Rounded up to a power of two. */
+    public Builder queueSize(int queueSize) {
+      if (queueSize < 1) throw new IllegalArgumentException("queueSize < 1");
+      this.queueSize = queueSize;
+      return this;
+    }
+
+    /** Count of daemon threads draining the queue. Defaults to one. */
+    public Builder threads(int threads) {
+      if (threads < 1) throw new IllegalArgumentException("threads < 1");
+      this.threads = threads;
+      return this;
+    }
+
+    /** Defaults to {@link OverflowPolicy#DROP_NEWEST}. */
+    public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+      if (overflowPolicy == null) throw new NullPointerException("overflowPolicy == null");
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    public AsyncFinishedSpanHandling build() {
+      return new AsyncFinishedSpanHandling(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final int queueSize, threads;
+  final OverflowPolicy overflowPolicy;
+  volatile AsyncFinishedSpanHandler handler; // set once by decorate
+
+  AsyncFinishedSpanHandling(Builder builder) {
+    this.queueSize = builder.queueSize;
+    this.threads = builder.threads;
+    this.overflowPolicy = builder.overflowPolicy;
+  }
+
+  /** Called by {@link Tracing.Builder#build()} via {@link InternalAsyncFinishedSpanHandling}. */
+  synchronized AsyncFinishedSpanHandler decorate(FinishedSpanHandler delegate) {
+    if (delegate == null) throw new NullPointerException("delegate == null");
+    if (handler != null) {
+      throw new IllegalStateException(
+        "asyncFinishedSpanHandling is already used by another tracing component");
+    }
+    return handler = new AsyncFinishedSpanHandler(delegate, queueSize, threads, overflowPolicy);
+  }
+
+  /** Returns the count of spans dropped due to the {@link OverflowPolicy}. */
+  public long droppedSpans() {
+    AsyncFinishedSpanHandler handler = this.handler;
+    return handler != null ? handler.droppedSpans() : 0L;
+  }
+
+  /** Returns an estimate of how many spans are waiting to be handled. */
+  public int queueDepth() {
+    AsyncFinishedSpanHandler handler = this.handler;
+    return handler != null ? handler.queueDepth() : 0;
+  }
+
+  @Override public String toString() {
+    return "AsyncFinishedSpanHandling{queueSize=" + queueSize + ", threads=" + threads
+      + ", overflowPolicy=" + overflowPolicy + "}";
+  }
+}
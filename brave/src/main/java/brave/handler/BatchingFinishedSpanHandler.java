@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.ErrorParser;
+import brave.internal.Platform;
+import brave.internal.codec.WriteBuffer;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static brave.internal.Throwables.propagateIfFatal;
+
+/**
+ * Encodes finished spans directly into a message buffer, which is passed to a {@link
+ * SpanBatchSender} when full. This is an alternative to reporting spans with {@code
+ * zipkin2.reporter.AsyncReporter}, which avoids converting each span to a {@code zipkin2.Span}.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * batchingHandler = BatchingFinishedSpanHandler.newBuilder(sender)
+ *                                              .encoder(MutableSpanBytesEncoder.PROTO3)
+ *                                              .build();
+ * tracing = Tracing.newBuilder()
+ *                  .addFinishedSpanHandler(batchingHandler)
+ *                  .spanReporter(Reporter.NOOP) // as spans are now sent by the batching handler
+ *                  .asyncFinishedSpanHandling(AsyncFinishedSpanHandling.newBuilder().build())
+ *                  ...
+ *                  .build();
+ *
+ * // when shutting down
+ * tracing.close();
+ * batchingHandler.close(); // sends any spans in the current message
+ * }</pre>
+ *
+ * <h3>Threading</h3>
+ * The span is encoded on the thread that calls {@link #handle(TraceContext, MutableSpan)}, but the
+ * message is sent while holding a lock. Use {@link AsyncFinishedSpanHandling} so that application
+ * threads never block on the sender.
+ *
+ * <h3>Message timeout</h3>
+ * A partially filled message is sent when the next span arrives after the {@linkplain
+ * Builder#messageTimeout(long, TimeUnit) message timeout}, or when {@link #flush()} is called.
+ * There is no background thread, so call {@link #flush()} periodically if traffic can stop.
+ *
+ * @since 5.12
+ */
+public final class BatchingFinishedSpanHandler extends FinishedSpanHandler
+  implements Closeable, Flushable {
+
+  public static Builder newBuilder(SpanBatchSender sender) {
+    return new Builder(sender);
+  }
+
+  public static final class Builder {
+    final SpanBatchSender sender;
+    MutableSpanBytesEncoder encoder = MutableSpanBytesEncoder.JSON_V2;
+    int messageMaxBytes = 500000;
+    long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    ErrorParser errorParser = ErrorParser.get();
+    boolean alwaysReportSpans;
+
+    Builder(SpanBatchSender sender) {
+      if (sender == null) throw new NullPointerException("sender == null");
+      this.sender = sender;
+    }
+
+    /** Defaults to {@link MutableSpanBytesEncoder#JSON_V2}. */
+    public Builder encoder(MutableSpanBytesEncoder encoder) {
+      if (encoder == null) throw new NullPointerException("encoder == null");
+      this.encoder = encoder;
+      return this;
+    }
+
+    /**
+     * Maximum bytes sendable per message including overhead. Spans larger than this are dropped.
+     * Defaults to 500KB, which is the same as {@code zipkin2.reporter.AsyncReporter}.
+     */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      if (messageMaxBytes < 16) throw new IllegalArgumentException("messageMaxBytes < 16");
+      this.messageMaxBytes = messageMaxBytes;
+      return this;
+    }
+
+    /**
+     * Maximum age of a partially filled message before it is sent, checked when a span is added.
+     * Defaults to 1 second. Zero means only send when the message is full or on {@link #flush()}.
+     */
+    public Builder messageTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.messageTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * Used to add the "error" tag when {@link MutableSpan#error()} is set, but the tag is not.
+     * Defaults to {@link ErrorParser#get()}.
+     */
+    public Builder errorParser(ErrorParser errorParser) {
+      if (errorParser == null) throw new NullPointerException("errorParser == null");
+      this.errorParser = errorParser;
+      return this;
+    }
+
+    /**
+     * When true, spans that are not {@linkplain TraceContext#sampled() sampled remotely} are sent.
+     * Defaults to false, which is the same as {@link brave.Tracing.Builder#alwaysReportSpans()}.
+     */
+    public Builder alwaysReportSpans(boolean alwaysReportSpans) {
+      this.alwaysReportSpans = alwaysReportSpans;
+      return this;
+    }
+
+    public BatchingFinishedSpanHandler build() {
+      return new BatchingFinishedSpanHandler(this);
+    }
+  }
+
+  final SpanBatchSender sender;
+  final MutableSpanBytesEncoder encoder;
+  final int messageMaxBytes;
+  final long messageTimeoutNanos;
+  final ErrorParser errorParser;
+  final boolean alwaysReportSpans;
+  final AtomicLong droppedSpans = new AtomicLong();
+
+  // guarded by message
+  final WriteBuffer message;
+  int spanCount, spanBytes;
+  long messageStartNanos;
+  boolean closed;
+
+  BatchingFinishedSpanHandler(Builder builder) {
+    this.sender = builder.sender;
+    this.encoder = builder.encoder;
+    this.messageMaxBytes = builder.messageMaxBytes;
+    this.messageTimeoutNanos = builder.messageTimeoutNanos;
+    this.errorParser = builder.errorParser;
+    this.alwaysReportSpans = builder.alwaysReportSpans;
+    this.message = new WriteBuffer(Math.min(messageMaxBytes, 8192));
+  }
+
+  /** Returns the count of spans that were too large, failed to send or arrived after close. */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    if (!alwaysReportSpans && !Boolean.TRUE.equals(context.sampled())) return true;
+    maybeAddErrorTag(span);
+
+    WriteBuffer spanBuffer = encoder.writeToThreadBuffer(span);
+    int sizeInBytes = spanBuffer.pos();
+    if (sizeInBytes + encoder.listOverheadInBytes(1) > messageMaxBytes) {
+      droppedSpans.incrementAndGet();
+      Platform.get().log("Dropped span larger than messageMaxBytes: {0}", span.id(), null);
+      return true;
+    }
+
+    synchronized (message) {
+      if (closed) {
+        droppedSpans.incrementAndGet();
+        return true;
+      }
+      if (spanCount > 0) {
+        boolean full =
+          spanBytes + sizeInBytes + encoder.listOverheadInBytes(spanCount + 1) > messageMaxBytes;
+        if (full || expired()) sendMessage();
+      }
+      if (spanCount == 0) {
+        messageStartNanos = System.nanoTime();
+        encoder.writeListPrefix(message);
+      } else {
+        encoder.writeListDelimiter(message);
+      }
+      message.write(spanBuffer.array(), 0, sizeInBytes);
+      spanCount++;
+      spanBytes += sizeInBytes;
+    }
+    return true;
+  }
+
+  @Override public boolean supportsOrphans() {
+    return true;
+  }
+
+  /** Sends any spans in the current message. */
+  @Override public void flush() {
+    synchronized (message) {
+      if (spanCount > 0) sendMessage();
+    }
+  }
+
+  /** Sends any spans in the current message. Spans handled after this are dropped. */
+  @Override public void close() {
+    synchronized (message) {
+      if (closed) return;
+      closed = true;
+      if (spanCount > 0) sendMessage();
+    }
+  }
+
+  boolean expired() {
+    return messageTimeoutNanos != 0L
+      && System.nanoTime() - messageStartNanos >= messageTimeoutNanos;
+  }
+
+  // guarded by message
+  void sendMessage() {
+    encoder.writeListSuffix(message);
+    int count = spanCount;
+    try {
+      sender.send(encoder, message.array(), message.pos(), count);
+    } catch (Throwable t) {
+      propagateIfFatal(t);
+      droppedSpans.addAndGet(count);
+      Platform.get().log("error sending {0} spans", count, t);
+    } finally {
+      message.reset();
+      spanCount = 0;
+      spanBytes = 0;
+    }
+  }
+
+  void maybeAddErrorTag(MutableSpan span) {
+    if (span.error() == null) return; // span.tag(key) iterates: check if we need to first!
+    if (span.tag("error") == null) errorParser.error(span.error(), span);
+  }
+
+  @Override public String toString() {
+    return "BatchingFinishedSpanHandler{sender=" + sender + ", encoder=" + encoder + "}";
+  }
+}
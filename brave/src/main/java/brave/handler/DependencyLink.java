@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+/**
+ * Calls from a parent service to a child service, and how many of them failed, over the interval
+ * since the last flush of {@link DependencyLinksFinishedSpanHandler}.
+ *
+ * <p>This is similar to {@code zipkin2.DependencyLink}, without requiring the zipkin library.
+ *
+ * @since 5.12
+ */
+public final class DependencyLink {
+  final String parent, child;
+  final long callCount, errorCount;
+
+  DependencyLink(String parent, String child, long callCount, long errorCount) {
+    this.parent = parent;
+    this.child = child;
+    this.callCount = callCount;
+    this.errorCount = errorCount;
+  }
+
+  /** The calling service name. */
+  public String parent() {
+    return parent;
+  }
+
+  /** The called service name. */
+  public String child() {
+    return child;
+  }
+
+  /** Count of calls since the last flush, including errors. */
+  public long callCount() {
+    return callCount;
+  }
+
+  /** Count of calls that failed since the last flush. */
+  public long errorCount() {
+    return errorCount;
+  }
+
+  @Override public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof DependencyLink)) return false;
+    DependencyLink that = (DependencyLink) o;
+    return parent.equals(that.parent)
+      && child.equals(that.child)
+      && callCount == that.callCount
+      && errorCount == that.errorCount;
+  }
+
+  @Override public int hashCode() {
+    int h = 1000003;
+    h ^= parent.hashCode();
+    h *= 1000003;
+    h ^= child.hashCode();
+    h *= 1000003;
+    h ^= (int) (callCount ^ (callCount >>> 32));
+    h *= 1000003;
+    h ^= (int) (errorCount ^ (errorCount >>> 32));
+    return h;
+  }
+
+  @Override public String toString() {
+    return "DependencyLink{parent=" + parent + ", child=" + child
+      + ", callCount=" + callCount + ", errorCount=" + errorCount + "}";
+  }
+}
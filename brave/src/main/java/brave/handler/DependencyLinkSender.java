@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sends dependency links aggregated by {@link DependencyLinksFinishedSpanHandler}, for example to
+ * a metrics system or a service graph.
+ *
+ * @since 5.12
+ */
+public abstract class DependencyLinkSender {
+  /**
+   * Sends links whose counts are deltas since the last call. Links without calls are omitted.
+   *
+   * @throws IOException when the links could not be sent. This will be logged by the caller.
+   */
+  public abstract void send(List<DependencyLink> links) throws IOException;
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span.Kind;
+import brave.internal.Nullable;
+import brave.internal.Platform;
+import brave.internal.Stripes;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static brave.internal.Throwables.propagateIfFatal;
+
+/**
+ * Aggregates calls between services from finished {@link Kind#CLIENT client}, {@link Kind#SERVER
+ * server}, {@link Kind#PRODUCER producer} and {@link Kind#CONSUMER consumer} spans, and
+ * periodically sends the counts as {@linkplain DependencyLink dependency links}. This allows you to
+ * draw a service graph without reporting all spans.
+ *
+ * <p>Client and producer spans link their {@linkplain MutableSpan#localServiceName() local
+ * service} to their {@linkplain MutableSpan#remoteServiceName() remote service}. Server and
+ * consumer spans link in the other direction. Spans without both service names are ignored.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *                  .alwaysSampleLocal() // so that unsampled spans are counted, too
+ *                  .addFinishedSpanHandler(DependencyLinksFinishedSpanHandler.newBuilder(sender)
+ *                    .flushInterval(1, TimeUnit.MINUTES).build())
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * <h3>Implementation</h3>
+ *
+ * <p>Each link has counters striped by thread, so that threads rarely update the same cache line.
+ * Each stripe packs the call and error counts into one long, so that both are updated together.
+ * Links are sent when a span is handled after the {@linkplain Builder#flushInterval(long,
+ * TimeUnit) flush interval}, or when {@link #flush()} is called. There is no background thread, so
+ * call {@link #flush()} periodically if traffic can stop.
+ *
+ * <p>Each stripe is drained atomically, so concurrent flushes never send the same count twice, and
+ * a link never reports more errors than calls. No lock is held while {@link
+ * DependencyLinkSender#send(List) sending}, so a slow sender doesn't block other threads that finish
+ * spans or flush. As each flush sends deltas, batches may arrive out of order.
+ *
+ * @since 5.12
+ */
+public final class DependencyLinksFinishedSpanHandler extends FinishedSpanHandler
+  implements Closeable, Flushable {
+
+  public static Builder newBuilder(DependencyLinkSender sender) {
+    return new Builder(sender);
+  }
+
+  public static final class Builder {
+    final DependencyLinkSender sender;
+    long flushIntervalNanos = TimeUnit.MINUTES.toNanos(1);
+    int maxLinks = 1000;
+
+    Builder(DependencyLinkSender sender) {
+      if (sender == null) throw new NullPointerException("sender == null");
+      this.sender = sender;
+    }
+
+    /** How often to send links. Defaults to one minute. */
+    public Builder flushInterval(long flushInterval, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (flushInterval <= 0) throw new IllegalArgumentException("flushInterval <= 0");
+      this.flushIntervalNanos = unit.toNanos(flushInterval);
+      return this;
+    }
+
+    /**
+     * Maximum count of distinct parent and child pairs. Spans for new pairs beyond this are
+     * dropped. Defaults to 1000.
+     */
+    public Builder maxLinks(int maxLinks) {
+      if (maxLinks < 1) throw new IllegalArgumentException("maxLinks < 1");
+      this.maxLinks = maxLinks;
+      return this;
+    }
+
+    public DependencyLinksFinishedSpanHandler build() {
+      return new DependencyLinksFinishedSpanHandler(this);
+    }
+  }
+
+  /** Padding in longs between stripes, so that each is on its own 64-byte cache line. */
+  static final int PADDING = 8;
+  static final int STRIPE_COUNT = Stripes.stripeCount(Runtime.getRuntime().availableProcessors());
+
+  final DependencyLinkSender sender;
+  final long flushIntervalNanos;
+  final int maxLinks, stripeMask;
+  /** Indexed by parent, then child, so that lookups don't allocate a key. */
+  final ConcurrentMap<String, ConcurrentMap<String, Counters>> links = new ConcurrentHashMap<>();
+  final AtomicInteger linkCount = new AtomicInteger();
+  final AtomicLong nextFlush, droppedSpans = new AtomicLong();
+  volatile boolean closed;
+
+  DependencyLinksFinishedSpanHandler(Builder builder) {
+    this(builder, STRIPE_COUNT);
+  }
+
+  DependencyLinksFinishedSpanHandler(Builder builder, int stripeCount) {
+    this.sender = builder.sender;
+    this.flushIntervalNanos = builder.flushIntervalNanos;
+    this.maxLinks = builder.maxLinks;
+    this.stripeMask = stripeCount - 1;
+    this.nextFlush = new AtomicLong(System.nanoTime() + flushIntervalNanos);
+  }
+
+  /** Returns the count of spans not counted due to {@link Builder#maxLinks(int)} or close. */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    Kind kind = span.kind();
+    if (kind == null) return true;
+    String parent, child;
+    switch (kind) {
+      case CLIENT:
+      case PRODUCER:
+        parent = span.localServiceName();
+        child = span.remoteServiceName();
+        break;
+      default: // SERVER, CONSUMER
+        parent = span.remoteServiceName();
+        child = span.localServiceName();
+    }
+    if (parent == null || child == null) return true;
+    if (closed) {
+      droppedSpans.incrementAndGet();
+      return true;
+    }
+
+    Counters counters = counters(parent, child);
+    if (counters == null) {
+      droppedSpans.incrementAndGet();
+    } else {
+      boolean error = span.error() != null || span.tag("error") != null;
+      counters.increment((int) Thread.currentThread().getId() & stripeMask, error);
+    }
+
+    long now = System.nanoTime(), flushAt = nextFlush.get();
+    if (now - flushAt >= 0 && nextFlush.compareAndSet(flushAt, now + flushIntervalNanos)) {
+      flush();
+    }
+    return true;
+  }
+
+  @Nullable Counters counters(String parent, String child) {
+    ConcurrentMap<String, Counters> children = links.get(parent);
+    Counters result = children != null ? children.get(child) : null;
+    if (result != null) return result;
+
+    if (linkCount.incrementAndGet() > maxLinks) {
+      linkCount.decrementAndGet();
+      return null;
+    }
+    if (children == null) {
+      children = new ConcurrentHashMap<>();
+      ConcurrentMap<String, Counters> existing = links.putIfAbsent(parent, children);
+      if (existing != null) children = existing;
+    }
+    result = new Counters(stripeMask + 1);
+    Counters existing = children.putIfAbsent(child, result);
+    if (existing != null) {
+      linkCount.decrementAndGet(); // another thread added the link first
+      return existing;
+    }
+    return result;
+  }
+
+  /** Sends counts accumulated since the last flush, if any. */
+  @Override public void flush() {
+    List<DependencyLink> result = new ArrayList<>();
+    for (Map.Entry<String, ConcurrentMap<String, Counters>> parent : links.entrySet()) {
+      for (Map.Entry<String, Counters> child : parent.getValue().entrySet()) {
+        Counters counters = child.getValue();
+        long calls = 0L, errors = 0L;
+        for (int i = 0; i <= stripeMask; i++) {
+          long packed = counters.values.getAndSet(i * PADDING, 0L);
+          calls += packed & Counters.COUNT_MASK;
+          errors += packed >>> 32;
+        }
+        if (calls == 0L) continue; // errors are only counted with calls
+        result.add(new DependencyLink(parent.getKey(), child.getKey(), calls, errors));
+      }
+    }
+    if (result.isEmpty()) return;
+    try {
+      sender.send(result);
+    } catch (Throwable t) {
+      propagateIfFatal(t);
+      Platform.get().log("error sending {0} dependency links", result.size(), t);
+    }
+  }
+
+  /** Sends any counts accumulated since the last flush. Spans handled after this are dropped. */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    flush();
+  }
+
+  @Override public String toString() {
+    return "DependencyLinksFinishedSpanHandler{" + sender + "}";
+  }
+
+  static final class Counters {
+    /** The call count is in the low 32 bits, and the error count is in the high 32 bits. */
+    static final long COUNT_MASK = 0xffffffffL, CALL = 1L, ERROR = 1L << 32;
+
+    /** Packed counts at {@code stripe * PADDING}. */
+    final AtomicLongArray values;
+
+    Counters(int stripeCount) {
+      values = new AtomicLongArray(stripeCount * PADDING);
+    }
+
+    void increment(int stripe, boolean error) {
+      values.addAndGet(stripe * PADDING, error ? CALL | ERROR : CALL);
+    }
+  }
+}
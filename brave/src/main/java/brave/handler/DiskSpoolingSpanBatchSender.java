@@ -0,0 +1,331 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.Platform;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static brave.internal.Throwables.propagateIfFatal;
+
+/**
+ * Appends messages to a bounded ring of memory-mapped files on local disk, instead of sending them
+ * directly. This decouples {@link BatchingFinishedSpanHandler} from a slow or unavailable
+ * transport: messages are replayed to the delegate sender by {@link #drain()}.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * spool = DiskSpoolingSpanBatchSender.newBuilder(new File("/var/spool/zipkin"), sender).build();
+ * batchingHandler = BatchingFinishedSpanHandler.newBuilder(spool).build();
+ *
+ * // drain on a separate thread, so that a slow transport never blocks span handling
+ * executor.scheduleWithFixedDelay(spool::drain, 1, 1, TimeUnit.SECONDS);
+ * }</pre>
+ *
+ * <h3>Segments</h3>
+ * The spool is a directory of fixed-size segment files. Messages are appended to the newest
+ * segment, and a new segment is started when it is full. Each segment has a header holding the
+ * position of the last complete message written and the position of the next message to drain.
+ * Segments are reset and reused once drained, rather than deleted, as the mapping of a deleted file
+ * would hold its disk space until garbage collection. No more than {@link
+ * Builder#maxSegments(int)} segment files exist, so disk usage is bounded. When the spool is full,
+ * {@link #send} fails and the caller counts the spans as dropped.
+ *
+ * <h3>Crash safety</h3>
+ * A message is only visible to {@link #drain()} after it is completely written, and each message
+ * has a checksum. On startup, existing segments in the directory are drained before new ones.
+ * Segments with an invalid header, or a different size, are deleted, and draining a segment stops at the first corrupt
+ * message. Messages survive a crash of the process as soon as {@link #send} returns. They survive
+ * loss of power once the segment is forced to disk, which happens when a segment is full or on
+ * {@link #close()}.
+ *
+ * <p>A message may be sent more than once: if the process crashes after the delegate sent it, but
+ * before the read position was updated.
+ *
+ * @since 5.12
+ */
+public final class DiskSpoolingSpanBatchSender extends SpanBatchSender implements Closeable {
+  public static Builder newBuilder(File directory, SpanBatchSender delegate) {
+    return new Builder(directory, delegate);
+  }
+
+  public static final class Builder {
+    final File directory;
+    final SpanBatchSender delegate;
+    int segmentBytes = 16 * 1024 * 1024, maxSegments = 16;
+
+    Builder(File directory, SpanBatchSender delegate) {
+      if (directory == null) throw new NullPointerException("directory == null");
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.directory = directory;
+      this.delegate = delegate;
+    }
+
+    /**
+     * Size of each segment file. Messages larger than this, less header overhead, are dropped.
+     * Defaults to 16MB.
+     */
+    public Builder segmentBytes(int segmentBytes) {
+      if (segmentBytes < 1024) throw new IllegalArgumentException("segmentBytes < 1024");
+      this.segmentBytes = segmentBytes;
+      return this;
+    }
+
+    /** Maximum count of segment files in the directory. Defaults to 16. */
+    public Builder maxSegments(int maxSegments) {
+      if (maxSegments < 2) throw new IllegalArgumentException("maxSegments < 2");
+      this.maxSegments = maxSegments;
+      return this;
+    }
+
+    /**
+     * Creates the directory if needed and recovers any segments left by a previous process.
+     *
+     * @throws IOException if the directory or a new segment could not be created
+     */
+    public DiskSpoolingSpanBatchSender build() throws IOException {
+      return new DiskSpoolingSpanBatchSender(this);
+    }
+  }
+
+  final File directory;
+  final SpanBatchSender delegate;
+  final int segmentBytes, maxSegments;
+  final AtomicLong droppedMessages = new AtomicLong(), droppedSpans = new AtomicLong();
+
+  // guarded by this
+  /** Segments holding messages, oldest first. The last is the {@link #writeSegment}. */
+  final ArrayDeque<SpoolSegment> segments = new ArrayDeque<>();
+  /** Drained segments, which are reset when reused. */
+  final ArrayDeque<SpoolSegment> free = new ArrayDeque<>();
+  SpoolSegment writeSegment;
+  long nextSequence;
+  boolean closed;
+
+  // guarded by drainLock
+  final Object drainLock = new Object();
+  final SpoolSegment.Record record = new SpoolSegment.Record();
+
+  DiskSpoolingSpanBatchSender(Builder builder) throws IOException {
+    this.directory = builder.directory;
+    this.delegate = builder.delegate;
+    this.segmentBytes = builder.segmentBytes;
+    this.maxSegments = builder.maxSegments;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("could not create directory " + directory);
+    }
+    recover();
+    writeSegment = nextSegment();
+    segments.add(writeSegment);
+  }
+
+  void recover() throws IOException {
+    String[] names = directory.list(new FilenameFilter() {
+      @Override public boolean accept(File dir, String name) {
+        return name.startsWith(SpoolSegment.PREFIX) && name.endsWith(SpoolSegment.SUFFIX);
+      }
+    });
+    if (names == null) throw new IOException("could not list directory " + directory);
+    List<SpoolSegment> recovered = new ArrayList<>();
+    for (String name : names) {
+      File file = new File(directory, name);
+      SpoolSegment segment = SpoolSegment.open(file);
+      if (segment == null) {
+        Platform.get().log("Deleting spool segment with an invalid header: {0}", file, null);
+        delete(file);
+        continue;
+      }
+      recovered.add(segment);
+    }
+    Collections.sort(recovered, new Comparator<SpoolSegment>() {
+      @Override public int compare(SpoolSegment left, SpoolSegment right) {
+        return left.sequence < right.sequence ? -1 : left.sequence == right.sequence ? 0 : 1;
+      }
+    });
+    for (SpoolSegment segment : recovered) {
+      nextSequence = Math.max(nextSequence, segment.sequence + 1);
+      if (!segment.isFullyRead() && segments.size() < maxSegments - 1) { // leave room to write
+        segments.add(segment);
+        continue;
+      }
+      if (!segment.isFullyRead()) {
+        Platform.get().log("Dropping spool segment over maxSegments: {0}", segment.file, null);
+      }
+      release(segment);
+    }
+  }
+
+  /** Returns an empty segment, reusing a drained one if possible. */
+  SpoolSegment nextSegment() throws IOException {
+    SpoolSegment result = free.pollFirst();
+    if (result != null) {
+      result.reset(nextSequence++);
+      return result;
+    }
+    for (int index = 0; ; index++) { // find a file name that isn't in use
+      File file = SpoolSegment.file(directory, index);
+      if (!file.exists()) return SpoolSegment.create(file, nextSequence++, segmentBytes);
+    }
+  }
+
+  /** Keeps a drained segment for reuse, unless that would exceed the limits. */
+  void release(SpoolSegment segment) {
+    if (segment.capacity() == segmentBytes && segments.size() + free.size() < maxSegments) {
+      free.add(segment);
+      return;
+    }
+    try {
+      segment.close();
+    } catch (IOException e) {
+      // we are deleting the file anyway
+    }
+    delete(segment.file);
+  }
+
+  /** Returns the count of messages dropped because the spool was full or the message too large. */
+  public long droppedMessages() {
+    return droppedMessages.get();
+  }
+
+  /** Returns the count of spans in {@link #droppedMessages() dropped messages}. */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  /** Returns the count of bytes in the spool which have yet to be drained, including overhead. */
+  public synchronized long spooledBytes() {
+    long result = 0L;
+    for (SpoolSegment segment : segments) {
+      result += segment.writePosition() - segment.readPosition();
+    }
+    return result;
+  }
+
+  /**
+   * Appends the message to the spool.
+   *
+   * @throws IOException if the spool is closed, full, or the message is larger than a segment.
+   */
+  @Override public synchronized void send(MutableSpanBytesEncoder encoder, byte[] message,
+    int length, int spanCount) throws IOException {
+    if (closed) throw dropped("spool closed", spanCount);
+    if (writeSegment.append(encoder, message, length, spanCount)) return;
+    if (SpoolSegment.HEADER_SIZE + SpoolSegment.RECORD_HEADER_SIZE + length > segmentBytes) {
+      throw dropped("message larger than segmentBytes: " + length, spanCount);
+    }
+    if (segments.size() >= maxSegments) throw dropped("spool full", spanCount);
+
+    writeSegment.force(); // so that a full segment survives loss of power
+    writeSegment = nextSegment();
+    segments.add(writeSegment);
+    writeSegment.append(encoder, message, length, spanCount);
+  }
+
+  IOException dropped(String message, int spanCount) {
+    droppedMessages.incrementAndGet();
+    droppedSpans.addAndGet(spanCount);
+    return new IOException(message);
+  }
+
+  /**
+   * Sends spooled messages to the delegate, oldest first, until the spool is empty or the delegate
+   * fails. A failed message is retried on the next call. Messages can be spooled concurrently, but
+   * only one thread drains at a time.
+   *
+   * @return the count of messages sent
+   */
+  public int drain() {
+    synchronized (drainLock) {
+      int sent = 0;
+      SpoolSegment segment;
+      while ((segment = nextRecord()) != null) {
+        try {
+          delegate.send(record.encoder, record.message, record.length, record.spanCount);
+        } catch (Throwable t) {
+          propagateIfFatal(t);
+          Platform.get().log("error draining {0} spans", record.spanCount, t);
+          return sent;
+        }
+        synchronized (this) {
+          if (closed) return sent;
+          segment.readPosition(record.nextPosition);
+        }
+        sent++;
+      }
+      return sent;
+    }
+  }
+
+  /** Reads the next message into {@link #record}, returning its segment or null if none. */
+  synchronized SpoolSegment nextRecord() {
+    while (!closed) {
+      SpoolSegment segment = segments.peekFirst();
+      if (!segment.isFullyRead()) {
+        if (segment.read(record)) return segment;
+        Platform.get().log("Skipping corrupt data in spool segment: {0}", segment.file, null);
+        segment.readPosition(segment.writePosition());
+        continue;
+      }
+      if (segment == writeSegment) return null;
+      segments.removeFirst();
+      release(segment);
+    }
+    return null;
+  }
+
+  static void delete(File file) {
+    if (!file.delete()) Platform.get().log("Could not delete spool segment: {0}", file, null);
+  }
+
+  /**
+   * Forces segments to disk and closes them. Messages not yet drained remain in the directory for
+   * the next process. Messages sent after this are dropped.
+   */
+  @Override public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    IOException error = null;
+    for (SpoolSegment segment : segments) {
+      try {
+        segment.force();
+        segment.close();
+      } catch (IOException e) {
+        if (error == null) error = e;
+      }
+    }
+    for (SpoolSegment segment : free) {
+      try {
+        segment.force(); // so that the next process doesn't replay messages already drained
+        segment.close();
+      } catch (IOException e) {
+        if (error == null) error = e;
+      }
+    }
+    segments.clear();
+    free.clear();
+    if (error != null) throw error;
+  }
+
+  @Override public String toString() {
+    return "DiskSpoolingSpanBatchSender{directory=" + directory + ", delegate=" + delegate + "}";
+  }
+}
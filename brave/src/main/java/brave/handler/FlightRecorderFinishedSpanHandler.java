@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.ErrorParser;
+import brave.internal.codec.WriteBuffer;
+import brave.propagation.TraceContext;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent encoded spans of each local service in memory, so that they can be
+ * {@linkplain #dump(OutputStream) dumped} after an incident. This allows a low sampling rate for
+ * spans sent to Zipkin while still having full detail for the minutes before an incident.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * flightRecorder = FlightRecorderFinishedSpanHandler.newBuilder()
+ *   .encoder(MutableSpanBytesEncoder.JSON_V2) // readable, but larger than the default PROTO3
+ *   .build();
+ * tracing = Tracing.newBuilder()
+ *                  .sampler(CountingSampler.create(0.001f))
+ *                  .alwaysSampleLocal() // so that unsampled spans are recorded
+ *                  .addFinishedSpanHandler(flightRecorder)
+ *                  ...
+ *                  .build();
+ *
+ * // when investigating an incident
+ * flightRecorder.dump(new File("incident.json"));
+ * }</pre>
+ *
+ * <h3>Memory</h3>
+ * Each local service has a ring of {@link Builder#spansPerService(int)} slots. Recording a span
+ * overwrites the oldest slot without locking. Spans are stored encoded, which is more compact than
+ * a {@link MutableSpan}. Memory is bounded by the count of services, the slots per service and
+ * {@link Builder#maxSpanBytes(int)}.
+ *
+ * @since 5.12
+ */
+public final class FlightRecorderFinishedSpanHandler extends FinishedSpanHandler {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    MutableSpanBytesEncoder encoder = MutableSpanBytesEncoder.PROTO3;
+    int spansPerService = 1024, maxServices = 64, maxSpanBytes = 16 * 1024;
+    ErrorParser errorParser = ErrorParser.get();
+
+    /**
+     * Encoding of spans in memory and when dumped. Defaults to {@link
+     * MutableSpanBytesEncoder#PROTO3}, as it is the most compact.
+     */
+    public Builder encoder(MutableSpanBytesEncoder encoder) {
+      if (encoder == null) throw new NullPointerException("encoder == null");
+      this.encoder = encoder;
+      return this;
+    }
+
+    /**
+     * Count of recent spans kept for each local service, rounded up to a power of two. Defaults to
+     * 1024.
+     */
+    public Builder spansPerService(int spansPerService) {
+      if (spansPerService < 1) throw new IllegalArgumentException("spansPerService < 1");
+      if (spansPerService > 1 << 24) throw new IllegalArgumentException("spansPerService > 2^24");
+      this.spansPerService = spansPerService;
+      return this;
+    }
+
+    /**
+     * Maximum count of local services recorded. Spans of services seen after this are dropped.
+     * Defaults to 64.
+     */
+    public Builder maxServices(int maxServices) {
+      if (maxServices < 1) throw new IllegalArgumentException("maxServices < 1");
+      this.maxServices = maxServices;
+      return this;
+    }
+
+    /** Spans whose encoded size is larger than this are dropped. Defaults to 16KB. */
+    public Builder maxSpanBytes(int maxSpanBytes) {
+      if (maxSpanBytes < 1) throw new IllegalArgumentException("maxSpanBytes < 1");
+      this.maxSpanBytes = maxSpanBytes;
+      return this;
+    }
+
+    /**
+     * Used to add the "error" tag when {@link MutableSpan#error()} is set, but the tag is not.
+     * Defaults to {@link ErrorParser#get()}.
+     */
+    public Builder errorParser(ErrorParser errorParser) {
+      if (errorParser == null) throw new NullPointerException("errorParser == null");
+      this.errorParser = errorParser;
+      return this;
+    }
+
+    public FlightRecorderFinishedSpanHandler build() {
+      return new FlightRecorderFinishedSpanHandler(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final MutableSpanBytesEncoder encoder;
+  final int spansPerService, maxServices, maxSpanBytes;
+  final ErrorParser errorParser;
+  final byte[] listPrefix, listDelimiter, listSuffix;
+  final ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<>();
+  final AtomicInteger ringCount = new AtomicInteger();
+  final AtomicLong droppedSpans = new AtomicLong();
+
+  FlightRecorderFinishedSpanHandler(Builder builder) {
+    this.encoder = builder.encoder;
+    int spansPerService = Integer.highestOneBit(builder.spansPerService);
+    if (spansPerService < builder.spansPerService) spansPerService <<= 1;
+    this.spansPerService = spansPerService;
+    this.maxServices = builder.maxServices;
+    this.maxSpanBytes = builder.maxSpanBytes;
+    this.errorParser = builder.errorParser;
+    WriteBuffer buffer = new WriteBuffer(16);
+    encoder.writeListPrefix(buffer);
+    this.listPrefix = buffer.toByteArray();
+    buffer.reset();
+    encoder.writeListDelimiter(buffer);
+    this.listDelimiter = buffer.toByteArray();
+    buffer.reset();
+    encoder.writeListSuffix(buffer);
+    this.listSuffix = buffer.toByteArray();
+  }
+
+  /** Returns the count of spans that were larger than the maximum or of too many services. */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    if (span.error() != null && span.tag("error") == null) errorParser.error(span.error(), span);
+
+    WriteBuffer spanBuffer = encoder.writeToThreadBuffer(span);
+    if (spanBuffer.pos() > maxSpanBytes) {
+      droppedSpans.incrementAndGet();
+      return true;
+    }
+
+    Ring ring = ring(span.localServiceName());
+    if (ring == null) {
+      droppedSpans.incrementAndGet();
+      return true;
+    }
+    ring.add(spanBuffer.toByteArray());
+    return true;
+  }
+
+  Ring ring(String serviceName) {
+    if (serviceName == null) serviceName = "";
+    Ring ring = rings.get(serviceName);
+    if (ring != null) return ring;
+    if (ringCount.incrementAndGet() > maxServices) {
+      ringCount.decrementAndGet();
+      return null;
+    }
+    ring = new Ring(spansPerService);
+    Ring existing = rings.putIfAbsent(serviceName, ring);
+    if (existing != null) {
+      ringCount.decrementAndGet(); // another thread added the ring first
+      return existing;
+    }
+    return ring;
+  }
+
+  @Override public boolean supportsOrphans() {
+    return true;
+  }
+
+  /**
+   * Writes a list of the recorded spans, each service's oldest first, in the {@linkplain
+   * Builder#encoder(MutableSpanBytesEncoder) encoding}. Spans are recorded concurrently, so the
+   * result is a best effort snapshot: spans overwritten during the dump are skipped.
+   *
+   * @return the count of spans written
+   */
+  public int dump(OutputStream out) throws IOException {
+    if (out == null) throw new NullPointerException("out == null");
+    int spanCount = 0;
+    out.write(listPrefix);
+    for (Ring ring : rings.values()) {
+      long end = ring.sequence.get();
+      for (long sequence = Math.max(0, end - ring.slots.length()); sequence < end; sequence++) {
+        Entry entry = ring.slots.get((int) (sequence & ring.mask));
+        if (entry == null || entry.sequence != sequence) continue; // overwritten or in progress
+        if (spanCount > 0) out.write(listDelimiter);
+        out.write(entry.span);
+        spanCount++;
+      }
+    }
+    out.write(listSuffix);
+    return spanCount;
+  }
+
+  /** Writes the recorded spans to the file, overwriting it. */
+  public int dump(File file) throws IOException {
+    if (file == null) throw new NullPointerException("file == null");
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+      return dump(out);
+    }
+  }
+
+  static final class Ring {
+    final AtomicReferenceArray<Entry> slots;
+    final int mask;
+    final AtomicLong sequence = new AtomicLong();
+
+    Ring(int size) {
+      slots = new AtomicReferenceArray<>(size);
+      mask = size - 1;
+    }
+
+    void add(byte[] span) {
+      long sequence = this.sequence.getAndIncrement();
+      slots.set((int) (sequence & mask), new Entry(sequence, span));
+    }
+  }
+
+  static final class Entry {
+    final long sequence;
+    final byte[] span;
+
+    Entry(long sequence, byte[] span) {
+      this.sequence = sequence;
+      this.span = span;
+    }
+  }
+
+  @Override public String toString() {
+    return "FlightRecorderFinishedSpanHandler{encoder=" + encoder + "}";
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, such as durations in microseconds.
+ *
+ * <p>Buckets are log-linear: each power of two is split into {@link #SUB_BUCKETS} equal buckets.
+ * This bounds the relative error of any percentile to 12.5%, using under 4KiB for the full range
+ * of a long.
+ */
+final class LogLinearHistogram {
+  static final int SUB_BUCKET_BITS = 3, SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKET_COUNT = bucket(Long.MAX_VALUE) + 1;
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) return (int) Math.max(0L, value);
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Returns the lowest value recorded into the bucket. */
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  /** Returns the highest value recorded into the bucket. */
+  static long upperBound(int bucket) {
+    return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the value at the given quantile, or zero if
+   * there are no values.
+   *
+   * @param quantile between 0 and 1, for example 0.99 for the 99th percentile
+   */
+  static long valueAtQuantile(long[] counts, double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException("quantile should be between 0 and 1: was " + quantile);
+    }
+    long total = 0;
+    for (long count : counts) total += count;
+    if (total == 0) return 0L;
+
+    long rank = Math.max(1L, (long) Math.ceil(quantile * total)), seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) return upperBound(i);
+    }
+    return upperBound(counts.length - 1); // unreachable unless counts changed
+  }
+
+  final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+  void record(long value) {
+    counts.incrementAndGet(bucket(value));
+  }
+
+  /** Copies the counts, which are updated concurrently, so may be slightly inconsistent. */
+  long[] snapshot() {
+    long[] result = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) result[i] = counts.get(i);
+    return result;
+  }
+}
@@ -16,12 +16,13 @@ package brave.handler;
 import brave.ErrorParser;
 import brave.Span.Kind;
 import brave.SpanCustomizer;
+import brave.internal.InternalMutableSpan;
 import brave.internal.IpLiteral;
 import brave.internal.Nullable;
 import brave.propagation.TraceContext;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
 
+import static brave.internal.HexCodec.toLowerHex;
 import static brave.internal.InternalPropagation.FLAG_DEBUG;
 import static brave.internal.InternalPropagation.FLAG_SHARED;
 import static brave.internal.JsonEscaper.jsonEscape;
@@ -35,7 +36,41 @@ import static brave.internal.JsonEscaper.jsonEscape;
  * @since 5.4
  */
 public final class MutableSpan implements Cloneable {
+  static {
+    InternalMutableSpan.instance = new InternalMutableSpan() {
+      @Override
+      public void ensureCapacity(MutableSpan span, int tagCapacity, int annotationCapacity) {
+        if (tagCapacity > 0) span.ensureTagCapacity(tagCapacity);
+        if (annotationCapacity > 0) span.ensureAnnotationCapacity(annotationCapacity);
+      }
+
+      @Override
+      public void initialize(MutableSpan span, TraceContext context, MutableSpan defaults) {
+        span.copyFrom(defaults);
+        span.setContext(context);
+      }
+
+      @Override public void recycle(MutableSpan span, @Nullable Throwable recycleSite) {
+        synchronized (span) { // RealSpan reads the generation while holding this lock
+          span.clear();
+          span.generation++;
+          span.recycleSite = recycleSite;
+        }
+      }
+
+      @Override public int generation(MutableSpan span) {
+        return span.generation;
+      }
+
+      @Override @Nullable public Throwable recycleSite(MutableSpan span) {
+        return span.recycleSite;
+      }
+    };
+  }
+
   static final MutableSpan EMPTY = new MutableSpan();
+  /** Initial count of tags or annotations, when there is no capacity hint. */
+  static final int DEFAULT_CAPACITY = 4;
 
   /** @since 5.4 */
   public interface TagConsumer<T> {
@@ -73,19 +108,33 @@ public final class MutableSpan implements Cloneable {
    * One of these objects is allocated for each in-flight span, so we try to be parsimonious on
    * things like array allocation and object reference size.
    */
-  String traceId, localRootId, parentId, id;
+  /**
+   * IDs from the {@link TraceContext} are kept as longs, and only converted to hex strings when
+   * read. A zero ID means it is either absent or was set as a string.
+   */
+  long traceIdHigh, traceId, localRootId, parentId, id;
+  /** Lazily initialized from the corresponding long or set directly. */
+  String traceIdString, localRootIdString, parentIdString, idString;
   Kind kind;
   int flags;
   long startTimestamp, finishTimestamp;
   String name, localServiceName, localIp, remoteServiceName, remoteIp;
   int localPort, remotePort;
 
-  /** To reduce the amount of allocation use a pair-indexed list for tag (key, value). */
-  ArrayList<String> tags;
-  /** Also use pair indexing for annotations, but type object to store (startTimestamp, value). */
-  ArrayList<Object> annotations;
+  /** To reduce the amount of allocation use a pair-indexed array for tag (key, value). */
+  String[] tags;
+  int tagCount;
+  /** Annotations use parallel arrays, so that timestamps are not boxed. */
+  long[] annotationTimestamps;
+  String[] annotationValues;
+  int annotationCount;
   Throwable error;
 
+  /** Incremented each time this is recycled, so that stale references can be detected. */
+  int generation;
+  /** Only set when detecting use after recycling. */
+  @Nullable Throwable recycleSite;
+
   /** @since 5.4 */
   public MutableSpan() {
   }
@@ -99,25 +148,28 @@ public final class MutableSpan implements Cloneable {
    * @since 5.12
    */
   public MutableSpan(TraceContext context, @Nullable MutableSpan defaults) {
-    this(defaults != null ? defaults : EMPTY);
     if (context == null) throw new NullPointerException("context == null");
-    traceId(context.traceIdString());
-    localRootId(context.localRootIdString());
-    parentId(context.parentIdString());
-    id(context.spanIdString());
-    flags = 0; // don't inherit flags from the span
-    if (context.debug()) setDebug();
-    if (context.shared()) setShared();
+    if (defaults != null) copyFrom(defaults);
+    setContext(context);
   }
 
   /** @since 5.12 */
   public MutableSpan(MutableSpan toCopy) {
     if (toCopy == null) throw new NullPointerException("toCopy == null");
+    copyFrom(toCopy);
+  }
+
+  void copyFrom(MutableSpan toCopy) {
     if (toCopy == EMPTY) return;
+    traceIdHigh = toCopy.traceIdHigh;
     traceId = toCopy.traceId;
     localRootId = toCopy.localRootId;
     parentId = toCopy.parentId;
     id = toCopy.id;
+    traceIdString = toCopy.traceIdString;
+    localRootIdString = toCopy.localRootIdString;
+    parentIdString = toCopy.parentIdString;
+    idString = toCopy.idString;
     kind = toCopy.kind;
     flags = toCopy.flags;
     startTimestamp = toCopy.startTimestamp;
@@ -129,11 +181,51 @@ public final class MutableSpan implements Cloneable {
     remoteServiceName = toCopy.remoteServiceName;
     remoteIp = toCopy.remoteIp;
     remotePort = toCopy.remotePort;
-    tags = toCopy.tags != null ? new ArrayList<>(toCopy.tags) : null;
-    annotations = toCopy.annotations != null ? new ArrayList<>(toCopy.annotations) : null;
+    if (toCopy.tagCount > 0) {
+      ensureTagCapacity(toCopy.tagCount);
+      System.arraycopy(toCopy.tags, 0, tags, 0, toCopy.tagCount * 2);
+      tagCount = toCopy.tagCount;
+    }
+    if (toCopy.annotationCount > 0) {
+      ensureAnnotationCapacity(toCopy.annotationCount);
+      System.arraycopy(toCopy.annotationTimestamps, 0, annotationTimestamps, 0,
+        toCopy.annotationCount);
+      System.arraycopy(toCopy.annotationValues, 0, annotationValues, 0, toCopy.annotationCount);
+      annotationCount = toCopy.annotationCount;
+    }
     error = toCopy.error;
   }
 
+  void setContext(TraceContext context) {
+    // Don't call the string accessors of the context, as the strings may never be needed.
+    traceIdString = localRootIdString = parentIdString = idString = null;
+    traceIdHigh = context.traceIdHigh();
+    traceId = context.traceId();
+    localRootId = context.localRootId();
+    parentId = context.parentIdAsLong();
+    id = context.spanId();
+    flags = 0; // don't inherit flags from the span
+    if (context.debug()) setDebug();
+    if (context.shared()) setShared();
+  }
+
+  /** Clears all data, but retains storage for tags and annotations. */
+  void clear() {
+    traceIdHigh = traceId = localRootId = parentId = id = 0L;
+    traceIdString = localRootIdString = parentIdString = idString = null;
+    kind = null;
+    flags = 0;
+    startTimestamp = finishTimestamp = 0L;
+    name = localServiceName = localIp = remoteServiceName = remoteIp = null;
+    localPort = remotePort = 0;
+    for (int i = 0, length = tagCount * 2; i < length; i++) tags[i] = null;
+    tagCount = 0;
+    for (int i = 0; i < annotationCount; i++) annotationValues[i] = null;
+    annotationCount = 0;
+    error = null;
+    hashCode = 0;
+  }
+
   /**
    * @since 5.4
    * @deprecated Since 5.12 use {@link #equals(Object)} against a base value.
@@ -148,7 +240,11 @@ public final class MutableSpan implements Cloneable {
    * @since 5.12
    */
   public String traceId() {
-    return traceId;
+    String result = traceIdString;
+    if (result == null && traceId != 0L) {
+      result = traceIdString = toLowerHex(traceIdHigh, traceId);
+    }
+    return result;
   }
 
   /**
@@ -159,7 +255,8 @@ public final class MutableSpan implements Cloneable {
   public void traceId(String traceId) {
     if (traceId == null) throw new NullPointerException("traceId == null");
     if (traceId.isEmpty()) throw new NullPointerException("traceId is empty");
-    this.traceId = traceId;
+    this.traceIdString = traceId;
+    this.traceIdHigh = this.traceId = 0L;
   }
 
   /**
@@ -168,7 +265,9 @@ public final class MutableSpan implements Cloneable {
    * @since 5.12
    */
   @Nullable public String localRootId() {
-    return localRootId;
+    String result = localRootIdString;
+    if (result == null && localRootId != 0L) result = localRootIdString = toLowerHex(localRootId);
+    return result;
   }
 
   /**
@@ -177,7 +276,8 @@ public final class MutableSpan implements Cloneable {
    * @see #localRootId()
    */
   public void localRootId(@Nullable String localRootId) {
-    this.localRootId = localRootId == null || localRootId.isEmpty() ? null : localRootId;
+    this.localRootIdString = localRootId == null || localRootId.isEmpty() ? null : localRootId;
+    this.localRootId = 0L;
   }
 
   /**
@@ -186,7 +286,9 @@ public final class MutableSpan implements Cloneable {
    * @since 5.12
    */
   @Nullable public String parentId() {
-    return parentId;
+    String result = parentIdString;
+    if (result == null && parentId != 0L) result = parentIdString = toLowerHex(parentId);
+    return result;
   }
 
   /**
@@ -195,7 +297,8 @@ public final class MutableSpan implements Cloneable {
    * @see #parentId()
    */
   public void parentId(@Nullable String parentId) {
-    this.parentId = parentId == null || parentId.isEmpty() ? null : parentId;
+    this.parentIdString = parentId == null || parentId.isEmpty() ? null : parentId;
+    this.parentId = 0L;
   }
 
   /**
@@ -204,7 +307,9 @@ public final class MutableSpan implements Cloneable {
    * @since 5.12
    */
   public String id() {
-    return id;
+    String result = idString;
+    if (result == null && id != 0L) result = idString = toLowerHex(id);
+    return result;
   }
 
   /**
@@ -215,7 +320,8 @@ public final class MutableSpan implements Cloneable {
   public void id(String id) {
     if (id == null) throw new NullPointerException("id == null");
     if (id.isEmpty()) throw new NullPointerException("id is empty");
-    this.id = id;
+    this.idString = id;
+    this.id = 0L;
   }
 
   /**
@@ -489,7 +595,7 @@ public final class MutableSpan implements Cloneable {
 
   /** @since 5.12 */
   public int annotationCount() {
-    return annotations != null ? annotations.size() / 2 : 0;
+    return annotationCount;
   }
 
   /**
@@ -510,10 +616,8 @@ public final class MutableSpan implements Cloneable {
    * @since 5.4
    */
   public <T> void forEachAnnotation(AnnotationConsumer<T> annotationConsumer, T target) {
-    if (annotations == null) return;
-    for (int i = 0, length = annotations.size(); i < length; i += 2) {
-      long timestamp = (long) annotations.get(i);
-      annotationConsumer.accept(target, timestamp, annotations.get(i + 1).toString());
+    for (int i = 0; i < annotationCount; i++) {
+      annotationConsumer.accept(target, annotationTimestamps[i], annotationValues[i]);
     }
   }
 
@@ -534,15 +638,16 @@ public final class MutableSpan implements Cloneable {
    * @since 5.4
    */
   public void forEachAnnotation(AnnotationUpdater annotationUpdater) {
-    if (annotations == null) return;
-    for (int i = 0, length = annotations.size(); i < length; i += 2) {
-      String value = annotations.get(i + 1).toString();
-      String newValue = annotationUpdater.update((long) annotations.get(i), value);
-      if (updateOrRemove(annotations, i, value, newValue)) {
-        length -= 2;
-        i -= 2;
-      }
+    int j = 0; // index to write the next retained annotation
+    for (int i = 0; i < annotationCount; i++) {
+      String value = annotationValues[i];
+      String newValue = annotationUpdater.update(annotationTimestamps[i], value);
+      if (newValue == null) continue;
+      annotationTimestamps[j] = annotationTimestamps[i];
+      annotationValues[j++] = newValue;
     }
+    for (int i = j; i < annotationCount; i++) annotationValues[i] = null; // release references
+    annotationCount = j;
   }
 
   /**
@@ -554,10 +659,8 @@ public final class MutableSpan implements Cloneable {
    */
   public boolean containsAnnotation(String value) {
     if (value == null) throw new NullPointerException("value == null");
-    if (annotations == null) return false;
-
-    for (int i = 0, length = annotations.size(); i < length; i += 2) {
-      if (value.equals(annotations.get(i + 1))) return true;
+    for (int i = 0; i < annotationCount; i++) {
+      if (value.equals(annotationValues[i])) return true;
     }
     return false;
   }
@@ -572,14 +675,18 @@ public final class MutableSpan implements Cloneable {
   public void annotate(long timestamp, String value) {
     if (value == null) throw new NullPointerException("value == null");
     if (timestamp == 0L) return;
-    if (annotations == null) annotations = new ArrayList<>();
-    annotations.add(timestamp);
-    annotations.add(value);
+    if (annotationTimestamps == null) {
+      ensureAnnotationCapacity(DEFAULT_CAPACITY);
+    } else if (annotationCount == annotationTimestamps.length) {
+      ensureAnnotationCapacity(annotationCount * 2);
+    }
+    annotationTimestamps[annotationCount] = timestamp;
+    annotationValues[annotationCount++] = value;
   }
 
   /** @since 5.12 */
   public int tagCount() {
-    return tags != null ? tags.size() / 2 : 0;
+    return tagCount;
   }
 
   /**
@@ -591,12 +698,10 @@ public final class MutableSpan implements Cloneable {
   @Nullable public String tag(String key) {
     if (key == null) throw new NullPointerException("key == null");
     if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
-    if (tags == null) return null;
-    String result = null;
-    for (int i = 0, length = tags.size(); i < length; i += 2) {
-      if (key.equals(tags.get(i))) result = tags.get(i + 1);
+    for (int i = 0, length = tagCount * 2; i < length; i += 2) {
+      if (key.equals(tags[i])) return tags[i + 1]; // keys are unique
     }
-    return result;
+    return null;
   }
 
   /**
@@ -614,9 +719,8 @@ public final class MutableSpan implements Cloneable {
    * @since 5.4
    */
   public <T> void forEachTag(TagConsumer<T> tagConsumer, T target) {
-    if (tags == null) return;
-    for (int i = 0, length = tags.size(); i < length; i += 2) {
-      tagConsumer.accept(target, tags.get(i), tags.get(i + 1));
+    for (int i = 0, length = tagCount * 2; i < length; i += 2) {
+      tagConsumer.accept(target, tags[i], tags[i + 1]);
     }
   }
 
@@ -638,15 +742,15 @@ public final class MutableSpan implements Cloneable {
    * @since 5.4
    */
   public void forEachTag(TagUpdater tagUpdater) {
-    if (tags == null) return;
-    for (int i = 0, length = tags.size(); i < length; i += 2) {
-      String value = tags.get(i + 1);
-      String newValue = tagUpdater.update(tags.get(i), value);
-      if (updateOrRemove(tags, i, value, newValue)) {
-        length -= 2;
-        i -= 2;
-      }
+    int j = 0, length = tagCount * 2; // j is the index to write the next retained tag
+    for (int i = 0; i < length; i += 2) {
+      String newValue = tagUpdater.update(tags[i], tags[i + 1]);
+      if (newValue == null) continue;
+      tags[j++] = tags[i];
+      tags[j++] = newValue;
     }
+    for (int i = j; i < length; i++) tags[i] = null; // release references
+    tagCount = j / 2;
   }
 
   /**
@@ -659,30 +763,42 @@ public final class MutableSpan implements Cloneable {
     if (key == null) throw new NullPointerException("key == null");
     if (key.isEmpty()) throw new IllegalArgumentException("key is empty");
     if (value == null) throw new NullPointerException("value of " + key + " == null");
-    if (tags == null) {
-      // this will not need to grow unless there are more than 5 tags
-      tags = new ArrayList<>();
-    }
-    for (int i = 0, length = tags.size(); i < length; i += 2) {
-      if (key.equals(tags.get(i))) {
-        tags.set(i + 1, value);
+    int length = tagCount * 2;
+    for (int i = 0; i < length; i += 2) {
+      if (key.equals(tags[i])) {
+        tags[i + 1] = value;
         return;
       }
     }
-    tags.add(key);
-    tags.add(value);
+    if (tags == null) {
+      ensureTagCapacity(DEFAULT_CAPACITY);
+    } else if (length == tags.length) {
+      ensureTagCapacity(tagCount * 2);
+    }
+    tags[length] = key;
+    tags[length + 1] = value;
+    tagCount++;
   }
 
-  /** Returns true if the key/value was removed from the pair-indexed list at index {@code i} */
-  static boolean updateOrRemove(ArrayList list, int i, Object value, @Nullable Object newValue) {
-    if (newValue == null) {
-      list.remove(i);
-      list.remove(i);
-      return true;
-    } else if (!value.equals(newValue)) {
-      list.set(i + 1, newValue);
+  /** Grows the tag array so that it can hold at least {@code capacity} tags without resizing. */
+  void ensureTagCapacity(int capacity) {
+    if (tags != null && tags.length >= capacity * 2) return;
+    String[] newTags = new String[capacity * 2];
+    if (tagCount > 0) System.arraycopy(tags, 0, newTags, 0, tagCount * 2);
+    tags = newTags;
+  }
+
+  /** Grows annotation arrays so that they can hold {@code capacity} without resizing. */
+  void ensureAnnotationCapacity(int capacity) {
+    if (annotationTimestamps != null && annotationTimestamps.length >= capacity) return;
+    long[] newTimestamps = new long[capacity];
+    String[] newValues = new String[capacity];
+    if (annotationCount > 0) {
+      System.arraycopy(annotationTimestamps, 0, newTimestamps, 0, annotationCount);
+      System.arraycopy(annotationValues, 0, newValues, 0, annotationCount);
     }
-    return false;
+    annotationTimestamps = newTimestamps;
+    annotationValues = newValues;
   }
 
   volatile int hashCode; // Lazily initialized and cached.
@@ -691,6 +807,7 @@ public final class MutableSpan implements Cloneable {
     int h = hashCode;
     if (h == 0) {
       h = 1000003;
+      String traceId = traceId(), localRootId = localRootId(), parentId = parentId(), id = id();
       h ^= traceId == null ? 0 : traceId.hashCode();
       h *= 1000003;
       h ^= localRootId == null ? 0 : localRootId.hashCode();
@@ -721,9 +838,9 @@ public final class MutableSpan implements Cloneable {
       h *= 1000003;
       h ^= remotePort;
       h *= 1000003;
-      h ^= tags == null ? 0 : tags.hashCode();
+      h ^= tagsHashCode();
       h *= 1000003;
-      h ^= annotations == null ? 0 : annotations.hashCode();
+      h ^= annotationsHashCode();
       h *= 1000003;
       h ^= error == null ? 0 : error.hashCode();
       hashCode = h;
@@ -738,10 +855,7 @@ public final class MutableSpan implements Cloneable {
     if (!(o instanceof MutableSpan)) return false;
 
     MutableSpan that = (MutableSpan) o;
-    return equal(traceId, that.traceId)
-      && equal(localRootId, that.localRootId)
-      && equal(parentId, that.parentId)
-      && equal(id, that.id)
+    return idsEqual(that)
       && kind == that.kind
       && flags == that.flags
       && startTimestamp == that.startTimestamp
@@ -753,15 +867,74 @@ public final class MutableSpan implements Cloneable {
       && equal(remoteServiceName, that.remoteServiceName)
       && equal(remoteIp, that.remoteIp)
       && remotePort == that.remotePort
-      && equal(tags, that.tags)
-      && equal(annotations, that.annotations)
+      && tagsEqual(that)
+      && annotationsEqual(that)
       && equal(error, that.error);
   }
 
+  /** Compares IDs as longs when possible, to avoid materializing their strings. */
+  boolean idsEqual(MutableSpan that) {
+    if (traceIdString == null && that.traceIdString == null) {
+      if (traceIdHigh != that.traceIdHigh || traceId != that.traceId) return false;
+    } else if (!equal(traceId(), that.traceId())) {
+      return false;
+    }
+    if (localRootIdString == null && that.localRootIdString == null) {
+      if (localRootId != that.localRootId) return false;
+    } else if (!equal(localRootId(), that.localRootId())) {
+      return false;
+    }
+    if (parentIdString == null && that.parentIdString == null) {
+      if (parentId != that.parentId) return false;
+    } else if (!equal(parentId(), that.parentId())) {
+      return false;
+    }
+    if (idString == null && that.idString == null) return id == that.id;
+    return equal(id(), that.id());
+  }
+
+  // Unlike Arrays.hashCode and Arrays.equals, the below ignore unused capacity
+
+  int tagsHashCode() {
+    int h = 1;
+    for (int i = 0, length = tagCount * 2; i < length; i++) {
+      h = 31 * h + tags[i].hashCode();
+    }
+    return h;
+  }
+
+  int annotationsHashCode() {
+    int h = 1;
+    for (int i = 0; i < annotationCount; i++) {
+      long timestamp = annotationTimestamps[i];
+      h = 31 * h + (int) (timestamp ^ (timestamp >>> 32));
+      h = 31 * h + annotationValues[i].hashCode();
+    }
+    return h;
+  }
+
+  boolean tagsEqual(MutableSpan that) {
+    if (tagCount != that.tagCount) return false;
+    for (int i = 0, length = tagCount * 2; i < length; i++) {
+      if (!tags[i].equals(that.tags[i])) return false;
+    }
+    return true;
+  }
+
+  boolean annotationsEqual(MutableSpan that) {
+    if (annotationCount != that.annotationCount) return false;
+    for (int i = 0; i < annotationCount; i++) {
+      if (annotationTimestamps[i] != that.annotationTimestamps[i]) return false;
+      if (!annotationValues[i].equals(that.annotationValues[i])) return false;
+    }
+    return true;
+  }
+
   /** Writes this span in Zipkin V2 format */
   // Ported from zipkin2.internal.V2SpanWriter and may eventually move to a separate codec type
   @Override public String toString() {
     StringBuilder b = new StringBuilder();
+    String traceId = traceId(), parentId = parentId(), id = id();
     if (traceId != null) {
       b.append("\"traceId\":\"");
       b.append(traceId);
@@ -803,28 +976,27 @@ public final class MutableSpan implements Cloneable {
       b.append(",\"remoteEndpoint\":");
       writeEndpoint(b, remoteServiceName, remoteIp, remotePort);
     }
-    int annotationLength = annotations != null ? annotations.size() : 0;
-    if (annotationLength > 0) {
+    if (annotationCount > 0) {
       b.append(",\"annotations\":");
       b.append('[');
-      for (int i = 0; i < annotationLength; ) {
+      for (int i = 0; i < annotationCount; i++) {
+        if (i > 0) b.append(',');
         b.append("{\"timestamp\":");
-        b.append(annotations.get(i++));
+        b.append(annotationTimestamps[i]);
         b.append(",\"value\":\"");
-        jsonEscape(annotations.get(i++).toString(), b);
+        jsonEscape(annotationValues[i], b);
         b.append('}');
-        if (i < annotationLength) b.append(',');
       }
       b.append(']');
     }
-    int tagLength = tags != null ? tags.size() : 0;
+    int tagLength = tagCount * 2;
     if (tagLength > 0 || error != null) {
       b.append(",\"tags\":{");
       boolean wroteError = false;
       for (int i = 0; i < tagLength; ) {
-        String key = tags.get(i++);
+        String key = tags[i++];
         if (key.equals("error")) wroteError = true;
-        writeKeyValue(b, key, tags.get(i++));
+        writeKeyValue(b, key, tags[i++]);
         if (i < tagLength) b.append(',');
       }
       if (error != null && !wroteError) {
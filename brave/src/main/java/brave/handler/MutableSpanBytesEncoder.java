@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.Nullable;
+import brave.internal.codec.WriteBuffer;
+import java.util.List;
+
+/**
+ * Encodes a {@link MutableSpan} directly into Zipkin formats, without first converting it to a
+ * {@code zipkin2.Span}. The results decode to the same span as what {@code
+ * zipkin2.codec.SpanBytesEncoder} would produce for a span reported by the default Zipkin handler.
+ * However, the bytes can differ: annotations and tags are written in the order they were added,
+ * whereas {@code zipkin2.Span} sorts annotations by timestamp and tags by key.
+ *
+ * <p>Note: The "error" tag is not added from {@link MutableSpan#error()}. Use {@link
+ * brave.ErrorParser#error(Throwable, MutableSpan)} first if you need that.
+ *
+ * @see BatchingFinishedSpanHandler
+ * @since 5.12
+ */
+public enum MutableSpanBytesEncoder {
+  /** Zipkin v2 JSON format, as used by the {@code /api/v2/spans} endpoint. */
+  JSON_V2(0) {
+    @Override public String mediaType() {
+      return "application/json";
+    }
+
+    @Override void write(MutableSpan span, WriteBuffer b) {
+      ZipkinV2JsonWriter.write(span, b);
+    }
+
+    @Override void writeListPrefix(WriteBuffer b) {
+      b.writeByte('[');
+    }
+
+    @Override void writeListDelimiter(WriteBuffer b) {
+      b.writeByte(',');
+    }
+
+    @Override void writeListSuffix(WriteBuffer b) {
+      b.writeByte(']');
+    }
+
+    @Override int listOverheadInBytes(int spanCount) {
+      return spanCount == 0 ? 2 : spanCount + 1; // brackets and commas
+    }
+  },
+  /**
+   * Zipkin proto3 format. Each span is encoded as a field in the {@code ListOfSpans} message, so
+   * the concatenation of encoded spans is also a valid list.
+   */
+  PROTO3(1) {
+    @Override public String mediaType() {
+      return "application/x-protobuf";
+    }
+
+    @Override void write(MutableSpan span, WriteBuffer b) {
+      ZipkinProto3Writer.write(span, b);
+    }
+  };
+
+  /**
+   * Thread-local as encoding happens on the thread finishing the span. This holds a JRE type, so
+   * that values left on application threads don't pin this class loader.
+   */
+  static final ThreadLocal<byte[]> ENCODE_BUFFER = new ThreadLocal<>();
+
+  /**
+   * Identifies this encoding in files such as spool segments and shared memory, which outlive the
+   * process. Unlike {@link #ordinal()}, this doesn't change when constants are added or reordered,
+   * so never reuse a code.
+   */
+  final int code;
+
+  MutableSpanBytesEncoder(int code) {
+    this.code = code;
+  }
+
+  /** Returns the encoder with the given {@link #code}, or null if there is none. */
+  @Nullable static MutableSpanBytesEncoder forCode(int code) {
+    for (MutableSpanBytesEncoder encoder : values()) {
+      if (encoder.code == code) return encoder;
+    }
+    return null;
+  }
+
+  /** The value of the HTTP content-type header to use when posting to Zipkin. */
+  public abstract String mediaType();
+
+  /** Returns the encoded size of the span, which is the same as {@code encode(span).length}. */
+  public int sizeInBytes(MutableSpan span) {
+    if (span == null) throw new NullPointerException("span == null");
+    return writeToThreadBuffer(span).pos();
+  }
+
+  /** Serializes a span into this encoding. */
+  public byte[] encode(MutableSpan span) {
+    if (span == null) throw new NullPointerException("span == null");
+    return writeToThreadBuffer(span).toByteArray();
+  }
+
+  /** Serializes a list of spans into a message in this encoding. */
+  public byte[] encodeList(List<MutableSpan> spans) {
+    if (spans == null) throw new NullPointerException("spans == null");
+    WriteBuffer b = threadBuffer(ENCODE_BUFFER);
+    writeListPrefix(b);
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      if (i > 0) writeListDelimiter(b);
+      write(spans.get(i), b);
+    }
+    writeListSuffix(b);
+    ENCODE_BUFFER.set(b.array()); // retain growth
+    return b.toByteArray();
+  }
+
+  /**
+   * Writes the span into a buffer over this thread's array. The result is only valid until the next
+   * encode on this thread.
+   */
+  WriteBuffer writeToThreadBuffer(MutableSpan span) {
+    WriteBuffer b = threadBuffer(ENCODE_BUFFER);
+    write(span, b);
+    ENCODE_BUFFER.set(b.array()); // retain growth
+    return b;
+  }
+
+  static WriteBuffer threadBuffer(ThreadLocal<byte[]> threadLocal) {
+    byte[] array = threadLocal.get();
+    return array != null ? new WriteBuffer(array) : new WriteBuffer(512);
+  }
+
+  abstract void write(MutableSpan span, WriteBuffer b);
+
+  void writeListPrefix(WriteBuffer b) {
+  }
+
+  void writeListDelimiter(WriteBuffer b) {
+  }
+
+  void writeListSuffix(WriteBuffer b) {
+  }
+
+  /** Returns the bytes a list of the given size adds to the sum of its encoded spans. */
+  int listOverheadInBytes(int spanCount) {
+    return 0;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span;
+import brave.Tracing;
+
+/**
+ * Recycles {@link MutableSpan} instances, including their storage for tags and annotations, once
+ * all {@linkplain FinishedSpanHandler handlers} complete. Spans are also recycled when {@linkplain
+ * Span#abandon() abandoned} or reported as orphans.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *                  .mutableSpanRecycling(MutableSpanRecycling.newBuilder().build())
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * <h3>Implications</h3>
+ * {@link FinishedSpanHandler handlers} must not retain a reference to a {@link MutableSpan} after
+ * {@link FinishedSpanHandler#handle} returns. Make a {@linkplain MutableSpan#MutableSpan(MutableSpan)
+ * copy} if you need the data later.
+ *
+ * <p>Changes to a {@link Span} after it finished are dropped once its data is recycled. Set {@link
+ * Builder#detectUseAfterRecycle(boolean)} in tests to find code that does this.
+ *
+ * @see Tracing.Builder#mutableSpanRecycling(MutableSpanRecycling)
+ * @since 5.12
+ */
+public final class MutableSpanRecycling {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int poolSize = 256;
+    boolean detectUseAfterRecycle;
+
+    /**
+     * Maximum count of spans retained for re-use. Rounded up to a power of two. Defaults to 256.
+     */
+    public Builder poolSize(int poolSize) {
+      if (poolSize < 1) throw new IllegalArgumentException("poolSize < 1");
+      this.poolSize = poolSize;
+      return this;
+    }
+
+    /**
+     * When true, changing a {@link Span} after its data was recycled throws an {@link
+     * IllegalStateException}. The cause of the exception shows where the span was recycled.
+     * Defaults to false, which silently drops the change.
+     *
+     * <p>Do not do this in production as it records a stack trace for each span.
+     */
+    public Builder detectUseAfterRecycle(boolean detectUseAfterRecycle) {
+      this.detectUseAfterRecycle = detectUseAfterRecycle;
+      return this;
+    }
+
+    public MutableSpanRecycling build() {
+      return new MutableSpanRecycling(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final int poolSize;
+  final boolean detectUseAfterRecycle;
+
+  MutableSpanRecycling(Builder builder) {
+    this.poolSize = builder.poolSize;
+    this.detectUseAfterRecycle = builder.detectUseAfterRecycle;
+  }
+
+  public int poolSize() {
+    return poolSize;
+  }
+
+  public boolean detectUseAfterRecycle() {
+    return detectUseAfterRecycle;
+  }
+
+  @Override public String toString() {
+    return "MutableSpanRecycling{poolSize=" + poolSize
+      + ", detectUseAfterRecycle=" + detectUseAfterRecycle + "}";
+  }
+}
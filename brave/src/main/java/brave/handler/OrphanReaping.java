@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Tracing;
+import brave.internal.Nullable;
+import brave.internal.recorder.InternalOrphanReaping;
+import brave.internal.recorder.OrphanReaper;
+import brave.internal.recorder.PendingSpans;
+import java.io.Closeable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves reporting of spans orphaned by garbage collection off the application thread. By default,
+ * any traced operation first reports orphans, which means an unrelated request can pay for
+ * annotating and {@linkplain FinishedSpanHandler#supportsOrphans() handling} a batch of them after
+ * a large collection. When configured, a daemon thread, or a task scheduled on {@linkplain
+ * Builder#executor(ScheduledExecutorService) your executor}, does this work instead.
+ *
+ * <h3>Max span lifetime</h3>
+ * Spans are only orphaned when their context is garbage collected. A context that leaked, but is
+ * still reachable, for example held in a cache or a stuck callback, pins its span forever. Set
+ * {@link Builder#maxSpanLifetime(long, TimeUnit)} to flush spans pending longer than that, with
+ * the annotation "brave.timeout", to {@linkplain FinishedSpanHandler#supportsOrphans() handlers
+ * that support orphans}.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * orphanReaping = OrphanReaping.newBuilder().build();
+ * tracing = Tracing.newBuilder()
+ *                  .orphanReaping(orphanReaping)
+ *                  ...
+ *                  .build();
+ *
+ * // later, export the backlog to your metrics system
+ * orphanBacklog.set(orphanReaping.orphanBacklog());
+ * }</pre>
+ *
+ * @see Tracing.Builder#orphanReaping(OrphanReaping)
+ * @since 5.12
+ */
+public final class OrphanReaping {
+  static {
+    InternalOrphanReaping.instance = new InternalOrphanReaping() {
+      @Override public Closeable start(OrphanReaping orphanReaping, PendingSpans pendingSpans) {
+        return orphanReaping.start(pendingSpans);
+      }
+    };
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    ScheduledExecutorService executor;
+    long intervalMillis = 1000, maxSpanLifetimeNanos;
+
+    /**
+     * When set, orphans are reaped by a task scheduled on this executor instead of a dedicated
+     * daemon thread. The task is cancelled on {@link Tracing#close()}, but the executor is not shut
+     * down.
+     */
+    public Builder executor(ScheduledExecutorService executor) {
+      if (executor == null) throw new NullPointerException("executor == null");
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * How often the {@link #executor(ScheduledExecutorService) executor} task runs. The dedicated
+     * thread doesn't poll, as it blocks until an orphan is available. Defaults to one second.
+     */
+    public Builder interval(long interval, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (interval < 1) throw new IllegalArgumentException("interval < 1");
+      long intervalMillis = unit.toMillis(interval);
+      this.intervalMillis = intervalMillis > 0 ? intervalMillis : 1;
+      return this;
+    }
+
+    /**
+     * When set, spans not finished within this duration are flushed with the annotation
+     * "brave.timeout". Choose a value much larger than your slowest operation, as data added to a
+     * span after it was flushed is lost. Defaults to unset, which means spans are only flushed when
+     * orphaned by garbage collection.
+     *
+     * <p>Deadlines are kept in a hashed timing wheel, which adds no locking when spans start or
+     * finish. However, each span started allocates a deadline, which is cancelled when the span
+     * finishes and dropped by the reaper thread soon after.
+     */
+    public Builder maxSpanLifetime(long maxSpanLifetime, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (maxSpanLifetime < 1) throw new IllegalArgumentException("maxSpanLifetime < 1");
+      this.maxSpanLifetimeNanos = unit.toNanos(maxSpanLifetime);
+      return this;
+    }
+
+    public OrphanReaping build() {
+      return new OrphanReaping(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  @Nullable final ScheduledExecutorService executor;
+  final long intervalMillis, maxSpanLifetimeNanos;
+  volatile OrphanReaper reaper; // last one created by start
+
+  OrphanReaping(Builder builder) {
+    this.executor = builder.executor;
+    this.intervalMillis = builder.intervalMillis;
+    this.maxSpanLifetimeNanos = builder.maxSpanLifetimeNanos;
+  }
+
+  /** Called by {@link Tracing.Builder#build()} via {@link InternalOrphanReaping}. */
+  Closeable start(PendingSpans pendingSpans) {
+    if (pendingSpans == null) throw new NullPointerException("pendingSpans == null");
+    return reaper = new OrphanReaper(pendingSpans, executor, intervalMillis, maxSpanLifetimeNanos);
+  }
+
+  /**
+   * Returns an estimate of how many orphaned spans have yet to be reported. This iterates all
+   * pending spans, so poll it at the interval of your metrics system, not on a hot path.
+   */
+  public int orphanBacklog() {
+    OrphanReaper reaper = this.reaper;
+    return reaper != null ? reaper.orphanBacklog() : 0;
+  }
+
+  @Override public String toString() {
+    return "OrphanReaping{executor=" + executor + ", intervalMillis=" + intervalMillis
+      + ", maxSpanLifetimeNanos=" + maxSpanLifetimeNanos + "}";
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Clock;
+import brave.internal.Nullable;
+import brave.internal.Platform;
+import brave.propagation.TraceContext;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps recent spans in memory, indexed so that they can be queried without scanning. This is
+ * for debugging on hosts that cannot reach a Zipkin server.
+ *
+ * <p>Ex. to find the 20 slowest "get" requests in the last minute:
+ * <pre>{@code
+ * recentTraces = RecentTracesFinishedSpanHandler.newBuilder().build();
+ * tracing = Tracing.newBuilder()
+ *                  .alwaysSampleLocal() // so that unsampled spans are kept
+ *                  .addFinishedSpanHandler(recentTraces)
+ *                  ...
+ *                  .build();
+ *
+ * // later, for example in an admin endpoint
+ * for (MutableSpan root : recentTraces.slowestLocalRoots("frontend", "get", 20, 1, MINUTES)) {
+ *   List<MutableSpan> children = recentTraces.localRoot(root.localRootId());
+ *   ...
+ * }
+ * }</pre>
+ *
+ * <h3>Indexes</h3>
+ * Spans are indexed by trace ID, by local root ID and by local service name and span name. The
+ * last index is further divided into buckets of similar duration, so that queries for the slowest
+ * spans only visit as many spans as they return, plus those in the same duration bucket.
+ *
+ * <h3>Memory</h3>
+ * Spans are copied, as {@link FinishedSpanHandler handlers} must not retain a reference to their
+ * input. When there are more than {@link Builder#maxSpans(int)}, the oldest span is evicted.
+ * Query results are also copies, so callers cannot change stored spans.
+ *
+ * @since 5.12
+ */
+public final class RecentTracesFinishedSpanHandler extends FinishedSpanHandler {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int maxSpans = 10000;
+    Clock clock = Platform.get().clock();
+
+    /** Maximum count of spans kept. When exceeded, the oldest is evicted. Defaults to 10000. */
+    public Builder maxSpans(int maxSpans) {
+      if (maxSpans < 1) throw new IllegalArgumentException("maxSpans < 1");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /** Used to decide which spans are within a query's time window. Defaults to system time. */
+    public Builder clock(Clock clock) {
+      if (clock == null) throw new NullPointerException("clock == null");
+      this.clock = clock;
+      return this;
+    }
+
+    public RecentTracesFinishedSpanHandler build() {
+      return new RecentTracesFinishedSpanHandler(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final int maxSpans;
+  final Clock clock;
+
+  // guarded by this. Each collection is in the order spans were handled, so the oldest span is
+  // first in each of its indexes.
+  final ArrayDeque<Entry> spans = new ArrayDeque<>();
+  final Map<String, ArrayDeque<Entry>> byTraceId = new HashMap<>();
+  final Map<String, ArrayDeque<Entry>> byLocalRootId = new HashMap<>();
+  final Map<NameKey, TreeMap<Integer, ArrayDeque<Entry>>> byName = new HashMap<>();
+  final Map<NameKey, TreeMap<Integer, ArrayDeque<Entry>>> localRootsByName = new HashMap<>();
+
+  RecentTracesFinishedSpanHandler(Builder builder) {
+    this.maxSpans = builder.maxSpans;
+    this.clock = builder.clock;
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    Entry entry = new Entry(new MutableSpan(span));
+    synchronized (this) {
+      if (spans.size() == maxSpans) evict(spans.removeFirst());
+      spans.addLast(entry);
+      add(byTraceId, entry.span.traceId(), entry);
+      add(byLocalRootId, entry.localRootId, entry);
+      addByName(byName, entry);
+      if (entry.isLocalRoot) addByName(localRootsByName, entry);
+    }
+    return true;
+  }
+
+  @Override public boolean supportsOrphans() {
+    return true;
+  }
+
+  /** Returns the count of spans kept. */
+  public synchronized int spanCount() {
+    return spans.size();
+  }
+
+  /** Returns the spans of a trace on this host, in the order they finished. */
+  public List<MutableSpan> trace(String traceId) {
+    if (traceId == null) throw new NullPointerException("traceId == null");
+    synchronized (this) {
+      return copy(byTraceId.get(traceId), Integer.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Returns the spans under a {@linkplain MutableSpan#localRootId() local root}, including the
+   * local root, in the order they finished.
+   */
+  public List<MutableSpan> localRoot(String localRootId) {
+    if (localRootId == null) throw new NullPointerException("localRootId == null");
+    synchronized (this) {
+      return copy(byLocalRootId.get(localRootId), Integer.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Returns up to {@code limit} of the slowest spans with the given local service name and span
+   * name, which finished within the time window, slowest first.
+   */
+  public List<MutableSpan> slowestSpans(@Nullable String serviceName, @Nullable String spanName,
+    int limit, long window, TimeUnit unit) {
+    return slowest(byName, serviceName, spanName, limit, window, unit);
+  }
+
+  /**
+   * Like {@link #slowestSpans(String, String, int, long, TimeUnit)}, except only local roots are
+   * returned. Use {@link #localRoot(String)} to get the rest of their spans.
+   */
+  public List<MutableSpan> slowestLocalRoots(@Nullable String serviceName,
+    @Nullable String spanName, int limit, long window, TimeUnit unit) {
+    return slowest(localRootsByName, serviceName, spanName, limit, window, unit);
+  }
+
+  List<MutableSpan> slowest(Map<NameKey, TreeMap<Integer, ArrayDeque<Entry>>> index,
+    @Nullable String serviceName, @Nullable String spanName, int limit, long window,
+    TimeUnit unit) {
+    if (limit < 1) throw new IllegalArgumentException("limit < 1");
+    if (window < 0) throw new IllegalArgumentException("window < 0");
+    if (unit == null) throw new NullPointerException("unit == null");
+    long since = clock.currentTimeMicroseconds() - unit.toMicros(window);
+
+    List<Entry> result = new ArrayList<>();
+    synchronized (this) {
+      TreeMap<Integer, ArrayDeque<Entry>> buckets = index.get(new NameKey(serviceName, spanName));
+      if (buckets == null) return Collections.emptyList();
+      for (ArrayDeque<Entry> bucket : buckets.descendingMap().values()) {
+        for (Iterator<Entry> i = bucket.descendingIterator(); i.hasNext(); ) {
+          Entry entry = i.next();
+          if (entry.span.finishTimestamp() < since) break; // the rest of the bucket is older
+          result.add(entry);
+        }
+        if (result.size() >= limit) break; // lower buckets have only faster spans
+      }
+      // spans in the same bucket have similar, but not the same duration
+      Collections.sort(result, SLOWEST_FIRST);
+      return copy(result, limit);
+    }
+  }
+
+  static final Comparator<Entry> SLOWEST_FIRST = new Comparator<Entry>() {
+    @Override public int compare(Entry left, Entry right) {
+      return left.duration < right.duration ? 1 : left.duration == right.duration ? 0 : -1;
+    }
+  };
+
+  // guarded by this
+  static List<MutableSpan> copy(@Nullable Iterable<Entry> entries, int limit) {
+    if (entries == null) return Collections.emptyList();
+    List<MutableSpan> result = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (result.size() == limit) break;
+      result.add(new MutableSpan(entry.span));
+    }
+    return result;
+  }
+
+  // guarded by this
+  void evict(Entry entry) {
+    remove(byTraceId, entry.span.traceId());
+    remove(byLocalRootId, entry.localRootId);
+    removeByName(byName, entry);
+    if (entry.isLocalRoot) removeByName(localRootsByName, entry);
+  }
+
+  static <K> void add(Map<K, ArrayDeque<Entry>> index, K key, Entry entry) {
+    ArrayDeque<Entry> entries = index.get(key);
+    if (entries == null) index.put(key, entries = new ArrayDeque<>());
+    entries.addLast(entry);
+  }
+
+  static void addByName(Map<NameKey, TreeMap<Integer, ArrayDeque<Entry>>> index, Entry entry) {
+    TreeMap<Integer, ArrayDeque<Entry>> buckets = index.get(entry.nameKey);
+    if (buckets == null) index.put(entry.nameKey, buckets = new TreeMap<>());
+    add(buckets, entry.durationBucket, entry);
+  }
+
+  /** Removes the first entry of the key, which is the oldest. */
+  static <K> void remove(Map<K, ArrayDeque<Entry>> index, K key) {
+    ArrayDeque<Entry> entries = index.get(key);
+    entries.removeFirst();
+    if (entries.isEmpty()) index.remove(key);
+  }
+
+  static void removeByName(Map<NameKey, TreeMap<Integer, ArrayDeque<Entry>>> index,
+    Entry entry) {
+    TreeMap<Integer, ArrayDeque<Entry>> buckets = index.get(entry.nameKey);
+    remove(buckets, entry.durationBucket);
+    if (buckets.isEmpty()) index.remove(entry.nameKey);
+  }
+
+  static final class Entry {
+    final MutableSpan span;
+    final String localRootId;
+    final boolean isLocalRoot;
+    final NameKey nameKey;
+    final long duration;
+    final int durationBucket;
+
+    Entry(MutableSpan span) {
+      this.span = span;
+      String localRootId = span.localRootId();
+      // spans without a local root ID, such as those not created by a tracer, are treated as one
+      this.localRootId = localRootId != null ? localRootId : span.id();
+      this.isLocalRoot = this.localRootId.equals(span.id());
+      this.nameKey = new NameKey(span.localServiceName(), span.name());
+      long start = span.startTimestamp(), finish = span.finishTimestamp();
+      this.duration = start != 0L && finish > start ? finish - start : 0L;
+      this.durationBucket = LogLinearHistogram.bucket(duration);
+    }
+  }
+
+  static final class NameKey {
+    final String serviceName, spanName;
+
+    NameKey(@Nullable String serviceName, @Nullable String spanName) {
+      this.serviceName = serviceName != null ? serviceName : "";
+      this.spanName = spanName != null ? spanName : "";
+    }
+
+    @Override public boolean equals(Object o) {
+      if (o == this) return true;
+      if (!(o instanceof NameKey)) return false;
+      NameKey that = (NameKey) o;
+      return serviceName.equals(that.serviceName) && spanName.equals(that.spanName);
+    }
+
+    @Override public int hashCode() {
+      return serviceName.hashCode() * 1000003 ^ spanName.hashCode();
+    }
+  }
+
+  @Override public String toString() {
+    return "RecentTracesFinishedSpanHandler{maxSpans=" + maxSpans + "}";
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span.Kind;
+import brave.Tracing;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Aggregates finished spans into rate, error and duration (RED) metrics, keyed by local service
+ * name, span name, kind and remote service name. This allows accurate latency percentiles even
+ * when only a small percentage of traces are reported.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * metrics = RedMetricsFinishedSpanHandler.newBuilder().build();
+ * tracing = Tracing.newBuilder()
+ *                  .alwaysSampleLocal() // so that unsampled spans are measured, too
+ *                  .addFinishedSpanHandler(metrics)
+ *                  ...
+ *                  .build();
+ *
+ * // later, for example when scraped
+ * for (RedMetricsFinishedSpanHandler.Metrics m : metrics.snapshot()) {
+ *   registry.gauge(m.name() + ".p99", m.durationAtQuantile(0.99));
+ * }
+ * }</pre>
+ *
+ * <h3>Implementation</h3>
+ *
+ * <p>Metrics are held in a lock-free, open-addressing table. Once the table has {@linkplain
+ * Builder#maxCardinality(int) max cardinality} keys, spans with new keys are dropped and counted
+ * by {@link #droppedSpans()}. Durations are recorded in microseconds into log-linear histograms,
+ * which are accurate to within 12.5%.
+ *
+ * <p>Values are cumulative since this handler was created.
+ *
+ * @see Tracing.Builder#alwaysSampleLocal()
+ * @since 5.12
+ */
+public final class RedMetricsFinishedSpanHandler extends FinishedSpanHandler {
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int maxCardinality = 1000;
+
+    /**
+     * Maximum count of distinct keys of local service, span name, kind and remote service.
+     * Defaults to 1000.
+     */
+    public Builder maxCardinality(int maxCardinality) {
+      if (maxCardinality < 1) throw new IllegalArgumentException("maxCardinality < 1");
+      if (maxCardinality > 1 << 20) throw new IllegalArgumentException("maxCardinality > 2^20");
+      this.maxCardinality = maxCardinality;
+      return this;
+    }
+
+    public RedMetricsFinishedSpanHandler build() {
+      return new RedMetricsFinishedSpanHandler(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  /** An immutable copy of the metrics for one key. */
+  public static final class Metrics {
+    final String localServiceName, name, remoteServiceName;
+    final Kind kind;
+    final long count, errorCount, durationSum;
+    final long[] durationCounts;
+
+    Metrics(Entry entry) {
+      this.localServiceName = entry.localServiceName;
+      this.name = entry.name;
+      this.kind = entry.kind;
+      this.remoteServiceName = entry.remoteServiceName;
+      this.count = entry.count.get();
+      this.errorCount = entry.errorCount.get();
+      this.durationSum = entry.durationSum.get();
+      this.durationCounts = entry.durations.snapshot();
+    }
+
+    @Nullable public String localServiceName() {
+      return localServiceName;
+    }
+
+    @Nullable public String name() {
+      return name;
+    }
+
+    /** Returns null for local spans. */
+    @Nullable public Kind kind() {
+      return kind;
+    }
+
+    @Nullable public String remoteServiceName() {
+      return remoteServiceName;
+    }
+
+    /** Count of finished spans. */
+    public long count() {
+      return count;
+    }
+
+    /** Count of finished spans with an error. */
+    public long errorCount() {
+      return errorCount;
+    }
+
+    /** Sum of durations of spans with both a start and finish timestamp, in microseconds. */
+    public long durationSum() {
+      return durationSum;
+    }
+
+    /**
+     * Returns the duration in microseconds, at or under which the given fraction of spans
+     * finished. For example, 0.99 returns the 99th percentile.
+     */
+    public long durationAtQuantile(double quantile) {
+      return LogLinearHistogram.valueAtQuantile(durationCounts, quantile);
+    }
+
+    @Override public String toString() {
+      return "Metrics{localServiceName=" + localServiceName + ", name=" + name
+        + ", kind=" + kind + ", remoteServiceName=" + remoteServiceName
+        + ", count=" + count + ", errorCount=" + errorCount + "}";
+    }
+  }
+
+  final int maxCardinality;
+  final AtomicReferenceArray<Entry> table;
+  final int mask;
+  final AtomicInteger size = new AtomicInteger();
+  final AtomicLong droppedSpans = new AtomicLong();
+
+  RedMetricsFinishedSpanHandler(Builder builder) {
+    this.maxCardinality = builder.maxCardinality;
+    // Leave at least half of the slots free, so that probes are short and always terminate.
+    int capacity = Integer.highestOneBit(maxCardinality) << 2;
+    this.table = new AtomicReferenceArray<>(capacity);
+    this.mask = capacity - 1;
+  }
+
+  /** Returns the count of spans not aggregated as there were too many distinct keys. */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  /** Returns a copy of the metrics of each key, in no particular order. */
+  public List<Metrics> snapshot() {
+    List<Metrics> result = new ArrayList<>();
+    for (int i = 0, length = table.length(); i < length; i++) {
+      Entry entry = table.get(i);
+      if (entry != null) result.add(new Metrics(entry));
+    }
+    return result;
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    Entry entry = entry(span.localServiceName(), span.name(), span.kind(),
+      span.remoteServiceName());
+    if (entry == null) {
+      droppedSpans.incrementAndGet();
+      return true;
+    }
+
+    entry.count.incrementAndGet();
+    if (span.error() != null || span.tag("error") != null) entry.errorCount.incrementAndGet();
+    long start = span.startTimestamp(), finish = span.finishTimestamp();
+    if (start != 0L && finish != 0L) {
+      long duration = Math.max(0L, finish - start);
+      entry.durationSum.addAndGet(duration);
+      entry.durations.record(duration);
+    }
+    return true;
+  }
+
+  /** Finds or adds the entry for the key, or returns null if at max cardinality. */
+  @Nullable Entry entry(@Nullable String localServiceName, @Nullable String name,
+    @Nullable Kind kind, @Nullable String remoteServiceName) {
+    int hash = hashCode(localServiceName);
+    hash = 31 * hash + hashCode(name);
+    hash = 31 * hash + (kind != null ? kind.ordinal() + 1 : 0);
+    hash = 31 * hash + hashCode(remoteServiceName);
+    hash ^= hash >>> 16;
+
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      Entry entry = table.get(i);
+      if (entry == null) {
+        if (size.incrementAndGet() > maxCardinality) {
+          size.decrementAndGet();
+          return null;
+        }
+        Entry created = new Entry(localServiceName, name, kind, remoteServiceName);
+        if (table.compareAndSet(i, null, created)) return created;
+        size.decrementAndGet(); // another thread claimed the slot: see if it has our key
+        entry = table.get(i);
+      }
+      if (entry.matches(localServiceName, name, kind, remoteServiceName)) return entry;
+    }
+  }
+
+  static int hashCode(@Nullable String value) {
+    return value != null ? value.hashCode() : 0;
+  }
+
+  @Override public String toString() {
+    return "RedMetricsFinishedSpanHandler{maxCardinality=" + maxCardinality + "}";
+  }
+
+  static final class Entry {
+    final String localServiceName, name, remoteServiceName;
+    final Kind kind;
+    final AtomicLong count = new AtomicLong(), errorCount = new AtomicLong();
+    final AtomicLong durationSum = new AtomicLong();
+    final LogLinearHistogram durations = new LogLinearHistogram();
+
+    Entry(String localServiceName, String name, Kind kind, String remoteServiceName) {
+      this.localServiceName = localServiceName;
+      this.name = name;
+      this.kind = kind;
+      this.remoteServiceName = remoteServiceName;
+    }
+
+    boolean matches(@Nullable String localServiceName, @Nullable String name,
+      @Nullable Kind kind, @Nullable String remoteServiceName) {
+      return this.kind == kind
+        && equal(this.name, name)
+        && equal(this.localServiceName, localServiceName)
+        && equal(this.remoteServiceName, remoteServiceName);
+    }
+
+    static boolean equal(@Nullable String a, @Nullable String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.ErrorParser;
+import brave.internal.Platform;
+import brave.internal.Stripes;
+import brave.internal.codec.WriteBuffer;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes encoded spans into rings in a memory-mapped file, which a process on the same host, such
+ * as a sidecar agent, reads and sends to Zipkin. This moves the network I/O of reporting, and the
+ * CPU cost of it, out of the application process.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * sharedMemoryHandler =
+ *   SharedMemoryFinishedSpanHandler.newBuilder(new File("/dev/shm/zipkin-spans")).build();
+ * tracing = Tracing.newBuilder()
+ *                  .addFinishedSpanHandler(sharedMemoryHandler)
+ *                  .spanReporter(Reporter.NOOP) // as spans are now sent by the sidecar
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * <h3>File format</h3>
+ * The file starts with a header of 64 bytes: the big-endian ints {@link #MAGIC}, {@link #VERSION},
+ * the code of the {@link MutableSpanBytesEncoder} (0 for {@code JSON_V2}, 1 for {@code PROTO3}),
+ * the count of rings and the data capacity of each ring. The rings follow, each with a header of
+ * 128 bytes: the head position as a long at offset 0, written by this handler, and the tail
+ * position as a long at offset 64, written by the reader. Each span is a record of an int length
+ * followed by the encoded span, aligned to 4 bytes. A length of -1 means the rest of the ring's
+ * data is padding. {@link SharedMemorySpanReader} is a reference implementation of a reader.
+ *
+ * <h3>Threading</h3>
+ * Each thread writes to the ring chosen by its ID, so threads rarely contend on the same ring.
+ * Writing a span is a copy into the file: there is no system call. When the reader falls behind
+ * and a ring is full, spans are {@linkplain #droppedSpans() dropped} instead of blocking.
+ *
+ * <p>When this handler is built, a new file is written beside the given one and renamed over it.
+ * A reader that still maps the previous file keeps reading it until it reopens the path.
+ *
+ * @since 5.12
+ */
+public final class SharedMemoryFinishedSpanHandler extends FinishedSpanHandler
+  implements Closeable {
+  static final int MAGIC = 0x42525652; // "BRVR"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int ENCODER_OFFSET = 8, RING_COUNT_OFFSET = 12, RING_BYTES_OFFSET = 16;
+
+  public static Builder newBuilder(File file) {
+    return new Builder(file);
+  }
+
+  public static final class Builder {
+    final File file;
+    MutableSpanBytesEncoder encoder = MutableSpanBytesEncoder.JSON_V2;
+    int ringCount = Stripes.stripeCount(Runtime.getRuntime().availableProcessors());
+    int ringBytes = 1024 * 1024;
+    ErrorParser errorParser = ErrorParser.get();
+    boolean alwaysReportSpans;
+
+    Builder(File file) {
+      if (file == null) throw new NullPointerException("file == null");
+      this.file = file;
+    }
+
+    /** Defaults to {@link MutableSpanBytesEncoder#JSON_V2}. */
+    public Builder encoder(MutableSpanBytesEncoder encoder) {
+      if (encoder == null) throw new NullPointerException("encoder == null");
+      this.encoder = encoder;
+      return this;
+    }
+
+    /**
+     * Count of rings, rounded up to a power of two. Defaults to the count of available processors,
+     * capped at 64.
+     */
+    public Builder ringCount(int ringCount) {
+      if (ringCount < 1) throw new IllegalArgumentException("ringCount < 1");
+      if (ringCount > 1024) throw new IllegalArgumentException("ringCount > 1024");
+      this.ringCount = ringCount;
+      return this;
+    }
+
+    /**
+     * Capacity of each ring, rounded up to a power of two. Spans larger than this are dropped.
+     * Defaults to 1MB.
+     */
+    public Builder ringBytes(int ringBytes) {
+      if (ringBytes < 4096) throw new IllegalArgumentException("ringBytes < 4096");
+      if (ringBytes > 1 << 30) throw new IllegalArgumentException("ringBytes > 1GB");
+      this.ringBytes = ringBytes;
+      return this;
+    }
+
+    /**
+     * Used to add the "error" tag when {@link MutableSpan#error()} is set, but the tag is not.
+     * Defaults to {@link ErrorParser#get()}.
+     */
+    public Builder errorParser(ErrorParser errorParser) {
+      if (errorParser == null) throw new NullPointerException("errorParser == null");
+      this.errorParser = errorParser;
+      return this;
+    }
+
+    /**
+     * When true, spans that are not {@linkplain TraceContext#sampled() sampled remotely} are
+     * written. Defaults to false, which is the same as {@link
+     * brave.Tracing.Builder#alwaysReportSpans()}.
+     */
+    public Builder alwaysReportSpans(boolean alwaysReportSpans) {
+      this.alwaysReportSpans = alwaysReportSpans;
+      return this;
+    }
+
+    /** @throws IOException if the file could not be created */
+    public SharedMemoryFinishedSpanHandler build() throws IOException {
+      return new SharedMemoryFinishedSpanHandler(this);
+    }
+  }
+
+  final File file;
+  final MutableSpanBytesEncoder encoder;
+  final ErrorParser errorParser;
+  final boolean alwaysReportSpans;
+  final RandomAccessFile raf;
+  final MappedByteBuffer buffer;
+  final SpanRing[] rings;
+  final int ringMask;
+  final AtomicLong droppedSpans = new AtomicLong();
+  volatile boolean closed;
+
+  SharedMemoryFinishedSpanHandler(Builder builder) throws IOException {
+    this.file = builder.file;
+    this.encoder = builder.encoder;
+    this.errorParser = builder.errorParser;
+    this.alwaysReportSpans = builder.alwaysReportSpans;
+    int ringCount = Stripes.powerOfTwo(builder.ringCount);
+    int ringBytes = Stripes.powerOfTwo(builder.ringBytes);
+    long size = HEADER_SIZE + (long) ringCount * SpanRing.sizeInBytes(ringBytes);
+    if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("file larger than 2GB");
+
+    // Truncating the file in place would fault a reader that still maps it, so write a new file
+    // and rename it over the old one, which is atomic on POSIX file systems.
+    File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+    this.raf = new RandomAccessFile(temp, "rw");
+    try {
+      raf.setLength(size);
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.putInt(ENCODER_OFFSET, encoder.code);
+      buffer.putInt(RING_COUNT_OFFSET, ringCount);
+      buffer.putInt(RING_BYTES_OFFSET, ringBytes);
+      buffer.putInt(4, VERSION);
+      Platform.get().releaseFence(); // keeps writes of the header from moving after the magic
+      buffer.putInt(0, MAGIC); // last, so that a reader never sees a partial header
+      if (!temp.renameTo(file)) throw new IOException("could not replace file: " + file);
+    } catch (IOException e) {
+      raf.close();
+      temp.delete();
+      throw e;
+    }
+    this.rings = new SpanRing[ringCount];
+    for (int i = 0; i < ringCount; i++) {
+      rings[i] = new SpanRing(buffer, HEADER_SIZE + i * SpanRing.sizeInBytes(ringBytes), ringBytes);
+    }
+    this.ringMask = ringCount - 1;
+  }
+
+  /** Returns the count of spans not written as their ring was full, or after close. */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    if (!alwaysReportSpans && !Boolean.TRUE.equals(context.sampled())) return true;
+    if (span.error() != null && span.tag("error") == null) errorParser.error(span.error(), span);
+
+    WriteBuffer spanBuffer = encoder.writeToThreadBuffer(span);
+
+    SpanRing ring = rings[(int) Thread.currentThread().getId() & ringMask];
+    boolean written;
+    synchronized (ring) {
+      written = !closed && ring.write(spanBuffer.array(), spanBuffer.pos());
+    }
+    if (!written) droppedSpans.incrementAndGet();
+    return true;
+  }
+
+  @Override public boolean supportsOrphans() {
+    return true;
+  }
+
+  /** Spans handled after this are dropped. The file is left for the reader to finish. */
+  @Override public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    raf.close(); // the mapping is released when the buffer is garbage collected
+  }
+
+  @Override public String toString() {
+    return "SharedMemoryFinishedSpanHandler{file=" + file + ", encoder=" + encoder + "}";
+  }
+}
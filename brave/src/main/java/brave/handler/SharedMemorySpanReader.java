@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.Platform;
+import brave.internal.codec.WriteBuffer;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static brave.handler.SharedMemoryFinishedSpanHandler.ENCODER_OFFSET;
+import static brave.handler.SharedMemoryFinishedSpanHandler.HEADER_SIZE;
+import static brave.handler.SharedMemoryFinishedSpanHandler.MAGIC;
+import static brave.handler.SharedMemoryFinishedSpanHandler.RING_BYTES_OFFSET;
+import static brave.handler.SharedMemoryFinishedSpanHandler.RING_COUNT_OFFSET;
+import static brave.handler.SharedMemoryFinishedSpanHandler.VERSION;
+
+/**
+ * Reads spans written by {@link SharedMemoryFinishedSpanHandler} and passes them to a {@link
+ * SpanBatchSender} as messages. This is a reference for readers in other languages, and can also
+ * be used in tests or in a sidecar written in Java.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * try (SharedMemorySpanReader reader = SharedMemorySpanReader.open(file)) {
+ *   while (running) {
+ *     if (reader.drainTo(sender, 500000) == 0) Thread.sleep(100);
+ *   }
+ * }
+ * }</pre>
+ *
+ * <p>Only one reader may read a file at a time.
+ *
+ * @since 5.12
+ */
+public final class SharedMemorySpanReader implements Closeable {
+  /**
+   * Opens a file written by {@link SharedMemoryFinishedSpanHandler}.
+   *
+   * @throws IOException if the file could not be read or has an invalid header
+   */
+  public static SharedMemorySpanReader open(File file) throws IOException {
+    if (file == null) throw new NullPointerException("file == null");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (raf.length() < HEADER_SIZE) throw new IOException("invalid file: " + file);
+      MappedByteBuffer buffer =
+        raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+      return new SharedMemorySpanReader(file, raf, buffer);
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  final File file;
+  final RandomAccessFile raf;
+  final MutableSpanBytesEncoder encoder;
+  final SpanRing[] rings;
+
+  // guarded by this
+  final WriteBuffer message = new WriteBuffer(8192);
+  byte[] span = new byte[1024];
+
+  SharedMemorySpanReader(File file, RandomAccessFile raf, MappedByteBuffer buffer)
+    throws IOException {
+    this.file = file;
+    this.raf = raf;
+    int magic = buffer.getInt(0);
+    Platform.get().acquireFence(); // keeps reads of the header from moving before the magic
+    int encoder = buffer.getInt(ENCODER_OFFSET), ringCount = buffer.getInt(RING_COUNT_OFFSET);
+    int ringBytes = buffer.getInt(RING_BYTES_OFFSET);
+    this.encoder = MutableSpanBytesEncoder.forCode(encoder);
+    if (magic != MAGIC || buffer.getInt(4) != VERSION
+      || this.encoder == null || ringCount < 1 || ringBytes < 1
+      || HEADER_SIZE + (long) ringCount * SpanRing.sizeInBytes(ringBytes) > buffer.capacity()) {
+      throw new IOException("invalid header in file: " + file);
+    }
+    this.rings = new SpanRing[ringCount];
+    for (int i = 0; i < ringCount; i++) {
+      rings[i] = new SpanRing(buffer, HEADER_SIZE + i * SpanRing.sizeInBytes(ringBytes), ringBytes);
+    }
+  }
+
+  /** Returns the encoding of spans in the file. */
+  public MutableSpanBytesEncoder encoder() {
+    return encoder;
+  }
+
+  /**
+   * Sends all spans written so far, in messages no larger than {@code messageMaxBytes}. Spans are
+   * only removed from the file once the sender returns normally, so spans in a message that failed
+   * are sent again on the next call.
+   *
+   * @return the count of spans sent
+   * @throws IOException if the sender failed
+   */
+  public synchronized int drainTo(SpanBatchSender sender, int messageMaxBytes) throws IOException {
+    if (sender == null) throw new NullPointerException("sender == null");
+    if (messageMaxBytes < 16) throw new IllegalArgumentException("messageMaxBytes < 16");
+    int result = 0;
+    for (SpanRing ring : rings) {
+      result += drainRing(ring, sender, messageMaxBytes);
+    }
+    return result;
+  }
+
+  int drainRing(SpanRing ring, SpanBatchSender sender, int messageMaxBytes) throws IOException {
+    int sent = 0, spanCount = 0, spanBytes = 0;
+    long position = ring.tail(), head = ring.head();
+    while (position < head) {
+      int length = ring.recordLength(position);
+      long next = ring.nextPosition(position, length);
+      if (length == SpanRing.PADDING) {
+        position = next;
+        if (spanCount == 0) ring.tail(position);
+        continue;
+      }
+      if (length < 0 || length > ring.capacity || next > head) {
+        Platform.get().log("Skipping corrupt data in ring of file: {0}", file, null);
+        position = head;
+        break;
+      }
+      if (length + encoder.listOverheadInBytes(1) > messageMaxBytes) {
+        Platform.get().log("Dropped span larger than messageMaxBytes: {0}", length, null);
+        position = next;
+        if (spanCount == 0) ring.tail(position);
+        continue;
+      }
+
+      if (spanCount > 0
+        && spanBytes + length + encoder.listOverheadInBytes(spanCount + 1) > messageMaxBytes) {
+        send(sender, spanCount);
+        ring.tail(position);
+        sent += spanCount;
+        spanCount = spanBytes = 0;
+      }
+      if (span.length < length) span = new byte[length];
+      ring.readSpan(position, span, length);
+      if (spanCount == 0) {
+        encoder.writeListPrefix(message);
+      } else {
+        encoder.writeListDelimiter(message);
+      }
+      message.write(span, 0, length);
+      spanCount++;
+      spanBytes += length;
+      position = next;
+    }
+    if (spanCount > 0) {
+      send(sender, spanCount);
+      sent += spanCount;
+    }
+    ring.tail(position);
+    return sent;
+  }
+
+  void send(SpanBatchSender sender, int spanCount) throws IOException {
+    encoder.writeListSuffix(message);
+    try {
+      sender.send(encoder, message.array(), message.pos(), spanCount);
+    } finally {
+      message.reset();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    raf.close(); // the mapping is released when the buffer is garbage collected
+  }
+
+  @Override public String toString() {
+    return "SharedMemorySpanReader{file=" + file + "}";
+  }
+}
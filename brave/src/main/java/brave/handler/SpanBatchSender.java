@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import java.io.IOException;
+
+/**
+ * Sends a message of encoded spans to a transport, such as HTTP or Kafka. Messages are prepared by
+ * {@link BatchingFinishedSpanHandler}.
+ *
+ * <p>This is similar to {@code zipkin2.reporter.Sender}, except the message is handed over as a
+ * byte range of a re-used buffer instead of a list of per-span arrays.
+ *
+ * @since 5.12
+ */
+public abstract class SpanBatchSender {
+  /**
+   * Sends a complete message, which is only valid for the duration of this call. Implementations
+   * that send asynchronously must copy the range {@code [0, length)} of the message first.
+   *
+   * @param encoder the encoding of the message, for example to choose the content-type header
+   * @param message a buffer whose first {@code length} bytes are the message to send
+   * @param length count of bytes in the message
+   * @param spanCount count of spans in the message
+   * @throws IOException when the message could not be sent. This will be logged by the caller.
+   */
+  public abstract void send(MutableSpanBytesEncoder encoder, byte[] message, int length,
+    int spanCount) throws IOException;
+}
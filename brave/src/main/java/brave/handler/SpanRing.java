@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.Platform;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * One ring of encoded spans in the file shared by {@link SharedMemoryFinishedSpanHandler} and
+ * {@link SharedMemorySpanReader}.
+ *
+ * <p>The ring begins with a header holding the head, written only by the producer, and the tail,
+ * written only by the consumer, each on their own cache line. Positions only increase: the offset
+ * into the data is the position modulo the capacity. Each record is a length followed by the
+ * encoded span, aligned to 4 bytes. A record never wraps: when there isn't room before the end of
+ * the data, a {@link #PADDING} length is written and the record starts at offset zero.
+ *
+ * <p>The head and tail are published with {@link Platform#releaseFence() fences}, which are only
+ * portable across processors on JRE 9+. On older JREs, only processors with total store order,
+ * such as x86, are supported.
+ *
+ * <p>Not thread safe: the producer and consumer must each synchronize.
+ */
+final class SpanRing {
+  static final int HEADER_SIZE = 128, HEAD_OFFSET = 0, TAIL_OFFSET = 64;
+  /** A length which means skip to the start of the data. */
+  static final int PADDING = -1;
+
+  final ByteBuffer buffer, view; // view is positioned to copy bytes in or out
+  final int capacity, mask;
+
+  /** @param capacity a power of two */
+  SpanRing(ByteBuffer file, int offset, int capacity) {
+    ByteBuffer slice = file.duplicate();
+    // cast as ByteBuffer.position and limit are covariant in JRE 9+
+    ((Buffer) slice).position(offset);
+    ((Buffer) slice).limit(offset + HEADER_SIZE + capacity);
+    this.buffer = slice.slice();
+    this.view = buffer.duplicate();
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+  }
+
+  static int sizeInBytes(int capacity) {
+    return HEADER_SIZE + capacity;
+  }
+
+  /** Returns the position after the last record written. Called by the consumer. */
+  long head() {
+    long result = buffer.getLong(HEAD_OFFSET);
+    Platform.get().acquireFence(); // keeps reads of records from moving before the head
+    return result;
+  }
+
+  /** Returns the position of the first record not yet read. Called by the producer. */
+  long tail() {
+    long result = buffer.getLong(TAIL_OFFSET);
+    Platform.get().acquireFence(); // keeps overwrites of records from moving before the tail
+    return result;
+  }
+
+  /** Releases records before the position for overwrite. Called by the consumer. */
+  void tail(long tail) {
+    Platform.get().releaseFence(); // keeps reads of records from moving after the tail
+    buffer.putLong(TAIL_OFFSET, tail);
+  }
+
+  /** Returns false if the ring doesn't have room for the span. Called by the producer. */
+  boolean write(byte[] span, int length) {
+    long head = buffer.getLong(HEAD_OFFSET), tail = tail();
+    int offset = (int) (head & mask), recordSize = align(4 + length);
+    int padding = offset + recordSize > capacity ? capacity - offset : 0;
+    if (head + padding + recordSize - tail > capacity) return false;
+
+    if (padding > 0) {
+      buffer.putInt(HEADER_SIZE + offset, PADDING);
+      offset = 0;
+    }
+    buffer.putInt(HEADER_SIZE + offset, length);
+    ((Buffer) view).position(HEADER_SIZE + offset + 4);
+    view.put(span, 0, length);
+    Platform.get().releaseFence(); // keeps writes of the record from moving after the head
+    buffer.putLong(HEAD_OFFSET, head + padding + recordSize); // publish
+    return true;
+  }
+
+  /**
+   * Returns the length of the record at the position, or {@link #PADDING}. Called by the
+   * consumer.
+   */
+  int recordLength(long position) {
+    return buffer.getInt(HEADER_SIZE + (int) (position & mask));
+  }
+
+  /** Returns the position after the record or padding at the position. */
+  long nextPosition(long position, int recordLength) {
+    if (recordLength == PADDING) return position + capacity - (int) (position & mask);
+    return position + align(4 + recordLength);
+  }
+
+  /** Copies the span in the record at the position. Called by the consumer. */
+  void readSpan(long position, byte[] dst, int length) {
+    ((Buffer) view).position(HEADER_SIZE + (int) (position & mask) + 4);
+    view.get(dst, 0, length);
+  }
+
+  static int align(int size) {
+    return (size + 3) & ~3;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed-size, memory-mapped file of messages written by {@link DiskSpoolingSpanBatchSender}.
+ *
+ * <p>The header holds the committed write position and the read position. The write position is
+ * only advanced after a record is fully written, so a reader never sees a partial record, even
+ * after a crash. Each record has a CRC32 of its payload, so that torn pages are detected if the
+ * host loses power before the operating system flushed them. Records identify their encoding by
+ * {@link MutableSpanBytesEncoder#code}, not ordinal, so segments survive upgrades.
+ *
+ * <p>A segment is {@linkplain #reset(long) reset} for reuse once drained, instead of deleted. The
+ * mapping of a file is only released when its buffer is garbage collected, and a deleted file that
+ * is still mapped keeps its disk blocks. Reusing files means disk usage stays bounded by the count
+ * of files. The sequence in the header, not the file name, orders segments.
+ *
+ * <p>Not thread safe: callers must synchronize.
+ */
+final class SpoolSegment implements Closeable {
+  static final int MAGIC = 0x53504f4c; // "SPOL"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 32, RECORD_HEADER_SIZE = 16;
+  static final int SEQUENCE_OFFSET = 8, WRITE_POSITION_OFFSET = 16, READ_POSITION_OFFSET = 20;
+  static final String PREFIX = "spool-", SUFFIX = ".seg";
+
+  /** Returns the file at the index, which is unrelated to the sequence of its segment. */
+  static File file(File directory, int index) {
+    return new File(directory, PREFIX + index + SUFFIX);
+  }
+
+  /** Creates a new, empty segment. */
+  static SpoolSegment create(File file, long sequence, int size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(size);
+      SpoolSegment result = new SpoolSegment(file, raf, sequence);
+      result.buffer.putInt(4, VERSION);
+      result.reset(sequence);
+      result.buffer.putInt(0, MAGIC); // last, so that a partially created segment is invalid
+      result.buffer.force();
+      return result;
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  /** Opens an existing segment, or returns null if its header is invalid. */
+  @Nullable static SpoolSegment open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    if (raf.length() < HEADER_SIZE || raf.length() > Integer.MAX_VALUE) {
+      raf.close();
+      return null;
+    }
+    SpoolSegment result = new SpoolSegment(file, raf, -1L);
+    ByteBuffer buffer = result.buffer;
+    int write = buffer.getInt(WRITE_POSITION_OFFSET), read = buffer.getInt(READ_POSITION_OFFSET);
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+      || read < HEADER_SIZE || write < read || write > buffer.capacity()) {
+      result.close();
+      return null;
+    }
+    return result;
+  }
+
+  final File file;
+  final RandomAccessFile raf;
+  final MappedByteBuffer buffer;
+  long sequence;
+  final CRC32 crc = new CRC32();
+
+  SpoolSegment(File file, RandomAccessFile raf, long sequence) throws IOException {
+    this.file = file;
+    this.raf = raf;
+    this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    this.sequence = sequence != -1L ? sequence : buffer.getLong(SEQUENCE_OFFSET);
+  }
+
+  /**
+   * Empties the segment so that it can be reused with the given sequence. The positions are
+   * written before the sequence, so that a crash in between doesn't replay old messages out of
+   * order.
+   */
+  void reset(long sequence) {
+    buffer.putInt(WRITE_POSITION_OFFSET, HEADER_SIZE);
+    buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+    buffer.putLong(SEQUENCE_OFFSET, sequence);
+    this.sequence = sequence;
+  }
+
+  int capacity() {
+    return buffer.capacity();
+  }
+
+  int writePosition() {
+    return buffer.getInt(WRITE_POSITION_OFFSET);
+  }
+
+  int readPosition() {
+    return buffer.getInt(READ_POSITION_OFFSET);
+  }
+
+  void readPosition(int readPosition) {
+    buffer.putInt(READ_POSITION_OFFSET, readPosition);
+  }
+
+  boolean isFullyRead() {
+    return readPosition() >= writePosition();
+  }
+
+  /** Returns false if there isn't room for the message. */
+  boolean append(MutableSpanBytesEncoder encoder, byte[] message, int length, int spanCount) {
+    int position = writePosition();
+    if ((long) position + RECORD_HEADER_SIZE + length > buffer.capacity()) return false;
+    crc.reset();
+    crc.update(message, 0, length);
+
+    ByteBuffer out = ((ByteBuffer) buffer).duplicate(); // covariant in JRE 17+
+    ((Buffer) out).position(position); // cast as ByteBuffer.position is covariant in JRE 9+
+    out.putInt(length);
+    out.putInt(spanCount);
+    out.putInt(encoder.code);
+    out.putInt((int) crc.getValue());
+    out.put(message, 0, length);
+    buffer.putInt(WRITE_POSITION_OFFSET, out.position()); // commit
+    return true;
+  }
+
+  /** A record read from a segment. The message is only valid until the next read. */
+  static final class Record {
+    MutableSpanBytesEncoder encoder;
+    byte[] message = new byte[1024];
+    int length, spanCount, nextPosition;
+  }
+
+  /**
+   * Reads the record at the {@link #readPosition()} into the input, returning false if the record
+   * is corrupt. Call only when not {@link #isFullyRead()}.
+   */
+  boolean read(Record record) {
+    int position = readPosition(), end = writePosition();
+    if (end - position < RECORD_HEADER_SIZE) return false;
+    ByteBuffer in = ((ByteBuffer) buffer).duplicate();
+    ((Buffer) in).position(position);
+    int length = in.getInt(), spanCount = in.getInt(), encoder = in.getInt(), crc = in.getInt();
+    MutableSpanBytesEncoder recordEncoder = MutableSpanBytesEncoder.forCode(encoder);
+    if (length < 0 || length > end - in.position() || recordEncoder == null) return false;
+    if (record.message.length < length) record.message = new byte[length];
+    in.get(record.message, 0, length);
+    this.crc.reset();
+    this.crc.update(record.message, 0, length);
+    if ((int) this.crc.getValue() != crc) return false;
+
+    record.encoder = recordEncoder;
+    record.length = length;
+    record.spanCount = spanCount;
+    record.nextPosition = in.position();
+    return true;
+  }
+
+  void force() {
+    buffer.force();
+  }
+
+  @Override public void close() throws IOException {
+    raf.close(); // the mapping is released when the buffer is garbage collected
+  }
+
+  @Override public String toString() {
+    return "SpoolSegment{" + file.getName() + "}";
+  }
+}
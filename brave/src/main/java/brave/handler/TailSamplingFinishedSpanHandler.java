@@ -0,0 +1,338 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers all spans of a local root, and decides whether to keep them once the local root
+ * finishes. Kept spans are passed to the delegate, which should report them regardless of their
+ * sampled flag. For example, a {@link BatchingFinishedSpanHandler} with {@linkplain
+ * BatchingFinishedSpanHandler.Builder#alwaysReportSpans(boolean) alwaysReportSpans} enabled.
+ *
+ * <p>This allows you to keep all slow or error traces while only keeping a small percentage of
+ * the rest. Ex.
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *                  .sampler(Sampler.NEVER_SAMPLE) // don't report to zipkin, unless kept below
+ *                  .alwaysSampleLocal()
+ *                  .addFinishedSpanHandler(TailSamplingFinishedSpanHandler.newBuilder(batching)
+ *                    .keepSlowerThan(1, TimeUnit.SECONDS)
+ *                    .otherwise(BoundarySampler.create(0.01f))
+ *                    .build())
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * <h3>Decisions</h3>
+ * A group of spans is kept when any of its spans has an error, is slower than the {@linkplain
+ * Builder#keepSlowerThan(long, TimeUnit) threshold} or matches a {@linkplain
+ * Builder#keep(SamplerFunction) rule}. Otherwise, the {@linkplain Builder#otherwise(Sampler)
+ * fallback sampler} decides based on the trace ID, so that the decision is consistent across
+ * hosts using the same sampler.
+ *
+ * <p>Spans that finish after their local root follow its decision, which is remembered for a
+ * limited count of recent local roots. Spans without a local root ID are decided alone.
+ *
+ * <h3>Memory</h3>
+ * Spans are copied, as {@link FinishedSpanHandler handlers} must not retain a reference to their
+ * input. The count of buffered spans is bounded by {@link Builder#maxSpans(int)}. When exceeded,
+ * the oldest group is decided early with the spans it has so far.
+ *
+ * @since 5.12
+ */
+public final class TailSamplingFinishedSpanHandler extends FinishedSpanHandler
+  implements Closeable {
+
+  public static Builder newBuilder(FinishedSpanHandler delegate) {
+    return new Builder(delegate);
+  }
+
+  public static final class Builder {
+    final FinishedSpanHandler delegate;
+    final List<SamplerFunction<MutableSpan>> rules = new ArrayList<>();
+    boolean keepErrors = true;
+    long keepSlowerThanMicros = Long.MAX_VALUE;
+    Sampler otherwise = Sampler.NEVER_SAMPLE;
+    int maxSpans = 10000, maxDecisions = 10000;
+
+    Builder(FinishedSpanHandler delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+    }
+
+    /** When true, groups with any span that has an error are kept. Defaults to true. */
+    public Builder keepErrors(boolean keepErrors) {
+      this.keepErrors = keepErrors;
+      return this;
+    }
+
+    /** Groups with any span whose duration is at least this amount are kept. */
+    public Builder keepSlowerThan(long duration, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (duration < 0) throw new IllegalArgumentException("duration < 0");
+      this.keepSlowerThanMicros = unit.toMicros(duration);
+      return this;
+    }
+
+    /**
+     * Adds a rule evaluated against each span in a group. The group is kept if the rule returns
+     * true for any span. Returning false or null defers to other rules.
+     */
+    public Builder keep(SamplerFunction<MutableSpan> rule) {
+      if (rule == null) throw new NullPointerException("rule == null");
+      rules.add(rule);
+      return this;
+    }
+
+    /**
+     * Decides groups that no other rule kept, based on their trace ID. Defaults to {@link
+     * Sampler#NEVER_SAMPLE}.
+     */
+    public Builder otherwise(Sampler otherwise) {
+      if (otherwise == null) throw new NullPointerException("otherwise == null");
+      this.otherwise = otherwise;
+      return this;
+    }
+
+    /** Maximum count of spans buffered awaiting their local root. Defaults to 10000. */
+    public Builder maxSpans(int maxSpans) {
+      if (maxSpans < 1) throw new IllegalArgumentException("maxSpans < 1");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /**
+     * Maximum count of local root decisions remembered for spans that finish late. Defaults to
+     * 10000.
+     */
+    public Builder maxDecisions(int maxDecisions) {
+      if (maxDecisions < 0) throw new IllegalArgumentException("maxDecisions < 0");
+      this.maxDecisions = maxDecisions;
+      return this;
+    }
+
+    public TailSamplingFinishedSpanHandler build() {
+      return new TailSamplingFinishedSpanHandler(this);
+    }
+  }
+
+  final FinishedSpanHandler delegate;
+  final SamplerFunction<MutableSpan>[] rules;
+  final boolean keepErrors;
+  final long keepSlowerThanMicros;
+  final Sampler otherwise;
+  final int maxSpans, maxDecisions;
+  final AtomicLong keptSpans = new AtomicLong(), droppedSpans = new AtomicLong();
+  final AtomicLong evictedGroups = new AtomicLong();
+
+  // guarded by this
+  final LinkedHashMap<Long, Group> groups = new LinkedHashMap<>();
+  /** Values are a {@link Boolean}, or a {@link Group} collecting spans while it is decided. */
+  final LinkedHashMap<Long, Object> decisions = new LinkedHashMap<Long, Object>() {
+    @Override protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+      return size() > maxDecisions;
+    }
+  };
+  int bufferedSpans;
+  boolean closed;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  TailSamplingFinishedSpanHandler(Builder builder) {
+    this.delegate = builder.delegate;
+    this.rules = builder.rules.toArray(new SamplerFunction[0]);
+    this.keepErrors = builder.keepErrors;
+    this.keepSlowerThanMicros = builder.keepSlowerThanMicros;
+    this.otherwise = builder.otherwise;
+    this.maxSpans = builder.maxSpans;
+    this.maxDecisions = builder.maxDecisions;
+  }
+
+  /** Returns the count of spans passed to the delegate. */
+  public long keptSpans() {
+    return keptSpans.get();
+  }
+
+  /** Returns the count of spans not passed to the delegate. */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  /** Returns the count of groups decided before their local root finished, due to memory. */
+  public long evictedGroups() {
+    return evictedGroups.get();
+  }
+
+  /** Always returns true, as the decision is made later. */
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    long localRootId = context.localRootId();
+    if (localRootId == 0L) { // decide alone
+      Group group = new Group(context);
+      group.add(context, span);
+      decide(group);
+      return true;
+    }
+
+    Group decided = null;
+    List<Group> evicted = null;
+    Object decision;
+    synchronized (this) {
+      decision = closed ? null : decisions.get(localRootId);
+      if (decision instanceof Group) { // joins the decision in progress
+        ((Group) decision).add(context, new MutableSpan(span));
+        return true;
+      }
+      if (decision == null) {
+        Group group = groups.get(localRootId);
+        if (group == null) groups.put(localRootId, group = new Group(context));
+        group.add(context, new MutableSpan(span));
+        bufferedSpans++;
+
+        if (closed || context.spanId() == localRootId) {
+          decided = groups.remove(localRootId);
+          bufferedSpans -= decided.spans.size();
+          markPending(decided);
+        }
+
+        while (bufferedSpans > maxSpans) {
+          Iterator<Group> eldest = groups.values().iterator();
+          Group oldest = eldest.next();
+          eldest.remove();
+          bufferedSpans -= oldest.spans.size();
+          markPending(oldest);
+          if (evicted == null) evicted = new ArrayList<>();
+          evicted.add(oldest);
+        }
+      }
+    }
+
+    if (decision != null) { // span finished after its local root
+      if ((Boolean) decision) {
+        keptSpans.incrementAndGet();
+        delegate.handle(context, span);
+      } else {
+        droppedSpans.incrementAndGet();
+      }
+      return true;
+    }
+
+    // invoke the delegate outside the lock
+    if (evicted != null) {
+      evictedGroups.addAndGet(evicted.size());
+      for (Group group : evicted) decide(group);
+    }
+    if (decided != null) decide(decided);
+    return true;
+  }
+
+  /**
+   * Called under the lock when a group leaves {@link #groups}, so that spans finishing before its
+   * decision is recorded follow it, instead of starting a new group.
+   */
+  void markPending(Group group) {
+    if (closed || maxDecisions == 0) return;
+    group.late = new Group(group.traceId, group.localRootId);
+    decisions.put(group.localRootId, group.late);
+  }
+
+  void decide(Group group) {
+    boolean keep = shouldKeep(group);
+    Group late = null;
+    if (group.localRootId != 0L && maxDecisions > 0) {
+      synchronized (this) {
+        if (!closed) decisions.put(group.localRootId, keep);
+        // Once replaced, no more spans can join, so this is safe to read outside the lock.
+        late = group.late;
+        group.late = null;
+      }
+    }
+
+    report(group, keep);
+    if (late != null) report(late, keep);
+  }
+
+  void report(Group group, boolean keep) {
+    if (!keep) {
+      droppedSpans.addAndGet(group.spans.size());
+      return;
+    }
+    keptSpans.addAndGet(group.spans.size());
+    for (int i = 0, length = group.spans.size(); i < length; i++) {
+      delegate.handle(group.contexts.get(i), group.spans.get(i));
+    }
+  }
+
+  boolean shouldKeep(Group group) {
+    for (MutableSpan span : group.spans) {
+      if (keepErrors && (span.error() != null || span.tag("error") != null)) return true;
+      long start = span.startTimestamp(), finish = span.finishTimestamp();
+      if (start != 0L && finish != 0L && finish - start >= keepSlowerThanMicros) return true;
+      for (SamplerFunction<MutableSpan> rule : rules) {
+        if (Boolean.TRUE.equals(rule.trySample(span))) return true;
+      }
+    }
+    return otherwise.isSampled(group.traceId);
+  }
+
+  /** Decides all buffered groups with the spans they have so far. */
+  @Override public void close() {
+    List<Group> remaining;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      remaining = new ArrayList<>(groups.values());
+      groups.clear();
+      decisions.clear();
+      bufferedSpans = 0;
+    }
+    for (Group group : remaining) decide(group);
+  }
+
+  @Override public String toString() {
+    return "TailSamplingFinishedSpanHandler{" + delegate + "}";
+  }
+
+  static final class Group {
+    final long traceId, localRootId;
+    final List<TraceContext> contexts = new ArrayList<>();
+    final List<MutableSpan> spans = new ArrayList<>();
+    /** Spans that finished while this group was decided. Guarded by the handler. */
+    Group late;
+
+    Group(TraceContext context) {
+      this(context.traceId(), context.localRootId());
+    }
+
+    Group(long traceId, long localRootId) {
+      this.traceId = traceId;
+      this.localRootId = localRootId;
+    }
+
+    void add(TraceContext context, MutableSpan span) {
+      contexts.add(context);
+      spans.add(span);
+    }
+  }
+}
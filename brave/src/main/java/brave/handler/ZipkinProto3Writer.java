@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.IpLiteral;
+import brave.internal.Nullable;
+import brave.internal.codec.WriteBuffer;
+
+import static brave.handler.ZipkinV2JsonWriter.lowercaseOrNull;
+import static brave.internal.codec.WriteBuffer.utf8SizeInBytes;
+import static brave.internal.codec.WriteBuffer.varintSizeInBytes;
+
+/**
+ * Writes a {@link MutableSpan} as a field in the Zipkin {@code ListOfSpans} proto3 message. As the
+ * field key and length are included, writing spans back-to-back is a valid list.
+ *
+ * <p>See https://github.com/openzipkin/zipkin-api/blob/master/zipkin.proto
+ */
+final class ZipkinProto3Writer {
+  static final int LIST_OF_SPANS_KEY = key(1, 2);
+
+  static final int // Span fields
+    TRACE_ID_KEY = key(1, 2), PARENT_ID_KEY = key(2, 2), ID_KEY = key(3, 2), KIND_KEY = key(4, 0),
+    NAME_KEY = key(5, 2), TIMESTAMP_KEY = key(6, 1), DURATION_KEY = key(7, 0),
+    LOCAL_ENDPOINT_KEY = key(8, 2), REMOTE_ENDPOINT_KEY = key(9, 2), ANNOTATION_KEY = key(10, 2),
+    TAG_KEY = key(11, 2), DEBUG_KEY = key(12, 0), SHARED_KEY = key(13, 0);
+
+  static final int // Endpoint fields
+    SERVICE_NAME_KEY = key(1, 2), IPV4_KEY = key(2, 2), IPV6_KEY = key(3, 2), PORT_KEY = key(4, 0);
+
+  static final int // Annotation and tag entry fields
+    ANNOTATION_TIMESTAMP_KEY = key(1, 1), ANNOTATION_VALUE_KEY = key(2, 2),
+    TAG_KEY_KEY = key(1, 2), TAG_VALUE_KEY = key(2, 2);
+
+  /**
+   * The span is written here first, as its length prefix isn't known until it is written. This
+   * holds a JRE type, so that values left on application threads don't pin this class loader.
+   */
+  static final ThreadLocal<byte[]> SPAN_BUFFER = new ThreadLocal<>();
+
+  static void write(MutableSpan span, WriteBuffer b) {
+    WriteBuffer spanBuffer = MutableSpanBytesEncoder.threadBuffer(SPAN_BUFFER);
+    writeSpanFields(span, spanBuffer);
+    SPAN_BUFFER.set(spanBuffer.array()); // retain growth
+    b.writeByte(LIST_OF_SPANS_KEY);
+    b.writeVarint(spanBuffer.pos());
+    b.write(spanBuffer.array(), 0, spanBuffer.pos());
+  }
+
+  static void writeSpanFields(MutableSpan span, WriteBuffer b) {
+    b.writeByte(TRACE_ID_KEY);
+    if (span.traceIdString != null) {
+      b.writeVarint(span.traceIdString.length() / 2);
+      writeHexAsBytes(span.traceIdString, b);
+    } else {
+      b.writeVarint(span.traceIdHigh != 0L ? 16 : 8);
+      if (span.traceIdHigh != 0L) b.writeLongBe(span.traceIdHigh);
+      b.writeLongBe(span.traceId);
+    }
+    if (span.parentIdString != null || span.parentId != 0L) {
+      b.writeByte(PARENT_ID_KEY);
+      writeId(b, span.parentIdString, span.parentId);
+    }
+    b.writeByte(ID_KEY);
+    writeId(b, span.idString, span.id);
+    if (span.kind() != null) {
+      b.writeByte(KIND_KEY);
+      b.writeVarint(span.kind().ordinal() + 1); // 0 is SPAN_KIND_UNSPECIFIED
+    }
+    writeString(b, NAME_KEY, lowercaseOrNull(span.name()));
+    long startTimestamp = span.startTimestamp(), finishTimestamp = span.finishTimestamp();
+    if (startTimestamp != 0L) {
+      b.writeByte(TIMESTAMP_KEY);
+      b.writeLongLe(startTimestamp);
+      if (finishTimestamp != 0L) {
+        b.writeByte(DURATION_KEY);
+        b.writeVarint(Math.max(finishTimestamp - startTimestamp, 1));
+      }
+    }
+    writeEndpoint(b, LOCAL_ENDPOINT_KEY,
+      lowercaseOrNull(span.localServiceName()), span.localIp(), span.localPort());
+    writeEndpoint(b, REMOTE_ENDPOINT_KEY,
+      lowercaseOrNull(span.remoteServiceName()), span.remoteIp(), span.remotePort());
+    span.forEachAnnotation(Consumer.INSTANCE, b);
+    span.forEachTag(Consumer.INSTANCE, b);
+    if (span.debug()) {
+      b.writeByte(DEBUG_KEY);
+      b.writeByte(1);
+    }
+    if (span.shared()) {
+      b.writeByte(SHARED_KEY);
+      b.writeByte(1);
+    }
+  }
+
+  /** Writes the length-prefixed bytes of the ID string if it was set, or the ID as a long. */
+  static void writeId(WriteBuffer b, @Nullable String idString, long id) {
+    b.writeVarint(8);
+    if (idString != null) {
+      writeHexAsBytes(idString, b);
+    } else {
+      b.writeLongBe(id);
+    }
+  }
+
+  static void writeEndpoint(WriteBuffer b, int key, @Nullable String serviceName,
+    @Nullable String ip, int port) {
+    if (serviceName == null && ip == null) return; // same as ZipkinFinishedSpanHandler
+    IpLiteral.IpFamily family = ip != null ? IpLiteral.detectFamily(ip) : null;
+    int sizeInBytes = 0;
+    if (serviceName != null) sizeInBytes += sizeOfString(serviceName);
+    if (family == IpLiteral.IpFamily.IPv4) {
+      sizeInBytes += 2 + 4;
+    } else if (family == IpLiteral.IpFamily.IPv6) {
+      sizeInBytes += 2 + 16;
+    }
+    if (port != 0) sizeInBytes += 1 + varintSizeInBytes(port);
+
+    b.writeByte(key);
+    b.writeVarint(sizeInBytes);
+    writeString(b, SERVICE_NAME_KEY, serviceName);
+    if (family == IpLiteral.IpFamily.IPv4) {
+      b.writeByte(IPV4_KEY);
+      b.writeVarint(4);
+      writeIpv4Bytes(ip, b);
+    } else if (family == IpLiteral.IpFamily.IPv6) {
+      b.writeByte(IPV6_KEY);
+      b.writeVarint(16);
+      writeIpv6Bytes(ip, b);
+    }
+    if (port != 0) {
+      b.writeByte(PORT_KEY);
+      b.writeVarint(port);
+    }
+  }
+
+  static void writeString(WriteBuffer b, int key, @Nullable String value) {
+    if (value == null) return;
+    b.writeByte(key);
+    b.writeVarint(utf8SizeInBytes(value));
+    b.writeUtf8(value);
+  }
+
+  /** Returns the size of a length-prefixed string field, including its key. */
+  static int sizeOfString(String value) {
+    int sizeInBytes = utf8SizeInBytes(value);
+    return 1 + varintSizeInBytes(sizeInBytes) + sizeInBytes;
+  }
+
+  static void writeHexAsBytes(String hex, WriteBuffer b) {
+    for (int i = 0, length = hex.length(); i < length; i += 2) {
+      b.writeByte((hexValue(hex.charAt(i)) << 4) | hexValue(hex.charAt(i + 1)));
+    }
+  }
+
+  /** Writes an address which passed {@link IpLiteral#detectFamily(String)} as IPv4. */
+  static void writeIpv4Bytes(String ip, WriteBuffer b) {
+    int octet = 0;
+    for (int i = 0, length = ip.length(); i < length; i++) {
+      char c = ip.charAt(i);
+      if (c == '.') {
+        b.writeByte(octet);
+        octet = 0;
+      } else {
+        octet = octet * 10 + (c - '0');
+      }
+    }
+    b.writeByte(octet);
+  }
+
+  /**
+   * Writes an address which passed {@link IpLiteral#detectFamily(String)} as IPv6. Embedded IPv4
+   * addresses are not handled, as {@link IpLiteral#ipOrNull(String)} converts them to IPv4.
+   */
+  static void writeIpv6Bytes(String ip, WriteBuffer b) {
+    int length = ip.length(), compressed = ip.indexOf("::");
+    if (compressed == -1) {
+      writeIpv6Groups(ip, 0, length, b);
+      return;
+    }
+    int headGroups = countIpv6Groups(ip, 0, compressed);
+    int tailGroups = countIpv6Groups(ip, compressed + 2, length);
+    writeIpv6Groups(ip, 0, compressed, b);
+    for (int i = headGroups + tailGroups; i < 8; i++) {
+      b.writeByte(0);
+      b.writeByte(0);
+    }
+    writeIpv6Groups(ip, compressed + 2, length, b);
+  }
+
+  static int countIpv6Groups(String ip, int beginIndex, int endIndex) {
+    if (beginIndex == endIndex) return 0;
+    int groups = 1;
+    for (int i = beginIndex; i < endIndex; i++) {
+      if (ip.charAt(i) == ':') groups++;
+    }
+    return groups;
+  }
+
+  static void writeIpv6Groups(String ip, int beginIndex, int endIndex, WriteBuffer b) {
+    if (beginIndex == endIndex) return;
+    int group = 0;
+    for (int i = beginIndex; i < endIndex; i++) {
+      char c = ip.charAt(i);
+      if (c == ':') {
+        b.writeByte(group >>> 8);
+        b.writeByte(group);
+        group = 0;
+      } else {
+        group = (group << 4) | hexValue(c);
+      }
+    }
+    b.writeByte(group >>> 8);
+    b.writeByte(group);
+  }
+
+  static int hexValue(char c) {
+    if (c >= '0' && c <= '9') return c - '0';
+    if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+    throw new IllegalArgumentException("invalid hex character: " + c);
+  }
+
+  static int key(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
+
+  enum Consumer implements MutableSpan.TagConsumer<WriteBuffer>,
+    MutableSpan.AnnotationConsumer<WriteBuffer> {
+    INSTANCE;
+
+    @Override public void accept(WriteBuffer b, String key, String value) {
+      b.writeByte(TAG_KEY);
+      b.writeVarint(sizeOfString(key) + sizeOfString(value));
+      writeString(b, TAG_KEY_KEY, key);
+      writeString(b, TAG_VALUE_KEY, value);
+    }
+
+    @Override public void accept(WriteBuffer b, long timestamp, String value) {
+      b.writeByte(ANNOTATION_KEY);
+      b.writeVarint(1 + 8 + sizeOfString(value));
+      b.writeByte(ANNOTATION_TIMESTAMP_KEY);
+      b.writeLongLe(timestamp);
+      writeString(b, ANNOTATION_VALUE_KEY, value);
+    }
+  }
+
+  ZipkinProto3Writer() {
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.internal.IpLiteral;
+import brave.internal.Nullable;
+import brave.internal.codec.WriteBuffer;
+import java.util.Locale;
+
+/**
+ * Writes a {@link MutableSpan} in Zipkin V2 JSON format without an intermediate model. The output
+ * is the same as {@code zipkin2.codec.SpanBytesEncoder.JSON_V2} after conversion by {@code
+ * ZipkinFinishedSpanHandler}, except annotations and tags are in insertion order, not sorted.
+ */
+final class ZipkinV2JsonWriter {
+
+  static void write(MutableSpan span, WriteBuffer b) {
+    b.writeAscii("{\"traceId\":\"");
+    if (span.traceIdString != null) {
+      b.writeAscii(span.traceIdString);
+    } else {
+      if (span.traceIdHigh != 0L) b.writeLowerHex(span.traceIdHigh);
+      b.writeLowerHex(span.traceId);
+    }
+    b.writeByte('"');
+    if (span.parentIdString != null || span.parentId != 0L) {
+      b.writeAscii(",\"parentId\":\"");
+      writeId(b, span.parentIdString, span.parentId);
+      b.writeByte('"');
+    }
+    b.writeAscii(",\"id\":\"");
+    writeId(b, span.idString, span.id);
+    b.writeByte('"');
+    if (span.kind() != null) {
+      b.writeAscii(",\"kind\":\"");
+      b.writeAscii(span.kind().toString());
+      b.writeByte('"');
+    }
+    String name = lowercaseOrNull(span.name());
+    if (name != null) {
+      b.writeAscii(",\"name\":\"");
+      b.writeJsonEscaped(name);
+      b.writeByte('"');
+    }
+    long startTimestamp = span.startTimestamp(), finishTimestamp = span.finishTimestamp();
+    if (startTimestamp != 0L) {
+      b.writeAscii(",\"timestamp\":");
+      b.writeAscii(startTimestamp);
+      if (finishTimestamp != 0L) {
+        b.writeAscii(",\"duration\":");
+        b.writeAscii(Math.max(finishTimestamp - startTimestamp, 1));
+      }
+    }
+    String localServiceName = lowercaseOrNull(span.localServiceName()), localIp = span.localIp();
+    if (localServiceName != null || localIp != null) {
+      b.writeAscii(",\"localEndpoint\":");
+      writeEndpoint(b, localServiceName, localIp, span.localPort());
+    }
+    String remoteServiceName = lowercaseOrNull(span.remoteServiceName());
+    String remoteIp = span.remoteIp();
+    if (remoteServiceName != null || remoteIp != null) {
+      b.writeAscii(",\"remoteEndpoint\":");
+      writeEndpoint(b, remoteServiceName, remoteIp, span.remotePort());
+    }
+    if (span.annotationCount() > 0) {
+      b.writeAscii(",\"annotations\":[");
+      span.forEachAnnotation(Consumer.INSTANCE, b);
+      b.writeByte(']');
+    }
+    if (span.tagCount() > 0) {
+      b.writeAscii(",\"tags\":{");
+      span.forEachTag(Consumer.INSTANCE, b);
+      b.writeByte('}');
+    }
+    if (span.debug()) b.writeAscii(",\"debug\":true");
+    if (span.shared()) b.writeAscii(",\"shared\":true");
+    b.writeByte('}');
+  }
+
+  /** Writes the ID string if it was set, or hex of the ID from the trace context. */
+  static void writeId(WriteBuffer b, @Nullable String idString, long id) {
+    if (idString != null) {
+      b.writeAscii(idString);
+    } else {
+      b.writeLowerHex(id);
+    }
+  }
+
+  static void writeEndpoint(WriteBuffer b, @Nullable String serviceName, @Nullable String ip,
+    int port) {
+    b.writeByte('{');
+    boolean wroteField = false;
+    if (serviceName != null) {
+      b.writeAscii("\"serviceName\":\"");
+      b.writeJsonEscaped(serviceName);
+      b.writeByte('"');
+      wroteField = true;
+    }
+    if (ip != null) {
+      if (wroteField) b.writeByte(',');
+      if (IpLiteral.detectFamily(ip) == IpLiteral.IpFamily.IPv4) {
+        b.writeAscii("\"ipv4\":\"");
+      } else {
+        b.writeAscii("\"ipv6\":\"");
+      }
+      b.writeAscii(ip);
+      b.writeByte('"');
+      wroteField = true;
+    }
+    if (port != 0) {
+      if (wroteField) b.writeByte(',');
+      b.writeAscii("\"port\":");
+      b.writeAscii(port);
+    }
+    b.writeByte('}');
+  }
+
+  /** Zipkin lower-cases names, but {@link String#toLowerCase} doesn't allocate when it already is. */
+  @Nullable static String lowercaseOrNull(@Nullable String name) {
+    if (name == null || name.isEmpty()) return null;
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  /** Adds a comma unless this is the first element in the enclosing array or object. */
+  static void maybeWriteComma(WriteBuffer b) {
+    byte last = b.array()[b.pos() - 1];
+    if (last != '[' && last != '{') b.writeByte(',');
+  }
+
+  enum Consumer implements MutableSpan.TagConsumer<WriteBuffer>,
+    MutableSpan.AnnotationConsumer<WriteBuffer> {
+    INSTANCE;
+
+    @Override public void accept(WriteBuffer b, String key, String value) {
+      maybeWriteComma(b);
+      b.writeByte('"');
+      b.writeJsonEscaped(key);
+      b.writeAscii("\":\"");
+      b.writeJsonEscaped(value);
+      b.writeByte('"');
+    }
+
+    @Override public void accept(WriteBuffer b, long timestamp, String value) {
+      maybeWriteComma(b);
+      b.writeAscii("{\"timestamp\":");
+      b.writeAscii(timestamp);
+      b.writeAscii(",\"value\":\"");
+      b.writeJsonEscaped(value);
+      b.writeAscii("\"}");
+    }
+  }
+
+  ZipkinV2JsonWriter() {
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the first of a list of rules that match up to three request attributes exactly, in
+ * constant time. This is used by rule samplers, for example to index rules by message channel
+ * name instead of evaluating them in order.
+ *
+ * <p>Rules that constrain the same attributes share a shape. Each shape holds nested hash maps,
+ * one level per constrained attribute, which lead to the lowest index of the rules with those
+ * values. A lookup visits each shape and returns the lowest index found. There are at most seven
+ * shapes, regardless of the count of rules.
+ */
+public final class ExactMatchIndex {
+  /** Returned when no rule matches */
+  public static final int NO_RULE = Integer.MAX_VALUE;
+
+  public static final class Builder {
+    final List<Shape> shapes = new ArrayList<>();
+
+    /**
+     * Adds a rule at the given index, which is its precedence. A null value means the rule does not
+     * constrain that attribute, but at least one value must be present.
+     */
+    public Builder addRule(@Nullable String a, @Nullable String b, @Nullable String c, int rule) {
+      int mask = (a != null ? 1 : 0) | (b != null ? 2 : 0) | (c != null ? 4 : 0);
+      if (mask == 0) throw new IllegalArgumentException("rule doesn't constrain any attribute");
+      if (rule < 0 || rule == NO_RULE) throw new IllegalArgumentException("invalid rule: " + rule);
+      Shape shape = null;
+      for (Shape next : shapes) {
+        if (next.mask == mask) shape = next;
+      }
+      if (shape == null) shapes.add(shape = new Shape(mask));
+      shape.add(a, b, c, rule);
+      return this;
+    }
+
+    public boolean isEmpty() {
+      return shapes.isEmpty();
+    }
+
+    public ExactMatchIndex build() {
+      return new ExactMatchIndex(this);
+    }
+  }
+
+  final Shape[] shapes; // array avoids iterator overhead at runtime
+
+  ExactMatchIndex(Builder builder) {
+    this.shapes = builder.shapes.toArray(new Shape[0]);
+  }
+
+  /** Returns the lowest index of the rules that match the attributes, or {@link #NO_RULE}. */
+  public int firstRule(@Nullable String a, @Nullable String b, @Nullable String c) {
+    int result = NO_RULE;
+    for (Shape shape : shapes) {
+      int rule = shape.firstRule(a, b, c);
+      if (rule < result) result = rule;
+    }
+    return result;
+  }
+
+  @Override public String toString() {
+    return "ExactMatchIndex{shapes=" + shapes.length + "}";
+  }
+
+  static final class Shape {
+    final int mask;
+    final Node root = new Node();
+
+    Shape(int mask) {
+      this.mask = mask;
+    }
+
+    void add(@Nullable String a, @Nullable String b, @Nullable String c, int rule) {
+      Node node = root;
+      for (String value : new String[] {a, b, c}) {
+        if (value != null) node = node.child(value);
+      }
+      if (rule < node.rule) node.rule = rule;
+    }
+
+    int firstRule(@Nullable String a, @Nullable String b, @Nullable String c) {
+      Node node = root;
+      if ((mask & 1) != 0 && (node = node.get(a)) == null) return NO_RULE;
+      if ((mask & 2) != 0 && (node = node.get(b)) == null) return NO_RULE;
+      if ((mask & 4) != 0 && (node = node.get(c)) == null) return NO_RULE;
+      return node.rule;
+    }
+  }
+
+  /** One level of a shape: the nodes for each value of the next attribute, or a leaf's rule. */
+  static final class Node {
+    final Map<String, Node> children = new HashMap<>();
+    int rule = NO_RULE;
+
+    Node child(String value) {
+      Node result = children.get(value);
+      if (result == null) children.put(value, result = new Node());
+      return result;
+    }
+
+    @Nullable Node get(@Nullable String value) {
+      return value != null ? children.get(value) : null;
+    }
+  }
+}
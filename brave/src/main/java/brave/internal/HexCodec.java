@@ -80,6 +80,15 @@ public final class HexCodec {
       lowerHex + " should be a 1 to 32 character lower-hex string with no prefix");
   }
 
+  /** Returns a 32 character trace ID when {@code high} is set, otherwise 16 characters. */
+  public static String toLowerHex(long high, long low) {
+    if (high == 0L) return toLowerHex(low);
+    char[] data = RecyclableBuffers.parseBuffer();
+    writeHexLong(data, 0, high);
+    writeHexLong(data, 16, low);
+    return new String(data, 0, 32);
+  }
+
   /** Inspired by {@code okio.Buffer.writeLong} */
   public static String toLowerHex(long v) {
     char[] data = RecyclableBuffers.parseBuffer();
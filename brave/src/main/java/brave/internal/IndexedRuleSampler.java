@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal;
+
+import brave.sampler.Matcher;
+import brave.sampler.ParameterizedSampler;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Like {@link ParameterizedSampler}, except runs of consecutive rules that an {@link Indexer}
+ * understands are looked up in an index instead of evaluated in order. Other rules are evaluated by
+ * a {@link ParameterizedSampler} for their run, so the first matching rule always wins.
+ *
+ * <p>This is shared by rule samplers such as {@code HttpRuleSampler}, which differ only in how
+ * they extract attributes from matchers and index them, for example with {@link ExactMatchIndex}.
+ *
+ * @param <R> the request type
+ */
+public final class IndexedRuleSampler<R> implements SamplerFunction<R> {
+  public static <R> Builder<R> newBuilder() {
+    return new Builder<>();
+  }
+
+  /**
+   * Extracts attributes from matchers, and indexes runs of rules by them.
+   *
+   * @param <R> the request type
+   * @param <A> the attributes of a rule, such as the values it requires
+   */
+  public static abstract class Indexer<R, A> {
+    /** Returns the attributes of the matcher, or null if it must be evaluated in order. */
+    @Nullable public abstract A attributes(Matcher<R> matcher);
+
+    /** Returns a new builder for a run of consecutive rules with attributes. */
+    public abstract IndexBuilder<R, A> newIndexBuilder();
+  }
+
+  /** Builds an index over a run of rules, which returns the sampler of the first match. */
+  public static abstract class IndexBuilder<R, A> {
+    /** Call in order of precedence, with the result of {@link Indexer#attributes(Matcher)} */
+    public abstract void addRule(A attributes, Sampler sampler);
+
+    public abstract SamplerFunction<R> build();
+  }
+
+  public static final class Builder<R> {
+    final Map<Matcher<R>, Sampler> rules = new LinkedHashMap<>();
+
+    /** Adds or replaces all rules in this sampler with those of the input. */
+    public Builder<R> putAllRules(IndexedRuleSampler<R> sampler) {
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      for (Map.Entry<Matcher<R>, Sampler> rule : sampler.rules.entrySet()) {
+        putRule(rule.getKey(), rule.getValue());
+      }
+      return this;
+    }
+
+    /** Adds or replaces the sampler of the input matcher. */
+    public Builder<R> putRule(Matcher<R> matcher, Sampler sampler) {
+      if (matcher == null) throw new NullPointerException("matcher == null");
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      rules.put(matcher, sampler);
+      return this;
+    }
+
+    public <A> IndexedRuleSampler<R> build(Indexer<R, A> indexer) {
+      if (indexer == null) throw new NullPointerException("indexer == null");
+      return new IndexedRuleSampler<>(this, indexer);
+    }
+
+    Builder() {
+    }
+  }
+
+  final Map<Matcher<R>, Sampler> rules;
+  final SamplerFunction<R>[] steps; // array avoids iterator overhead at runtime
+
+  <A> IndexedRuleSampler(Builder<R> builder, Indexer<R, A> indexer) {
+    this.rules = new LinkedHashMap<>(builder.rules);
+
+    // Group consecutive rules into either an index or a linear run, preserving the order of rules.
+    List<SamplerFunction<R>> steps = new ArrayList<>();
+    IndexBuilder<R, A> index = null;
+    ParameterizedSampler.Builder<R> linear = null;
+    for (Map.Entry<Matcher<R>, Sampler> rule : rules.entrySet()) {
+      A attributes = indexer.attributes(rule.getKey());
+      if (attributes != null) {
+        if (linear != null) {
+          steps.add(linear.build());
+          linear = null;
+        }
+        if (index == null) index = indexer.newIndexBuilder();
+        index.addRule(attributes, rule.getValue());
+      } else {
+        if (index != null) {
+          steps.add(index.build());
+          index = null;
+        }
+        if (linear == null) linear = ParameterizedSampler.newBuilder();
+        linear.putRule(rule.getKey(), rule.getValue());
+      }
+    }
+    if (linear != null) steps.add(linear.build());
+    if (index != null) steps.add(index.build());
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    SamplerFunction<R>[] array = steps.toArray(new SamplerFunction[0]);
+    this.steps = array;
+  }
+
+  /** Returns the indexes and linear runs of rules, in order of precedence. */
+  public List<SamplerFunction<R>> steps() {
+    return Arrays.asList(steps);
+  }
+
+  @Override public @Nullable Boolean trySample(R request) {
+    if (request == null) return null;
+    for (SamplerFunction<R> step : steps) {
+      Boolean result = step.trySample(request);
+      if (result != null) return result;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal;
+
+import brave.sampler.Matcher;
+import brave.sampler.Matchers;
+
+/**
+ * Escalate internal APIs in {@code brave.sampler} so they can be used from outside packages. The
+ * only implementation is in {@link Matchers}.
+ *
+ * <p>Inspired by {@code okhttp3.internal.Internal}.
+ */
+public abstract class InternalMatchers {
+  /** Null until {@link Matchers} is loaded, which is always the case if it created a matcher. */
+  public static InternalMatchers instance;
+
+  /**
+   * Returns the matchers composed by {@link Matchers#and(Matcher[])}, or null if the input isn't
+   * the result of that. This allows rule samplers to index rules they understand.
+   */
+  @Nullable public abstract <P> Matcher<P>[] andMatchers(Matcher<P> matcher);
+
+  /** Like {@link #andMatchers(Matcher)}, except it is null safe on {@link #instance}. */
+  @Nullable public static <P> Matcher<P>[] and(Matcher<P> matcher) {
+    InternalMatchers instance = InternalMatchers.instance;
+    return instance != null ? instance.andMatchers(matcher) : null;
+  }
+}
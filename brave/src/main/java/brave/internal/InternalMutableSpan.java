@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal;
+
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+
+/**
+ * Escalate internal APIs in {@code brave.handler} so they can be used from outside packages. The
+ * only implementation is in {@link MutableSpan}.
+ *
+ * <p>Inspired by {@code okhttp3.internal.Internal}.
+ */
+public abstract class InternalMutableSpan {
+  public static InternalMutableSpan instance;
+
+  /**
+   * Pre-sizes storage for tags and annotations, so that they don't need to grow while the span is
+   * in-flight.
+   */
+  public abstract void ensureCapacity(MutableSpan span, int tagCapacity, int annotationCapacity);
+
+  /**
+   * Re-initializes a {@link #recycle(MutableSpan, Throwable) recycled} span, the same as {@link
+   * MutableSpan#MutableSpan(TraceContext, MutableSpan)}.
+   */
+  public abstract void initialize(MutableSpan span, TraceContext context, MutableSpan defaults);
+
+  /**
+   * Clears the span, retaining its storage, and increments its {@link #generation(MutableSpan)}.
+   *
+   * @param recycleSite when present, this is used to show where a span was recycled when it is
+   * later used by mistake.
+   */
+  public abstract void recycle(MutableSpan span, @Nullable Throwable recycleSite);
+
+  /** Returns the count of times the span was recycled. */
+  public abstract int generation(MutableSpan span);
+
+  @Nullable public abstract Throwable recycleSite(MutableSpan span);
+}
@@ -45,6 +45,14 @@ public final class JsonEscaper {
     }
   }
 
+  /** Returns the escaped form of the character, or null if it needn't be escaped. */
+  @Nullable public static String jsonEscapeReplacement(char c) {
+    if (c < 0x80) return REPLACEMENT_CHARS[c];
+    if (c == '\u2028') return U2028;
+    if (c == '\u2029') return U2029;
+    return null;
+  }
+
   /*
    * Escaping logic adapted from Moshi JsonUtf8Writer, which we couldn't use due to language level
    *
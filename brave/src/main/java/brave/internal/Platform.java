@@ -36,6 +36,8 @@ public abstract class Platform {
   private static final Platform PLATFORM = findPlatform();
 
   volatile String linkLocalIp;
+  /** Only used for fences on JRE 8 and older. Never written with a non-zero value. */
+  volatile int fence;
 
   /** Guards {@link InetSocketAddress#getHostString()}, as it isn't available until Java 7 */
   @Nullable public abstract String getHostString(InetSocketAddress socket);
@@ -152,6 +154,28 @@ public abstract class Platform {
     };
   }
 
+  /**
+   * Keeps reads and writes before this call from moving after writes that follow it. Use this
+   * before a plain write which publishes data, such as to memory shared with another process.
+   *
+   * <p>On JRE 8 and older, there is no fence API. This falls back to a volatile write, which only
+   * orders plain writes on processors with total store order, such as x86.
+   */
+  public void releaseFence() {
+    fence = 0; // a volatile write
+  }
+
+  /**
+   * Keeps reads and writes after this call from moving before reads that precede it. Use this
+   * after a plain read of a position published with {@link #releaseFence()}.
+   *
+   * <p>On JRE 8 and older, this falls back to a volatile read, with the same caveat as {@link
+   * #releaseFence()}.
+   */
+  public void acquireFence() {
+    int ignored = fence; // a volatile read
+  }
+
   static class Jre9 extends Jre7 {
     @IgnoreJRERequirement @Override public Clock clock() {
       return new Clock() {
@@ -167,6 +191,14 @@ public abstract class Platform {
       };
     }
 
+    @IgnoreJRERequirement @Override public void releaseFence() {
+      java.lang.invoke.VarHandle.releaseFence();
+    }
+
+    @IgnoreJRERequirement @Override public void acquireFence() {
+      java.lang.invoke.VarHandle.acquireFence();
+    }
+
     @Override public String toString() {
       return "Jre9{}";
     }
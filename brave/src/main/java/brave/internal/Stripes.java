@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal;
+
+/** Sizes state that is striped to reduce contention between threads. */
+public final class Stripes {
+  /** More stripes than this rarely reduce contention further, but they do cost memory. */
+  static final int MAX_STRIPE_COUNT = 64;
+
+  /**
+   * Returns a power of two derived from the processor count, so that single core hosts don't
+   * stripe. This is capped at 64.
+   */
+  public static int stripeCount(int availableProcessors) {
+    return Math.min(powerOfTwo(Math.max(1, availableProcessors)), MAX_STRIPE_COUNT);
+  }
+
+  /** Returns the input rounded up to the next power of two. */
+  public static int powerOfTwo(int value) {
+    int result = Integer.highestOneBit(value);
+    return result < value ? result << 1 : result;
+  }
+
+  Stripes() {
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.codec;
+
+import static brave.internal.JsonEscaper.jsonEscapeReplacement;
+
+/**
+ * A growable byte buffer that is intended to be {@linkplain #reset() reset} and re-used, so that
+ * encoding does not allocate once the buffer is large enough.
+ *
+ * <p>Initially, a port of {@code zipkin2.internal.WriteBuffer}, except this grows instead of
+ * requiring the size to be known up-front.
+ */
+public final class WriteBuffer {
+  byte[] buf;
+  int pos;
+
+  public WriteBuffer(int initialCapacity) {
+    if (initialCapacity < 1) throw new IllegalArgumentException("initialCapacity < 1");
+    buf = new byte[initialCapacity];
+  }
+
+  /**
+   * Wraps an array, such as one retained in a thread-local. Read {@link #array()} after writing, as
+   * it is replaced when it grows.
+   */
+  public WriteBuffer(byte[] buf) {
+    if (buf == null) throw new NullPointerException("buf == null");
+    this.buf = buf;
+  }
+
+  /** Returns the underlying array, which is only valid until the next write. */
+  public byte[] array() {
+    return buf;
+  }
+
+  /** Returns the count of bytes written since the last {@link #reset()}. */
+  public int pos() {
+    return pos;
+  }
+
+  /** Discards written bytes, retaining the underlying array. */
+  public void reset() {
+    pos = 0;
+  }
+
+  /** Copies written bytes into a new array. */
+  public byte[] toByteArray() {
+    byte[] result = new byte[pos];
+    System.arraycopy(buf, 0, result, 0, pos);
+    return result;
+  }
+
+  void ensureCapacity(int count) {
+    int required = pos + count;
+    if (required <= buf.length) return;
+    int newLength = Math.max(buf.length << 1, required);
+    byte[] newBuf = new byte[newLength];
+    System.arraycopy(buf, 0, newBuf, 0, pos);
+    buf = newBuf;
+  }
+
+  public void writeByte(int v) {
+    ensureCapacity(1);
+    buf[pos++] = (byte) (v & 0xff);
+  }
+
+  public void write(byte[] v, int offset, int length) {
+    ensureCapacity(length);
+    System.arraycopy(v, offset, buf, pos, length);
+    pos += length;
+  }
+
+  /** Writes each character as a byte. Only use this when the input is known to be ASCII. */
+  public void writeAscii(String v) {
+    int length = v.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      buf[pos++] = (byte) v.charAt(i);
+    }
+  }
+
+  /** Writes the input as a base-10 number without allocating a string. */
+  public void writeAscii(long v) {
+    if (v == Long.MIN_VALUE) {
+      writeAscii("-9223372036854775808");
+      return;
+    }
+    if (v < 0) {
+      writeByte('-');
+      v = -v;
+    }
+    int width = asciiSizeInBytes(v);
+    ensureCapacity(width);
+    int end = pos + width;
+    for (int i = end - 1; i >= pos; i--) {
+      buf[i] = (byte) ('0' + v % 10);
+      v /= 10;
+    }
+    pos = end;
+  }
+
+  /** Writes 16 lower-hex characters, including leading zeros. */
+  public void writeLowerHex(long v) {
+    ensureCapacity(16);
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      buf[pos++] = HEX_DIGITS[(int) ((v >>> shift) & 0xf)];
+    }
+  }
+
+  /** Encodes the input as UTF-8, handling surrogate pairs the same as {@link String#getBytes}. */
+  public void writeUtf8(CharSequence v) {
+    writeUtf8(v, 0, v.length());
+  }
+
+  /** Like {@link #writeUtf8(CharSequence)}, except only the characters in the given range. */
+  public void writeUtf8(CharSequence v, int beginIndex, int endIndex) {
+    ensureCapacity(utf8SizeInBytes(v, beginIndex, endIndex));
+    for (int i = beginIndex; i < endIndex; i++) {
+      char c = v.charAt(i);
+      if (c < 0x80) {
+        buf[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else { // surrogate
+        char low = i + 1 < endIndex ? v.charAt(i + 1) : 0;
+        if (c > Character.MAX_HIGH_SURROGATE || !Character.isLowSurrogate(low)) {
+          buf[pos++] = '?'; // malformed
+          continue;
+        }
+        i++;
+        int codePoint = Character.toCodePoint(c, low);
+        buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+      }
+    }
+  }
+
+  /**
+   * Like {@link brave.internal.JsonEscaper#jsonEscape(CharSequence, StringBuilder)}, except
+   * writes UTF-8 bytes.
+   */
+  public void writeJsonEscaped(CharSequence v) {
+    int length = v.length();
+    if (length == 0) return;
+
+    int afterReplacement = 0;
+    for (int i = 0; i < length; i++) {
+      String replacement = jsonEscapeReplacement(v.charAt(i));
+      if (replacement == null) continue;
+      if (afterReplacement < i) { // write characters between the last replacement and now
+        writeUtf8(v, afterReplacement, i);
+      }
+      writeAscii(replacement);
+      afterReplacement = i + 1;
+    }
+
+    if (afterReplacement < length) {
+      writeUtf8(v, afterReplacement, length);
+    }
+  }
+
+  /** Writes an unsigned protobuf varint. */
+  public void writeVarint(int v) {
+    ensureCapacity(5);
+    while ((v & ~0x7f) != 0) {
+      buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+  }
+
+  /** Writes an unsigned protobuf varint. */
+  public void writeVarint(long v) {
+    ensureCapacity(10);
+    while ((v & ~0x7fL) != 0) {
+      buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+  }
+
+  /** Writes a protobuf fixed64 in little-endian byte order. */
+  public void writeLongLe(long v) {
+    ensureCapacity(8);
+    for (int shift = 0; shift < 64; shift += 8) {
+      buf[pos++] = (byte) ((v >> shift) & 0xff);
+    }
+  }
+
+  /** Writes in big-endian byte order, such as an ID in protobuf bytes fields. */
+  public void writeLongBe(long v) {
+    ensureCapacity(8);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      buf[pos++] = (byte) ((v >> shift) & 0xff);
+    }
+  }
+
+  /** Returns the count of bytes {@link #writeUtf8(CharSequence)} would write. */
+  public static int utf8SizeInBytes(CharSequence v) {
+    return utf8SizeInBytes(v, 0, v.length());
+  }
+
+  static int utf8SizeInBytes(CharSequence v, int beginIndex, int endIndex) {
+    int sizeInBytes = 0;
+    for (int i = beginIndex; i < endIndex; i++) {
+      char c = v.charAt(i);
+      if (c < 0x80) {
+        sizeInBytes++;
+      } else if (c < 0x800) {
+        sizeInBytes += 2;
+      } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+        sizeInBytes += 3;
+      } else {
+        char low = i + 1 < endIndex ? v.charAt(i + 1) : 0;
+        if (c > Character.MAX_HIGH_SURROGATE || !Character.isLowSurrogate(low)) {
+          sizeInBytes++; // malformed is written as '?'
+        } else {
+          i++;
+          sizeInBytes += 4;
+        }
+      }
+    }
+    return sizeInBytes;
+  }
+
+  /** Returns the count of digits in a non-negative base-10 number. */
+  public static int asciiSizeInBytes(long v) {
+    if (v == 0) return 1;
+    int width = 0;
+    while (v != 0) {
+      width++;
+      v /= 10;
+    }
+    return width;
+  }
+
+  /** Returns the count of bytes {@link #writeVarint(int)} would write. */
+  public static int varintSizeInBytes(int v) {
+    if ((v & (0xffffffff << 7)) == 0) return 1;
+    if ((v & (0xffffffff << 14)) == 0) return 2;
+    if ((v & (0xffffffff << 21)) == 0) return 3;
+    if ((v & (0xffffffff << 28)) == 0) return 4;
+    return 5;
+  }
+
+  /** Returns the count of bytes {@link #writeVarint(long)} would write. */
+  public static int varintSizeInBytes(long v) {
+    int sizeInBytes = 1;
+    while ((v & ~0x7fL) != 0) {
+      sizeInBytes++;
+      v >>>= 7;
+    }
+    return sizeInBytes;
+  }
+
+  static final byte[] HEX_DIGITS =
+    {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  @Override public String toString() {
+    return "WriteBuffer{pos=" + pos + ", capacity=" + buf.length + "}";
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.handler.AsyncFinishedSpanHandling.OverflowPolicy;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands spans to a {@link SpanRingBuffer} which is drained by one or more daemon threads. The
+ * delegate is usually the {@link NoopAwareFinishedSpanHandler}, so it is only ever invoked from
+ * worker threads until this is closed.
+ *
+ * <p>Idle workers park until a producer signals them, so they don't wake up while there is nothing
+ * to do. A worker publishes that it is parked before re-checking the buffer, and a producer checks
+ * for parked workers after it enqueues. As both sides use volatile accesses, one of them always
+ * sees the other, so a span isn't left waiting on a parked worker.
+ */
+public final class AsyncFinishedSpanHandler extends FinishedSpanHandler implements Closeable {
+  /** How many times an idle worker yields before it parks. */
+  static final int SPINS_BEFORE_PARK = 100;
+  /** Bounds of the backoff of a caller waiting for room under {@link OverflowPolicy#BLOCK}. */
+  static final long MIN_BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1),
+    MAX_BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  /** Bounds the time spent draining on {@link #close()}. */
+  static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+  final FinishedSpanHandler delegate;
+  final SpanRingBuffer buffer;
+  final OverflowPolicy overflowPolicy;
+  final AtomicLong droppedSpans = new AtomicLong();
+  final Worker[] workers;
+  volatile boolean closed;
+
+  public AsyncFinishedSpanHandler(FinishedSpanHandler delegate, int queueSize, int threads,
+    OverflowPolicy overflowPolicy) {
+    this.delegate = delegate;
+    this.buffer = new SpanRingBuffer(queueSize);
+    this.overflowPolicy = overflowPolicy;
+    this.workers = new Worker[threads];
+    for (int i = 0; i < threads; i++) {
+      Worker worker = new Worker("AsyncFinishedSpanHandler-" + i);
+      worker.setDaemon(true);
+      workers[i] = worker;
+    }
+    for (Thread worker : workers) worker.start();
+  }
+
+  /** Returns the count of spans dropped due to {@link OverflowPolicy}. */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  /** Returns an estimate of spans waiting to be handled by a worker thread. */
+  public int queueDepth() {
+    return buffer.size();
+  }
+
+  /**
+   * Always returns true, as the result of the delegate is not known until later. This is fine as
+   * this handler is always the outermost one.
+   */
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    if (closed) return delegate.handle(context, span); // don't lose data finished late
+    if (!buffer.offer(context, span)) {
+      switch (overflowPolicy) {
+        case DROP_NEWEST:
+          droppedSpans.incrementAndGet();
+          return true;
+        case DROP_OLDEST:
+          do {
+            if (buffer.poll(null)) droppedSpans.incrementAndGet();
+          } while (!buffer.offer(context, span));
+          break;
+        case BLOCK:
+          long parkNanos = MIN_BLOCK_PARK_NANOS;
+          do {
+            if (closed) return delegate.handle(context, span);
+            LockSupport.parkNanos(this, parkNanos);
+            parkNanos = Math.min(parkNanos << 1, MAX_BLOCK_PARK_NANOS);
+          } while (!buffer.offer(context, span));
+          break;
+        default:
+          throw new AssertionError("Bug: unhandled overflow policy " + overflowPolicy);
+      }
+    }
+    afterOffer();
+    return true;
+  }
+
+  /**
+   * Wakes a worker for the span just enqueued. If this handler was closed since the caller checked,
+   * the workers may have already exited, so spans left in the buffer are handled inline instead.
+   * The offer's compare-and-set precedes the read of {@link #closed}, and {@link #close()} writes
+   * it before reading the buffer size, so at least one side sees the span.
+   */
+  void afterOffer() {
+    if (closed) {
+      drain();
+    } else {
+      signalWorker();
+    }
+  }
+
+  /** Handles any spans left in the buffer on the calling thread. */
+  void drain() {
+    while (buffer.size() > 0) {
+      // A false result means a producer claimed a slot, but hasn't yet published its span.
+      if (!buffer.poll(delegate)) Thread.yield();
+    }
+  }
+
+  /** Unparks one parked worker, if any, after a span was enqueued. */
+  void signalWorker() {
+    for (Worker worker : workers) {
+      if (worker.parked) {
+        LockSupport.unpark(worker);
+        return;
+      }
+    }
+  }
+
+  @Override public boolean supportsOrphans() {
+    return delegate.supportsOrphans();
+  }
+
+  @SuppressWarnings("deprecation")
+  @Override public boolean alwaysSampleLocal() {
+    return delegate.alwaysSampleLocal();
+  }
+
+  /**
+   * Stops the worker threads after attempting to drain any pending spans. Once they have all
+   * exited, spans that raced with close are handled on the calling thread.
+   */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    for (Worker worker : workers) LockSupport.unpark(worker);
+    long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+    for (Thread worker : workers) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) return; // workers are still running, so they will drain the buffer
+      try {
+        worker.join(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (worker.isAlive()) return;
+    }
+    drain();
+  }
+
+  @Override public String toString() {
+    return "AsyncFinishedSpanHandler{delegate=" + delegate + ", buffer=" + buffer + "}";
+  }
+
+  final class Worker extends Thread {
+    volatile boolean parked;
+
+    Worker(String name) {
+      super(name);
+    }
+
+    @Override public void run() {
+      int idle = 0;
+      while (true) {
+        if (buffer.poll(delegate)) {
+          idle = 0;
+        } else if (closed) {
+          if (!buffer.poll(delegate)) return; // double-check for a span offered during close
+        } else if (++idle < SPINS_BEFORE_PARK) {
+          Thread.yield();
+        } else {
+          park();
+          idle = 0;
+        }
+      }
+    }
+
+    void park() {
+      parked = true; // read by producers after they enqueue
+      if (buffer.size() == 0 && !closed) LockSupport.park(this);
+      parked = false;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.handler.AsyncFinishedSpanHandling;
+import brave.handler.FinishedSpanHandler;
+
+/**
+ * Escalates internal APIs in {@code brave.handler.AsyncFinishedSpanHandling}, so that they don't
+ * leak this package into its public signatures. The only implementation is in {@link
+ * AsyncFinishedSpanHandling}.
+ *
+ * <p>Inspired by {@code okhttp3.internal.Internal}.
+ */
+public abstract class InternalAsyncFinishedSpanHandling {
+  public static InternalAsyncFinishedSpanHandling instance;
+
+  /**
+   * Returns a handler which enqueues spans for the input, starting its worker threads. The result
+   * should be closed when the tracing component is.
+   *
+   * @throws IllegalStateException if this was already called for the same configuration
+   */
+  public abstract AsyncFinishedSpanHandler decorate(AsyncFinishedSpanHandling asyncHandling,
+    FinishedSpanHandler delegate);
+}
@@ -13,6 +13,7 @@
  */
 package brave.internal.handler;
 
+import brave.TracingMetrics;
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
 import brave.internal.Platform;
@@ -29,6 +30,12 @@ import static brave.internal.Throwables.propagateIfFatal;
  */
 public final class NoopAwareFinishedSpanHandler extends FinishedSpanHandler {
   public static FinishedSpanHandler create(Set<FinishedSpanHandler> handlers, AtomicBoolean noop) {
+    return create(handlers, noop, TracingMetrics.NOOP);
+  }
+
+  /** @param metrics receives handler failures and, unless {@link TracingMetrics#NOOP}, timing */
+  public static FinishedSpanHandler create(Set<FinishedSpanHandler> handlers, AtomicBoolean noop,
+    TracingMetrics metrics) {
     FinishedSpanHandler[] handlersArray = handlers.toArray(new FinishedSpanHandler[0]);
     if (handlersArray.length == 0) return FinishedSpanHandler.NOOP;
 
@@ -44,29 +51,38 @@ public final class NoopAwareFinishedSpanHandler extends FinishedSpanHandler {
     } else {
       handler = new CompositeFinishedSpanHandler(handlersArray);
     }
-    return new NoopAwareFinishedSpanHandler(handler, noop, alwaysSampleLocal, supportsOrphans);
+    return new NoopAwareFinishedSpanHandler(handler, noop, metrics, alwaysSampleLocal,
+      supportsOrphans);
   }
 
   final FinishedSpanHandler delegate;
   final AtomicBoolean noop;
+  final TracingMetrics metrics;
+  final boolean timed;
   boolean alwaysSampleLocal, supportsOrphans;
 
   NoopAwareFinishedSpanHandler(FinishedSpanHandler delegate, AtomicBoolean noop,
-    boolean alwaysSampleLocal, boolean supportsOrphans) {
+    TracingMetrics metrics, boolean alwaysSampleLocal, boolean supportsOrphans) {
     this.delegate = delegate;
     this.noop = noop;
+    this.metrics = metrics;
+    this.timed = metrics != TracingMetrics.NOOP;
     this.alwaysSampleLocal = alwaysSampleLocal;
     this.supportsOrphans = supportsOrphans;
   }
 
   @Override public final boolean handle(TraceContext context, MutableSpan span) {
     if (noop.get()) return false;
+    long startNanos = timed ? System.nanoTime() : 0L;
     try {
       return delegate.handle(context, span);
     } catch (Throwable t) {
       propagateIfFatal(t);
+      metrics.handlerFailed(context, t);
       Platform.get().log("error handling {0}", context, t);
       return false;
+    } finally {
+      if (timed) metrics.spanHandled(System.nanoTime() - startNanos);
     }
   }
 
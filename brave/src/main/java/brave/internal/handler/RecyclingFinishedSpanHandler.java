@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.internal.recorder.PendingSpans;
+import brave.propagation.TraceContext;
+
+/**
+ * Recycles the span once the delegate completes. This must wrap the {@link
+ * NoopAwareFinishedSpanHandler}, so that it is invoked even if a handler fails. When handling is
+ * asynchronous, this must be inside {@link AsyncFinishedSpanHandler}.
+ */
+public final class RecyclingFinishedSpanHandler extends FinishedSpanHandler {
+  final FinishedSpanHandler delegate;
+  final PendingSpans pendingSpans;
+
+  public RecyclingFinishedSpanHandler(FinishedSpanHandler delegate, PendingSpans pendingSpans) {
+    this.delegate = delegate;
+    this.pendingSpans = pendingSpans;
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    try {
+      return delegate.handle(context, span);
+    } finally {
+      pendingSpans.release(span);
+    }
+  }
+
+  @Override public boolean supportsOrphans() {
+    return delegate.supportsOrphans();
+  }
+
+  @Override public boolean alwaysSampleLocal() {
+    return delegate.alwaysSampleLocal();
+  }
+
+  @Override public String toString() {
+    return delegate.toString();
+  }
+}
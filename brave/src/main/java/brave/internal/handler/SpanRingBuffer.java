@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue of {@code (context, span)} pairs.
+ *
+ * <p>This is a port of Dmitry Vyukov's bounded MPMC queue. Each slot has a sequence number which
+ * tells producers and consumers whether it is theirs to use. Pairs are held in parallel arrays to
+ * avoid allocating a holder object per span.
+ *
+ * <p>See http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+ */
+public final class SpanRingBuffer {
+  final int mask;
+  final AtomicLongArray sequences;
+  final TraceContext[] contexts;
+  final MutableSpan[] spans;
+  final AtomicLong enqueuePosition = new AtomicLong(), dequeuePosition = new AtomicLong();
+
+  /** @param capacity rounded up to the next power of two */
+  public SpanRingBuffer(int capacity) {
+    if (capacity < 1) throw new IllegalArgumentException("capacity < 1");
+    int size = capacity == 1 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+    if (size < 0) throw new IllegalArgumentException("capacity too large: " + capacity);
+    this.mask = size - 1;
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) sequences.set(i, i);
+    this.contexts = new TraceContext[size];
+    this.spans = new MutableSpan[size];
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /** Returns an estimate of how many spans are waiting to be handled. */
+  public int size() {
+    long size = enqueuePosition.get() - dequeuePosition.get();
+    return size < 0 ? 0 : (int) Math.min(size, capacity());
+  }
+
+  /** Returns false if the buffer was full. */
+  public boolean offer(TraceContext context, MutableSpan span) {
+    long position = enqueuePosition.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (enqueuePosition.compareAndSet(position, position + 1)) break;
+        position = enqueuePosition.get();
+      } else if (difference < 0) {
+        return false; // full
+      } else { // another producer won this slot
+        position = enqueuePosition.get();
+      }
+    }
+    contexts[index] = context;
+    spans[index] = span;
+    sequences.lazySet(index, position + 1); // publishes the plain writes above
+    return true;
+  }
+
+  /**
+   * Removes the oldest pair, passing it to the handler, if present.
+   *
+   * @param handler {@code null} drops the pair
+   * @return false if the buffer was empty
+   */
+  public boolean poll(@Nullable FinishedSpanHandler handler) {
+    long position = dequeuePosition.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (dequeuePosition.compareAndSet(position, position + 1)) break;
+        position = dequeuePosition.get();
+      } else if (difference < 0) {
+        return false; // empty
+      } else { // another consumer won this slot
+        position = dequeuePosition.get();
+      }
+    }
+    TraceContext context = contexts[index];
+    MutableSpan span = spans[index];
+    contexts[index] = null;
+    spans[index] = null;
+    sequences.lazySet(index, position + mask + 1); // release the slot to producers
+    if (handler != null) handler.handle(context, span);
+    return true;
+  }
+
+  @Override public String toString() {
+    return "SpanRingBuffer{capacity=" + capacity() + ", size=" + size() + "}";
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.handler.MutableSpan;
+import brave.internal.InternalMutableSpan;
+import brave.propagation.TraceContext;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of {@link MutableSpan} instances, including their tag and annotation storage.
+ *
+ * <p>Slots are claimed with compare-and-set. Each thread starts probing at a different stripe of
+ * slots, so threads rarely contend. As spans are often released on a different thread than the
+ * one that acquired them, for example with asynchronous handling, a thread will probe beyond its
+ * stripe before giving up.
+ */
+public final class MutableSpanPool {
+  /** Count of slots probed before allocating or dropping a span. */
+  static final int MAX_PROBES = 8;
+
+  final AtomicReferenceArray<MutableSpan> slots;
+  final int mask;
+  final boolean detectUseAfterRecycle;
+
+  /** @param capacity rounded up to the next power of two */
+  public MutableSpanPool(int capacity, boolean detectUseAfterRecycle) {
+    if (capacity < 1) throw new IllegalArgumentException("capacity < 1");
+    int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    if (size < 0) throw new IllegalArgumentException("capacity too large: " + capacity);
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.detectUseAfterRecycle = detectUseAfterRecycle;
+  }
+
+  /**
+   * Returns a span initialized the same as {@link MutableSpan#MutableSpan(TraceContext,
+   * MutableSpan)}, recycled if possible.
+   */
+  public MutableSpan acquire(TraceContext context, MutableSpan defaults) {
+    int start = stripe();
+    for (int i = 0, probes = Math.min(MAX_PROBES, slots.length()); i < probes; i++) {
+      int index = (start + i) & mask;
+      MutableSpan span = slots.get(index);
+      if (span != null && slots.compareAndSet(index, span, null)) {
+        InternalMutableSpan.instance.initialize(span, context, defaults);
+        return span;
+      }
+    }
+    return new MutableSpan(context, defaults);
+  }
+
+  /**
+   * Clears the span and makes it available to {@link #acquire(TraceContext, MutableSpan)}. The
+   * span is left for garbage collection if the pool is full.
+   */
+  public void release(MutableSpan span) {
+    Throwable recycleSite = detectUseAfterRecycle
+      ? new Throwable("Thread " + Thread.currentThread().getName() + " recycled span here")
+      : null;
+    InternalMutableSpan.instance.recycle(span, recycleSite);
+    int start = stripe();
+    for (int i = 0, probes = Math.min(MAX_PROBES, slots.length()); i < probes; i++) {
+      int index = (start + i) & mask;
+      if (slots.get(index) == null && slots.compareAndSet(index, null, span)) return;
+    }
+  }
+
+  /**
+   * Returns true if the span was recycled since the given generation, which means writes to it
+   * should be dropped.
+   *
+   * @throws IllegalStateException if the span was recycled and detection is enabled
+   */
+  public boolean isRecycled(TraceContext context, MutableSpan span, int generation) {
+    if (InternalMutableSpan.instance.generation(span) == generation) return false;
+    if (!detectUseAfterRecycle) return true;
+    Throwable recycleSite = InternalMutableSpan.instance.recycleSite(span);
+    throw new IllegalStateException(
+      "Span " + context + " was modified after it was finished and recycled", recycleSite);
+  }
+
+  /** Spreads threads across stripes of {@link #MAX_PROBES} slots. */
+  int stripe() {
+    return (int) Thread.currentThread().getId() * MAX_PROBES & mask;
+  }
+
+  @Override public String toString() {
+    return "MutableSpanPool{capacity=" + slots.length() + "}";
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.internal.Nullable;
+import brave.internal.Platform;
+import java.io.Closeable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static brave.internal.Throwables.propagateIfFatal;
+
+/**
+ * Reports spans orphaned by garbage collection off the request path. Unless an executor is
+ * supplied, this starts a daemon thread which blocks until the garbage collector enqueues an
+ * orphan.
+ *
+ * <p>When there's a max span lifetime, this also flushes spans which exceeded it. The dedicated
+ * thread wakes up at least each tick of the {@link TimingWheel} to do this.
+ */
+public final class OrphanReaper implements Closeable {
+  final PendingSpans pendingSpans;
+  final long intervalMillis;
+  @Nullable final TimingWheel timingWheel;
+  @Nullable final Thread thread;
+  @Nullable final ScheduledFuture<?> scheduled;
+  volatile boolean closed;
+
+  /**
+   * @param executor when present, {@link PendingSpans#reapOrphans()} is scheduled on it instead of
+   * a dedicated thread. The executor is not shutdown on {@link #close()}.
+   * @param intervalMillis how often the executor is scheduled, or how often the dedicated thread
+   * checks if it was closed
+   * @param maxSpanLifetimeNanos zero means spans are only flushed when orphaned
+   */
+  public OrphanReaper(PendingSpans pendingSpans, @Nullable ScheduledExecutorService executor,
+    long intervalMillis, long maxSpanLifetimeNanos) {
+    if (pendingSpans.reapInBackground) {
+      throw new IllegalStateException("pendingSpans already has an OrphanReaper");
+    }
+    this.pendingSpans = pendingSpans;
+    if (maxSpanLifetimeNanos > 0L) {
+      timingWheel = new TimingWheel(maxSpanLifetimeNanos, System.nanoTime(),
+        pendingSpans.stripes.length);
+      long tickMillis = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(timingWheel.tickNanos));
+      intervalMillis = Math.min(intervalMillis, tickMillis);
+    } else {
+      timingWheel = null;
+    }
+    this.intervalMillis = intervalMillis;
+    if (executor != null) {
+      thread = null;
+      scheduled = executor.scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          reapOrphans();
+        }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      scheduled = null;
+      thread = new Thread(new Runnable() {
+        @Override public void run() {
+          awaitOrphans();
+        }
+      }, "OrphanReaper");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    pendingSpans.timingWheel = timingWheel;
+    pendingSpans.reapInBackground = true;
+  }
+
+  /** Returns an estimate of how many orphaned spans have yet to be reported. */
+  public int orphanBacklog() {
+    return pendingSpans.orphanBacklog();
+  }
+
+  void reapOrphans() {
+    try {
+      pendingSpans.reapOrphans();
+      pendingSpans.flushExpired(System.nanoTime());
+    } catch (Throwable t) {
+      propagateIfFatal(t);
+      Platform.get().log("error reaping orphans from {0}", pendingSpans, t);
+    }
+  }
+
+  void awaitOrphans() {
+    while (!closed) {
+      try {
+        pendingSpans.awaitOrphans(intervalMillis, TimeUnit.MILLISECONDS);
+        pendingSpans.flushExpired(System.nanoTime());
+      } catch (InterruptedException e) {
+        return; // interrupted by close
+      } catch (Throwable t) {
+        propagateIfFatal(t);
+        Platform.get().log("error reaping orphans from {0}", pendingSpans, t);
+      }
+    }
+  }
+
+  /** Stops reaping in the background. Any remaining orphans are reported by callers. */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    if (scheduled != null) scheduled.cancel(false);
+    if (thread != null) thread.interrupt();
+    pendingSpans.reapInBackground = false;
+    pendingSpans.timingWheel = null;
+  }
+
+  @Override public String toString() {
+    return "OrphanReaper{intervalMillis=" + intervalMillis + ", timingWheel=" + timingWheel + "}";
+  }
+}
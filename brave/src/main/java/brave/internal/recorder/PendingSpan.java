@@ -15,10 +15,12 @@ package brave.internal.recorder;
 
 import brave.Clock;
 import brave.handler.MutableSpan;
+import brave.internal.InternalMutableSpan;
 import brave.internal.InternalPropagation;
 import brave.internal.Nullable;
 import brave.propagation.TraceContext;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is the value of a map entry in {@link PendingSpans}, whose key is a weak reference to {@link
@@ -32,12 +34,24 @@ public final class PendingSpan extends WeakReference<TraceContext> {
   final MutableSpan span;
   final TickClock clock;
   final TraceContext backupContext; // only used on abandon
+  final int generation;
+  /** Count of spans in the local root, shared with its children. Null unless limits are set. */
+  @Nullable final AtomicInteger localRootSpanCount;
+  /** Set before this is published, if spans have a max lifetime. */
+  @Nullable TimingWheel.Deadline deadline;
 
   PendingSpan(TraceContext context, MutableSpan span, TickClock clock) {
+    this(context, span, clock, null);
+  }
+
+  PendingSpan(TraceContext context, MutableSpan span, TickClock clock,
+    @Nullable AtomicInteger localRootSpanCount) {
     super(context);
     this.span = span;
     this.clock = clock;
+    this.localRootSpanCount = localRootSpanCount;
     this.backupContext = InternalPropagation.instance.shallowCopy(context);
+    this.generation = InternalMutableSpan.instance.generation(span);
   }
 
   /** Returns the context for this span unless it was cleared due to GC. */
@@ -50,6 +64,16 @@ public final class PendingSpan extends WeakReference<TraceContext> {
     return span;
   }
 
+  /**
+   * Returns the generation of {@link #state()} when this was created, used to detect writes after
+   * it was recycled.
+   *
+   * @see PendingSpans#isRecycled(TraceContext, MutableSpan, int)
+   */
+  public int generation() {
+    return generation;
+  }
+
   /** Returns a clock that ensures startTimestamp consistency across the trace */
   public Clock clock() {
     return clock;
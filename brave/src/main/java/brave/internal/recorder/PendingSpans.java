@@ -15,39 +15,103 @@ package brave.internal.recorder;
 
 import brave.Clock;
 import brave.Tracer;
+import brave.TracingMetrics;
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
+import brave.internal.InternalMutableSpan;
 import brave.internal.Nullable;
 import brave.internal.Platform;
+import brave.internal.Stripes;
 import brave.internal.weaklockfree.WeakConcurrentMap;
 import brave.propagation.TraceContext;
 import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Similar to Finagle's deadline span map, except this is GC pressure as opposed to timeout driven.
  * This means there's no bookkeeping thread required in order to flush orphaned spans. Work here is
  * stolen from callers, though. For example, a call to {@link Tracer#nextSpan()} implicitly performs
- * a check for orphans, invoking any handler that applies.
+ * a check for orphans, invoking any handler that applies. While an {@link OrphanReaper} is running,
+ * callers skip this work as the reaper does it instead.
  *
  * <p>Spans are weakly referenced by their owning context. When the keys are collected, they are
  * transferred to a queue, waiting to be reported. A call to modify any span will implicitly flush
  * orphans to Zipkin. Spans in this state will have a "brave.flush" annotation added to them.
+ *
+ * <h3>Striping</h3>
+ * Entries are spread across {@link #STRIPE_COUNT stripes} by the hash code of their context. Each
+ * stripe has its own map and reference queue, so that threads working on different traces don't
+ * contend on the same queue lock when orphans are enqueued or polled. A traced operation only
+ * checks the stripe of the context it works on for orphans.
  */
-public final class PendingSpans extends WeakConcurrentMap<TraceContext, PendingSpan> {
+public final class PendingSpans {
+  static final int MAX_CAPACITY = 32;
+  /** A power of two derived from the processor count, so that single core hosts don't stripe. */
+  static final int STRIPE_COUNT = Stripes.stripeCount(Runtime.getRuntime().availableProcessors());
+
   @Nullable final WeakConcurrentMap<MutableSpan, Throwable> spanToCaller;
   final MutableSpan defaultSpan;
   final Clock clock;
   final FinishedSpanHandler orphanedSpanHandler;
   final AtomicBoolean noop;
+  @Nullable final MutableSpanPool pool;
+  @Nullable final SpanLimiter limiter;
+  final TracingMetrics metrics;
+  final Stripe[] stripes;
+  final int stripeShift;
+  int nextStripe; // only accessed by the OrphanReaper
+  /** Set by {@link OrphanReaper} while it is running. */
+  volatile boolean reapInBackground;
+  /** Set by {@link OrphanReaper} while it is running, if spans have a max lifetime. */
+  @Nullable volatile TimingWheel timingWheel;
+  /** Only accessed by the {@link OrphanReaper} */
+  final ArrayList<PendingSpan> expired = new ArrayList<>();
+
+  /**
+   * High-water marks of tags and annotations in spans finished so far, used to size storage of new
+   * spans. These are written without synchronization as they are only hints.
+   */
+  int tagCapacity, annotationCapacity;
 
+  /**
+   * @param pool when present, spans are recycled after they are handled or abandoned
+   * @param limiter when present, spans are limited in count, tags and annotations
+   * @param metrics receives span lifecycle events
+   */
   public PendingSpans(MutableSpan defaultSpan, Clock clock, FinishedSpanHandler orphanedSpanHandler,
-    boolean trackOrphans, AtomicBoolean noop) {
+    boolean trackOrphans, AtomicBoolean noop, @Nullable MutableSpanPool pool,
+    @Nullable SpanLimiter limiter, TracingMetrics metrics) {
+    this(defaultSpan, clock, orphanedSpanHandler, trackOrphans, noop, pool, limiter, metrics,
+      STRIPE_COUNT);
+  }
+
+  PendingSpans(MutableSpan defaultSpan, Clock clock, FinishedSpanHandler orphanedSpanHandler,
+    boolean trackOrphans, AtomicBoolean noop, @Nullable MutableSpanPool pool,
+    @Nullable SpanLimiter limiter, TracingMetrics metrics, int stripeCount) {
     this.defaultSpan = defaultSpan;
     this.clock = clock;
     this.orphanedSpanHandler = orphanedSpanHandler;
     this.spanToCaller = trackOrphans ? new WeakConcurrentMap<>() : null;
     this.noop = noop;
+    this.pool = pool;
+    this.limiter = limiter;
+    this.metrics = metrics;
+    this.stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) stripes[i] = new Stripe();
+    this.stripeShift = 32 - Integer.numberOfTrailingZeros(stripeCount);
+  }
+
+  Stripe stripe(TraceContext context) {
+    return stripes[stripeIndex(context)];
+  }
+
+  int stripeIndex(TraceContext context) {
+    if (stripeShift == 32) return 0; // as x >>> 32 == x
+    // Take the high bits of a multiplicative hash, as each stripe's map uses the low bits.
+    return (context.hashCode() * 0x9E3779B9) >>> stripeShift;
   }
 
   /**
@@ -58,16 +122,31 @@ public final class PendingSpans extends WeakConcurrentMap<TraceContext, PendingS
    * a new local root.
    */
   @Nullable public PendingSpan get(TraceContext context) {
-    return getIfPresent(context);
+    return stripe(context).getIfPresent(context);
   }
 
-  public PendingSpan getOrCreate(
+  /**
+   * Gets a pending span, or creates one.
+   *
+   * @return null if the span would exceed the limit of spans in its local root
+   */
+  @Nullable public PendingSpan getOrCreate(
     @Nullable TraceContext parent, TraceContext context, boolean start) {
     PendingSpan result = get(context);
     if (result != null) return result;
 
-    MutableSpan span = new MutableSpan(context, defaultSpan);
     PendingSpan parentSpan = parent != null ? get(parent) : null;
+    AtomicInteger localRootSpanCount = null;
+    if (limiter != null) {
+      localRootSpanCount = limiter.countSpan(context, parentSpan);
+      if (localRootSpanCount == null) return null;
+    }
+
+    MutableSpan span =
+      pool != null ? pool.acquire(context, defaultSpan) : new MutableSpan(context, defaultSpan);
+    if (tagCapacity > 0 || annotationCapacity > 0) {
+      InternalMutableSpan.instance.ensureCapacity(span, tagCapacity, annotationCapacity);
+    }
 
     // save overhead calculating time if the parent is in-progress (usually is)
     TickClock clock;
@@ -80,10 +159,21 @@ public final class PendingSpans extends WeakConcurrentMap<TraceContext, PendingS
       if (start) span.startTimestamp(currentTimeMicroseconds);
     }
 
-    PendingSpan newSpan = new PendingSpan(context, span, clock);
+    PendingSpan newSpan = new PendingSpan(context, span, clock, localRootSpanCount);
+    // Schedule before publishing, so that a concurrent finish can cancel the deadline
+    int stripe = stripeIndex(context);
+    TimingWheel timingWheel = this.timingWheel;
+    if (timingWheel != null) {
+      newSpan.deadline = timingWheel.add(stripe, newSpan, System.nanoTime());
+    }
     // Probably absent because we already checked with get() at the entrance of this method
-    PendingSpan previousSpan = putIfProbablyAbsent(context, newSpan);
-    if (previousSpan != null) return previousSpan; // lost race
+    PendingSpan previousSpan = stripes[stripe].putIfProbablyAbsent(context, newSpan);
+    if (previousSpan != null) { // lost race
+      cancelDeadline(newSpan);
+      if (pool != null) pool.release(span);
+      return previousSpan;
+    }
+    metrics.spanStarted();
 
     // We've now allocated a new trace context.
     assert parent != null || context.isLocalRoot() :
@@ -98,15 +188,33 @@ public final class PendingSpans extends WeakConcurrentMap<TraceContext, PendingS
     return newSpan;
   }
 
+  /** Removes the span associated with the context and returns it or {@code null}. */
+  @Nullable PendingSpan remove(TraceContext context) {
+    PendingSpan result = stripe(context).remove(context);
+    if (result != null) cancelDeadline(result);
+    return result;
+  }
+
+  /** Lets the timing wheel drop the span before its deadline, as it is no longer pending. */
+  static void cancelDeadline(PendingSpan span) {
+    TimingWheel.Deadline deadline = span.deadline;
+    if (deadline != null) deadline.cancel();
+  }
+
   /** @see brave.Span#abandon() */
   public void abandon(TraceContext context) {
-    remove(context);
+    PendingSpan last = remove(context);
+    if (last == null) return;
+    metrics.spanAbandoned();
+    if (pool != null) release(last.span);
   }
 
   /** @see brave.Span#flush() */
   public boolean flush(TraceContext context) {
     PendingSpan last = remove(context);
     if (last == null) return false;
+    metrics.spanFinished();
+    updateCapacity(last.span);
     return true;
   }
 
@@ -121,36 +229,211 @@ public final class PendingSpans extends WeakConcurrentMap<TraceContext, PendingS
     PendingSpan last = remove(context);
     if (last == null) return false;
     last.span.finishTimestamp(timestamp != 0L ? timestamp : last.clock.currentTimeMicroseconds());
+    metrics.spanFinished();
+    updateCapacity(last.span);
     return true;
   }
 
-  /** Reports spans orphaned by garbage collection. */
-  @Override protected void expungeStaleEntries() {
-    Reference<?> reference;
-    // This is called on critical path of unrelated traced operations. If we have orphaned spans, be
-    // careful to not penalize the performance of the caller. It is better to cache time when
-    // flushing a span than hurt performance of unrelated operations by calling
-    // currentTimeMicroseconds N times
+  /**
+   * Recycles a span, if pooling is enabled. This is called after the span was handled, or when it
+   * was abandoned.
+   */
+  public void release(MutableSpan span) {
+    if (pool == null) return;
+    if (spanToCaller != null) spanToCaller.remove(span);
+    pool.release(span);
+  }
+
+  /**
+   * Adds a tag to a pending span, unless that would exceed a limit. Call while holding the lock on
+   * the span.
+   *
+   * @see brave.Span#tag(String, String)
+   */
+  public void tag(MutableSpan span, String key, String value) {
+    if (limiter != null) {
+      limiter.tag(span, key, value);
+    } else {
+      span.tag(key, value);
+    }
+  }
+
+  /**
+   * Adds an annotation to a pending span, unless that would exceed a limit. Call while holding the
+   * lock on the span.
+   *
+   * @see brave.Span#annotate(long, String)
+   */
+  public void annotate(MutableSpan span, long timestamp, String value) {
+    if (limiter != null) {
+      limiter.annotate(span, timestamp, value);
+    } else {
+      span.annotate(timestamp, value);
+    }
+  }
+
+  /**
+   * Returns true if writes to the span should be dropped, because it was recycled since the
+   * generation was read.
+   *
+   * @throws IllegalStateException if the span was recycled and detection is enabled
+   * @see PendingSpan#generation()
+   */
+  public boolean isRecycled(TraceContext context, MutableSpan span, int generation) {
+    return pool != null && pool.isRecycled(context, span, generation);
+  }
+
+  /**
+   * Returns true if another thread may copy or recycle a span while it is in progress. When false,
+   * single-threaded callers such as {@code ScopedSpan} can write to the span without locking it.
+   */
+  public boolean sharesInProgressSpans() {
+    return pool != null || timingWheel != null;
+  }
+
+  /** Raises capacity hints to fit the span, up to a limit so that outliers don't waste memory. */
+  void updateCapacity(MutableSpan span) {
+    int tagCount = span.tagCount(), annotationCount = span.annotationCount();
+    if (tagCount > tagCapacity) tagCapacity = Math.min(tagCount, MAX_CAPACITY);
+    if (annotationCount > annotationCapacity) {
+      annotationCapacity = Math.min(annotationCount, MAX_CAPACITY);
+    }
+  }
+
+  /** Reports spans orphaned by garbage collection, unless that's done in the background. */
+  void expungeStaleEntries() {
+    for (Stripe stripe : stripes) stripe.expungeStaleEntries();
+  }
+
+  /** Reports any spans orphaned by garbage collection without blocking. */
+  public void reapOrphans() {
+    for (Stripe stripe : stripes) stripe.reapOrphans(stripe.poll());
+  }
+
+  /**
+   * Waits up to the timeout for a span to be orphaned by garbage collection, then reports it along
+   * with any others already orphaned.
+   *
+   * @return false if the timeout elapsed before any span was orphaned
+   */
+  public boolean awaitOrphans(long timeout, TimeUnit unit) throws InterruptedException {
+    // A thread can only block on one queue, so take turns waiting on each stripe.
+    long timeoutMillis = Math.max(1L, unit.toMillis(timeout) / stripes.length);
+    for (int i = 0; i < stripes.length; i++) {
+      Stripe stripe = stripes[nextStripe++ & (stripes.length - 1)];
+      Reference<?> reference = stripe.remove(timeoutMillis);
+      if (reference == null) continue;
+      stripe.reapOrphans(reference);
+      reapOrphans(); // others may have been orphaned by the same collection
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns an estimate of how many spans are pending, including orphans not yet reported. This is
+   * cheap enough to poll as a gauge.
+   */
+  public int size() {
+    int result = 0;
+    for (Stripe stripe : stripes) result += stripe.size();
+    return result;
+  }
+
+  /**
+   * Returns an estimate of how many orphaned spans have yet to be reported. This iterates all
+   * pending spans, so should not be called on a hot path.
+   */
+  public int orphanBacklog() {
+    int result = 0;
+    for (Stripe stripe : stripes) result += stripe.staleEntryCount();
+    return result;
+  }
+
+  /**
+   * Flushes copies of spans which outlived their deadline, adding the annotation "brave.timeout".
+   * This bounds memory used by spans whose context was leaked, but is still reachable.
+   *
+   * <p>This must only be called by one thread at a time.
+   */
+  void flushExpired(long nowNanos) {
+    TimingWheel timingWheel = this.timingWheel;
+    if (timingWheel == null) return;
+    timingWheel.expire(nowNanos, expired);
+    if (expired.isEmpty()) return;
+
     long flushTime = 0L;
     boolean noop = orphanedSpanHandler == FinishedSpanHandler.NOOP || this.noop.get();
-    while ((reference = poll()) != null) {
-      PendingSpan value = removeStaleEntry(reference);
-      if (noop || value == null) continue;
-      assert value.context() == null : "unexpected for the weak referent to be present after GC!";
+    for (int i = 0, length = expired.size(); i < length; i++) {
+      PendingSpan value = expired.get(i);
+      TraceContext context = value.context();
+      // Skip if finished or orphaned. Orphans are reported on the normal path.
+      if (context == null || !stripe(context).remove(context, value)) continue;
+      metrics.spanOrphaned();
+      if (noop) continue;
       if (flushTime == 0L) flushTime = clock.currentTimeMicroseconds();
 
-      Throwable caller = spanToCaller != null ? spanToCaller.getIfPresent(value.span) : null;
-      TraceContext context = value.backupContext;
-
-      if (caller != null) {
-        String message = value.span.equals(new MutableSpan(context, null))
-          ? "Span " + context + " was allocated but never used"
-          : "Span " + context + " neither finished nor flushed before GC";
-        Platform.get().log(message, caller);
+      // The context is still reachable, so the application may be writing to the span. Copy it
+      // under the same lock as RealSpan, and leave the span out of the pool as it is still in use.
+      MutableSpan span;
+      synchronized (value.span) {
+        span = new MutableSpan(value.span);
       }
+      span.annotate(flushTime, "brave.timeout");
+      orphanedSpanHandler.handle(context, span);
+    }
+    expired.clear();
+  }
+
+  @Override public String toString() {
+    StringBuilder result = new StringBuilder("PendingSpans[");
+    for (Stripe stripe : stripes) {
+      String keys = stripe.toString();
+      keys = keys.substring(keys.indexOf('[') + 1, keys.length() - 1);
+      if (keys.isEmpty()) continue;
+      if (result.length() > "PendingSpans[".length()) result.append(", ");
+      result.append(keys);
+    }
+    return result.append(']').toString();
+  }
 
-      value.span.annotate(flushTime, "brave.flush");
-      orphanedSpanHandler.handle(context, value.span);
+  final class Stripe extends WeakConcurrentMap<TraceContext, PendingSpan> {
+    @Override protected void expungeStaleEntries() {
+      if (!reapInBackground) reapOrphans(poll());
+    }
+
+    void reapOrphans(@Nullable Reference<?> reference) {
+      // This is called on critical path of unrelated traced operations. If we have orphaned spans,
+      // be careful to not penalize the performance of the caller. It is better to cache time when
+      // flushing a span than hurt performance of unrelated operations by calling
+      // currentTimeMicroseconds N times
+      long flushTime = 0L;
+      boolean noop =
+        orphanedSpanHandler == FinishedSpanHandler.NOOP || PendingSpans.this.noop.get();
+      for (; reference != null; reference = poll()) {
+        PendingSpan value = removeStaleEntry(reference);
+        if (value != null) {
+          cancelDeadline(value);
+          metrics.spanOrphaned();
+        }
+        if (noop || value == null) continue;
+        assert value.context() == null : "unexpected for the weak referent to be present after GC";
+        if (flushTime == 0L) flushTime = clock.currentTimeMicroseconds();
+
+        Throwable caller = spanToCaller != null ? spanToCaller.getIfPresent(value.span) : null;
+        TraceContext context = value.backupContext;
+
+        if (caller != null) {
+          String message = value.span.equals(new MutableSpan(context, null))
+            ? "Span " + context + " was allocated but never used"
+            : "Span " + context + " neither finished nor flushed before GC";
+          Platform.get().log(message, caller);
+        }
+
+        value.span.annotate(flushTime, "brave.flush");
+        orphanedSpanHandler.handle(context, value.span);
+        release(value.span);
+      }
     }
   }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.handler.MutableSpan;
+import brave.internal.InternalPropagation;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static brave.internal.Lists.concatImmutableLists;
+
+/**
+ * Enforces {@code brave.SpanLimits} on spans recorded by {@link PendingSpans}.
+ *
+ * <p>Tag and annotation methods must be called while holding the lock on the span.
+ */
+public final class SpanLimiter {
+  /**
+   * Added to the {@linkplain TraceContext#extra() extra} of a span over the limit of its local
+   * root. Children inherit extra, so they are also over the limit, even though there is no pending
+   * span to count them against.
+   */
+  enum OverLimit {
+    INSTANCE
+  }
+
+  static final List<Object> OVER_LIMIT = Collections.<Object>singletonList(OverLimit.INSTANCE);
+
+  /**
+   * Returns a copy of the context marked so that spans created from it are over the limit, or the
+   * input if it is already marked.
+   */
+  public static TraceContext markOverLimit(TraceContext context) {
+    if (context.findExtra(OverLimit.class) != null) return context;
+    List<Object> extra = concatImmutableLists(context.extra(), OVER_LIMIT);
+    return InternalPropagation.instance.withExtra(context, extra);
+  }
+
+  /** Returns true if the context was {@linkplain #markOverLimit(TraceContext) marked}. */
+  public static boolean isOverLimit(TraceContext context) {
+    return context.findExtra(OverLimit.class) != null;
+  }
+
+  final int maxSpansPerLocalRoot, maxTagsPerSpan, maxAnnotationsPerSpan, maxTagValueLength;
+  final AtomicLong droppedSpans = new AtomicLong(), droppedTags = new AtomicLong();
+  final AtomicLong droppedAnnotations = new AtomicLong(), truncatedTagValues = new AtomicLong();
+
+  public SpanLimiter(int maxSpansPerLocalRoot, int maxTagsPerSpan, int maxAnnotationsPerSpan,
+    int maxTagValueLength) {
+    this.maxSpansPerLocalRoot = maxSpansPerLocalRoot;
+    this.maxTagsPerSpan = maxTagsPerSpan;
+    this.maxAnnotationsPerSpan = maxAnnotationsPerSpan;
+    this.maxTagValueLength = maxTagValueLength;
+  }
+
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  public long droppedTags() {
+    return droppedTags.get();
+  }
+
+  public long droppedAnnotations() {
+    return droppedAnnotations.get();
+  }
+
+  public long truncatedTagValues() {
+    return truncatedTagValues.get();
+  }
+
+  /**
+   * Counts a new span against the budget of its local root. Returns the counter to share with its
+   * children, or null if the budget is exhausted.
+   *
+   * <p>Callers should not look up a context that is {@linkplain #isOverLimit(TraceContext) over the
+   * limit}, as its span was already counted when it was dropped.
+   *
+   * <p>A span whose parent finished starts a new budget, as there is no longer a reference to the
+   * counter of its local root.
+   */
+  @Nullable AtomicInteger countSpan(TraceContext context, @Nullable PendingSpan parent) {
+    if (isOverLimit(context)) { // a new child of a span over the limit
+      droppedSpans.incrementAndGet();
+      return null;
+    }
+    AtomicInteger result = parent != null ? parent.localRootSpanCount : null;
+    if (result == null) result = new AtomicInteger();
+    if (result.incrementAndGet() > maxSpansPerLocalRoot) {
+      droppedSpans.incrementAndGet();
+      return null;
+    }
+    return result;
+  }
+
+  void tag(MutableSpan span, String key, String value) {
+    if (span.tagCount() >= maxTagsPerSpan && key != null && span.tag(key) == null) {
+      droppedTags.incrementAndGet(); // as this is a new key, not a replacement
+      return;
+    }
+    if (value != null && value.length() > maxTagValueLength) {
+      truncatedTagValues.incrementAndGet();
+      int end = maxTagValueLength;
+      if (Character.isHighSurrogate(value.charAt(end - 1))) end--; // don't split a code point
+      value = value.substring(0, end);
+    }
+    span.tag(key, value);
+  }
+
+  void annotate(MutableSpan span, long timestamp, String value) {
+    if (span.annotationCount() >= maxAnnotationsPerSpan) {
+      droppedAnnotations.incrementAndGet();
+      return;
+    }
+    span.annotate(timestamp, value);
+  }
+
+  @Override public String toString() {
+    return "SpanLimiter{maxSpansPerLocalRoot=" + maxSpansPerLocalRoot
+      + ", maxTagsPerSpan=" + maxTagsPerSpan
+      + ", maxAnnotationsPerSpan=" + maxAnnotationsPerSpan
+      + ", maxTagValueLength=" + maxTagValueLength + "}";
+  }
+}
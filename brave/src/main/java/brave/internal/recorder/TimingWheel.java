@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A hashed timing wheel of pending span deadlines, similar to Netty's {@code HashedWheelTimer}.
+ *
+ * <p>{@link #add(int, PendingSpan, long)} is lock-free, as it only offers to a concurrent queue.
+ * There is a queue per stripe of {@link PendingSpans}, so that threads starting spans of different
+ * stripes don't contend. The thread calling {@link #expire(long, List)} moves new deadlines from
+ * these queues into buckets, which aren't otherwise shared.
+ *
+ * <p>{@link PendingSpans} cancels the deadline of a span when it is removed, which releases the
+ * span. Cancelled deadlines are dropped when transferred or when their bucket comes due. Buckets
+ * are also compacted once cancellations reach half of the deadlines retained, so that memory isn't
+ * proportional to the span rate times the lifetime. Like new deadlines, cancellations are counted
+ * per stripe.
+ */
+final class TimingWheel {
+  static final int WHEEL_SIZE = 512, MASK = WHEEL_SIZE - 1;
+  static final long MIN_TICK_NANOS = 1000000L; // 1ms
+  /** Bounds the work done in one call to {@link #expire(long, List)} when spans start quickly. */
+  static final int MAX_TRANSFERS = 100000;
+
+  final Stripe[] stripes;
+  final ArrayList<Deadline>[] buckets; // guarded by the thread calling expire
+  final long lifetimeNanos, tickNanos, startNanos;
+  long lastTick = -1; // guarded by the thread calling expire
+  int size; // count of deadlines in buckets, guarded by the thread calling expire
+  int nextStripe; // where transfers start, guarded by the thread calling expire
+  /** Cancellations read from each stripe, guarded by the thread calling expire. */
+  final int[] cancelledCounts;
+
+  TimingWheel(long lifetimeNanos, long startNanos) {
+    this(lifetimeNanos, startNanos, 1);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  TimingWheel(long lifetimeNanos, long startNanos, int stripeCount) {
+    if (lifetimeNanos < 1) throw new IllegalArgumentException("lifetimeNanos < 1");
+    this.lifetimeNanos = lifetimeNanos;
+    // Choose a tick so that most deadlines are within one rotation
+    this.tickNanos = Math.max(MIN_TICK_NANOS, (lifetimeNanos + MASK - 1) / MASK);
+    this.startNanos = startNanos;
+    this.buckets = new ArrayList[WHEEL_SIZE];
+    for (int i = 0; i < WHEEL_SIZE; i++) buckets[i] = new ArrayList<>();
+    this.stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) stripes[i] = new Stripe();
+    this.cancelledCounts = new int[stripeCount];
+  }
+
+  /**
+   * Schedules the span to expire after the lifetime elapses.
+   *
+   * @param stripe the index of the stripe of {@link PendingSpans} that holds the span
+   * @return a deadline to {@link Deadline#cancel() cancel} when the span is no longer pending
+   */
+  Deadline add(int stripe, PendingSpan span, long nowNanos) {
+    Stripe s = stripes[stripe];
+    Deadline result = new Deadline(s, span, nowNanos + lifetimeNanos);
+    s.added.offer(result);
+    return result;
+  }
+
+  /**
+   * Adds spans whose deadline passed to the result, unless they were already collected. Spans
+   * expire at most one tick late, unless this is called less often than each tick.
+   *
+   * <p>This must only be called by one thread at a time.
+   */
+  void expire(long nowNanos, List<PendingSpan> result) {
+    long elapsedTick = tick(nowNanos) - 1; // only expire ticks that completely elapsed
+    transferAdded(elapsedTick, result);
+
+    // If we fell behind more than a rotation, visit each bucket only once.
+    for (long tick = Math.max(lastTick + 1, elapsedTick - MASK); tick <= elapsedTick; tick++) {
+      ArrayList<Deadline> bucket = buckets[(int) (tick & MASK)];
+      int retained = 0;
+      for (int i = 0, length = bucket.size(); i < length; i++) {
+        Deadline deadline = bucket.get(i);
+        if (deadline.tick > elapsedTick) { // due in a later rotation
+          bucket.set(retained++, deadline);
+          continue;
+        }
+        PendingSpan span = deadline.getAndSet(null); // so that a later cancel isn't counted
+        if (span != null) result.add(span);
+      }
+      size -= bucket.size() - retained;
+      bucket.subList(retained, bucket.size()).clear();
+    }
+    if (elapsedTick > lastTick) lastTick = elapsedTick;
+
+    int cancelled = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      cancelled += cancelledCounts[i] = stripes[i].cancelled.get();
+    }
+    if (cancelled > 0 && cancelled >= size >>> 1) {
+      for (int i = 0; i < stripes.length; i++) {
+        if (cancelledCounts[i] != 0) stripes[i].cancelled.addAndGet(-cancelledCounts[i]);
+      }
+      if (size > 0) compact();
+    }
+  }
+
+  /** Drops cancelled deadlines from all buckets. */
+  void compact() {
+    for (ArrayList<Deadline> bucket : buckets) {
+      int retained = 0;
+      for (int i = 0, length = bucket.size(); i < length; i++) {
+        Deadline deadline = bucket.get(i);
+        if (deadline.get() != null) bucket.set(retained++, deadline);
+      }
+      size -= bucket.size() - retained;
+      bucket.subList(retained, bucket.size()).clear();
+    }
+  }
+
+  void transferAdded(long elapsedTick, List<PendingSpan> result) {
+    int transfers = 0, start = nextStripe;
+    // Start at a different stripe each time, so that a busy stripe can't starve the others.
+    nextStripe = (start + 1) % stripes.length;
+    for (int i = 0; i < stripes.length && transfers < MAX_TRANSFERS; i++) {
+      ConcurrentLinkedQueue<Deadline> added = stripes[(start + i) % stripes.length].added;
+      Deadline deadline;
+      for (; transfers < MAX_TRANSFERS && (deadline = added.poll()) != null; transfers++) {
+        if (deadline.get() == null) continue; // cancelled
+        deadline.tick = tick(deadline.deadlineNanos);
+        if (deadline.tick > elapsedTick) {
+          buckets[(int) (deadline.tick & MASK)].add(deadline);
+          size++;
+          continue;
+        }
+        // already expired, which happens when the tick is long
+        PendingSpan span = deadline.getAndSet(null);
+        if (span != null) result.add(span);
+      }
+    }
+  }
+
+  long tick(long nanos) {
+    return (nanos - startNanos) / tickNanos;
+  }
+
+  @Override public String toString() {
+    return "TimingWheel{lifetimeNanos=" + lifetimeNanos + ", tickNanos=" + tickNanos + "}";
+  }
+
+  /** New deadlines and cancellations of one stripe of {@link PendingSpans}. */
+  static final class Stripe {
+    final ConcurrentLinkedQueue<Deadline> added = new ConcurrentLinkedQueue<>();
+    /** Count of cancellations since the last compaction. */
+    final AtomicInteger cancelled = new AtomicInteger();
+  }
+
+  /** References the span until it is cancelled or expires. */
+  static final class Deadline extends AtomicReference<PendingSpan> {
+    final Stripe stripe;
+    final long deadlineNanos;
+    long tick; // set when transferred to a bucket
+
+    Deadline(Stripe stripe, PendingSpan span, long deadlineNanos) {
+      super(span);
+      this.stripe = stripe;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    /** Releases the span, so that the wheel can drop this deadline before it is due. */
+    void cancel() {
+      // Only count once, and not if the deadline already expired
+      if (get() != null && getAndSet(null) != null) stripe.cancelled.incrementAndGet();
+    }
+  }
+}
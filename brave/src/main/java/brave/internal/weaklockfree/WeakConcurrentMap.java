@@ -31,7 +31,7 @@ import java.util.concurrent.ConcurrentMap;
  *
  * <p>Other changes mostly remove features (to reduce the bytecode size) and address style:
  * <ul>
- *   <li>Inline expunction only as we have no thread to use anyway</li>
+ *   <li>Inline expunction by default, as we have no thread to use anyway</li>
  *   <li>Removes methods we don't need such as iteration</li>
  *   <li>Stylistic changes including different javadoc and removal of private modifiers</li>
  *   <li>toString: derived only from keys</li>
@@ -66,6 +66,15 @@ public class WeakConcurrentMap<K, V> extends ReferenceQueue<K> {
     return target.remove(key);
   }
 
+  /** Removes the entry with the indicated key only if it is mapped to the indicated value. */
+  public boolean remove(K key, V value) {
+    if (key == null) throw new NullPointerException("key == null");
+    if (value == null) throw new NullPointerException("value == null");
+    expungeStaleEntries();
+
+    return target.remove(key, value);
+  }
+
   /** Cleans all unused references. */
   protected void expungeStaleEntries() {
     Reference<?> reference;
@@ -78,6 +87,23 @@ public class WeakConcurrentMap<K, V> extends ReferenceQueue<K> {
     return target.remove(reference);
   }
 
+  /** Returns the count of entries, including any whose keys were collected, but not expunged. */
+  public int size() {
+    return target.size();
+  }
+
+  /**
+   * Returns the count of entries whose keys were collected, but not yet expunged. This iterates all
+   * entries, so should not be called on a hot path.
+   */
+  public int staleEntryCount() {
+    int result = 0;
+    for (WeakKey<K> key : target.keySet()) {
+      if (key.get() == null) result++;
+    }
+    return result;
+  }
+
   // This comment was directly verbatim from https://github.com/raphw/weak-lock-free/blob/dcbd2fa0d30571bb3ed187a42cb75323a5569d5b/src/main/java/com/blogspot/mydailyjava/weaklockfree/WeakConcurrentMap.java#L273-L302
   /*
    * Why this works:
@@ -15,7 +15,6 @@ package brave.propagation;
 
 import brave.internal.InternalPropagation;
 import brave.internal.Nullable;
-import brave.internal.RecyclableBuffers;
 
 import static brave.internal.HexCodec.toLowerHex;
 import static brave.internal.HexCodec.writeHexLong;
@@ -59,13 +58,7 @@ public final class TraceIdContext extends SamplingFlags {
   }
 
   static String toTraceIdString(long traceIdHigh, long traceId) {
-    if (traceIdHigh != 0) {
-      char[] result = RecyclableBuffers.parseBuffer();
-      writeHexLong(result, 0, traceIdHigh);
-      writeHexLong(result, 16, traceId);
-      return new String(result, 0, 32);
-    }
-    return toLowerHex(traceId);
+    return toLowerHex(traceIdHigh, traceId);
   }
 
   public Builder toBuilder() {
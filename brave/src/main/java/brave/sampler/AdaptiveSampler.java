@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.sampler;
+
+import brave.Tracing;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This sampler adjusts its probability to export a target count of spans per second, regardless of
+ * how much traffic the host receives.
+ *
+ * <p>Feedback comes from {@link #finishedSpanHandler()}, which counts sampled spans as they
+ * finish, and optionally from reporting code, which calls {@link #recordDroppedSpans(long)} or
+ * {@link #recordQueueDepth(int, int)} when it can't keep up.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * sampler = AdaptiveSampler.newBuilder(100).build();
+ * tracing = Tracing.newBuilder()
+ *                  .sampler(sampler)
+ *                  .addFinishedSpanHandler(sampler.finishedSpanHandler())
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * <h3>Implementation</h3>
+ *
+ * <p>Once per {@linkplain Builder#interval(long, TimeUnit) interval}, the thread making a sampling
+ * decision also adjusts the probability. The new probability is the current one scaled by the ratio
+ * of the target rate to the observed rate of sampled spans. Increases are limited to double the
+ * current probability per interval, so that a quiet interval doesn't cause a burst. Any dropped
+ * spans, or a queue more than half full, at least halves the probability.
+ *
+ * <p>An interval without sampled spans gives no feedback. The probability then probes upwards, but
+ * no higher than the last probability implied by feedback, or the initial probability before there
+ * was any. This way, a long quiet period, or a missing {@link #finishedSpanHandler()}, can't raise
+ * the probability to where the next surge overloads the collector.
+ *
+ * <p>Decisions compare the salted trace ID, modulo 10000, to a threshold, like {@link
+ * BoundarySampler}. This gives a resolution of 0.01% at every probability, down to a minimum of
+ * 0.01%. Adjusting only swaps the threshold, so no sampler is allocated on the request path. The
+ * probability is rounded to this resolution, so {@link #probability()} is the effective rate.
+ *
+ * @see #probability()
+ * @since 5.12
+ */
+public final class AdaptiveSampler extends Sampler {
+  static final float MIN_PROBABILITY = 0.0001f;
+  /** The count of thresholds, which sets the resolution of the probability to 0.01%. */
+  static final int RESOLUTION = 10000;
+
+  /** @param targetSpansPerSecond the count of sampled spans to export per second */
+  public static Builder newBuilder(int targetSpansPerSecond) {
+    return new Builder(targetSpansPerSecond);
+  }
+
+  public static final class Builder {
+    final int targetSpansPerSecond;
+    float initialProbability = 0.01f;
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+    Builder(int targetSpansPerSecond) {
+      if (targetSpansPerSecond < 1) {
+        throw new IllegalArgumentException("targetSpansPerSecond < 1");
+      }
+      this.targetSpansPerSecond = targetSpansPerSecond;
+    }
+
+    /**
+     * The probability used until the first adjustment, and the most it can be raised to without
+     * feedback. Defaults to 0.01, as it is safer to start low and increase than to overload the
+     * collector at startup.
+     */
+    public Builder initialProbability(float initialProbability) {
+      if (initialProbability < MIN_PROBABILITY || initialProbability > 1) {
+        throw new IllegalArgumentException(
+          "initialProbability should be between 0.0001 and 1: was " + initialProbability);
+      }
+      this.initialProbability = initialProbability;
+      return this;
+    }
+
+    /** How often the probability is adjusted. Defaults to one second. */
+    public Builder interval(long interval, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (interval <= 0) throw new IllegalArgumentException("interval <= 0");
+      this.intervalNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    public AdaptiveSampler build() {
+      return new AdaptiveSampler(this);
+    }
+  }
+
+  final int targetSpansPerSecond;
+  final long intervalNanos;
+  final AtomicLong nextAdjustment;
+  final AtomicLong finishedSpans = new AtomicLong(), droppedSpans = new AtomicLong();
+  final FinishedSpanHandler finishedSpanHandler = new FinishedSpanHandler() {
+    @Override public boolean handle(TraceContext context, MutableSpan span) {
+      if (Boolean.TRUE.equals(context.sampled())) finishedSpans.incrementAndGet();
+      return true;
+    }
+
+    @Override public String toString() {
+      return "AdaptiveSamplerFeedback{}";
+    }
+  };
+  volatile boolean queueBackedUp;
+  volatile float probability;
+  /** Trace IDs whose salted value, modulo {@link #RESOLUTION}, is less than this are sampled. */
+  volatile int threshold;
+  /**
+   * The most the probability can be raised to without feedback. Only accessed by the thread that
+   * won {@link #nextAdjustment}, which orders access between threads.
+   */
+  float probeCeiling;
+
+  AdaptiveSampler(Builder builder) {
+    this.targetSpansPerSecond = builder.targetSpansPerSecond;
+    this.intervalNanos = builder.intervalNanos;
+    this.nextAdjustment = new AtomicLong(System.nanoTime() + intervalNanos);
+    setProbability(builder.initialProbability);
+    this.probeCeiling = probability;
+  }
+
+  /**
+   * Returns a handler to add with {@link Tracing.Builder#addFinishedSpanHandler}, which counts
+   * sampled spans as they finish.
+   */
+  public FinishedSpanHandler finishedSpanHandler() {
+    return finishedSpanHandler;
+  }
+
+  /** Call this when spans are dropped downstream, for example due to a full queue or timeout. */
+  public void recordDroppedSpans(long count) {
+    if (count > 0) droppedSpans.addAndGet(count);
+  }
+
+  /** Call this with the current depth of a span queue, such as one used for async reporting. */
+  public void recordQueueDepth(int depth, int capacity) {
+    queueBackedUp = depth > capacity / 2;
+  }
+
+  /** Returns the current probability, for example to export as a metric. */
+  public float probability() {
+    return probability;
+  }
+
+  @Override public boolean isSampled(long traceId) {
+    long now = System.nanoTime(), adjustAt = nextAdjustment.get();
+    if (now - adjustAt >= 0 // because nanoTime can be negative
+      && nextAdjustment.compareAndSet(adjustAt, now + intervalNanos)) {
+      adjust(now - adjustAt + intervalNanos);
+    }
+    return Math.abs((traceId ^ BoundarySampler.SALT) % RESOLUTION) < threshold;
+  }
+
+  /** Adjusts the probability based on feedback accumulated over the elapsed time. */
+  void adjust(long elapsedNanos) {
+    long spans = finishedSpans.getAndSet(0), dropped = droppedSpans.getAndSet(0);
+    float current = probability, next;
+    if (spans == 0) {
+      // no feedback: probe upwards, but not past what feedback last implied
+      next = Math.max(current, Math.min(current * 2, probeCeiling));
+    } else {
+      double spansPerSecond = spans * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+      probeCeiling = (float) (current * targetSpansPerSecond / spansPerSecond);
+      next = Math.min(probeCeiling, current * 2);
+    }
+    if (dropped > 0 || queueBackedUp) {
+      next = Math.min(next, current / 2);
+      probeCeiling = Math.min(probeCeiling, next);
+    }
+    setProbability(Math.max(MIN_PROBABILITY, Math.min(1.0f, next)));
+  }
+
+  void setProbability(float probability) {
+    int threshold = Math.max(1, Math.round(probability * RESOLUTION));
+    this.threshold = threshold;
+    this.probability = threshold / (float) RESOLUTION;
+  }
+
+  @Override public String toString() {
+    return "AdaptiveSampler{targetSpansPerSecond=" + targetSpansPerSecond
+      + ", probability=" + probability + "}";
+  }
+}
@@ -13,6 +13,7 @@
  */
 package brave.sampler;
 
+import brave.internal.InternalMatchers;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -26,6 +27,15 @@ import java.util.List;
  * @since 5.8
  */
 public final class Matchers {
+  static {
+    InternalMatchers.instance = new InternalMatchers() {
+      @Override public <P> Matcher<P>[] andMatchers(Matcher<P> matcher) {
+        if (!(matcher instanceof And)) return null;
+        Matcher<P>[] matchers = ((And<P>) matcher).matchers;
+        return Arrays.copyOf(matchers, matchers.length);
+      }
+    };
+  }
 
   /** @since 5.8 */
   public static <P> Matcher<P> alwaysMatch() {
@@ -64,18 +64,21 @@ public class RateLimitingSampler extends Sampler {
   }
 
   @Override public boolean isSampled(long ignoredTraceId) {
-    long now = System.nanoTime(), updateAt = nextReset.get();
-
-    // First task is to determine if this request is later than the one second sampling window
-    long nanosUntilReset = -(now - updateAt); // because nanoTime can be negative
-    if (nanosUntilReset <= 0) {
-      // Attempt to move into the next sampling interval.
-      // nanosUntilReset is now invalid regardless of race winner, so we can't sample based on it.
-      if (nextReset.compareAndSet(updateAt, now + NANOS_PER_SECOND)) usage.set(0);
-
-      // recurse as it is simpler than resetting all the locals.
-      // reset happens once per second, this code doesn't take a second, so no infinite recursion.
-      return isSampled(ignoredTraceId);
+    long now = System.nanoTime(), nanosUntilReset;
+    while (true) {
+      long updateAt = nextReset.get();
+
+      // First task is to determine if this request is later than the one second sampling window
+      nanosUntilReset = -(now - updateAt); // because nanoTime can be negative
+      if (nanosUntilReset > 0) break;
+
+      // Attempt to move into the next sampling interval. If we lose the race, re-read the window.
+      // The window only moves forward, so this loops at most a few times.
+      if (nextReset.compareAndSet(updateAt, now + NANOS_PER_SECOND)) {
+        usage.set(0);
+        nanosUntilReset = NANOS_PER_SECOND;
+        break;
+      }
     }
 
     // Now, we determine the amount of samples allowed for this interval, and sample accordingly
@@ -130,13 +133,18 @@ public class RateLimitingSampler extends Sampler {
     }
 
     @Override int max(long nanosUntilReset) {
-      // Check to see if we are in the first or last interval
-      if (nanosUntilReset > NANOS_PER_SECOND - NANOS_PER_DECISECOND) return max[0];
-      if (nanosUntilReset < NANOS_PER_DECISECOND) return max[9];
-
-      // Choose a slot based on the remaining deciseconds
-      int decisecondsUntilReset = (int) (nanosUntilReset / NANOS_PER_DECISECOND);
-      return max[10 - decisecondsUntilReset];
+      return max[decisecond(nanosUntilReset)];
     }
   }
+
+  /** Returns the index of the decisecond in the current window, from 0 to 9. */
+  static int decisecond(long nanosUntilReset) {
+    // Check to see if we are in the first or last interval
+    if (nanosUntilReset > NANOS_PER_SECOND - NANOS_PER_DECISECOND) return 0;
+    if (nanosUntilReset < NANOS_PER_DECISECOND) return 9;
+
+    // Choose a slot based on the remaining deciseconds
+    int decisecondsUntilReset = (int) (nanosUntilReset / NANOS_PER_DECISECOND);
+    return 10 - decisecondsUntilReset;
+  }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.sampler;
+
+import brave.internal.Stripes;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static brave.sampler.CountingSampler.mod;
+import static brave.sampler.CountingSampler.randomBitSet;
+
+/**
+ * A {@link CountingSampler} for hosts with many cores, which avoids all threads incrementing the
+ * same counter.
+ *
+ * <h3>Implementation</h3>
+ *
+ * <p>Threads are assigned to stripes by their ID. Each stripe has its own counter and its own
+ * random bitset of size 100, filled with the same count of decisions. This means each stripe is
+ * accurate in units of 100 traces, and the sampler as a whole meets the probability on average.
+ * Until every stripe has completed a loop, the result can be off by up to one unit of 100 per
+ * stripe.
+ *
+ * <p>Counters are spaced apart so that each stripe has its own cache line.
+ */
+public final class StripedCountingSampler extends Sampler {
+  /** Padding in ints between counters, so that each is on a 64-byte cache line. */
+  static final int PADDING = 16;
+
+  /**
+   * @param probability probability a request will result in a new trace. 0 means never sample, 1
+   * means always sample. Minimum probability is 0.01, or 1% of traces
+   */
+  public static Sampler create(final float probability) {
+    return create(probability, Stripes.stripeCount(Runtime.getRuntime().availableProcessors()));
+  }
+
+  static Sampler create(float probability, int stripeCount) {
+    if (probability == 0) return NEVER_SAMPLE;
+    if (probability == 1.0) return ALWAYS_SAMPLE;
+    if (probability < 0.01f || probability > 1) {
+      throw new IllegalArgumentException(
+        "probability should be between 0.01 and 1: was " + probability);
+    }
+    return new StripedCountingSampler(probability, stripeCount, new Random());
+  }
+
+  final AtomicIntegerArray counters;
+  final BitSet[] sampleDecisions;
+  final int mask;
+
+  /**
+   * Fills a bitset per stripe with decisions according to the probability using the supplied
+   * {@link Random}.
+   */
+  StripedCountingSampler(float probability, int stripeCount, Random random) {
+    if (Integer.bitCount(stripeCount) != 1) {
+      throw new IllegalArgumentException("stripeCount must be a power of two: " + stripeCount);
+    }
+    this.counters = new AtomicIntegerArray(stripeCount * PADDING);
+    this.sampleDecisions = new BitSet[stripeCount];
+    this.mask = stripeCount - 1;
+    int outOf100 = (int) (probability * 100.0f);
+    for (int i = 0; i < stripeCount; i++) {
+      sampleDecisions[i] = randomBitSet(100, outOf100, random);
+    }
+  }
+
+  /** loops over the pre-canned decisions of this thread's stripe. */
+  @Override public boolean isSampled(long traceIdIgnored) {
+    int stripe = (int) Thread.currentThread().getId() & mask;
+    int count = counters.getAndIncrement(stripe * PADDING);
+    return sampleDecisions[stripe].get(mod(count, 100));
+  }
+
+  @Override public String toString() {
+    return "StripedCountingSampler(stripes=" + sampleDecisions.length + ")";
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.sampler;
+
+import brave.internal.Stripes;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static brave.sampler.RateLimitingSampler.NANOS_PER_DECISECOND;
+import static brave.sampler.RateLimitingSampler.NANOS_PER_SECOND;
+import static brave.sampler.RateLimitingSampler.decisecond;
+
+/**
+ * A {@link RateLimitingSampler} for high request rates on hosts with many cores. This accepts the
+ * same amount of traces per second, but threads rarely update the same counter.
+ *
+ * <p>For example, to allow 10 traces per second, you'd initialize the following:
+ * <pre>{@code
+ * tracingBuilder.sampler(StripedRateLimitingSampler.create(10));
+ * }</pre>
+ *
+ * <h3>Implementation</h3>
+ *
+ * <p>The per-second budget is split across a power-of-two count of stripes, sized to the available
+ * processors, and threads are assigned to a stripe by their ID. Each stripe has its own usage
+ * counter and its own share of every decisecond watermark used by {@link RateLimitingSampler}.
+ *
+ * <p>When a stripe's share is used up, the thread borrows unused budget from other stripes. Since
+ * the shares of all stripes add up to the watermark, the count of yes decisions never exceeds the
+ * configured traces per second. When no stripe has budget left, this is remembered until the next
+ * decisecond, so that rejected requests don't scan all stripes.
+ *
+ * <p>Only the thread that moves the window forward writes to the shared reset time, once per
+ * second.
+ */
+public final class StripedRateLimitingSampler extends Sampler {
+  /** Padding in ints between counters, so that each is on a 64-byte cache line. */
+  static final int PADDING = 16;
+
+  public static Sampler create(int tracesPerSecond) {
+    return create(tracesPerSecond, Runtime.getRuntime().availableProcessors());
+  }
+
+  static Sampler create(int tracesPerSecond, int availableProcessors) {
+    if (tracesPerSecond < 0) throw new IllegalArgumentException("tracesPerSecond < 0");
+    if (tracesPerSecond == 0) return Sampler.NEVER_SAMPLE;
+    return new StripedRateLimitingSampler(tracesPerSecond,
+      stripeCount(tracesPerSecond, availableProcessors));
+  }
+
+  final int tracesPerSecond;
+  final int mask;
+  /** Indexed by stripe then decisecond. */
+  final int[][] max;
+  final AtomicIntegerArray usage;
+  final AtomicLong nextReset;
+  /** {@link System#nanoTime} before which no stripe has budget. */
+  volatile long exhaustedUntil;
+
+  StripedRateLimitingSampler(int tracesPerSecond, int stripeCount) {
+    this.tracesPerSecond = tracesPerSecond;
+    this.mask = stripeCount - 1;
+    this.usage = new AtomicIntegerArray(stripeCount * PADDING);
+    this.max = new int[stripeCount][10];
+
+    // Split each watermark of the unstriped sampler across the stripes. Remainders go to the lower
+    // stripes, so each stripe's share never decreases as the second progresses.
+    RateLimitingSampler.MaxFunction maxFunction = tracesPerSecond < 10
+      ? new RateLimitingSampler.LessThan10(tracesPerSecond)
+      : new RateLimitingSampler.AtLeast10(tracesPerSecond);
+    for (int decisecond = 0; decisecond < 10; decisecond++) {
+      int watermark = maxFunction.max(NANOS_PER_SECOND - decisecond * NANOS_PER_DECISECOND);
+      int share = watermark / stripeCount, remainder = watermark % stripeCount;
+      for (int stripe = 0; stripe < stripeCount; stripe++) {
+        max[stripe][decisecond] = share + (stripe < remainder ? 1 : 0);
+      }
+    }
+
+    long now = System.nanoTime();
+    this.nextReset = new AtomicLong(now + NANOS_PER_SECOND);
+    this.exhaustedUntil = now;
+  }
+
+  /** The count of stripes is a power of two, no more than the rate, and capped at 64. */
+  static int stripeCount(int tracesPerSecond, int availableProcessors) {
+    int result = Stripes.stripeCount(availableProcessors);
+    return Math.min(result, Integer.highestOneBit(tracesPerSecond));
+  }
+
+  @Override public boolean isSampled(long ignoredTraceId) {
+    long now = System.nanoTime(), nanosUntilReset;
+    while (true) {
+      long updateAt = nextReset.get();
+      nanosUntilReset = -(now - updateAt); // because nanoTime can be negative
+      if (nanosUntilReset > 0) break;
+
+      // Attempt to move into the next sampling interval. If we lose the race, re-read the window.
+      if (nextReset.compareAndSet(updateAt, now + NANOS_PER_SECOND)) {
+        for (int stripe = 0; stripe <= mask; stripe++) usage.set(stripe * PADDING, 0);
+        exhaustedUntil = now;
+        nanosUntilReset = NANOS_PER_SECOND;
+        break;
+      }
+    }
+
+    if (now - exhaustedUntil < 0) return false; // because nanoTime can be negative
+
+    int decisecond = decisecond(nanosUntilReset);
+    int start = (int) Thread.currentThread().getId() & mask;
+    for (int i = 0; i <= mask; i++) { // try our stripe first, then borrow from others
+      int stripe = (start + i) & mask;
+      if (tryAcquire(stripe, max[stripe][decisecond])) return true;
+    }
+
+    // Watermarks only increase at the next decisecond, so skip scanning until then.
+    exhaustedUntil = now + nanosUntilReset % NANOS_PER_DECISECOND;
+    return false;
+  }
+
+  boolean tryAcquire(int stripe, int max) {
+    int index = stripe * PADDING, prev;
+    do { // same form as java 8 AtomicInteger.getAndUpdate
+      prev = usage.get(index);
+      if (prev >= max) return false;
+    } while (!usage.compareAndSet(index, prev, prev + 1));
+    return true;
+  }
+
+  @Override public String toString() {
+    return "StripedRateLimitingSampler{tracesPerSecond=" + tracesPerSecond
+      + ", stripes=" + (mask + 1) + "}";
+  }
+}
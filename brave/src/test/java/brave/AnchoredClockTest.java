@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AnchoredClockTest {
+  AtomicInteger wallReads = new AtomicInteger();
+  Clock wallClock = () -> {
+    wallReads.incrementAndGet();
+    return 1000000L;
+  };
+
+  @Test public void derivesFromNanoTimeWithinInterval() {
+    AnchoredClock clock = new AnchoredClock(wallClock, TimeUnit.HOURS.toNanos(1));
+
+    long previous = clock.currentTimeMicroseconds();
+    for (int i = 0; i < 100; i++) {
+      long next = clock.currentTimeMicroseconds();
+      assertThat(next).isGreaterThanOrEqualTo(previous);
+      previous = next;
+    }
+
+    assertThat(wallReads).hasValue(1); // only when constructed
+    assertThat(previous).isBetween(1000000L, 1000000L + TimeUnit.HOURS.toMicros(1));
+  }
+
+  @Test public void reanchorsAfterInterval() {
+    AnchoredClock clock = new AnchoredClock(wallClock, 1L);
+
+    assertThat(clock.currentTimeMicroseconds()).isEqualTo(1000000L);
+    assertThat(clock.currentTimeMicroseconds()).isEqualTo(1000000L);
+    assertThat(wallReads).hasValue(3);
+  }
+
+  @Test public void create_isCloseToSystemTime() {
+    long before = System.currentTimeMillis() * 1000;
+    long now = AnchoredClock.create().currentTimeMicroseconds();
+
+    assertThat(now).isBetween(before - 1000, System.currentTimeMillis() * 1000 + 1000);
+  }
+
+  @Test public void create_intervalMustBePositive() {
+    assertThatThrownBy(() -> AnchoredClock.create(0, TimeUnit.SECONDS))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.IdGenerator.ThreadLocalIdGenerator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IdGeneratorTest {
+  @Test public void nextId_unique() {
+    for (IdGenerator generator : new IdGenerator[] {
+      IdGenerator.platform(), IdGenerator.threadLocal()
+    }) {
+      Set<Long> ids = new LinkedHashSet<>();
+      for (int i = 0; i < 1000; i++) ids.add(generator.nextId());
+      assertThat(ids).hasSize(1000).doesNotContain(0L);
+    }
+  }
+
+  @Test public void nextTraceIdHigh_epochSecondsPrefix() {
+    for (IdGenerator generator : new IdGenerator[] {
+      IdGenerator.platform(), IdGenerator.threadLocal()
+    }) {
+      long before = System.currentTimeMillis() / 1000;
+      long epochSeconds = generator.nextTraceIdHigh() >>> 32;
+      assertThat(epochSeconds).isBetween(before, System.currentTimeMillis() / 1000);
+    }
+  }
+
+  @Test public void threadLocal_threadsHaveDifferentSequences() throws InterruptedException {
+    IdGenerator generator = IdGenerator.threadLocal();
+    long[] otherThreadId = new long[1];
+    Thread thread = new Thread(() -> otherThreadId[0] = generator.nextId());
+    thread.start();
+    thread.join();
+
+    assertThat(generator.nextId()).isNotEqualTo(otherThreadId[0]);
+  }
+
+  @Test public void threadLocal_refillsBatch() {
+    long[] ids = ThreadLocalIdGenerator.newIds(0L);
+    Set<Long> values = new LinkedHashSet<>();
+    for (int i = 0; i < ThreadLocalIdGenerator.BATCH_SIZE * 3; i++) {
+      values.add(ThreadLocalIdGenerator.nextId(ids));
+    }
+    assertThat(values).hasSize(ThreadLocalIdGenerator.BATCH_SIZE * 3);
+  }
+
+  @Test public void threadLocal_refreshesEpochSecondsWhenBatchRefills() {
+    long[] ids = ThreadLocalIdGenerator.newIds(0L);
+    ThreadLocalIdGenerator.nextId(ids);
+    assertThat(ids[ThreadLocalIdGenerator.EPOCH_SECONDS]).isNotZero();
+
+    ids[ThreadLocalIdGenerator.EPOCH_SECONDS] = 1L; // simulate a stale prefix
+    for (int i = 1; i < ThreadLocalIdGenerator.BATCH_SIZE; i++) ThreadLocalIdGenerator.nextId(ids);
+    assertThat(ids[ThreadLocalIdGenerator.EPOCH_SECONDS]).isEqualTo(1L); // cached within a batch
+
+    long before = System.currentTimeMillis() / 1000;
+    ThreadLocalIdGenerator.nextId(ids);
+    assertThat(ids[ThreadLocalIdGenerator.EPOCH_SECONDS]).isGreaterThanOrEqualTo(before);
+  }
+
+  /** Values left on threads must not pin the class loader of brave. */
+  @Test public void threadLocal_storesJreType() {
+    ThreadLocalIdGenerator generator = (ThreadLocalIdGenerator) IdGenerator.threadLocal();
+    generator.nextId();
+
+    assertThat(generator.ids.get().getClass().getClassLoader()).isNull(); // bootstrap
+  }
+}
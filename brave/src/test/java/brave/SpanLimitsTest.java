@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.StrictCurrentTraceContext;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpanLimitsTest {
+  List<MutableSpan> spans = new ArrayList<>();
+  SpanLimits spanLimits = SpanLimits.newBuilder()
+    .maxSpansPerLocalRoot(3)
+    .maxTagsPerSpan(2)
+    .maxAnnotationsPerSpan(1)
+    .maxTagValueLength(5)
+    .build();
+  Tracing tracing = Tracing.newBuilder()
+    .currentTraceContext(StrictCurrentTraceContext.create())
+    .addFinishedSpanHandler(new FinishedSpanHandler() {
+      @Override public boolean handle(TraceContext context, MutableSpan span) {
+        spans.add(span);
+        return true;
+      }
+    })
+    .spanLimits(spanLimits)
+    .build();
+  Tracer tracer = tracing.tracer();
+
+  @After public void close() {
+    tracing.close();
+  }
+
+  @Test public void maxSpansPerLocalRoot() {
+    Span root = tracer.newTrace().start();
+    List<Span> children = new ArrayList<>();
+    for (int i = 0; i < 4; i++) children.add(tracer.newChild(root.context()).start());
+
+    assertThat(children).extracting(Span::isNoop).containsExactly(false, false, true, true);
+    assertThat(spanLimits.droppedSpans()).isEqualTo(2);
+
+    for (Span child : children) child.finish();
+    root.finish();
+    assertThat(spans).hasSize(3);
+  }
+
+  @Test public void maxSpansPerLocalRoot_childrenOfNoopSpansAreNoop() {
+    Span parent = tracer.newTrace().start();
+    for (int i = 0; i < 4; i++) {
+      parent = tracer.newChild(parent.context()).start(); // nested, as a runaway recursion would
+    }
+
+    assertThat(parent.isNoop()).isTrue();
+    assertThat(spanLimits.droppedSpans()).isEqualTo(2);
+    assertThat(parent.context().extra()).hasSize(1); // marked only once
+  }
+
+  @Test public void maxSpansPerLocalRoot_clockOfSpanOverLimit() {
+    Span root = tracer.newTrace().start();
+    Span child = root;
+    for (int i = 0; i < 3; i++) child = tracer.newChild(root.context());
+
+    assertThat(child.isNoop()).isTrue();
+    assertThat(tracing.clock(child.context()).currentTimeMicroseconds()).isPositive();
+  }
+
+  /** Only new spans count as dropped, not lookups of a span already over the limit. */
+  @Test public void maxSpansPerLocalRoot_lookupsOfSpanOverLimit() {
+    Span root = tracer.newTrace().start();
+    Span child = root;
+    for (int i = 0; i < 3; i++) child = tracer.newChild(root.context()).start();
+    assertThat(child.isNoop()).isTrue();
+    assertThat(spanLimits.droppedSpans()).isOne();
+
+    try (Tracer.SpanInScope ws = tracer.withSpanInScope(child)) {
+      for (int i = 0; i < 5; i++) {
+        tracer.currentSpan().tag("k", "v");
+        assertThat(tracer.toSpan(child.context()).isNoop()).isTrue();
+        tracer.currentSpanCustomizer().tag("k", "v");
+        tracing.clock(child.context());
+      }
+      assertThat(spanLimits.droppedSpans()).isOne();
+
+      assertThat(tracer.nextSpan().isNoop()).isTrue(); // a new child is counted
+      assertThat(spanLimits.droppedSpans()).isEqualTo(2);
+    }
+  }
+
+  @Test public void maxSpansPerLocalRoot_scopedSpans() {
+    ScopedSpan root = tracer.startScopedSpan("root");
+    ScopedSpan child1 = tracer.startScopedSpan("child1");
+    ScopedSpan child2 = tracer.startScopedSpan("child2");
+    ScopedSpan child3 = tracer.startScopedSpan("child3"); // over the limit
+    ScopedSpan child4 = tracer.startScopedSpan("child4"); // child of a noop span
+
+    assertThat(child3.isNoop()).isTrue();
+    assertThat(child4.isNoop()).isTrue();
+    assertThat(tracer.currentSpan().isNoop()).isTrue();
+    assertThat(child4.context().traceIdString()).isEqualTo(root.context().traceIdString());
+
+    child4.finish();
+    child3.finish();
+    child2.finish();
+    child1.finish();
+    root.finish();
+    assertThat(spans).extracting(MutableSpan::name).containsExactly("child2", "child1", "root");
+  }
+
+  @Test public void maxSpansPerLocalRoot_eachLocalRootHasItsOwnBudget() {
+    for (int i = 0; i < 5; i++) {
+      assertThat(tracer.newTrace().start().isNoop()).isFalse();
+    }
+    assertThat(spanLimits.droppedSpans()).isZero();
+  }
+
+  @Test public void maxTagsPerSpan() {
+    Span span = tracer.newTrace().start();
+    span.tag("a", "1");
+    span.tag("b", "2");
+    span.tag("c", "3"); // dropped
+    span.tag("a", "4"); // replaces
+    span.finish();
+
+    assertThat(spans.get(0).tagCount()).isEqualTo(2);
+    assertThat(spans.get(0).tag("a")).isEqualTo("4");
+    assertThat(spans.get(0).tag("c")).isNull();
+    assertThat(spanLimits.droppedTags()).isOne();
+  }
+
+  @Test public void maxTagValueLength() {
+    ScopedSpan span = tracer.startScopedSpan("foo");
+    span.tag("a", "1234567");
+    span.tag("b", "1234😀"); // don't split the emoji's surrogate pair
+    span.finish();
+
+    assertThat(spans.get(0).tag("a")).isEqualTo("12345");
+    assertThat(spans.get(0).tag("b")).isEqualTo("1234");
+    assertThat(spanLimits.truncatedTagValues()).isEqualTo(2);
+  }
+
+  @Test public void maxAnnotationsPerSpan() {
+    Span span = tracer.newTrace().start();
+    span.annotate("1");
+    span.annotate("2"); // dropped
+    span.finish();
+
+    assertThat(spans.get(0).annotationCount()).isOne();
+    assertThat(spanLimits.droppedAnnotations()).isOne();
+  }
+
+  @Test public void unlimitedByDefault() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .addFinishedSpanHandler(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          spans.add(span);
+          return true;
+        }
+      }).build()) {
+      Span root = tracing.tracer().newTrace().start();
+      for (int i = 0; i < 200; i++) {
+        tracing.tracer().newChild(root.context()).tag("k" + i, "v").start().finish();
+        root.tag("k" + i, "v");
+      }
+      root.finish();
+    }
+
+    assertThat(spans).hasSize(201);
+    assertThat(spans.get(200).tagCount()).isEqualTo(200);
+  }
+
+  @Test public void builder_validates() {
+    assertThatThrownBy(() -> SpanLimits.newBuilder().maxSpansPerLocalRoot(0))
+      .hasMessage("maxSpansPerLocalRoot < 1");
+    assertThatThrownBy(() -> SpanLimits.newBuilder().maxTagValueLength(0))
+      .hasMessage("maxTagValueLength < 1");
+  }
+}
@@ -163,6 +163,23 @@ public class TracerTest {
       .isNotZero();
   }
 
+  @Test public void newTrace_idGenerator() {
+    tracer = Tracing.newBuilder().traceId128Bit(true).idGenerator(new IdGenerator() {
+      @Override public long nextId() {
+        return 2L;
+      }
+
+      @Override public long nextTraceIdHigh() {
+        return 1L;
+      }
+    }).build().tracer();
+
+    TraceContext context = tracer.newTrace().context();
+    assertThat(context.traceIdHigh()).isEqualTo(1L);
+    assertThat(context.traceId()).isEqualTo(2L);
+    assertThat(context.spanId()).isEqualTo(2L);
+  }
+
   @Test public void newTrace_notSampled_tracer() {
     tracer = tracer.withSampler(Sampler.NEVER_SAMPLE);
 
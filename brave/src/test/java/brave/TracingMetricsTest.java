@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.StrictCurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.SamplerFunctions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TracingMetricsTest {
+  List<MutableSpan> spans = new ArrayList<>();
+  boolean failHandler;
+  CountingMetrics metrics = new CountingMetrics();
+  Tracing tracing = Tracing.newBuilder()
+    .currentTraceContext(StrictCurrentTraceContext.create())
+    .addFinishedSpanHandler(new FinishedSpanHandler() {
+      @Override public boolean handle(TraceContext context, MutableSpan span) {
+        if (failHandler) throw new IllegalStateException("oops");
+        spans.add(span);
+        return true;
+      }
+
+      @Override public boolean supportsOrphans() {
+        return true;
+      }
+    })
+    .metrics(metrics)
+    .build();
+  Tracer tracer = tracing.tracer();
+
+  @After public void close() {
+    tracing.close();
+  }
+
+  @Test public void spanLifecycle() {
+    Span finished = tracer.newTrace().start();
+    Span flushed = tracer.newChild(finished.context()).start();
+    Span abandoned = tracer.newChild(finished.context()).start();
+    assertThat(metrics.started).hasValue(3);
+    assertThat(tracing.pendingSpanCount()).isEqualTo(3);
+
+    flushed.flush();
+    abandoned.abandon();
+    finished.finish();
+    finished.finish(); // redundant finish isn't counted
+
+    assertThat(metrics.finished).hasValue(2);
+    assertThat(metrics.abandoned).hasValue(1);
+    assertThat(metrics.orphaned).hasValue(0);
+    assertThat(tracing.pendingSpanCount()).isZero();
+  }
+
+  @Test public void scopedSpan() {
+    tracer.startScopedSpan("foo").finish();
+
+    assertThat(metrics.started).hasValue(1);
+    assertThat(metrics.finished).hasValue(1);
+  }
+
+  @Test public void spanOrphaned() {
+    TraceContext context = tracer.newTrace().start().context();
+    assertThat(tracing.pendingSpanCount()).isEqualTo(1);
+
+    context = null; // clear reference so GC occurs
+    GarbageCollectors.blockOnGC();
+    tracer.pendingSpans.reapOrphans();
+
+    assertThat(metrics.orphaned).hasValue(1);
+    assertThat(metrics.finished).hasValue(0);
+    assertThat(tracing.pendingSpanCount()).isZero();
+    assertThat(spans).hasSize(1); // reported
+  }
+
+  @Test public void samplerDecision() {
+    Span root = tracer.newTrace();
+    tracer.newChild(root.context()); // inherits the decision
+    tracer.nextSpan(SamplerFunctions.neverSample(), "foo");
+    tracer.nextSpan(SamplerFunctions.deferDecision(), "foo"); // falls back to the sampler
+
+    assertThat(metrics.sampled).hasValue(2);
+    assertThat(metrics.notSampled).hasValue(1);
+  }
+
+  @Test public void spanHandled() {
+    tracer.newTrace().start().finish();
+
+    assertThat(metrics.handled).hasValue(1);
+    assertThat(metrics.handledNanos.get()).isNotNegative();
+    assertThat(metrics.handlerFailures).isEmpty();
+  }
+
+  @Test public void handlerFailed() {
+    failHandler = true;
+    Span span = tracer.newTrace().start();
+    span.finish();
+
+    assertThat(metrics.handlerFailures).extracting(Throwable::getMessage).containsExactly("oops");
+    assertThat(metrics.handled).hasValue(1);
+  }
+
+  @Test public void noopByDefault() {
+    try (Tracing tracing = Tracing.newBuilder().build()) {
+      tracing.tracer().newTrace().start().finish();
+      assertThat(tracing.pendingSpanCount()).isZero();
+    }
+    assertThat(TracingMetrics.NOOP).hasToString("NoopTracingMetrics{}");
+  }
+
+  @Test public void metrics_nullNotAllowed() {
+    assertThatThrownBy(() -> Tracing.newBuilder().metrics(null))
+      .isInstanceOf(NullPointerException.class)
+      .hasMessage("metrics == null");
+  }
+
+  static final class CountingMetrics extends TracingMetrics {
+    final AtomicLong started = new AtomicLong(), finished = new AtomicLong(),
+      abandoned = new AtomicLong(), orphaned = new AtomicLong(), sampled = new AtomicLong(),
+      notSampled = new AtomicLong(), handled = new AtomicLong(), handledNanos = new AtomicLong();
+    final List<Throwable> handlerFailures = new ArrayList<>();
+
+    @Override public void spanStarted() {
+      started.incrementAndGet();
+    }
+
+    @Override public void spanFinished() {
+      finished.incrementAndGet();
+    }
+
+    @Override public void spanAbandoned() {
+      abandoned.incrementAndGet();
+    }
+
+    @Override public void spanOrphaned() {
+      orphaned.incrementAndGet();
+    }
+
+    @Override public void samplerDecision(boolean sampled) {
+      (sampled ? this.sampled : notSampled).incrementAndGet();
+    }
+
+    @Override public void handlerFailed(TraceContext context, Throwable error) {
+      handlerFailures.add(error);
+    }
+
+    @Override public void spanHandled(long durationNanos) {
+      handled.incrementAndGet();
+      handledNanos.addAndGet(durationNanos);
+    }
+  }
+}
@@ -13,8 +13,11 @@
  */
 package brave;
 
+import brave.handler.AsyncFinishedSpanHandling;
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
+import brave.handler.MutableSpanRecycling;
+import brave.handler.OrphanReaping;
 import brave.propagation.B3SinglePropagation;
 import brave.propagation.Propagation;
 import brave.propagation.StrictCurrentTraceContext;
@@ -22,6 +25,10 @@ import brave.propagation.TraceContext;
 import brave.sampler.Sampler;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.assertj.core.api.InstanceOfAssertFactories;
 import org.junit.Test;
@@ -29,6 +36,7 @@ import zipkin2.Span;
 import zipkin2.reporter.Reporter;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -330,4 +338,140 @@ public class TracingTest {
       assertThat(tracing.tracer().alwaysSampleLocal).isTrue();
     }
   }
+
+  @Test public void asyncFinishedSpanHandling_handlesOffCallerThread() {
+    List<String> threadNames = new CopyOnWriteArrayList<>();
+    try (Tracing tracing = Tracing.newBuilder()
+      .asyncFinishedSpanHandling(AsyncFinishedSpanHandling.newBuilder().build())
+      .addFinishedSpanHandler(new FinishedSpanHandler() {
+        @Override public boolean handle(TraceContext context, MutableSpan span) {
+          threadNames.add(Thread.currentThread().getName());
+          return true;
+        }
+      })
+      .spanReporter(spans::add)
+      .build()) {
+      tracing.tracer().newTrace().name("async").start().finish();
+    } // close drains the queue
+
+    assertThat(threadNames).hasSize(1)
+      .doesNotContain(Thread.currentThread().getName());
+    assertThat(spans).extracting(Span::name).containsExactly("async");
+  }
+
+  @Test public void asyncFinishedSpanHandling_closedWithTracing() {
+    Tracing tracing = Tracing.newBuilder()
+      .asyncFinishedSpanHandling(AsyncFinishedSpanHandling.newBuilder().build())
+      .spanReporter(spans::add)
+      .build();
+    tracing.close();
+
+    // spans finished after close are handled on the caller thread
+    tracing.tracer().newTrace().name("late").start().finish();
+    assertThat(spans).extracting(Span::name).containsExactly("late");
+  }
+
+  /** Otherwise, drop and queue depth metrics would only report the last tracer. */
+  @Test public void asyncFinishedSpanHandling_onlyOneTracer() {
+    AsyncFinishedSpanHandling asyncHandling = AsyncFinishedSpanHandling.newBuilder().build();
+    Tracing.Builder builder = Tracing.newBuilder().asyncFinishedSpanHandling(asyncHandling);
+    try (Tracing tracing = builder.build()) {
+      assertThatThrownBy(builder::build)
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessage("asyncFinishedSpanHandling is already used by another tracing component");
+      assertThat(Tracing.current()).isSameAs(tracing);
+    }
+  }
+
+  @Test public void mutableSpanRecycling_reusesSpanAfterHandling() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .mutableSpanRecycling(MutableSpanRecycling.newBuilder().build())
+      .addFinishedSpanHandler(finishedSpanHandler)
+      .spanReporter(spans::add)
+      .build()) {
+      tracing.tracer().newTrace().name("1").tag("a", "b").start().finish();
+      tracing.tracer().newTrace().name("2").start().finish();
+    }
+
+    assertThat(mutableSpans).hasSize(2);
+    assertThat(mutableSpans.get(0)).isSameAs(mutableSpans.get(1));
+    assertThat(mutableSpans.get(1).tagCount()).isZero(); // cleared
+    assertThat(spans).extracting(Span::name).containsExactly("1", "2");
+    assertThat(spans.get(1).tags()).isEmpty();
+  }
+
+  @Test public void mutableSpanRecycling_dropsChangesAfterFinish() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .mutableSpanRecycling(MutableSpanRecycling.newBuilder().build())
+      .spanReporter(spans::add)
+      .build()) {
+      brave.Span first = tracing.tracer().newTrace().name("1").start();
+      first.finish();
+      brave.Span second = tracing.tracer().newTrace().name("2").start();
+
+      first.tag("a", "b"); // late change to the recycled span
+      second.finish();
+    }
+
+    assertThat(spans).extracting(Span::name).containsExactly("1", "2");
+    assertThat(spans.get(1).tags()).isEmpty();
+  }
+
+  @Test public void mutableSpanRecycling_detectUseAfterRecycle() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .mutableSpanRecycling(MutableSpanRecycling.newBuilder().detectUseAfterRecycle(true).build())
+      .spanReporter(spans::add)
+      .build()) {
+      brave.Span span = tracing.tracer().newTrace().name("1").start();
+      span.finish();
+
+      assertThatThrownBy(() -> span.tag("a", "b"))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("was modified after it was finished and recycled")
+        .hasCauseInstanceOf(Throwable.class);
+    }
+  }
+
+  /** Scoped spans are single-threaded, so they only lock when another thread can see the span. */
+  @Test public void scopedSpan_guardedOnlyWhenSpansAreShared() {
+    try (Tracing tracing = Tracing.newBuilder().spanReporter(Reporter.NOOP).build()) {
+      ScopedSpan span = tracing.tracer().startScopedSpan("plain");
+      assertThat(((RealScopedSpan) span).guarded).isFalse();
+      span.finish();
+    }
+
+    try (Tracing tracing = Tracing.newBuilder()
+      .mutableSpanRecycling(MutableSpanRecycling.newBuilder().build())
+      .spanReporter(Reporter.NOOP).build()) {
+      ScopedSpan span = tracing.tracer().startScopedSpan("recycled");
+      assertThat(((RealScopedSpan) span).guarded).isTrue();
+      span.finish();
+    }
+  }
+
+  @Test public void mutableSpanRecycling_scopedSpanFlushedOnTimeout() throws Exception {
+    List<Span> spans = new CopyOnWriteArrayList<>(); // reported by the executor thread
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    try (Tracing tracing = Tracing.newBuilder()
+      .mutableSpanRecycling(MutableSpanRecycling.newBuilder().detectUseAfterRecycle(true).build())
+      .orphanReaping(OrphanReaping.newBuilder()
+        .executor(executor)
+        .interval(1, TimeUnit.MILLISECONDS)
+        .maxSpanLifetime(1, TimeUnit.MILLISECONDS)
+        .build())
+      .spanReporter(spans::add)
+      .build()) {
+      ScopedSpan span = tracing.tracer().startScopedSpan("slow");
+      for (int i = 0; i < 100 && spans.isEmpty(); i++) Thread.sleep(10);
+
+      span.tag("a", "b"); // late change to a span flushed on timeout doesn't throw
+      span.finish();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(spans).extracting(Span::name).containsExactly("slow");
+    assertThat(spans.get(0).annotations()).extracting(a -> a.value())
+      .containsExactly("brave.timeout");
+  }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchingFinishedSpanHandlerTest {
+  List<byte[]> messages = new ArrayList<>();
+  SpanBatchSender sender = new SpanBatchSender() {
+    @Override public void send(MutableSpanBytesEncoder encoder, byte[] message, int length,
+      int spanCount) {
+      messages.add(Arrays.copyOf(message, length)); // as the buffer is re-used
+    }
+  };
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+
+  @Test public void batchesUntilFlush() {
+    BatchingFinishedSpanHandler handler = BatchingFinishedSpanHandler.newBuilder(sender).build();
+    handler.handle(context, span("1"));
+    handler.handle(context, span("2"));
+    assertThat(messages).isEmpty();
+
+    handler.flush();
+    assertThat(messages).hasSize(1);
+    assertThat(SpanBytesDecoder.JSON_V2.decodeList(messages.get(0)))
+      .extracting(Span::id)
+      .containsExactly("0000000000000001", "0000000000000002");
+
+    handler.flush(); // no-op as the message was sent
+    assertThat(messages).hasSize(1);
+  }
+
+  @Test public void sendsWhenMessageFull() {
+    for (MutableSpanBytesEncoder encoder : MutableSpanBytesEncoder.values()) {
+      messages.clear();
+      int spanSize = encoder.sizeInBytes(span("1"));
+      BatchingFinishedSpanHandler handler = BatchingFinishedSpanHandler.newBuilder(sender)
+        .encoder(encoder)
+        .messageMaxBytes(spanSize * 2 + encoder.listOverheadInBytes(2))
+        .build();
+
+      for (int i = 1; i <= 5; i++) handler.handle(context, span(String.valueOf(i)));
+      handler.close();
+
+      assertThat(messages).hasSize(3);
+      List<Span> decoded = new ArrayList<>();
+      for (byte[] message : messages) {
+        assertThat(message.length).isLessThanOrEqualTo(handler.messageMaxBytes);
+        decoded.addAll(SpanBytesDecoder.valueOf(encoder.name()).decodeList(message));
+      }
+      assertThat(decoded).extracting(Span::id).containsExactly(
+        "0000000000000001", "0000000000000002", "0000000000000003", "0000000000000004",
+        "0000000000000005"
+      );
+    }
+  }
+
+  @Test public void sendsWhenMessageTimeout() throws InterruptedException {
+    BatchingFinishedSpanHandler handler = BatchingFinishedSpanHandler.newBuilder(sender)
+      .messageTimeout(1, TimeUnit.NANOSECONDS)
+      .build();
+    handler.handle(context, span("1"));
+    Thread.sleep(1);
+    handler.handle(context, span("2"));
+
+    assertThat(messages).hasSize(1);
+  }
+
+  @Test public void dropsSpanLargerThanMessage() {
+    BatchingFinishedSpanHandler handler = BatchingFinishedSpanHandler.newBuilder(sender)
+      .messageMaxBytes(16)
+      .build();
+    handler.handle(context, span("1"));
+    handler.flush();
+
+    assertThat(messages).isEmpty();
+    assertThat(handler.droppedSpans()).isEqualTo(1);
+  }
+
+  @Test public void countsSpansThatFailedToSend() {
+    BatchingFinishedSpanHandler handler = BatchingFinishedSpanHandler.newBuilder(
+      new SpanBatchSender() {
+        @Override public void send(MutableSpanBytesEncoder encoder, byte[] message, int length,
+          int spanCount) throws IOException {
+          throw new IOException("timeout");
+        }
+      }).build();
+    handler.handle(context, span("1"));
+    handler.handle(context, span("2"));
+    handler.flush();
+
+    assertThat(handler.droppedSpans()).isEqualTo(2);
+  }
+
+  @Test public void dropsAfterClose() {
+    BatchingFinishedSpanHandler handler = BatchingFinishedSpanHandler.newBuilder(sender).build();
+    handler.close();
+    handler.handle(context, span("1"));
+    handler.flush();
+
+    assertThat(messages).isEmpty();
+    assertThat(handler.droppedSpans()).isEqualTo(1);
+  }
+
+  @Test public void skipsUnsampledUnlessAlwaysReportSpans() {
+    TraceContext unsampled = context.toBuilder().sampled(false).build();
+    BatchingFinishedSpanHandler handler = BatchingFinishedSpanHandler.newBuilder(sender).build();
+    handler.handle(unsampled, span("1"));
+    handler.flush();
+    assertThat(messages).isEmpty();
+
+    handler = BatchingFinishedSpanHandler.newBuilder(sender).alwaysReportSpans(true).build();
+    handler.handle(unsampled, span("1"));
+    handler.flush();
+    assertThat(messages).hasSize(1);
+  }
+
+  @Test public void addsErrorTag() {
+    BatchingFinishedSpanHandler handler = BatchingFinishedSpanHandler.newBuilder(sender).build();
+    MutableSpan span = span("1");
+    span.error(new IllegalStateException("oops"));
+    handler.handle(context, span);
+    handler.flush();
+
+    assertThat(SpanBytesDecoder.JSON_V2.decodeList(messages.get(0)).get(0).tags())
+      .containsEntry("error", "oops");
+  }
+
+  @Test public void worksWithTracing() {
+    BatchingFinishedSpanHandler handler = BatchingFinishedSpanHandler.newBuilder(sender).build();
+    try (Tracing tracing = Tracing.newBuilder().addFinishedSpanHandler(handler).build()) {
+      tracing.tracer().newTrace().name("foo").start().finish();
+    }
+    handler.close();
+
+    assertThat(SpanBytesDecoder.JSON_V2.decodeList(messages.get(0)))
+      .extracting(Span::name)
+      .containsExactly("foo");
+  }
+
+  static MutableSpan span(String id) {
+    MutableSpan span = new MutableSpan();
+    span.traceId("0000000000000001");
+    span.id("000000000000000" + id);
+    span.name("get");
+    span.startTimestamp(1000L);
+    span.finishTimestamp(1500L);
+    span.localServiceName("favistar");
+    return span;
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span.Kind;
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DependencyLinksFinishedSpanHandlerTest {
+  List<List<DependencyLink>> sent = new ArrayList<>();
+  DependencyLinkSender sender = new DependencyLinkSender() {
+    @Override public void send(List<DependencyLink> links) {
+      sent.add(links);
+    }
+  };
+  DependencyLinksFinishedSpanHandler handler =
+    new DependencyLinksFinishedSpanHandler(DependencyLinksFinishedSpanHandler.newBuilder(sender)
+      .flushInterval(1, TimeUnit.HOURS), 4);
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+
+  @Test public void linksByKind() {
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    handler.handle(context, span(Kind.SERVER, "backend", "frontend"));
+    handler.handle(context, span(Kind.PRODUCER, "backend", "kafka"));
+    handler.handle(context, span(Kind.CONSUMER, "indexer", "kafka"));
+    handler.flush();
+
+    assertThat(sent).hasSize(1);
+    assertThat(sent.get(0)).containsExactlyInAnyOrder(
+      new DependencyLink("frontend", "backend", 2, 0),
+      new DependencyLink("backend", "kafka", 1, 0),
+      new DependencyLink("kafka", "indexer", 1, 0)
+    );
+  }
+
+  @Test public void countsErrors() {
+    MutableSpan error = span(Kind.CLIENT, "frontend", "backend");
+    error.error(new IllegalStateException());
+    handler.handle(context, error);
+    MutableSpan errorTag = span(Kind.CLIENT, "frontend", "backend");
+    errorTag.tag("error", "500");
+    handler.handle(context, errorTag);
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    handler.flush();
+
+    assertThat(sent.get(0)).containsExactly(new DependencyLink("frontend", "backend", 3, 2));
+  }
+
+  /** Calls and errors are drained together, so neither is lost to a concurrent increment. */
+  @Test public void flush_concurrentWithErrors() throws Exception {
+    int threadCount = 4, spansPerThread = 10000;
+    AtomicBoolean done = new AtomicBoolean();
+    Thread flusher = new Thread(() -> {
+      while (!done.get()) handler.flush();
+    });
+    flusher.start();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < spansPerThread; i++) {
+          MutableSpan span = span(Kind.CLIENT, "frontend", "backend");
+          if (i % 2 == 0) span.tag("error", "500");
+          handler.handle(context, span);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) thread.join();
+    done.set(true);
+    flusher.join();
+    handler.flush();
+
+    long calls = 0L, errors = 0L;
+    for (List<DependencyLink> links : sent) {
+      for (DependencyLink link : links) {
+        assertThat(link.errorCount()).isLessThanOrEqualTo(link.callCount());
+        calls += link.callCount();
+        errors += link.errorCount();
+      }
+    }
+    assertThat(calls).isEqualTo(threadCount * spansPerThread);
+    assertThat(errors).isEqualTo(threadCount * spansPerThread / 2);
+  }
+
+  @Test public void ignoresSpansWithoutBothServices() {
+    handler.handle(context, span(null, "frontend", "backend"));
+    handler.handle(context, span(Kind.CLIENT, "frontend", null));
+    handler.handle(context, span(Kind.SERVER, null, "frontend"));
+    handler.flush();
+
+    assertThat(sent).isEmpty();
+  }
+
+  @Test public void flushSendsDeltas() {
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    handler.flush();
+    handler.flush(); // nothing new
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    handler.flush();
+
+    assertThat(sent).containsExactly(
+      singletonList(new DependencyLink("frontend", "backend", 1, 0)),
+      singletonList(new DependencyLink("frontend", "backend", 2, 0))
+    );
+  }
+
+  @Test public void flushesAfterInterval() throws InterruptedException {
+    handler = DependencyLinksFinishedSpanHandler.newBuilder(sender)
+      .flushInterval(1, TimeUnit.NANOSECONDS)
+      .build();
+    Thread.sleep(1);
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+
+    assertThat(sent).hasSize(1);
+  }
+
+  @Test public void flush_doesntBlockOnSlowSender() throws Exception {
+    CountDownLatch sending = new CountDownLatch(1), unblock = new CountDownLatch(1);
+    List<List<DependencyLink>> sent = new CopyOnWriteArrayList<>();
+    handler = new DependencyLinksFinishedSpanHandler(
+      DependencyLinksFinishedSpanHandler.newBuilder(new DependencyLinkSender() {
+        @Override public void send(List<DependencyLink> links) {
+          if (sending.getCount() == 1) { // only block the first send
+            sending.countDown();
+            try {
+              unblock.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          sent.add(links);
+        }
+      }).flushInterval(1, TimeUnit.HOURS), 4);
+
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    Thread slowFlush = new Thread(handler::flush);
+    slowFlush.start();
+    assertThat(sending.await(1, TimeUnit.SECONDS)).isTrue();
+
+    handler.handle(context, span(Kind.CLIENT, "frontend", "cache"));
+    handler.flush(); // returns while the other flush is still sending
+    assertThat(sent).containsExactly(
+      singletonList(new DependencyLink("frontend", "cache", 1, 0)));
+
+    unblock.countDown();
+    slowFlush.join();
+    assertThat(sent).hasSize(2);
+  }
+
+  @Test public void dropsSpansOverMaxLinks() {
+    handler = DependencyLinksFinishedSpanHandler.newBuilder(sender).maxLinks(1).build();
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    handler.handle(context, span(Kind.CLIENT, "frontend", "cache"));
+    handler.flush();
+
+    assertThat(sent.get(0)).containsExactly(new DependencyLink("frontend", "backend", 1, 0));
+    assertThat(handler.droppedSpans()).isEqualTo(1);
+  }
+
+  @Test public void close_flushesAndDrops() {
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    handler.close();
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    handler.flush();
+
+    assertThat(sent).hasSize(1);
+    assertThat(handler.droppedSpans()).isEqualTo(1);
+  }
+
+  @Test public void senderErrorsAreLogged() {
+    handler = DependencyLinksFinishedSpanHandler.newBuilder(new DependencyLinkSender() {
+      @Override public void send(List<DependencyLink> links) throws IOException {
+        throw new IOException("timeout");
+      }
+    }).build();
+    handler.handle(context, span(Kind.CLIENT, "frontend", "backend"));
+    handler.flush(); // doesn't throw
+  }
+
+  @Test public void worksWithTracing() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .localServiceName("frontend")
+      .sampler(Sampler.NEVER_SAMPLE)
+      .alwaysSampleLocal()
+      .addFinishedSpanHandler(handler)
+      .build()) {
+      tracing.tracer().newTrace().kind(Kind.CLIENT).remoteServiceName("backend").start().finish();
+    }
+    handler.flush();
+
+    assertThat(sent.get(0)).containsExactly(new DependencyLink("frontend", "backend", 1, 0));
+  }
+
+  static MutableSpan span(Kind kind, String localServiceName, String remoteServiceName) {
+    MutableSpan span = new MutableSpan();
+    span.kind(kind);
+    span.localServiceName(localServiceName);
+    span.remoteServiceName(remoteServiceName);
+    return span;
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DiskSpoolingSpanBatchSenderTest {
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  List<String> messages = new ArrayList<>();
+  boolean fail;
+  SpanBatchSender delegate = new SpanBatchSender() {
+    @Override public void send(MutableSpanBytesEncoder encoder, byte[] message, int length,
+      int spanCount) throws IOException {
+      if (fail) throw new IOException("timeout");
+      messages.add(encoder + ":" + spanCount + ":" + new String(message, 0, length, UTF_8));
+    }
+  };
+  File directory;
+  DiskSpoolingSpanBatchSender spool;
+
+  @Before public void setup() throws IOException {
+    directory = folder.newFolder();
+    spool = DiskSpoolingSpanBatchSender.newBuilder(directory, delegate)
+      .segmentBytes(1024)
+      .maxSegments(3)
+      .build();
+  }
+
+  @After public void close() throws IOException {
+    spool.close();
+  }
+
+  @Test public void spoolsUntilDrained() throws IOException {
+    send(MutableSpanBytesEncoder.JSON_V2, "[1]", 1);
+    send(MutableSpanBytesEncoder.PROTO3, "2,3", 2);
+    assertThat(messages).isEmpty();
+    assertThat(spool.spooledBytes()).isEqualTo(2 * SpoolSegment.RECORD_HEADER_SIZE + 6);
+
+    assertThat(spool.drain()).isEqualTo(2);
+    assertThat(messages).containsExactly("JSON_V2:1:[1]", "PROTO3:2:2,3");
+    assertThat(spool.spooledBytes()).isZero();
+
+    assertThat(spool.drain()).isZero(); // already drained
+  }
+
+  @Test public void retriesMessageAfterDelegateFails() throws IOException {
+    send(MutableSpanBytesEncoder.JSON_V2, "[1]", 1);
+    send(MutableSpanBytesEncoder.JSON_V2, "[2]", 1);
+
+    fail = true;
+    assertThat(spool.drain()).isZero();
+
+    fail = false;
+    assertThat(spool.drain()).isEqualTo(2);
+    assertThat(messages).containsExactly("JSON_V2:1:[1]", "JSON_V2:1:[2]");
+  }
+
+  /** Drained segments are reused, as a deleted file holds disk space while it is mapped. */
+  @Test public void rollsAndReusesSegments() throws IOException {
+    for (int i = 0; i < 20; i++) send(MutableSpanBytesEncoder.JSON_V2, message(100, i), 1);
+    String[] files = directory.list();
+    assertThat(files).hasSize(3);
+
+    assertThat(spool.drain()).isEqualTo(20);
+    assertThat(spool.free).hasSize(2);
+
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 16; i++) send(MutableSpanBytesEncoder.JSON_V2, message(100, i), 1);
+      assertThat(spool.drain()).isEqualTo(16);
+    }
+    assertThat(directory.list()).containsExactlyInAnyOrder(files);
+    assertThat(messages).hasSize(68);
+  }
+
+  @Test public void recovery_ordersReusedSegmentsBySequence() throws IOException {
+    // 4 messages fit in each segment, so this rotates which files hold the oldest messages
+    for (int i = 0; i < 12; i++) send(MutableSpanBytesEncoder.JSON_V2, message(200, i), 1);
+    spool.drain();
+    for (int i = 12; i < 20; i++) send(MutableSpanBytesEncoder.JSON_V2, message(200, i), 1);
+    spool.drain();
+    for (int i = 20; i < 28; i++) send(MutableSpanBytesEncoder.JSON_V2, message(200, i), 1);
+    spool.close(); // the newest messages are in the file with the lowest index
+
+    messages.clear();
+    spool = DiskSpoolingSpanBatchSender.newBuilder(directory, delegate)
+      .segmentBytes(1024)
+      .maxSegments(3)
+      .build();
+
+    assertThat(spool.drain()).isEqualTo(8);
+    assertThat(messages.get(0)).endsWith(message(200, 20));
+    assertThat(messages.get(7)).endsWith(message(200, 27));
+    assertThat(directory.list()).hasSize(3);
+  }
+
+  @Test public void dropsWhenFull() throws IOException {
+    byte[] message = message(200, 0).getBytes(UTF_8);
+    int sent = 0;
+    try {
+      while (true) {
+        spool.send(MutableSpanBytesEncoder.JSON_V2, message, message.length, 2);
+        sent++;
+      }
+    } catch (IOException e) {
+      assertThat(e).hasMessage("spool full");
+    }
+    assertThat(sent).isEqualTo(12); // 4 messages of 216 bytes fit in each segment of 1024 bytes
+    assertThat(spool.droppedMessages()).isEqualTo(1);
+    assertThat(spool.droppedSpans()).isEqualTo(2);
+
+    spool.drain(); // makes room
+    send(MutableSpanBytesEncoder.JSON_V2, "[1]", 1);
+  }
+
+  @Test public void dropsMessageLargerThanSegment() {
+    byte[] message = new byte[1024];
+    assertThatThrownBy(
+      () -> spool.send(MutableSpanBytesEncoder.JSON_V2, message, message.length, 1)
+    ).hasMessage("message larger than segmentBytes: 1024");
+    assertThat(spool.droppedMessages()).isEqualTo(1);
+  }
+
+  @Test public void dropsAfterClose() throws IOException {
+    spool.close();
+
+    assertThatThrownBy(() -> send(MutableSpanBytesEncoder.JSON_V2, "[1]", 1))
+      .hasMessage("spool closed");
+    assertThat(spool.drain()).isZero();
+  }
+
+  @Test public void recoversAfterRestart() throws IOException {
+    for (int i = 0; i < 6; i++) send(MutableSpanBytesEncoder.JSON_V2, message(200, i), 1);
+    fail = true;
+    spool.drain();
+    spool.close();
+
+    fail = false;
+    spool = DiskSpoolingSpanBatchSender.newBuilder(directory, delegate)
+      .segmentBytes(1024)
+      .maxSegments(3)
+      .build();
+    send(MutableSpanBytesEncoder.JSON_V2, "[6]", 1);
+
+    assertThat(spool.drain()).isEqualTo(7);
+    assertThat(messages).last().isEqualTo("JSON_V2:1:[6]");
+    assertThat(messages.get(0)).endsWith(message(200, 0));
+  }
+
+  @Test public void recovery_skipsDrainedMessages() throws IOException {
+    send(MutableSpanBytesEncoder.JSON_V2, "[1]", 1);
+    spool.drain();
+    send(MutableSpanBytesEncoder.JSON_V2, "[2]", 1);
+    spool.close();
+
+    messages.clear();
+    spool = DiskSpoolingSpanBatchSender.newBuilder(directory, delegate).build();
+    spool.drain();
+
+    assertThat(messages).containsExactly("JSON_V2:1:[2]");
+  }
+
+  @Test public void recovery_deletesSegmentWithInvalidHeader() throws IOException {
+    send(MutableSpanBytesEncoder.JSON_V2, "[1]", 1);
+    spool.close();
+    File segment = new File(directory, directory.list()[0]);
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.writeInt(0); // clobber the magic
+    }
+
+    spool = DiskSpoolingSpanBatchSender.newBuilder(directory, delegate).build();
+
+    assertThat(spool.drain()).isZero();
+    assertThat(directory.list()).hasSize(1); // the new write segment
+  }
+
+  @Test public void skipsCorruptMessage() throws IOException {
+    send(MutableSpanBytesEncoder.JSON_V2, "[1]", 1);
+    send(MutableSpanBytesEncoder.JSON_V2, "[2]", 1);
+    spool.close();
+    File segment = new File(directory, directory.list()[0]);
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.seek(SpoolSegment.HEADER_SIZE + SpoolSegment.RECORD_HEADER_SIZE);
+      raf.write('{'); // the checksum no longer matches
+    }
+
+    spool = DiskSpoolingSpanBatchSender.newBuilder(directory, delegate).build();
+    send(MutableSpanBytesEncoder.JSON_V2, "[3]", 1);
+
+    assertThat(spool.drain()).isEqualTo(1);
+    assertThat(messages).containsExactly("JSON_V2:1:[3]");
+  }
+
+  void send(MutableSpanBytesEncoder encoder, String message, int spanCount) throws IOException {
+    byte[] bytes = message.getBytes(UTF_8);
+    spool.send(encoder, Arrays.copyOf(bytes, bytes.length + 10), bytes.length, spanCount);
+  }
+
+  static String message(int length, int id) {
+    char[] result = new char[length];
+    Arrays.fill(result, 'a');
+    String prefix = "[" + id + "]";
+    prefix.getChars(0, prefix.length(), result, 0);
+    return new String(result);
+  }
+}
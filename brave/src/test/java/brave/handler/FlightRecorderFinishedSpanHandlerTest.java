@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+import static brave.handler.BatchingFinishedSpanHandlerTest.span;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FlightRecorderFinishedSpanHandlerTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+  FlightRecorderFinishedSpanHandler handler = FlightRecorderFinishedSpanHandler.newBuilder()
+    .spansPerService(4)
+    .build();
+
+  @Test public void dumpsEachEncoding() throws IOException {
+    for (MutableSpanBytesEncoder encoder : MutableSpanBytesEncoder.values()) {
+      handler = FlightRecorderFinishedSpanHandler.newBuilder().encoder(encoder).build();
+      handler.handle(context, span("1"));
+      handler.handle(context, span("2"));
+
+      assertThat(dump(SpanBytesDecoder.valueOf(encoder.name()))).extracting(Span::id)
+        .containsExactly("0000000000000001", "0000000000000002");
+    }
+  }
+
+  @Test public void dump_empty() throws IOException {
+    handler = FlightRecorderFinishedSpanHandler.newBuilder()
+      .encoder(MutableSpanBytesEncoder.JSON_V2)
+      .build();
+
+    assertThat(dump(SpanBytesDecoder.JSON_V2)).isEmpty();
+  }
+
+  @Test public void keepsMostRecentSpansPerService() throws IOException {
+    for (int i = 1; i <= 9; i++) handler.handle(context, span(String.valueOf(i)));
+    MutableSpan other = span("1");
+    other.localServiceName("other");
+    handler.handle(context, other);
+
+    List<Span> spans = dump(SpanBytesDecoder.PROTO3);
+    assertThat(spans).filteredOn(s -> s.localServiceName().equals("favistar"))
+      .extracting(Span::id)
+      .containsExactly("0000000000000006", "0000000000000007", "0000000000000008",
+        "0000000000000009");
+    assertThat(spans).filteredOn(s -> s.localServiceName().equals("other"))
+      .hasSize(1);
+  }
+
+  @Test public void dropsSpansOfTooManyServices() throws IOException {
+    handler = FlightRecorderFinishedSpanHandler.newBuilder().maxServices(1).build();
+    handler.handle(context, span("1"));
+    MutableSpan other = span("2");
+    other.localServiceName("other");
+    handler.handle(context, other);
+
+    assertThat(dump(SpanBytesDecoder.PROTO3)).extracting(Span::id)
+      .containsExactly("0000000000000001");
+    assertThat(handler.droppedSpans()).isOne();
+  }
+
+  @Test public void maxServices_concurrentNewServices() throws Exception {
+    handler = FlightRecorderFinishedSpanHandler.newBuilder().maxServices(4).build();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int thread = t;
+      threads.add(new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (int i = 0; i < 1000; i++) handler.ring("service" + (thread * 1000 + i) % 16);
+      }));
+    }
+    for (Thread thread : threads) thread.start();
+    start.countDown();
+    for (Thread thread : threads) thread.join();
+
+    assertThat(handler.rings).hasSize(4);
+    assertThat(handler.ringCount.get()).isEqualTo(4);
+  }
+
+  @Test public void dropsLargeSpans() throws IOException {
+    handler = FlightRecorderFinishedSpanHandler.newBuilder().maxSpanBytes(16).build();
+    handler.handle(context, span("1"));
+
+    assertThat(dump(SpanBytesDecoder.PROTO3)).isEmpty();
+    assertThat(handler.droppedSpans()).isOne();
+  }
+
+  @Test public void addsErrorTag() throws IOException {
+    MutableSpan span = span("1");
+    span.error(new IllegalStateException("oops"));
+    handler.handle(context, span);
+
+    assertThat(dump(SpanBytesDecoder.PROTO3).get(0).tags()).containsEntry("error", "oops");
+  }
+
+  @Test public void dumpsToFile() throws IOException {
+    handler.handle(context, span("1"));
+    File file = folder.newFile();
+
+    assertThat(handler.dump(file)).isOne();
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(Files.readAllBytes(file.toPath())))
+      .extracting(Span::id)
+      .containsExactly("0000000000000001");
+  }
+
+  @Test public void recordsUnsampledSpansWithAlwaysSampleLocal() throws IOException {
+    try (Tracing tracing = Tracing.newBuilder()
+      .sampler(Sampler.NEVER_SAMPLE)
+      .alwaysSampleLocal()
+      .addFinishedSpanHandler(handler)
+      .build()) {
+      tracing.tracer().newTrace().name("foo").start().finish();
+    }
+
+    assertThat(dump(SpanBytesDecoder.PROTO3)).extracting(Span::name).containsExactly("foo");
+  }
+
+  List<Span> dump(SpanBytesDecoder decoder) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int count = handler.dump(out);
+    List<Span> result = decoder.decodeList(out.toByteArray());
+    assertThat(result).hasSize(count);
+    return result;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import org.junit.Test;
+
+import static brave.handler.LogLinearHistogram.BUCKET_COUNT;
+import static brave.handler.LogLinearHistogram.bucket;
+import static brave.handler.LogLinearHistogram.lowerBound;
+import static brave.handler.LogLinearHistogram.upperBound;
+import static brave.handler.LogLinearHistogram.valueAtQuantile;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogLinearHistogramTest {
+  @Test public void bucketsAreContiguous() {
+    assertThat(lowerBound(0)).isZero();
+    for (int i = 1; i < BUCKET_COUNT; i++) {
+      assertThat(lowerBound(i)).isEqualTo(upperBound(i - 1) + 1);
+      assertThat(bucket(lowerBound(i))).isEqualTo(i);
+      assertThat(bucket(upperBound(i))).isEqualTo(i);
+    }
+    assertThat(upperBound(BUCKET_COUNT - 1)).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test public void relativeErrorUnderEighth() {
+    for (long value = 1; value < 1_000_000; value = value * 3 / 2 + 1) {
+      int bucket = bucket(value);
+      assertThat(upperBound(bucket) - lowerBound(bucket))
+        .isLessThanOrEqualTo(Math.max(0, value / 8));
+    }
+  }
+
+  @Test public void valueAtQuantile_percentiles() {
+    LogLinearHistogram histogram = new LogLinearHistogram();
+    for (int i = 1; i <= 100; i++) histogram.record(i * 1000L);
+    long[] counts = histogram.snapshot();
+
+    assertThat(valueAtQuantile(counts, 0.5)).isBetween(50_000L, 50_000L * 9 / 8);
+    assertThat(valueAtQuantile(counts, 0.99)).isBetween(99_000L, 99_000L * 9 / 8);
+    assertThat(valueAtQuantile(counts, 1.0)).isBetween(100_000L, 100_000L * 9 / 8);
+  }
+
+  @Test public void valueAtQuantile_empty() {
+    assertThat(valueAtQuantile(new LogLinearHistogram().snapshot(), 0.99)).isZero();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void valueAtQuantile_invalid() {
+    valueAtQuantile(new LogLinearHistogram().snapshot(), 1.1);
+  }
+}
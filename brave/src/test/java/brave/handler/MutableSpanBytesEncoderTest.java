@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.ErrorParser;
+import brave.Span.Kind;
+import brave.internal.handler.ZipkinFinishedSpanHandler;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MutableSpanBytesEncoderTest {
+  TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(333L).traceId(444L).parentId(1L).spanId(3L).sampled(true).build();
+  List<Span> zipkinSpans = new ArrayList<>();
+  ZipkinFinishedSpanHandler zipkinHandler = new ZipkinFinishedSpanHandler(
+    new MutableSpan(), zipkinSpans::add, ErrorParser.get(), true);
+
+  /** Codes are persisted in files, so they must not change when constants are added. */
+  @Test public void code_isStable() {
+    assertThat(MutableSpanBytesEncoder.JSON_V2.code).isZero();
+    assertThat(MutableSpanBytesEncoder.PROTO3.code).isEqualTo(1);
+    for (MutableSpanBytesEncoder encoder : MutableSpanBytesEncoder.values()) {
+      assertThat(MutableSpanBytesEncoder.forCode(encoder.code)).isSameAs(encoder);
+    }
+    assertThat(MutableSpanBytesEncoder.forCode(-1)).isNull();
+  }
+
+  @Test public void minimal() {
+    MutableSpan span = new MutableSpan();
+    span.traceId("0000000000000001");
+    span.id("0000000000000002");
+
+    assertRoundTrip(span);
+    assertThat(new String(MutableSpanBytesEncoder.JSON_V2.encode(span)))
+      .isEqualTo("{\"traceId\":\"0000000000000001\",\"id\":\"0000000000000002\"}");
+  }
+
+  @Test public void allFields() {
+    assertRoundTrip(allFieldsSpan());
+  }
+
+  @Test public void allFields_ipv6() {
+    MutableSpan span = allFieldsSpan();
+    span.localIp("2001:db8::c001");
+    span.remoteIpAndPort("::1", 443);
+    assertRoundTrip(span);
+  }
+
+  @Test public void allFields_remoteServiceNameOnly() {
+    MutableSpan span = allFieldsSpan();
+    span.remoteIpAndPort(null, 0);
+    assertRoundTrip(span);
+  }
+
+  @Test public void lowercasesNames() {
+    MutableSpan span = allFieldsSpan();
+    span.name("GET /Foo");
+    span.localServiceName("FaviStar");
+
+    Span decoded = SpanBytesDecoder.JSON_V2.decodeOne(MutableSpanBytesEncoder.JSON_V2.encode(span));
+    assertThat(decoded.name()).isEqualTo("get /foo");
+    assertThat(decoded.localServiceName()).isEqualTo("favistar");
+  }
+
+  @Test public void unicode() {
+    MutableSpan span = allFieldsSpan();
+    span.tag("emoji", "😀 \"quoted\"\n");
+    span.annotate(5L, "ü");
+    assertRoundTrip(span);
+  }
+
+  @Test public void sizeInBytes() {
+    MutableSpan span = allFieldsSpan();
+    for (MutableSpanBytesEncoder encoder : MutableSpanBytesEncoder.values()) {
+      assertThat(encoder.sizeInBytes(span)).isEqualTo(encoder.encode(span).length);
+    }
+  }
+
+  @Test public void encodeList() {
+    MutableSpan span1 = allFieldsSpan(), span2 = new MutableSpan();
+    span2.traceId("0000000000000001");
+    span2.id("0000000000000002");
+    List<Span> expected = asList(convert(span1), convert(span2));
+
+    assertThat(SpanBytesDecoder.JSON_V2.decodeList(
+      MutableSpanBytesEncoder.JSON_V2.encodeList(asList(span1, span2)))
+    ).isEqualTo(expected);
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(
+      MutableSpanBytesEncoder.PROTO3.encodeList(asList(span1, span2)))
+    ).isEqualTo(expected);
+  }
+
+  @Test public void encodeList_empty() {
+    assertThat(MutableSpanBytesEncoder.JSON_V2.encodeList(new ArrayList<>()))
+      .isEqualTo("[]".getBytes());
+    assertThat(MutableSpanBytesEncoder.PROTO3.encodeList(new ArrayList<>()))
+      .isEmpty();
+  }
+
+  MutableSpan allFieldsSpan() {
+    MutableSpan span = new MutableSpan(context, null);
+    span.name("get");
+    span.kind(Kind.SERVER);
+    span.startTimestamp(1000L);
+    span.finishTimestamp(1500L);
+    span.localServiceName("favistar");
+    span.localIp("1.2.3.4");
+    span.localPort(80);
+    span.remoteServiceName("backend");
+    span.remoteIpAndPort("192.168.99.101", 9000);
+    span.annotate(1100L, "wr");
+    span.annotate(1200L, "ws");
+    span.tag("http.path", "/api");
+    span.tag("clnt/finagle.version", "6.45.0");
+    span.setShared();
+    span.setDebug();
+    return span;
+  }
+
+  Span convert(MutableSpan span) {
+    zipkinSpans.clear();
+    zipkinHandler.handle(context, span);
+    return zipkinSpans.get(0);
+  }
+
+  void assertRoundTrip(MutableSpan span) {
+    Span expected = convert(span);
+    assertThat(SpanBytesDecoder.JSON_V2.decodeOne(MutableSpanBytesEncoder.JSON_V2.encode(span)))
+      .isEqualTo(expected);
+    assertThat(SpanBytesDecoder.PROTO3.decodeOne(MutableSpanBytesEncoder.PROTO3.encode(span)))
+      .isEqualTo(expected);
+  }
+}
@@ -528,6 +528,32 @@ public class MutableSpanTest {
     assertThat(new MutableSpan(context, null)).isEqualTo(span);
   }
 
+  @Test public void contextConstructor_lazyIdStrings() {
+    TraceContext context = TraceContext.newBuilder()
+      .traceIdHigh(1L).traceId(2L).parentId(3L).spanId(4L).build();
+    MutableSpan span = new MutableSpan(context, null);
+    assertThat(span.traceIdString).isNull();
+    assertThat(span.parentIdString).isNull();
+    assertThat(span.idString).isNull();
+
+    assertThat(span.traceId()).isEqualTo(context.traceIdString());
+    assertThat(span.parentId()).isEqualTo(context.parentIdString());
+    assertThat(span.id()).isEqualTo(context.spanIdString());
+    assertThat(span.id()).isSameAs(span.id()); // cached
+  }
+
+  @Test public void idSetters_overrideContext() {
+    TraceContext context = TraceContext.newBuilder().traceId(1L).parentId(2L).spanId(3L).build();
+    MutableSpan span = new MutableSpan(context, null);
+    span.traceId("000000000000000a");
+    span.parentId(null);
+    span.id("000000000000000b");
+
+    assertThat(span.traceId()).isEqualTo("000000000000000a");
+    assertThat(span.parentId()).isNull();
+    assertThat(span.id()).isEqualTo("000000000000000b");
+  }
+
   @Test public void contextConstructor_contextWins() {
     MutableSpan span = new MutableSpan();
     span.traceId("0000000000000001");
@@ -554,6 +580,57 @@ public class MutableSpanTest {
     assertThat(span.tagCount()).isEqualTo(1);
   }
 
+  @Test public void equalsAndHashCode_ignoresCapacity() {
+    MutableSpan span = new MutableSpan(), presized = new MutableSpan();
+    presized.ensureTagCapacity(10);
+    presized.ensureAnnotationCapacity(10);
+    for (MutableSpan s : asList(span, presized)) {
+      s.tag("http.method", "GET");
+      s.annotate(1L, "cs");
+    }
+
+    assertThat(presized).isEqualTo(span);
+    assertThat(presized).hasSameHashCodeAs(span);
+  }
+
+  @Test public void equals_removedTagsAndAnnotations() {
+    MutableSpan span = new MutableSpan();
+    span.tag("http.method", "GET");
+    span.annotate(1L, "cs");
+    span.forEachTag((key, value) -> null);
+    span.forEachAnnotation((timestamp, value) -> null);
+
+    assertThat(span).isEqualTo(new MutableSpan());
+  }
+
+  @Test public void growsBeyondDefaultCapacity() {
+    MutableSpan span = new MutableSpan();
+    for (int i = 0; i < 100; i++) {
+      span.tag("key" + i, "value" + i);
+      span.annotate(i + 1L, "value" + i);
+    }
+
+    assertThat(span.tagCount()).isEqualTo(100);
+    assertThat(span.annotationCount()).isEqualTo(100);
+    assertThat(span.tag("key99")).isEqualTo("value99");
+
+    List<Long> timestamps = new ArrayList<>();
+    span.forEachAnnotation((target, timestamp, value) -> target.add(timestamp), timestamps);
+    assertThat(timestamps).hasSize(100).startsWith(1L).endsWith(100L);
+  }
+
+  @Test public void forEachAnnotation_updater_retainsOrder() {
+    MutableSpan span = new MutableSpan();
+    span.annotate(1L, "a");
+    span.annotate(2L, "b");
+    span.annotate(3L, "c");
+    span.forEachAnnotation((timestamp, value) -> value.equals("b") ? null : value.toUpperCase());
+
+    List<String> values = new ArrayList<>();
+    span.forEachAnnotation((target, timestamp, value) -> target.add(timestamp + value), values);
+    assertThat(values).containsExactly("1A", "3C");
+  }
+
   @Test public void accessorScansTags() {
     MutableSpan span = new MutableSpan();
     span.tag("http.method", "GET");
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.ScopedSpan;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RecentTracesFinishedSpanHandlerTest {
+  long now = 100_000_000L;
+  RecentTracesFinishedSpanHandler handler = RecentTracesFinishedSpanHandler.newBuilder()
+    .clock(() -> now)
+    .build();
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(1L).build();
+
+  @Test public void trace() {
+    handler.handle(context, span("1", "1", "1", "get", 10));
+    handler.handle(context, span("1", "1", "2", "get", 10));
+    handler.handle(context, span("2", "3", "3", "get", 10));
+
+    assertThat(handler.trace("0000000000000001")).extracting(MutableSpan::id)
+      .containsExactly("0000000000000001", "0000000000000002");
+    assertThat(handler.trace("0000000000000003")).isEmpty();
+  }
+
+  @Test public void localRoot() {
+    handler.handle(context, span("1", "1", "2", "get", 10));
+    handler.handle(context, span("1", "1", "1", "get", 10));
+    handler.handle(context, span("1", "3", "3", "get", 10));
+
+    assertThat(handler.localRoot("0000000000000001")).extracting(MutableSpan::id)
+      .containsExactly("0000000000000002", "0000000000000001");
+  }
+
+  @Test public void slowestLocalRoots() {
+    for (int i = 1; i <= 9; i++) {
+      String id = String.valueOf(i);
+      handler.handle(context, span(id, id, id, "get", i * 1000));
+      handler.handle(context, span(id, id, id + "0", "get", 100_000)); // not a local root
+    }
+    handler.handle(context, span("1", "1", "1", "post", 100_000)); // different name
+
+    assertThat(handler.slowestLocalRoots("favistar", "get", 3, 1, TimeUnit.MINUTES))
+      .extracting(MutableSpan::id)
+      .containsExactly("0000000000000009", "0000000000000008", "0000000000000007");
+  }
+
+  @Test public void slowestSpans() {
+    handler.handle(context, span("1", "1", "1", "get", 1000));
+    handler.handle(context, span("1", "1", "2", "get", 1001)); // same duration bucket
+    handler.handle(context, span("1", "1", "3", "get", 999));
+
+    assertThat(handler.slowestSpans("favistar", "get", 2, 1, TimeUnit.MINUTES))
+      .extracting(MutableSpan::id)
+      .containsExactly("0000000000000002", "0000000000000001");
+  }
+
+  @Test public void slowest_excludesSpansOutsideWindow() {
+    handler.handle(context, span("1", "1", "1", "get", 5000));
+    now += TimeUnit.SECONDS.toMicros(61);
+    handler.handle(context, span("2", "2", "2", "get", 1000));
+
+    assertThat(handler.slowestLocalRoots("favistar", "get", 10, 1, TimeUnit.MINUTES))
+      .extracting(MutableSpan::id)
+      .containsExactly("0000000000000002");
+  }
+
+  @Test public void slowest_unknownName() {
+    assertThat(handler.slowestSpans("favistar", "get", 10, 1, TimeUnit.MINUTES)).isEmpty();
+    assertThat(handler.slowestSpans(null, null, 10, 1, TimeUnit.MINUTES)).isEmpty();
+  }
+
+  @Test public void evictsOldestSpans() {
+    handler = RecentTracesFinishedSpanHandler.newBuilder().maxSpans(2).clock(() -> now).build();
+    handler.handle(context, span("1", "1", "1", "get", 10));
+    handler.handle(context, span("2", "2", "2", "get", 10));
+    handler.handle(context, span("3", "3", "3", "get", 10));
+
+    assertThat(handler.spanCount()).isEqualTo(2);
+    assertThat(handler.trace("0000000000000001")).isEmpty();
+    assertThat(handler.localRoot("0000000000000001")).isEmpty();
+    assertThat(handler.slowestSpans("favistar", "get", 10, 1, TimeUnit.MINUTES))
+      .extracting(MutableSpan::id)
+      .containsExactlyInAnyOrder("0000000000000002", "0000000000000003");
+    assertThat(handler.byName).hasSize(1);
+    assertThat(handler.byTraceId).hasSize(2);
+  }
+
+  @Test public void copiesSpans() {
+    MutableSpan span = span("1", "1", "1", "get", 10);
+    handler.handle(context, span);
+    span.name("changed");
+
+    List<MutableSpan> trace = handler.trace("0000000000000001");
+    assertThat(trace.get(0).name()).isEqualTo("get");
+
+    trace.get(0).name("changed");
+    assertThat(handler.trace("0000000000000001").get(0).name()).isEqualTo("get");
+  }
+
+  @Test public void worksWithTracing() {
+    handler = RecentTracesFinishedSpanHandler.newBuilder().build();
+    try (Tracing tracing = Tracing.newBuilder()
+      .localServiceName("favistar")
+      .addFinishedSpanHandler(handler)
+      .build()) {
+      Tracer tracer = tracing.tracer();
+      ScopedSpan root = tracer.startScopedSpan("get");
+      tracer.startScopedSpan("child").finish();
+      root.finish();
+
+      String localRootId = root.context().localRootIdString();
+      assertThat(handler.localRoot(localRootId)).extracting(MutableSpan::name)
+        .containsExactly("child", "get");
+      assertThat(handler.slowestLocalRoots("favistar", "get", 1, 1, TimeUnit.MINUTES))
+        .extracting(MutableSpan::id)
+        .containsExactly(root.context().spanIdString());
+    }
+  }
+
+  MutableSpan span(String traceId, String localRootId, String id, String name, long duration) {
+    MutableSpan span = new MutableSpan();
+    span.traceId(pad(traceId));
+    span.localRootId(pad(localRootId));
+    span.id(pad(id));
+    span.name(name);
+    span.localServiceName("favistar");
+    span.startTimestamp(now - duration);
+    span.finishTimestamp(now);
+    return span;
+  }
+
+  static String pad(String id) {
+    return "0000000000000000".substring(id.length()) + id;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Span.Kind;
+import brave.Tracing;
+import brave.handler.RedMetricsFinishedSpanHandler.Metrics;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RedMetricsFinishedSpanHandlerTest {
+  RedMetricsFinishedSpanHandler handler = RedMetricsFinishedSpanHandler.newBuilder().build();
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+
+  @Test public void aggregatesByKey() {
+    for (int i = 1; i <= 100; i++) handler.handle(context, span("get", Kind.SERVER, i * 100L));
+    handler.handle(context, span("get", Kind.CLIENT, 50L));
+    MutableSpan error = span("get", Kind.SERVER, 10L);
+    error.error(new IllegalStateException());
+    handler.handle(context, error);
+
+    assertThat(handler.snapshot()).hasSize(2);
+    Metrics server = metrics(Kind.SERVER);
+    assertThat(server.localServiceName()).isEqualTo("frontend");
+    assertThat(server.name()).isEqualTo("get");
+    assertThat(server.remoteServiceName()).isEqualTo("backend");
+    assertThat(server.count()).isEqualTo(101);
+    assertThat(server.errorCount()).isEqualTo(1);
+    assertThat(server.durationSum()).isEqualTo(505_010L);
+    assertThat(server.durationAtQuantile(0.99)).isBetween(9_900L, 9_900L * 9 / 8);
+
+    Metrics client = metrics(Kind.CLIENT);
+    assertThat(client.count()).isEqualTo(1);
+    assertThat(client.durationAtQuantile(0.5)).isBetween(50L, 50L * 9 / 8);
+  }
+
+  @Test public void errorTagCountsAsError() {
+    MutableSpan span = span("get", Kind.SERVER, 10L);
+    span.tag("error", "500");
+    handler.handle(context, span);
+
+    assertThat(metrics(Kind.SERVER).errorCount()).isEqualTo(1);
+  }
+
+  @Test public void nullKeyFields() {
+    MutableSpan span = new MutableSpan();
+    handler.handle(context, span);
+    handler.handle(context, span);
+
+    assertThat(handler.snapshot()).hasSize(1);
+    Metrics metrics = handler.snapshot().get(0);
+    assertThat(metrics.kind()).isNull();
+    assertThat(metrics.count()).isEqualTo(2);
+    assertThat(metrics.durationSum()).isZero(); // no timestamps
+  }
+
+  @Test public void dropsSpansOverMaxCardinality() {
+    handler = RedMetricsFinishedSpanHandler.newBuilder().maxCardinality(2).build();
+    for (int i = 0; i < 10; i++) handler.handle(context, span("get" + i, Kind.SERVER, 10L));
+    handler.handle(context, span("get0", Kind.SERVER, 10L));
+
+    assertThat(handler.snapshot()).extracting(Metrics::name)
+      .containsExactlyInAnyOrder("get0", "get1");
+    assertThat(handler.droppedSpans()).isEqualTo(8);
+  }
+
+  @Test public void worksWithTracing() {
+    try (Tracing tracing = Tracing.newBuilder()
+      .localServiceName("frontend")
+      .alwaysSampleLocal()
+      .sampler(Sampler.NEVER_SAMPLE)
+      .addFinishedSpanHandler(handler)
+      .build()) {
+      tracing.tracer().newTrace().name("get").kind(Kind.SERVER).start(1L).finish(11L);
+    }
+
+    assertThat(metrics(Kind.SERVER).durationSum()).isEqualTo(10L);
+  }
+
+  Metrics metrics(Kind kind) {
+    for (Metrics metrics : handler.snapshot()) {
+      if (metrics.kind() == kind) return metrics;
+    }
+    throw new AssertionError("no metrics for " + kind);
+  }
+
+  static MutableSpan span(String name, Kind kind, long duration) {
+    MutableSpan span = new MutableSpan();
+    span.localServiceName("frontend");
+    span.remoteServiceName("backend");
+    span.name(name);
+    span.kind(kind);
+    span.startTimestamp(1000L);
+    span.finishTimestamp(1000L + duration);
+    return span;
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+import static brave.handler.BatchingFinishedSpanHandlerTest.span;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SharedMemoryFinishedSpanHandlerTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  List<Span> spans = new ArrayList<>();
+  List<Integer> spanCounts = new ArrayList<>();
+  boolean fail;
+  SpanBatchSender sender = new SpanBatchSender() {
+    @Override public void send(MutableSpanBytesEncoder encoder, byte[] message, int length,
+      int spanCount) throws IOException {
+      if (fail) throw new IOException("timeout");
+      spanCounts.add(spanCount);
+      spans.addAll(SpanBytesDecoder.valueOf(encoder.name())
+        .decodeList(Arrays.copyOf(message, length)));
+    }
+  };
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+  File file;
+  SharedMemoryFinishedSpanHandler handler;
+  SharedMemorySpanReader reader;
+
+  @Before public void setup() throws IOException {
+    file = folder.newFile();
+    handler = SharedMemoryFinishedSpanHandler.newBuilder(file).ringCount(2).ringBytes(4096).build();
+    reader = SharedMemorySpanReader.open(file);
+  }
+
+  @After public void close() throws IOException {
+    handler.close();
+    reader.close();
+  }
+
+  @Test public void readsWrittenSpans() throws IOException {
+    handler.handle(context, span("1"));
+    handler.handle(context, span("2"));
+
+    assertThat(reader.drainTo(sender, 500000)).isEqualTo(2);
+    assertThat(spans).extracting(Span::id)
+      .containsExactly("0000000000000001", "0000000000000002");
+    assertThat(spanCounts).containsExactly(2);
+
+    assertThat(reader.drainTo(sender, 500000)).isZero(); // already read
+  }
+
+  @Test public void readsEachEncoding() throws IOException {
+    for (MutableSpanBytesEncoder encoder : MutableSpanBytesEncoder.values()) {
+      spans.clear();
+      handler = SharedMemoryFinishedSpanHandler.newBuilder(file).encoder(encoder).build();
+      reader = SharedMemorySpanReader.open(file);
+      assertThat(reader.encoder()).isEqualTo(encoder);
+
+      handler.handle(context, span("1"));
+      handler.handle(context, span("2"));
+      reader.drainTo(sender, 500000);
+
+      assertThat(spans).extracting(Span::id)
+        .containsExactly("0000000000000001", "0000000000000002");
+    }
+  }
+
+  @Test public void splitsMessages() throws IOException {
+    int spanSize = MutableSpanBytesEncoder.JSON_V2.sizeInBytes(span("1"));
+    for (int i = 1; i <= 5; i++) handler.handle(context, span(String.valueOf(i)));
+
+    reader.drainTo(sender, spanSize * 2 + MutableSpanBytesEncoder.JSON_V2.listOverheadInBytes(2));
+
+    assertThat(spanCounts).containsExactly(2, 2, 1);
+    assertThat(spans).hasSize(5);
+  }
+
+  @Test public void wrapsAround() throws IOException {
+    // span sizes aren't a multiple of the capacity, so records wrap with padding
+    for (int round = 0; round < 50; round++) {
+      for (int i = 1; i <= 9; i++) handler.handle(context, span(String.valueOf(i)));
+      assertThat(reader.drainTo(sender, 500000)).isEqualTo(9);
+    }
+    assertThat(spans).hasSize(450);
+    assertThat(spans.get(449).id()).isEqualTo("0000000000000009");
+    assertThat(handler.droppedSpans()).isZero();
+  }
+
+  @Test public void dropsWhenRingFull() throws IOException {
+    int written = 0;
+    while (handler.droppedSpans() == 0) {
+      handler.handle(context, span("1"));
+      written++;
+    }
+    assertThat(reader.drainTo(sender, 500000)).isEqualTo(written - 1);
+
+    handler.handle(context, span("2")); // there's room again
+    assertThat(reader.drainTo(sender, 500000)).isOne();
+  }
+
+  @Test public void retriesAfterSenderFails() throws IOException {
+    handler.handle(context, span("1"));
+
+    fail = true;
+    assertThatThrownBy(() -> reader.drainTo(sender, 500000)).isInstanceOf(IOException.class);
+
+    fail = false;
+    assertThat(reader.drainTo(sender, 500000)).isOne();
+  }
+
+  @Test public void readsFromAllRings() throws Exception {
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        for (int j = 1; j <= 5; j++) handler.handle(context, span(String.valueOf(j)));
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) thread.join();
+
+    assertThat(reader.drainTo(sender, 500000)).isEqualTo(20);
+  }
+
+  @Test public void dropsAfterClose() throws IOException {
+    handler.close();
+    handler.handle(context, span("1"));
+
+    assertThat(handler.droppedSpans()).isOne();
+    assertThat(reader.drainTo(sender, 500000)).isZero();
+  }
+
+  @Test public void skipsUnsampledUnlessAlwaysReportSpans() throws IOException {
+    TraceContext unsampled = context.toBuilder().sampled(false).build();
+    handler.handle(unsampled, span("1"));
+    assertThat(reader.drainTo(sender, 500000)).isZero();
+
+    handler = SharedMemoryFinishedSpanHandler.newBuilder(file).alwaysReportSpans(true).build();
+    reader = SharedMemorySpanReader.open(file);
+    handler.handle(unsampled, span("1"));
+    assertThat(reader.drainTo(sender, 500000)).isOne();
+  }
+
+  @Test public void reader_invalidFile() throws IOException {
+    File empty = folder.newFile();
+
+    assertThatThrownBy(() -> SharedMemorySpanReader.open(empty))
+      .isInstanceOf(IOException.class);
+  }
+
+  /** A reader of the previous file must not fault when a restarted process replaces it. */
+  @Test public void rebuild_replacesFileWithoutTruncatingIt() throws IOException {
+    handler.handle(context, span("1"));
+    handler.close();
+
+    handler = SharedMemoryFinishedSpanHandler.newBuilder(file).ringCount(4).ringBytes(8192).build();
+    handler.handle(context, span("2"));
+
+    assertThat(reader.drainTo(sender, 500000)).isOne(); // still reads the previous file
+    assertThat(spans).extracting(Span::id).containsExactly("0000000000000001");
+
+    reader.close();
+    reader = SharedMemorySpanReader.open(file);
+    assertThat(reader.rings).hasSize(4);
+    assertThat(reader.drainTo(sender, 500000)).isOne();
+    assertThat(folder.getRoot().list()).containsExactly(file.getName());
+  }
+
+  @Test public void worksWithTracing() throws IOException {
+    try (Tracing tracing = Tracing.newBuilder().addFinishedSpanHandler(handler).build()) {
+      tracing.tracer().newTrace().name("foo").start().finish();
+    }
+    reader.drainTo(sender, 500000);
+
+    assertThat(spans).extracting(Span::name).containsExactly("foo");
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.handler;
+
+import brave.ScopedSpan;
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TailSamplingFinishedSpanHandlerTest {
+  List<MutableSpan> kept = new ArrayList<>();
+  FinishedSpanHandler delegate = new FinishedSpanHandler() {
+    @Override public boolean handle(TraceContext context, MutableSpan span) {
+      kept.add(span);
+      return true;
+    }
+  };
+  TailSamplingFinishedSpanHandler handler;
+  Tracing tracing;
+  Tracer tracer;
+
+  void init(TailSamplingFinishedSpanHandler.Builder builder) {
+    handler = builder.build();
+    tracing = Tracing.newBuilder()
+      .sampler(Sampler.NEVER_SAMPLE)
+      .alwaysSampleLocal()
+      .addFinishedSpanHandler(handler)
+      .build();
+    tracer = tracing.tracer();
+  }
+
+  @After public void close() {
+    if (tracing != null) tracing.close();
+  }
+
+  @Test public void dropsUninterestingTraces() {
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate));
+
+    ScopedSpan root = tracer.startScopedSpan("root");
+    tracer.startScopedSpan("child").finish();
+    root.finish();
+
+    assertThat(kept).isEmpty();
+    assertThat(handler.droppedSpans()).isEqualTo(2);
+    assertThat(handler.groups).isEmpty();
+  }
+
+  @Test public void keepsWholeLocalRootOnError() {
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate));
+
+    ScopedSpan root = tracer.startScopedSpan("root");
+    tracer.startScopedSpan("child").error(new IllegalStateException()).finish();
+    assertThat(kept).isEmpty(); // buffered until the local root finishes
+    root.finish();
+
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("child", "root");
+    assertThat(handler.keptSpans()).isEqualTo(2);
+  }
+
+  @Test public void keepsSlowerThan() {
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate)
+      .keepSlowerThan(1, TimeUnit.SECONDS));
+
+    tracer.newTrace().name("fast").start(1L).finish(2L);
+    tracer.newTrace().name("slow").start(1L).finish(1L + 1_000_000L);
+
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("slow");
+  }
+
+  @Test public void keepsOnRule() {
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate)
+      .keep(span -> "important".equals(span.tag("priority")) ? true : null));
+
+    tracer.newTrace().name("boring").start().finish();
+    tracer.newTrace().name("interesting").tag("priority", "important").start().finish();
+
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("interesting");
+  }
+
+  @Test public void otherwise() {
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate)
+      .otherwise(Sampler.ALWAYS_SAMPLE));
+
+    tracer.newTrace().name("boring").start().finish();
+
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("boring");
+  }
+
+  @Test public void lateSpansFollowDecision() {
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate));
+
+    Span root = tracer.newTrace().name("root").start();
+    Span late = tracer.newChild(root.context()).name("late").start();
+    root.error(new IllegalStateException()).finish();
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("root");
+
+    late.finish();
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("root", "late");
+  }
+
+  @Test public void spansFinishingDuringDecisionFollowIt() {
+    Span[] late = new Span[1];
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate).keep(span -> {
+      if (late[0] != null) { // finish a child while the group of its local root is decided
+        Span child = late[0];
+        late[0] = null;
+        child.finish();
+      }
+      return "root".equals(span.name());
+    }));
+
+    Span root = tracer.newTrace().name("root").start();
+    late[0] = tracer.newChild(root.context()).name("late").start();
+    root.finish();
+
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("root", "late");
+    assertThat(handler.groups).isEmpty();
+    assertThat(handler.decisions).containsEntry(root.context().localRootId(), true);
+  }
+
+  @Test public void evictsOldestGroup() {
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate).maxSpans(2));
+
+    Span root1 = tracer.newTrace().name("root1").start();
+    tracer.newChild(root1.context()).name("child1").error(new IllegalStateException())
+      .start().finish();
+    Span root2 = tracer.newTrace().name("root2").start();
+    tracer.newChild(root2.context()).name("child2a").start().finish();
+    assertThat(handler.bufferedSpans).isEqualTo(2);
+    tracer.newChild(root2.context()).name("child2b").start().finish();
+
+    // the group of root1 was decided early, as it was oldest
+    assertThat(handler.evictedGroups()).isEqualTo(1);
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("child1");
+
+    root1.finish(); // follows the decision
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("child1", "root1");
+  }
+
+  @Test public void close_decidesBufferedGroups() {
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate));
+
+    ScopedSpan root = tracer.startScopedSpan("root");
+    tracer.startScopedSpan("child").error(new IllegalStateException()).finish();
+    handler.close();
+
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("child");
+    assertThat(handler.groups).isEmpty();
+
+    root.finish(); // decided on arrival after close
+    assertThat(kept).extracting(MutableSpan::name).containsExactly("child");
+  }
+
+  @Test public void copiesSpans() {
+    init(TailSamplingFinishedSpanHandler.newBuilder(delegate));
+    MutableSpan span = new MutableSpan();
+    span.name("child");
+    span.error(new IllegalStateException());
+    TraceContext root = tracer.newTrace().context();
+    TraceContext child = tracer.newChild(root).context();
+
+    handler.handle(child, span);
+    span.name("changed");
+    handler.handle(root, new MutableSpan());
+
+    assertThat(kept.get(0)).isNotSameAs(span);
+    assertThat(kept.get(0).name()).isEqualTo("child");
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal;
+
+import org.junit.Test;
+
+import static brave.internal.ExactMatchIndex.NO_RULE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExactMatchIndexTest {
+  ExactMatchIndex.Builder builder = new ExactMatchIndex.Builder();
+
+  @Test public void singleAttribute() {
+    ExactMatchIndex index = builder
+      .addRule(null, "alerts", null, 0)
+      .addRule(null, "complaints", null, 1)
+      .build();
+
+    assertThat(index.firstRule("receive", "alerts", "queue")).isEqualTo(0);
+    assertThat(index.firstRule(null, "complaints", null)).isEqualTo(1);
+    assertThat(index.firstRule(null, "hooks", null)).isEqualTo(NO_RULE);
+    assertThat(index.firstRule(null, null, null)).isEqualTo(NO_RULE);
+  }
+
+  @Test public void multipleAttributes() {
+    ExactMatchIndex index = builder
+      .addRule("receive", null, "alerts", 0)
+      .build();
+
+    assertThat(index.firstRule("receive", "queue", "alerts")).isEqualTo(0);
+    assertThat(index.firstRule("send", "queue", "alerts")).isEqualTo(NO_RULE);
+    assertThat(index.firstRule("receive", "queue", "complaints")).isEqualTo(NO_RULE);
+    assertThat(index.firstRule(null, "queue", "alerts")).isEqualTo(NO_RULE);
+  }
+
+  @Test public void firstRuleWinsAcrossShapes() {
+    ExactMatchIndex index = builder
+      .addRule("receive", null, null, 0)
+      .addRule("receive", null, "alerts", 1)
+      .addRule(null, null, "alerts", 2)
+      .build();
+
+    assertThat(index.firstRule("receive", null, "alerts")).isEqualTo(0);
+    assertThat(index.firstRule("send", null, "alerts")).isEqualTo(2);
+  }
+
+  @Test public void firstRuleWinsOnSameValues() {
+    ExactMatchIndex index = builder
+      .addRule(null, null, "alerts", 1)
+      .addRule(null, null, "alerts", 0)
+      .addRule(null, null, "alerts", 2)
+      .build();
+
+    assertThat(index.firstRule(null, null, "alerts")).isEqualTo(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void addRule_mustConstrainAnAttribute() {
+    builder.addRule(null, null, null, 0);
+  }
+}
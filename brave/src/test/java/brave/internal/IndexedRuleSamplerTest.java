@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal;
+
+import brave.internal.IndexedRuleSampler.IndexBuilder;
+import brave.internal.IndexedRuleSampler.Indexer;
+import brave.sampler.Matcher;
+import brave.sampler.ParameterizedSampler;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexedRuleSamplerTest {
+  /** Indexes rules that require an exact string. */
+  static final class Equals implements Matcher<String> {
+    final String value;
+
+    Equals(String value) {
+      this.value = value;
+    }
+
+    @Override public boolean matches(String request) {
+      return value.equals(request);
+    }
+  }
+
+  static final class EqualsIndex implements SamplerFunction<String> {
+    final Map<String, Sampler> samplers;
+
+    EqualsIndex(Map<String, Sampler> samplers) {
+      this.samplers = samplers;
+    }
+
+    @Override public Boolean trySample(String request) {
+      Sampler sampler = samplers.get(request);
+      return sampler != null ? sampler.isSampled(0L) : null;
+    }
+  }
+
+  static final Indexer<String, String> INDEXER = new Indexer<String, String>() {
+    @Override public String attributes(Matcher<String> matcher) {
+      return matcher instanceof Equals ? ((Equals) matcher).value : null;
+    }
+
+    @Override public IndexBuilder<String, String> newIndexBuilder() {
+      return new IndexBuilder<String, String>() {
+        final Map<String, Sampler> samplers = new LinkedHashMap<>();
+
+        @Override public void addRule(String value, Sampler sampler) {
+          if (!samplers.containsKey(value)) samplers.put(value, sampler);
+        }
+
+        @Override public SamplerFunction<String> build() {
+          return new EqualsIndex(samplers);
+        }
+      };
+    }
+  };
+
+  @Test public void indexesConsecutiveRules() {
+    IndexedRuleSampler<String> sampler = IndexedRuleSampler.<String>newBuilder()
+      .putRule(new Equals("a"), Sampler.ALWAYS_SAMPLE)
+      .putRule(new Equals("b"), Sampler.NEVER_SAMPLE)
+      .build(INDEXER);
+
+    assertThat(sampler.steps()).hasSize(1).allMatch(EqualsIndex.class::isInstance);
+    assertThat(sampler.trySample("a")).isTrue();
+    assertThat(sampler.trySample("b")).isFalse();
+    assertThat(sampler.trySample("c")).isNull();
+    assertThat(sampler.trySample(null)).isNull();
+  }
+
+  @Test public void otherMatchersKeepOrder() {
+    IndexedRuleSampler<String> sampler = IndexedRuleSampler.<String>newBuilder()
+      .putRule(new Equals("a"), Sampler.NEVER_SAMPLE)
+      .putRule(request -> request.startsWith("a"), Sampler.ALWAYS_SAMPLE)
+      .putRule(new Equals("ab"), Sampler.NEVER_SAMPLE)
+      .build(INDEXER);
+
+    assertThat(sampler.steps()).hasSize(3);
+    assertThat(sampler.steps().get(1)).isInstanceOf(ParameterizedSampler.class);
+    assertThat(sampler.trySample("a")).isFalse();
+    assertThat(sampler.trySample("ab")).isTrue(); // the earlier rule wins
+  }
+
+  @Test public void putAllRules() {
+    IndexedRuleSampler<String> base = IndexedRuleSampler.<String>newBuilder()
+      .putRule(new Equals("a"), Sampler.ALWAYS_SAMPLE)
+      .build(INDEXER);
+
+    IndexedRuleSampler<String> extended = IndexedRuleSampler.<String>newBuilder()
+      .putAllRules(base)
+      .putRule(new Equals("b"), Sampler.ALWAYS_SAMPLE)
+      .build(INDEXER);
+
+    assertThat(extended.rules).hasSize(2);
+    assertThat(extended.trySample("a")).isTrue();
+    assertThat(extended.trySample("b")).isTrue();
+  }
+}
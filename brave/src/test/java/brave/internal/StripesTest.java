@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StripesTest {
+  @Test public void stripeCount() {
+    assertThat(Stripes.stripeCount(0)).isEqualTo(1);
+    assertThat(Stripes.stripeCount(1)).isEqualTo(1);
+    assertThat(Stripes.stripeCount(6)).isEqualTo(8);
+    assertThat(Stripes.stripeCount(8)).isEqualTo(8);
+    assertThat(Stripes.stripeCount(12)).isEqualTo(16);
+    assertThat(Stripes.stripeCount(128)).isEqualTo(64);
+    assertThat(Stripes.stripeCount(256)).isEqualTo(64);
+  }
+
+  @Test public void powerOfTwo() {
+    assertThat(Stripes.powerOfTwo(1)).isEqualTo(1);
+    assertThat(Stripes.powerOfTwo(3)).isEqualTo(4);
+    assertThat(Stripes.powerOfTwo(1024)).isEqualTo(1024);
+    assertThat(Stripes.powerOfTwo(1025)).isEqualTo(2048);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WriteBufferTest {
+  WriteBuffer buffer = new WriteBuffer(1); // small to exercise growth
+
+  @Test public void writeAscii_long() {
+    for (long v : new long[] {0L, 1L, -1L, 9L, 10L, 1234567890L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+      buffer.reset();
+      buffer.writeAscii(v);
+      assertThat(new String(buffer.toByteArray(), UTF_8)).isEqualTo(String.valueOf(v));
+    }
+  }
+
+  @Test public void writeLowerHex() {
+    buffer.writeLowerHex(0xa1L);
+    assertThat(new String(buffer.toByteArray(), UTF_8)).isEqualTo("00000000000000a1");
+  }
+
+  @Test public void writeUtf8() {
+    String value = "Hello 🐶 ✓ ü";
+    buffer.writeUtf8(value);
+    assertThat(buffer.toByteArray()).isEqualTo(value.getBytes(UTF_8));
+    assertThat(WriteBuffer.utf8SizeInBytes(value)).isEqualTo(buffer.pos());
+  }
+
+  @Test public void writeUtf8_range() {
+    buffer.writeUtf8("a🐶b", 1, 3);
+    assertThat(buffer.toByteArray()).isEqualTo("🐶".getBytes(UTF_8));
+  }
+
+  @Test public void writeUtf8_malformedSurrogate() {
+    buffer.writeUtf8("a\uD83Db");
+    assertThat(new String(buffer.toByteArray(), UTF_8)).isEqualTo("a?b");
+    assertThat(WriteBuffer.utf8SizeInBytes("a\uD83Db")).isEqualTo(3);
+  }
+
+  @Test public void writeJsonEscaped() {
+    buffer.writeJsonEscaped("\"🐶\"\n\u2028");
+    assertThat(buffer.toByteArray()).isEqualTo("\\\"🐶\\\"\\n\\u2028".getBytes(UTF_8));
+  }
+
+  @Test public void writeVarint() {
+    buffer.writeVarint(300);
+    assertThat(buffer.toByteArray()).isEqualTo(new byte[] {(byte) 0xac, 0x02});
+    assertThat(WriteBuffer.varintSizeInBytes(300)).isEqualTo(2);
+
+    buffer.reset();
+    buffer.writeVarint(Long.MAX_VALUE);
+    assertThat(buffer.pos()).isEqualTo(9).isEqualTo(WriteBuffer.varintSizeInBytes(Long.MAX_VALUE));
+  }
+
+  @Test public void writeLongLe_writeLongBe() {
+    buffer.writeLongLe(0x0102030405060708L);
+    buffer.writeLongBe(0x0102030405060708L);
+    ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+    assertThat(bytes.order(ByteOrder.LITTLE_ENDIAN).getLong()).isEqualTo(0x0102030405060708L);
+    assertThat(bytes.order(ByteOrder.BIG_ENDIAN).getLong()).isEqualTo(0x0102030405060708L);
+  }
+
+  @Test public void reset_retainsArray() {
+    buffer.writeAscii("hello");
+    byte[] array = buffer.array();
+    buffer.reset();
+    buffer.writeAscii("world");
+    assertThat(buffer.array()).isSameAs(array);
+    assertThat(new String(buffer.toByteArray(), UTF_8)).isEqualTo("world");
+  }
+}
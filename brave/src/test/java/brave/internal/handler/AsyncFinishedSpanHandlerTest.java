@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.handler.AsyncFinishedSpanHandling.OverflowPolicy;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncFinishedSpanHandlerTest {
+  TraceContext context = TraceContext.newBuilder().traceId(1).spanId(2).sampled(true).build();
+  List<MutableSpan> handled = new CopyOnWriteArrayList<>();
+  CountDownLatch unblock = new CountDownLatch(1);
+  CountDownLatch blocked = new CountDownLatch(1);
+  FinishedSpanHandler blocking = new FinishedSpanHandler() {
+    @Override public boolean handle(TraceContext context, MutableSpan span) {
+      blocked.countDown();
+      try {
+        unblock.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      handled.add(span);
+      return true;
+    }
+  };
+  AsyncFinishedSpanHandler handler;
+
+  @After public void close() {
+    unblock.countDown();
+    if (handler != null) handler.close();
+  }
+
+  @Test public void handle_invokesDelegateOnWorkerThread() throws Exception {
+    handler = new AsyncFinishedSpanHandler(blocking, 4, 1, OverflowPolicy.DROP_NEWEST);
+    MutableSpan span = new MutableSpan();
+
+    assertThat(handler.handle(context, span)).isTrue();
+    assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(handled).isEmpty(); // caller returned before the delegate completed
+
+    unblock.countDown();
+    handler.close();
+    assertThat(handled).containsExactly(span);
+  }
+
+  @Test public void handle_signalsParkedWorker() throws Exception {
+    handler = new AsyncFinishedSpanHandler(blocking, 4, 1, OverflowPolicy.DROP_NEWEST);
+    Thread worker = handler.workers[0];
+    long deadline = System.currentTimeMillis() + 1000;
+    while (worker.getState() != Thread.State.WAITING) {
+      assertThat(System.currentTimeMillis()).isLessThan(deadline);
+      Thread.sleep(1);
+    }
+
+    unblock.countDown();
+    MutableSpan span = new MutableSpan();
+    handler.handle(context, span);
+
+    assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test public void dropNewest() throws Exception {
+    handler = new AsyncFinishedSpanHandler(blocking, 2, 1, OverflowPolicy.DROP_NEWEST);
+    MutableSpan inFlight = new MutableSpan(), one = new MutableSpan(), two = new MutableSpan();
+    handler.handle(context, inFlight);
+    assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+
+    handler.handle(context, one);
+    handler.handle(context, two);
+    handler.handle(context, new MutableSpan()); // dropped
+
+    assertThat(handler.droppedSpans()).isEqualTo(1);
+    assertThat(handler.queueDepth()).isEqualTo(2);
+
+    unblock.countDown();
+    handler.close();
+    assertThat(handled).containsExactly(inFlight, one, two);
+  }
+
+  @Test public void dropOldest() throws Exception {
+    handler = new AsyncFinishedSpanHandler(blocking, 2, 1, OverflowPolicy.DROP_OLDEST);
+    MutableSpan inFlight = new MutableSpan(), one = new MutableSpan(), two = new MutableSpan();
+    handler.handle(context, inFlight);
+    assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+
+    handler.handle(context, new MutableSpan()); // dropped
+    handler.handle(context, one);
+    handler.handle(context, two);
+
+    assertThat(handler.droppedSpans()).isEqualTo(1);
+
+    unblock.countDown();
+    handler.close();
+    assertThat(handled).containsExactly(inFlight, one, two);
+  }
+
+  @Test public void block_waitsForRoom() throws Exception {
+    handler = new AsyncFinishedSpanHandler(blocking, 2, 1, OverflowPolicy.BLOCK);
+    handler.handle(context, new MutableSpan());
+    assertThat(blocked.await(1, TimeUnit.SECONDS)).isTrue();
+    handler.handle(context, new MutableSpan());
+    handler.handle(context, new MutableSpan());
+
+    CountDownLatch finished = new CountDownLatch(1);
+    new Thread(() -> {
+      handler.handle(context, new MutableSpan());
+      finished.countDown();
+    }).start();
+
+    assertThat(finished.await(100, TimeUnit.MILLISECONDS)).isFalse();
+    unblock.countDown();
+    assertThat(finished.await(1, TimeUnit.SECONDS)).isTrue();
+
+    handler.close();
+    assertThat(handler.droppedSpans()).isZero();
+    assertThat(handled).hasSize(4);
+  }
+
+  @Test public void close_handlesLateSpansSynchronously() {
+    handler = new AsyncFinishedSpanHandler(blocking, 2, 1, OverflowPolicy.DROP_NEWEST);
+    unblock.countDown();
+    handler.close();
+
+    MutableSpan span = new MutableSpan();
+    handler.handle(context, span);
+    assertThat(handled).containsExactly(span);
+  }
+
+  /** A producer can read closed as false, then enqueue after the workers exited. */
+  @Test public void close_spanOfferedAfterWorkersExitIsHandled() {
+    handler = new AsyncFinishedSpanHandler(blocking, 2, 1, OverflowPolicy.DROP_NEWEST);
+    unblock.countDown();
+    handler.close();
+
+    MutableSpan span = new MutableSpan();
+    assertThat(handler.buffer.offer(context, span)).isTrue(); // as if handle raced with close
+    handler.afterOffer();
+
+    assertThat(handled).containsExactly(span);
+    assertThat(handler.queueDepth()).isZero();
+  }
+
+  @Test public void close_stopsWorkers() {
+    handler = new AsyncFinishedSpanHandler(blocking, 2, 2, OverflowPolicy.DROP_NEWEST);
+    handler.close();
+
+    for (Thread worker : handler.workers) {
+      assertThat(worker.isAlive()).isFalse();
+    }
+  }
+}
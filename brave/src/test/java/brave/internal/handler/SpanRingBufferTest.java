@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.handler;
+
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpanRingBufferTest {
+  TraceContext context = TraceContext.newBuilder().traceId(1).spanId(2).sampled(true).build();
+  List<MutableSpan> handled = new ArrayList<>();
+  FinishedSpanHandler handler = new FinishedSpanHandler() {
+    @Override public boolean handle(TraceContext context, MutableSpan span) {
+      handled.add(span);
+      return true;
+    }
+  };
+
+  @Test public void capacity_roundsUpToPowerOfTwo() {
+    assertThat(new SpanRingBuffer(1).capacity()).isEqualTo(2);
+    assertThat(new SpanRingBuffer(2).capacity()).isEqualTo(2);
+    assertThat(new SpanRingBuffer(1000).capacity()).isEqualTo(1024);
+    assertThat(new SpanRingBuffer(1024).capacity()).isEqualTo(1024);
+  }
+
+  @Test public void capacity_invalid() {
+    assertThatThrownBy(() -> new SpanRingBuffer(0))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void offer_failsWhenFull() {
+    SpanRingBuffer buffer = new SpanRingBuffer(2);
+    assertThat(buffer.offer(context, new MutableSpan())).isTrue();
+    assertThat(buffer.offer(context, new MutableSpan())).isTrue();
+    assertThat(buffer.offer(context, new MutableSpan())).isFalse();
+    assertThat(buffer.size()).isEqualTo(2);
+  }
+
+  @Test public void poll_fifo() {
+    SpanRingBuffer buffer = new SpanRingBuffer(4);
+    MutableSpan one = new MutableSpan(), two = new MutableSpan();
+    buffer.offer(context, one);
+    buffer.offer(context, two);
+
+    assertThat(buffer.poll(handler)).isTrue();
+    assertThat(buffer.poll(handler)).isTrue();
+    assertThat(buffer.poll(handler)).isFalse();
+    assertThat(handled).containsExactly(one, two);
+  }
+
+  @Test public void poll_nullHandlerDrops() {
+    SpanRingBuffer buffer = new SpanRingBuffer(4);
+    buffer.offer(context, new MutableSpan());
+
+    assertThat(buffer.poll(null)).isTrue();
+    assertThat(buffer.size()).isZero();
+    assertThat(handled).isEmpty();
+  }
+
+  @Test public void wrapsAround() {
+    SpanRingBuffer buffer = new SpanRingBuffer(2);
+    for (int i = 0; i < 10; i++) {
+      MutableSpan span = new MutableSpan();
+      assertThat(buffer.offer(context, span)).isTrue();
+      assertThat(buffer.poll(handler)).isTrue();
+      assertThat(handled).last().isSameAs(span);
+    }
+  }
+
+  @Test public void concurrentProducersAndConsumers() throws Exception {
+    int producers = 4, spansPerProducer = 10_000;
+    SpanRingBuffer buffer = new SpanRingBuffer(64);
+    AtomicInteger handledCount = new AtomicInteger();
+    FinishedSpanHandler counting = new FinishedSpanHandler() {
+      @Override public boolean handle(TraceContext context, MutableSpan span) {
+        handledCount.incrementAndGet();
+        return true;
+      }
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(producers + 2);
+    CountDownLatch producersDone = new CountDownLatch(producers);
+    for (int i = 0; i < producers; i++) {
+      executor.execute(() -> {
+        for (int j = 0; j < spansPerProducer; j++) {
+          MutableSpan span = new MutableSpan();
+          while (!buffer.offer(context, span)) Thread.yield();
+        }
+        producersDone.countDown();
+      });
+    }
+    for (int i = 0; i < 2; i++) {
+      executor.execute(() -> {
+        while (handledCount.get() < producers * spansPerProducer) {
+          if (!buffer.poll(counting)) Thread.yield();
+        }
+      });
+    }
+    assertThat(producersDone.await(10, TimeUnit.SECONDS)).isTrue();
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(handledCount.get()).isEqualTo(producers * spansPerProducer);
+    assertThat(buffer.size()).isZero();
+  }
+}
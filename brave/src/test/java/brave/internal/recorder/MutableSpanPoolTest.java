@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.handler.MutableSpan;
+import brave.internal.InternalMutableSpan;
+import brave.propagation.TraceContext;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MutableSpanPoolTest {
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+  MutableSpan defaults = new MutableSpan();
+  MutableSpanPool pool = new MutableSpanPool(4, false);
+
+  public MutableSpanPoolTest() {
+    defaults.localServiceName("favistar");
+  }
+
+  @Test public void capacityRoundedUpToPowerOfTwo() {
+    assertThat(new MutableSpanPool(1, false).slots.length()).isEqualTo(1);
+    assertThat(new MutableSpanPool(3, false).slots.length()).isEqualTo(4);
+    assertThat(new MutableSpanPool(256, false).slots.length()).isEqualTo(256);
+  }
+
+  @Test public void capacityMustBePositive() {
+    assertThatThrownBy(() -> new MutableSpanPool(0, false))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void acquire_newSpanWhenEmpty() {
+    MutableSpan span = pool.acquire(context, defaults);
+
+    assertThat(span).isEqualTo(new MutableSpan(context, defaults));
+  }
+
+  @Test public void acquire_reusesReleased() {
+    MutableSpan span = pool.acquire(context, defaults);
+    span.tag("a", "b");
+    span.annotate(1L, "foo");
+    pool.release(span);
+
+    TraceContext next = context.toBuilder().spanId(3L).build();
+    MutableSpan reused = pool.acquire(next, defaults);
+    assertThat(reused).isSameAs(span)
+      .isEqualTo(new MutableSpan(next, defaults));
+  }
+
+  @Test public void release_dropsWhenFull() {
+    MutableSpanPool pool = new MutableSpanPool(1, false);
+    MutableSpan span1 = pool.acquire(context, defaults), span2 = pool.acquire(context, defaults);
+    pool.release(span1);
+    pool.release(span2);
+
+    assertThat(pool.acquire(context, defaults)).isSameAs(span1);
+    assertThat(pool.acquire(context, defaults)).isNotSameAs(span2);
+  }
+
+  @Test public void isRecycled() {
+    MutableSpan span = pool.acquire(context, defaults);
+    int generation = InternalMutableSpan.instance.generation(span);
+    assertThat(pool.isRecycled(context, span, generation)).isFalse();
+
+    pool.release(span);
+    assertThat(pool.isRecycled(context, span, generation)).isTrue();
+  }
+
+  @Test public void isRecycled_detectUseAfterRecycle() {
+    MutableSpanPool pool = new MutableSpanPool(4, true);
+    MutableSpan span = pool.acquire(context, defaults);
+    int generation = InternalMutableSpan.instance.generation(span);
+    pool.release(span);
+
+    assertThatThrownBy(() -> pool.isRecycled(context, span, generation))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Span " + context + " was modified after it was finished and recycled")
+      .hasStackTraceContaining("recycled span here");
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.GarbageCollectors;
+import brave.TracingMetrics;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.internal.InternalPropagation;
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+
+import static brave.internal.InternalPropagation.FLAG_LOCAL_ROOT;
+import static brave.internal.InternalPropagation.FLAG_SAMPLED;
+import static brave.internal.InternalPropagation.FLAG_SAMPLED_SET;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OrphanReaperTest {
+  static {
+    SamplingFlags.NOT_SAMPLED.toString(); // ensure InternalPropagation is wired for tests
+  }
+
+  List<String> threadNames = new CopyOnWriteArrayList<>();
+  PendingSpans pendingSpans = new PendingSpans(new MutableSpan(), () -> 1000L,
+    new FinishedSpanHandler() {
+      @Override public boolean handle(TraceContext context, MutableSpan span) {
+        threadNames.add(Thread.currentThread().getName());
+        return true;
+      }
+    }, false, new AtomicBoolean(), null, null, TracingMetrics.NOOP);
+  ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  OrphanReaper reaper;
+
+  @After public void close() {
+    if (reaper != null) reaper.close();
+    executor.shutdownNow();
+  }
+
+  @Test public void dedicatedThread() throws InterruptedException {
+    reaper = new OrphanReaper(pendingSpans, null, 1000L, 0L);
+
+    orphanSpan();
+    awaitHandled();
+
+    assertThat(threadNames).containsExactly("OrphanReaper");
+    assertThat(reaper.orphanBacklog()).isZero();
+  }
+
+  @Test public void executor() throws InterruptedException {
+    reaper = new OrphanReaper(pendingSpans, executor, 10L, 0L);
+
+    orphanSpan();
+    awaitHandled();
+
+    assertThat(threadNames).hasSize(1)
+      .doesNotContain("OrphanReaper", Thread.currentThread().getName());
+  }
+
+  @Test public void close_callersReportOrphansAgain() {
+    reaper = new OrphanReaper(pendingSpans, executor, 1000L, 0L);
+    assertThat(pendingSpans.reapInBackground).isTrue();
+
+    reaper.close();
+    assertThat(pendingSpans.reapInBackground).isFalse();
+    assertThat(executor.isShutdown()).isFalse(); // executor is owned by the caller
+  }
+
+  @Test public void onlyOneReaper() {
+    reaper = new OrphanReaper(pendingSpans, executor, 1000L, 0L);
+
+    assertThatThrownBy(() -> new OrphanReaper(pendingSpans, executor, 1000L, 0L))
+      .isInstanceOf(IllegalStateException.class);
+  }
+
+  void orphanSpan() {
+    // fakes a local root span, so that we don't have to depend on the Tracer
+    TraceContext context = InternalPropagation.instance.newTraceContext(
+      FLAG_SAMPLED_SET | FLAG_SAMPLED | FLAG_LOCAL_ROOT, 0L, 1L, 1L, 0L, 1L,
+      Collections.emptyList());
+    pendingSpans.getOrCreate(null, context, false);
+    context = null; // clear reference so GC occurs
+    GarbageCollectors.blockOnGC();
+  }
+
+  void awaitHandled() throws InterruptedException {
+    for (int i = 0; i < 100 && threadNames.isEmpty(); i++) Thread.sleep(10);
+  }
+}
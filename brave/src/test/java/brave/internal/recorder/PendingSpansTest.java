@@ -14,6 +14,7 @@
 package brave.internal.recorder;
 
 import brave.GarbageCollectors;
+import brave.TracingMetrics;
 import brave.handler.FinishedSpanHandler;
 import brave.handler.MutableSpan;
 import brave.internal.InternalPropagation;
@@ -22,6 +23,7 @@ import brave.propagation.TraceContext;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
@@ -75,7 +77,7 @@ public class PendingSpansTest {
     defaultSpan.localIp("1.2.3.4");
     pendingSpans =
       new PendingSpans(defaultSpan, () -> clock.incrementAndGet() * 1000L, handler, trackOrphans,
-        new AtomicBoolean());
+        new AtomicBoolean(), null, null, TracingMetrics.NOOP);
   }
 
   @Test
@@ -118,6 +120,31 @@ public class PendingSpansTest {
       pendingSpans.getOrCreate(null, context2, false));
   }
 
+  @Test
+  public void finish_updatesCapacityHints() {
+    PendingSpan span = pendingSpans.getOrCreate(null, context, false);
+    span.span.tag("http.method", "GET");
+    for (int i = 0; i < 6; i++) span.span.annotate(i + 1L, "event");
+    pendingSpans.finish(context, 0L);
+
+    assertThat(pendingSpans.tagCapacity).isEqualTo(1);
+    assertThat(pendingSpans.annotationCapacity).isEqualTo(6);
+
+    // smaller spans don't lower the hint
+    pendingSpans.getOrCreate(null, context, false);
+    pendingSpans.finish(context, 0L);
+    assertThat(pendingSpans.annotationCapacity).isEqualTo(6);
+  }
+
+  @Test
+  public void finish_capacityHintsHaveMax() {
+    PendingSpan span = pendingSpans.getOrCreate(null, context, false);
+    for (int i = 0; i < PendingSpans.MAX_CAPACITY + 1; i++) span.span.tag("key" + i, "value");
+    pendingSpans.finish(context, 0L);
+
+    assertThat(pendingSpans.tagCapacity).isEqualTo(PendingSpans.MAX_CAPACITY);
+  }
+
   @Test
   public void remove_doesntReport() {
     pendingSpans.getOrCreate(null, context, false);
@@ -168,6 +195,114 @@ public class PendingSpansTest {
         .containsExactly(Annotation.create((initialClockVal + 1) * 1000, "brave.flush")));
   }
 
+  @Test
+  public void reapInBackground_callersDontReportOrphans() {
+    TraceContext context1 = context.toBuilder().traceId(1).spanId(1).build();
+    pendingSpans.getOrCreate(null, context1, false);
+    pendingSpans.reapInBackground = true;
+
+    context1 = null; // clear reference so GC occurs
+    GarbageCollectors.blockOnGC();
+
+    pendingSpans.getOrCreate(null, context, false);
+    assertThat(spans).isEmpty();
+    assertThat(pendingSpans.orphanBacklog()).isEqualTo(1);
+
+    pendingSpans.reapOrphans();
+    assertThat(spans).extracting(Span::id).containsExactly("0000000000000001");
+    assertThat(pendingSpans.orphanBacklog()).isZero();
+  }
+
+  @Test
+  public void flushExpired_timesOutPendingSpans() {
+    pendingSpans.timingWheel =
+      new TimingWheel(1L, System.nanoTime(), pendingSpans.stripes.length);
+    TraceContext context2 = context.toBuilder().traceId(2).spanId(2).build();
+    pendingSpans.getOrCreate(null, context, false).state().name("leaked");
+    pendingSpans.getOrCreate(null, context2, false);
+    pendingSpans.finish(context2, 0L);
+
+    pendingSpans.flushExpired(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+    assertThat(pendingSpans.get(context)).isNull();
+    assertThat(spans).hasSize(1); // not the finished span
+    assertThat(spans.get(0).name()).isEqualTo("leaked");
+    assertThat(spans.get(0).annotations()).extracting(Annotation::value)
+      .containsExactly("brave.timeout");
+  }
+
+  @Test
+  public void finish_releasesDeadline() {
+    long now = System.nanoTime();
+    TimingWheel timingWheel = pendingSpans.timingWheel =
+      new TimingWheel(1000000000L, now, pendingSpans.stripes.length);
+    List<TraceContext> contexts = new ArrayList<>();
+    for (int i = 1; i <= 10; i++) {
+      TraceContext context = this.context.toBuilder().traceId(i).spanId(i).build();
+      pendingSpans.getOrCreate(null, context, false);
+      contexts.add(context);
+    }
+    pendingSpans.flushExpired(now);
+    assertThat(timingWheel.size).isEqualTo(10);
+
+    for (TraceContext context : contexts) pendingSpans.finish(context, 0L);
+    pendingSpans.flushExpired(now);
+
+    assertThat(timingWheel.size).isZero();
+    assertThat(spans).isEmpty();
+  }
+
+  /** The context is still reachable, so the application may still write to the span. */
+  @Test
+  public void flushExpired_reportsCopyOfLiveSpan() {
+    pendingSpans = new PendingSpans(new MutableSpan(), () -> clock.incrementAndGet() * 1000L,
+      pendingSpans.orphanedSpanHandler, false, new AtomicBoolean(), new MutableSpanPool(1, true), null,
+      TracingMetrics.NOOP);
+    pendingSpans.timingWheel =
+      new TimingWheel(1L, System.nanoTime(), pendingSpans.stripes.length);
+    PendingSpan leaked = pendingSpans.getOrCreate(null, context, false);
+    leaked.state().name("leaked");
+
+    pendingSpans.flushExpired(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+    assertThat(spans).extracting(Span::name).containsExactly("leaked");
+    assertThat(leaked.state().annotationCount()).isZero(); // annotated the copy
+    // not recycled, as the application may still reference it
+    assertThat(pendingSpans.isRecycled(context, leaked.state(), leaked.generation())).isFalse();
+    assertThat(leaked.state().name()).isEqualTo("leaked");
+  }
+
+  @Test
+  public void striped_spreadsContextsAndReportsOrphans() {
+    pendingSpans = new PendingSpans(new MutableSpan(), () -> clock.incrementAndGet() * 1000L,
+      pendingSpans.orphanedSpanHandler, false, new AtomicBoolean(), null, null,
+      TracingMetrics.NOOP, 8);
+
+    List<TraceContext> contexts = new ArrayList<>();
+    for (int i = 1; i <= 64; i++) {
+      TraceContext context = this.context.toBuilder().traceId(i).spanId(i).build();
+      pendingSpans.getOrCreate(null, context, false);
+      if (i % 2 == 0) contexts.add(context); // retain even IDs
+    }
+    for (TraceContext context : contexts) {
+      assertThat(pendingSpans.get(context)).isNotNull();
+    }
+    assertThat(pendingSpans.stripes)
+      .allSatisfy(stripe -> assertThat(stripe.toString()).isNotEqualTo("Stripe[]"));
+
+    GarbageCollectors.blockOnGC();
+    assertThat(pendingSpans.orphanBacklog()).isEqualTo(32);
+
+    pendingSpans.expungeStaleEntries();
+    assertThat(pendingSpans.orphanBacklog()).isZero();
+    assertThat(spans).extracting(s -> Long.parseLong(s.id(), 16) % 2)
+      .hasSize(32)
+      .containsOnly(1L); // odd IDs were orphaned
+    for (TraceContext context : contexts) {
+      assertThat(pendingSpans.finish(context, 0L)).isTrue();
+    }
+  }
+
   @Test
   public void noop_afterGC() {
     TraceContext context1 = context.toBuilder().spanId(1).build();
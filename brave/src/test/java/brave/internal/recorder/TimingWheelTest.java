@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimingWheelTest {
+  static final long LIFETIME = TimeUnit.SECONDS.toNanos(10);
+
+  TimingWheel wheel = new TimingWheel(LIFETIME, 0L);
+  List<PendingSpan> expired = new ArrayList<>();
+
+  @Test public void tickCoversLifetimeInOneRotation() {
+    assertThat(wheel.tickNanos * TimingWheel.MASK).isGreaterThanOrEqualTo(LIFETIME);
+    assertThat(new TimingWheel(1L, 0L).tickNanos).isEqualTo(TimingWheel.MIN_TICK_NANOS);
+  }
+
+  @Test public void expiresAfterLifetime() {
+    PendingSpan span = newPendingSpan(1L);
+    wheel.add(0, span, 0L);
+
+    wheel.expire(LIFETIME - 1, expired);
+    assertThat(expired).isEmpty();
+
+    wheel.expire(LIFETIME + wheel.tickNanos * 2, expired);
+    assertThat(expired).containsExactly(span);
+
+    expired.clear(); // only expires once
+    wheel.expire(LIFETIME * 2, expired);
+    assertThat(expired).isEmpty();
+  }
+
+  @Test public void expiresInOrderOfDeadline() {
+    PendingSpan span1 = newPendingSpan(1L), span2 = newPendingSpan(2L);
+    wheel.add(0, span1, 0L);
+    wheel.add(0, span2, LIFETIME / 2);
+
+    wheel.expire(LIFETIME + wheel.tickNanos * 2, expired);
+    assertThat(expired).containsExactly(span1);
+
+    wheel.expire(LIFETIME / 2 + LIFETIME + wheel.tickNanos * 2, expired);
+    assertThat(expired).containsExactly(span1, span2);
+  }
+
+  @Test public void retainsDeadlinesInLaterRotations() {
+    TimingWheel wheel = new TimingWheel(1L, 0L); // tick is longer than the lifetime
+    PendingSpan span1 = newPendingSpan(1L), span2 = newPendingSpan(2L);
+    wheel.add(0, span1, 0L);
+    wheel.add(0, span2, wheel.tickNanos * TimingWheel.WHEEL_SIZE); // same bucket, next rotation
+
+    wheel.expire(wheel.tickNanos * 2, expired);
+    assertThat(expired).containsExactly(span1);
+
+    wheel.expire(wheel.tickNanos * (TimingWheel.WHEEL_SIZE + 2), expired);
+    assertThat(expired).containsExactly(span1, span2);
+  }
+
+  @Test public void fellBehind_expiresEverythingDue() {
+    PendingSpan span = newPendingSpan(1L);
+    wheel.add(0, span, 0L);
+
+    wheel.expire(LIFETIME * 100, expired);
+    assertThat(expired).containsExactly(span);
+  }
+
+  @Test public void dropsCancelledDeadlines() {
+    List<TimingWheel.Deadline> deadlines = new ArrayList<>();
+    for (long i = 1; i <= 100; i++) deadlines.add(wheel.add(0, newPendingSpan(i), i));
+    wheel.expire(0L, expired);
+    assertThat(wheel.size).isEqualTo(100);
+
+    // cancelling less than half doesn't compact
+    for (int i = 0; i < 40; i++) deadlines.get(i).cancel();
+    wheel.expire(0L, expired);
+    assertThat(wheel.size).isEqualTo(100);
+
+    for (int i = 40; i < 100; i++) deadlines.get(i).cancel();
+    wheel.expire(0L, expired);
+    assertThat(wheel.size).isZero();
+
+    wheel.expire(LIFETIME * 2, expired);
+    assertThat(expired).isEmpty();
+  }
+
+  @Test public void dropsCancelledDeadlinesNotYetTransferred() {
+    wheel.add(0, newPendingSpan(1L), 0L).cancel();
+
+    wheel.expire(0L, expired);
+    assertThat(wheel.size).isZero();
+    assertThat(wheel.stripes[0].added).isEmpty();
+  }
+
+  @Test public void transfersFromEachStripe() {
+    TimingWheel wheel = new TimingWheel(LIFETIME, 0L, 4);
+    for (int stripe = 0; stripe < 4; stripe++) wheel.add(stripe, newPendingSpan(stripe + 1), 0L);
+
+    wheel.expire(0L, expired);
+    assertThat(wheel.size).isEqualTo(4);
+    for (TimingWheel.Stripe stripe : wheel.stripes) assertThat(stripe.added).isEmpty();
+  }
+
+  @Test public void cancel_countsOnce() {
+    TimingWheel.Deadline deadline = wheel.add(0, newPendingSpan(1L), 0L);
+    deadline.cancel();
+    deadline.cancel();
+
+    assertThat(wheel.stripes[0].cancelled.get()).isOne();
+  }
+
+  @Test public void cancel_notCountedAfterExpiry() {
+    TimingWheel.Deadline deadline = wheel.add(0, newPendingSpan(1L), 0L);
+    wheel.expire(LIFETIME * 2, expired);
+    deadline.cancel();
+
+    assertThat(expired).hasSize(1);
+    assertThat(wheel.stripes[0].cancelled.get()).isZero();
+  }
+
+  static PendingSpan newPendingSpan(long spanId) {
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(spanId).build();
+    return new PendingSpan(context, new MutableSpan(), new TickClock(0L, 0L));
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.sampler;
+
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveSamplerTest {
+  static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  AdaptiveSampler sampler = AdaptiveSampler.newBuilder(100).initialProbability(0.5f).build();
+  TraceContext sampled = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+
+  @Test public void decreasesWhenOverTarget() {
+    finish(400);
+    sampler.adjust(SECOND);
+
+    assertThat(sampler.probability()).isEqualTo(0.125f);
+    assertThat(sampler.threshold).isEqualTo(1250);
+  }
+
+  @Test public void increasesAtMostDouble() {
+    finish(10);
+    sampler.adjust(SECOND);
+
+    assertThat(sampler.probability()).isEqualTo(1.0f);
+    for (long i = 0; i < 1000; i++) {
+      assertThat(sampler.isSampled(i * 7919L)).isTrue();
+    }
+  }
+
+  @Test public void accountsForInterval() {
+    finish(200);
+    sampler.adjust(SECOND * 2);
+
+    assertThat(sampler.probability()).isEqualTo(0.5f);
+  }
+
+  @Test public void probesUpwardsWithoutFeedback_untilLastImpliedProbability() {
+    sampler = AdaptiveSampler.newBuilder(100).initialProbability(0.1f).build();
+    finish(25); // implies 0.4, but increases are limited to double
+    sampler.adjust(SECOND);
+    assertThat(sampler.probability()).isEqualTo(0.2f);
+
+    sampler.adjust(SECOND);
+    assertThat(sampler.probability()).isEqualTo(0.4f);
+
+    sampler.adjust(SECOND);
+    assertThat(sampler.probability()).isEqualTo(0.4f);
+  }
+
+  /** A long quiet period, or a missing feedback handler, mustn't lead to sampling everything. */
+  @Test public void manyIntervalsWithoutFeedback_holdsInitialProbability() {
+    sampler = AdaptiveSampler.newBuilder(100).build();
+    for (int i = 0; i < 1000; i++) sampler.adjust(SECOND);
+
+    assertThat(sampler.probability()).isEqualTo(0.01f);
+  }
+
+  @Test public void manyIntervalsWithoutFeedback_afterDecrease() {
+    finish(400);
+    sampler.adjust(SECOND);
+    assertThat(sampler.probability()).isEqualTo(0.125f);
+
+    for (int i = 0; i < 1000; i++) sampler.adjust(SECOND);
+    assertThat(sampler.probability()).isEqualTo(0.125f);
+  }
+
+  @Test public void manyIntervalsWithoutFeedback_afterDroppedSpans() {
+    finish(10); // implies 5.0
+    sampler.recordDroppedSpans(1);
+    sampler.adjust(SECOND);
+    assertThat(sampler.probability()).isEqualTo(0.25f);
+
+    for (int i = 0; i < 1000; i++) sampler.adjust(SECOND);
+    assertThat(sampler.probability()).isEqualTo(0.25f);
+  }
+
+  @Test public void ignoresUnsampledSpans() {
+    TraceContext unsampled = sampled.toBuilder().sampled(false).build();
+    for (int i = 0; i < 1000; i++) {
+      sampler.finishedSpanHandler().handle(unsampled, new MutableSpan());
+    }
+    sampler.adjust(SECOND);
+
+    assertThat(sampler.probability()).isEqualTo(0.5f); // as if there was no feedback
+  }
+
+  @Test public void halvesOnDroppedSpans() {
+    finish(100);
+    sampler.recordDroppedSpans(1);
+    sampler.adjust(SECOND);
+
+    assertThat(sampler.probability()).isEqualTo(0.25f);
+
+    finish(100); // drops are only counted once
+    sampler.adjust(SECOND);
+    assertThat(sampler.probability()).isEqualTo(0.25f);
+  }
+
+  @Test public void halvesOnQueueBackup() {
+    finish(100);
+    sampler.recordQueueDepth(600, 1000);
+    sampler.adjust(SECOND);
+
+    assertThat(sampler.probability()).isEqualTo(0.25f);
+
+    finish(100);
+    sampler.recordQueueDepth(10, 1000);
+    sampler.adjust(SECOND);
+    assertThat(sampler.probability()).isEqualTo(0.25f);
+  }
+
+  @Test public void underOnePercent() {
+    finish(100_000);
+    sampler.adjust(SECOND);
+
+    assertThat(sampler.probability()).isEqualTo(0.0005f);
+    assertThat(sampler.threshold).isEqualTo(5);
+  }
+
+  /** Probabilities above 1% aren't truncated to whole percent, as CountingSampler would. */
+  @Test public void resolutionAboveOnePercent() {
+    sampler = AdaptiveSampler.newBuilder(100).initialProbability(0.019f).build();
+    assertThat(sampler.probability()).isEqualTo(0.019f);
+
+    Random random = new Random(1L);
+    int sampled = 0;
+    for (int i = 0; i < 100_000; i++) {
+      if (sampler.isSampled(random.nextLong())) sampled++;
+    }
+    assertThat(sampled).isBetween(1700, 2100); // 1.9% rather than 1%
+  }
+
+  @Test public void probabilityIsRoundedToResolution() {
+    sampler = AdaptiveSampler.newBuilder(100).initialProbability(0.12345f).build();
+
+    assertThat(sampler.probability()).isEqualTo(0.1235f);
+  }
+
+  @Test public void neverUnderMinimumProbability() {
+    finish(10_000_000);
+    sampler.adjust(SECOND);
+
+    assertThat(sampler.probability()).isEqualTo(AdaptiveSampler.MIN_PROBABILITY);
+  }
+
+  @Test public void adjustsOncePerInterval() throws InterruptedException {
+    sampler = AdaptiveSampler.newBuilder(100)
+      .initialProbability(0.1f)
+      .interval(1, TimeUnit.MILLISECONDS)
+      .build();
+    sampler.isSampled(1L);
+    assertThat(sampler.probability()).isEqualTo(0.1f);
+
+    finish(1000);
+    Thread.sleep(2);
+    sampler.isSampled(1L);
+    assertThat(sampler.probability()).isLessThan(0.1f);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void targetSpansPerSecond_cantBeZero() {
+    AdaptiveSampler.newBuilder(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void initialProbability_cantBeOverOne() {
+    AdaptiveSampler.newBuilder(100).initialProbability(1.1f);
+  }
+
+  void finish(int count) {
+    for (int i = 0; i < count; i++) {
+      sampler.finishedSpanHandler().handle(sampled, new MutableSpan());
+    }
+  }
+}
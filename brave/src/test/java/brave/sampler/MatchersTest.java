@@ -13,6 +13,7 @@
  */
 package brave.sampler;
 
+import brave.internal.InternalMatchers;
 import org.junit.Test;
 
 import static brave.sampler.Matchers.alwaysMatch;
@@ -54,6 +55,14 @@ public class MatchersTest {
     assertThat(and(one, two, three).matches(null)).isFalse();
   }
 
+  @Test public void internalMatchers_and() {
+    Matcher<Void> one = b -> true;
+    Matcher<Void> two = b -> false;
+    assertThat(InternalMatchers.and(and(one, two))).containsExactly(one, two);
+    assertThat(InternalMatchers.and(or(one, two))).isNull();
+    assertThat(InternalMatchers.and(one)).isNull();
+  }
+
   @Test public void or_empty() {
     assertThat(or()).isSameAs(neverMatch());
   }
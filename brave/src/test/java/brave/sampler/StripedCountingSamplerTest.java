@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.sampler;
+
+import java.util.Random;
+import org.assertj.core.data.Percentage;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.data.Percentage.withPercentage;
+
+public class StripedCountingSamplerTest extends SamplerTest {
+  @Override Sampler newSampler(float probability) {
+    return StripedCountingSampler.create(probability, 4);
+  }
+
+  /** Each of the 4 stripes can be off by part of a loop of 100 decisions */
+  @Override Percentage expectedErrorProbability() {
+    return withPercentage(1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void probabilityMinimumOnePercent() {
+    newSampler(0.0001f);
+  }
+
+  @Test public void singleThreadIsExact() {
+    Sampler sampler = new StripedCountingSampler(0.25f, 8, new Random());
+
+    int passed = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (sampler.isSampled(i)) passed++;
+    }
+    assertThat(passed).isEqualTo(250);
+  }
+}
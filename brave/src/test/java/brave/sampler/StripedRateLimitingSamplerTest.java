@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.sampler;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static brave.sampler.RateLimitingSampler.NANOS_PER_DECISECOND;
+import static brave.sampler.RateLimitingSampler.NANOS_PER_SECOND;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+// Added to declutter console: tells power mock not to mess with implicit classes we aren't testing
+@PowerMockIgnore({"org.apache.logging.*", "javax.script.*"})
+@PrepareForTest(StripedRateLimitingSampler.class)
+public class StripedRateLimitingSamplerTest {
+
+  @Test public void samplesOnlySpecifiedNumber() {
+    mockStatic(System.class);
+    when(System.nanoTime()).thenReturn(NANOS_PER_SECOND);
+    Sampler sampler = StripedRateLimitingSampler.create(2, 8);
+
+    when(System.nanoTime()).thenReturn(NANOS_PER_SECOND + 1);
+    assertThat(sampler.isSampled(0L)).isTrue();
+    assertThat(sampler.isSampled(0L)).isTrue();
+    assertThat(sampler.isSampled(0L)).isFalse();
+  }
+
+  /** The calling thread only has a share of the budget, so the rest is borrowed. */
+  @Test public void borrowsFromOtherStripes() {
+    mockStatic(System.class);
+    when(System.nanoTime()).thenReturn(NANOS_PER_SECOND);
+    Sampler sampler = StripedRateLimitingSampler.create(100, 4);
+
+    when(System.nanoTime()).thenReturn(NANOS_PER_SECOND + NANOS_PER_DECISECOND * 9);
+    for (int i = 0; i < 100; i++) {
+      assertThat(sampler.isSampled(0L))
+        .withFailMessage("failed after " + (i + 1))
+        .isTrue();
+    }
+    assertThat(sampler.isSampled(0L)).isFalse();
+  }
+
+  @Test public void resetsAfterASecond() {
+    mockStatic(System.class);
+
+    when(System.nanoTime()).thenReturn(NANOS_PER_SECOND);
+    Sampler sampler = StripedRateLimitingSampler.create(10, 2);
+    assertThat(sampler.isSampled(0L)).isTrue();
+    assertThat(sampler.isSampled(0L)).isFalse();
+
+    when(System.nanoTime()).thenReturn(NANOS_PER_SECOND + NANOS_PER_DECISECOND);
+    assertThat(sampler.isSampled(0L)).isTrue();
+    assertThat(sampler.isSampled(0L)).isFalse();
+
+    when(System.nanoTime()).thenReturn(NANOS_PER_SECOND + NANOS_PER_DECISECOND * 9);
+    for (int i = 0; i < 8; i++) assertThat(sampler.isSampled(0L)).isTrue();
+    assertThat(sampler.isSampled(0L)).isFalse();
+
+    when(System.nanoTime()).thenReturn(NANOS_PER_SECOND + NANOS_PER_SECOND);
+    assertThat(sampler.isSampled(0L)).isTrue();
+  }
+
+  /** Exhaustion is remembered only until the next decisecond. */
+  @Test public void exhaustedUntilNextDecisecond() {
+    mockStatic(System.class);
+
+    when(System.nanoTime()).thenReturn(0L);
+    Sampler sampler = StripedRateLimitingSampler.create(40, 4);
+
+    for (int i = 0; i < 4; i++) assertThat(sampler.isSampled(0L)).isTrue();
+    assertThat(sampler.isSampled(0L)).isFalse();
+
+    when(System.nanoTime()).thenReturn(NANOS_PER_DECISECOND - 1);
+    assertThat(sampler.isSampled(0L)).isFalse();
+
+    when(System.nanoTime()).thenReturn(NANOS_PER_DECISECOND);
+    for (int i = 0; i < 4; i++) assertThat(sampler.isSampled(0L)).isTrue();
+    assertThat(sampler.isSampled(0L)).isFalse();
+  }
+
+  @Test public void resetsAfterALongGap() {
+    mockStatic(System.class);
+
+    when(System.nanoTime()).thenReturn(0L);
+    Sampler sampler = StripedRateLimitingSampler.create(10, 2);
+
+    // Try a really long time later. Makes sure extra credit isn't given
+    when(System.nanoTime()).thenReturn(365L * 24 * 60 * 60 * NANOS_PER_SECOND);
+    assertThat(sampler.isSampled(0L)).isTrue();
+    assertThat(sampler.isSampled(0L)).isFalse(); // we took the credit of the 1st decisecond
+  }
+
+  @Test public void worksOnRollover() {
+    mockStatic(System.class);
+    when(System.nanoTime()).thenReturn(-NANOS_PER_SECOND);
+    Sampler sampler = StripedRateLimitingSampler.create(2, 2);
+    assertThat(sampler.isSampled(0L)).isTrue();
+
+    when(System.nanoTime()).thenReturn(-NANOS_PER_SECOND / 2);
+    assertThat(sampler.isSampled(0L)).isTrue(); // second request
+
+    when(System.nanoTime()).thenReturn(-NANOS_PER_SECOND / 4);
+    assertThat(sampler.isSampled(0L)).isFalse();
+
+    when(System.nanoTime()).thenReturn(0L); // reset
+    assertThat(sampler.isSampled(0L)).isTrue();
+  }
+
+  @Test public void stripeCount() {
+    assertThat(StripedRateLimitingSampler.stripeCount(1000, 1)).isEqualTo(1);
+    assertThat(StripedRateLimitingSampler.stripeCount(1000, 12)).isEqualTo(16);
+    assertThat(StripedRateLimitingSampler.stripeCount(1000, 128)).isEqualTo(64);
+    assertThat(StripedRateLimitingSampler.stripeCount(5, 128)).isEqualTo(4);
+  }
+
+  @Test public void zeroMeansDropAllTraces() {
+    assertThat(StripedRateLimitingSampler.create(0)).isSameAs(Sampler.NEVER_SAMPLE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tracesPerSecond_cantBeNegative() {
+    StripedRateLimitingSampler.create(-1);
+  }
+}
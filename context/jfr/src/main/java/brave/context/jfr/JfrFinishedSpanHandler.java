@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.context.jfr;
+
+import brave.ErrorParser;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.handler.MutableSpan.AnnotationConsumer;
+import brave.handler.MutableSpan.TagConsumer;
+import brave.propagation.TraceContext;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records each finished span as a JDK Flight Recorder event named {@value #EVENT_NAME}. When no
+ * recording is in progress, this does nothing. Use {@link JfrSpanReader} to read the spans back
+ * from a recording.
+ *
+ * <p>This allows always-on capture of spans at low cost, which can be dumped after an incident,
+ * instead of reporting them continuously.
+ *
+ * <p>Ex.
+ * <pre>{@code
+ * tracing = Tracing.newBuilder()
+ *                  .addFinishedSpanHandler(JfrFinishedSpanHandler.get())
+ *                  ...
+ *                  .build();
+ * }</pre>
+ *
+ * <p>Identifiers are recorded as long fields, so no strings are allocated for them. Tags and
+ * annotations are recorded as text, one per line.
+ *
+ * @since 5.12
+ */
+public final class JfrFinishedSpanHandler extends FinishedSpanHandler {
+  public static final String EVENT_NAME = "zipkin.Span";
+  static final FinishedSpanHandler INSTANCE = new JfrFinishedSpanHandler(ErrorParser.get());
+
+  /**
+   * Returns a singleton that adds the "error" tag with {@link ErrorParser#get()}.
+   *
+   * @since 5.12
+   */
+  public static FinishedSpanHandler get() {
+    return INSTANCE;
+  }
+
+  @Name(EVENT_NAME)
+  @Category("Zipkin")
+  @Label("Span")
+  @Description("Zipkin span which finished")
+  @StackTrace(false)
+  static final class SpanEvent extends Event {
+    @Label("Trace Id High") long traceIdHigh;
+    @Label("Trace Id") long traceId;
+    @Label("Parent Id") long parentId;
+    @Label("Span Id") long spanId;
+    @Label("Debug") boolean debug;
+    @Label("Shared") boolean shared;
+    @Label("Kind") String kind;
+    @Label("Name") String name;
+    @Label("Start Timestamp") @Description("Epoch microseconds") long startTimestamp;
+    @Label("Finish Timestamp") @Description("Epoch microseconds") long finishTimestamp;
+    @Label("Local Service Name") String localServiceName;
+    @Label("Local IP") String localIp;
+    @Label("Local Port") int localPort;
+    @Label("Remote Service Name") String remoteServiceName;
+    @Label("Remote IP") String remoteIp;
+    @Label("Remote Port") int remotePort;
+    @Label("Tags") @Description("Lines of key=value") String tags;
+    @Label("Annotations") @Description("Lines of timestamp=value") String annotations;
+  }
+
+  final ErrorParser errorParser;
+
+  JfrFinishedSpanHandler(ErrorParser errorParser) {
+    this.errorParser = errorParser;
+  }
+
+  @Override public boolean handle(TraceContext context, MutableSpan span) {
+    SpanEvent event = new SpanEvent();
+    if (!event.isEnabled()) return true;
+
+    if (span.error() != null && span.tag("error") == null) errorParser.error(span.error(), span);
+
+    event.traceIdHigh = context.traceIdHigh();
+    event.traceId = context.traceId();
+    event.parentId = context.parentIdAsLong();
+    event.spanId = context.spanId();
+    event.debug = span.debug();
+    event.shared = span.shared();
+    if (span.kind() != null) event.kind = span.kind().name();
+    event.name = span.name();
+    event.startTimestamp = span.startTimestamp();
+    event.finishTimestamp = span.finishTimestamp();
+    event.localServiceName = span.localServiceName();
+    event.localIp = span.localIp();
+    event.localPort = span.localPort();
+    event.remoteServiceName = span.remoteServiceName();
+    event.remoteIp = span.remoteIp();
+    event.remotePort = span.remotePort();
+    if (span.tagCount() > 0) {
+      StringBuilder tags = new StringBuilder();
+      span.forEachTag(TagWriter.INSTANCE, tags);
+      event.tags = tags.toString();
+    }
+    if (span.annotationCount() > 0) {
+      StringBuilder annotations = new StringBuilder();
+      span.forEachAnnotation(AnnotationWriter.INSTANCE, annotations);
+      event.annotations = annotations.toString();
+    }
+    event.commit();
+    return true;
+  }
+
+  enum TagWriter implements TagConsumer<StringBuilder> {
+    INSTANCE;
+
+    @Override public void accept(StringBuilder target, String key, String value) {
+      escape(target, key);
+      target.append('=');
+      escape(target, value);
+      target.append('\n');
+    }
+  }
+
+  enum AnnotationWriter implements AnnotationConsumer<StringBuilder> {
+    INSTANCE;
+
+    @Override public void accept(StringBuilder target, long timestamp, String value) {
+      target.append(timestamp).append('=');
+      escape(target, value);
+      target.append('\n');
+    }
+  }
+
+  /** Escapes characters that would otherwise be read as delimiters. */
+  static void escape(StringBuilder target, String value) {
+    for (int i = 0, length = value.length(); i < length; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          target.append("\\\\");
+          break;
+        case '\n':
+          target.append("\\n");
+          break;
+        case '=':
+          target.append("\\=");
+          break;
+        default:
+          target.append(c);
+      }
+    }
+  }
+
+  @Override public String toString() {
+    return "JfrFinishedSpanHandler{}";
+  }
+}
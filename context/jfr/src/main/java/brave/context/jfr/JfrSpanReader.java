@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.context.jfr;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import brave.internal.Nullable;
+import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Reads spans recorded by {@link JfrFinishedSpanHandler}.
+ *
+ * <p>Ex. to read spans from a recording dumped after an incident, and encode them as a JSON list
+ * you can POST to Zipkin's {@code /api/v2/spans} endpoint
+ * <pre>{@code
+ * List<MutableSpan> spans = JfrSpanReader.readAll(Paths.get("incident.jfr"));
+ * Files.write(Paths.get("incident.json"), MutableSpanBytesEncoder.JSON_V2.encodeList(spans));
+ * }</pre>
+ *
+ * <p>On JRE 14+, {@link #toSpan(RecordedEvent)} can also be used with a {@code
+ * jdk.jfr.consumer.RecordingStream} to read spans as they are recorded.
+ *
+ * @since 5.12
+ */
+public final class JfrSpanReader {
+  /** Returns all spans in the recording, in the order they finished. */
+  public static List<MutableSpan> readAll(Path recording) throws IOException {
+    if (recording == null) throw new NullPointerException("recording == null");
+    List<MutableSpan> result = new ArrayList<>();
+    try (RecordingFile file = new RecordingFile(recording)) {
+      while (file.hasMoreEvents()) {
+        MutableSpan span = toSpan(file.readEvent());
+        if (span != null) result.add(span);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a span from an event named {@value JfrFinishedSpanHandler#EVENT_NAME}, or null if the
+   * event is of a different type.
+   */
+  @Nullable public static MutableSpan toSpan(RecordedEvent event) {
+    if (event == null) throw new NullPointerException("event == null");
+    if (!JfrFinishedSpanHandler.EVENT_NAME.equals(event.getEventType().getName())) return null;
+
+    long parentId = event.getLong("parentId");
+    TraceContext context = TraceContext.newBuilder()
+      .traceIdHigh(event.getLong("traceIdHigh"))
+      .traceId(event.getLong("traceId"))
+      .parentId(parentId)
+      .spanId(event.getLong("spanId"))
+      .build();
+
+    MutableSpan span = new MutableSpan();
+    span.traceId(context.traceIdString());
+    span.parentId(context.parentIdString());
+    span.id(context.spanIdString());
+    if (event.getBoolean("debug")) span.setDebug();
+    if (event.getBoolean("shared")) span.setShared();
+    String kind = event.getString("kind");
+    if (kind != null) span.kind(Kind.valueOf(kind));
+    span.name(event.getString("name"));
+    span.startTimestamp(event.getLong("startTimestamp"));
+    span.finishTimestamp(event.getLong("finishTimestamp"));
+    span.localServiceName(event.getString("localServiceName"));
+    span.localIp(event.getString("localIp"));
+    span.localPort(event.getInt("localPort"));
+    span.remoteServiceName(event.getString("remoteServiceName"));
+    span.remoteIpAndPort(event.getString("remoteIp"), event.getInt("remotePort"));
+    parseLines(event.getString("tags"), span, false);
+    parseLines(event.getString("annotations"), span, true);
+    return span;
+  }
+
+  /** Parses lines written by {@link JfrFinishedSpanHandler#escape(StringBuilder, String)}. */
+  static void parseLines(@Nullable String lines, MutableSpan span, boolean annotations) {
+    if (lines == null) return;
+    StringBuilder key = new StringBuilder(), value = new StringBuilder();
+    StringBuilder current = key;
+    for (int i = 0, length = lines.length(); i < length; i++) {
+      char c = lines.charAt(i);
+      if (c == '\\' && i + 1 < length) {
+        char escaped = lines.charAt(++i);
+        current.append(escaped == 'n' ? '\n' : escaped);
+      } else if (c == '=' && current == key) {
+        current = value;
+      } else if (c == '\n') {
+        if (annotations) {
+          span.annotate(Long.parseLong(key.toString()), value.toString());
+        } else {
+          span.tag(key.toString(), value.toString());
+        }
+        key.setLength(0);
+        value.setLength(0);
+        current = key;
+      } else {
+        current.append(c);
+      }
+    }
+  }
+
+  JfrSpanReader() {
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.context.jfr;
+
+import brave.Span.Kind;
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.Recording;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class JfrFinishedSpanHandlerTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  TraceContext context =
+    TraceContext.newBuilder().traceIdHigh(3L).traceId(1L).parentId(2L).spanId(4L).build();
+
+  @Test public void roundTrip() throws Exception {
+    MutableSpan span = new MutableSpan();
+    span.traceId(context.traceIdString());
+    span.parentId(context.parentIdString());
+    span.id(context.spanIdString());
+    span.kind(Kind.CLIENT);
+    span.setShared();
+    span.name("get");
+    span.startTimestamp(1000L);
+    span.finishTimestamp(1500L);
+    span.localServiceName("frontend");
+    span.localIp("1.2.3.4");
+    span.localPort(8080);
+    span.remoteServiceName("backend");
+    span.remoteIpAndPort("5.6.7.8", 9000);
+    span.tag("http.path", "/a=b\\c");
+    span.tag("multi", "line\nvalue");
+    span.annotate(1200L, "retry=1");
+    span.error(new IllegalStateException("oops"));
+
+    List<MutableSpan> spans = record(() -> JfrFinishedSpanHandler.get().handle(context, span));
+
+    MutableSpan expected = new MutableSpan(span);
+    expected.error(null);
+    expected.tag("error", "oops"); // added by the handler
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0)).isEqualTo(expected);
+    assertThat(spans.get(0).traceId()).isEqualTo("00000000000000030000000000000001");
+  }
+
+  @Test public void roundTrip_minimal() throws Exception {
+    TraceContext root = TraceContext.newBuilder().traceId(1L).spanId(1L).build();
+    MutableSpan span = new MutableSpan();
+    span.traceId(root.traceIdString());
+    span.id(root.spanIdString());
+
+    List<MutableSpan> spans = record(() -> JfrFinishedSpanHandler.get().handle(root, span));
+
+    assertThat(spans).containsExactly(span);
+  }
+
+  @Test public void worksWithTracing() throws Exception {
+    List<MutableSpan> spans = record(() -> {
+      try (Tracing tracing = Tracing.newBuilder()
+        .localServiceName("favistar")
+        .addFinishedSpanHandler(JfrFinishedSpanHandler.get())
+        .build()) {
+        tracing.tracer().newTrace().name("foo").tag("a", "b").start().finish();
+      }
+    });
+
+    assertThat(spans).extracting(MutableSpan::name, MutableSpan::localServiceName)
+      .containsExactly(tuple("foo", "favistar"));
+    assertThat(spans.get(0).tag("a")).isEqualTo("b");
+  }
+
+  @Test public void doesNothingWhenNotRecording() {
+    MutableSpan span = new MutableSpan();
+    span.error(new IllegalStateException("oops"));
+
+    assertThat(JfrFinishedSpanHandler.get().handle(context, span)).isTrue();
+    assertThat(span.tag("error")).isNull();
+  }
+
+  List<MutableSpan> record(Runnable runnable) throws Exception {
+    Path destination = folder.newFile("spans.jfr").toPath();
+    try (Recording recording = new Recording()) {
+      recording.enable(JfrFinishedSpanHandler.EVENT_NAME);
+      recording.start();
+
+      runnable.run();
+
+      recording.dump(destination);
+    }
+    return JfrSpanReader.readAll(destination);
+  }
+}
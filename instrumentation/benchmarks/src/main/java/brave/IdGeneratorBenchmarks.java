@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IdGeneratorBenchmarks {
+  static final IdGenerator platform = IdGenerator.platform();
+  static final IdGenerator threadLocal = IdGenerator.threadLocal();
+
+  @Benchmark @Group("no_contention") @GroupThreads(1)
+  public long no_contention_nextId_platform() {
+    return platform.nextId();
+  }
+
+  @Benchmark @Group("high_contention") @GroupThreads(8)
+  public long high_contention_nextId_platform() {
+    return platform.nextId();
+  }
+
+  @Benchmark @Group("no_contention") @GroupThreads(1)
+  public long no_contention_nextTraceIdHigh_platform() {
+    return platform.nextTraceIdHigh();
+  }
+
+  @Benchmark @Group("high_contention") @GroupThreads(8)
+  public long high_contention_nextTraceIdHigh_platform() {
+    return platform.nextTraceIdHigh();
+  }
+
+  @Benchmark @Group("no_contention") @GroupThreads(1)
+  public long no_contention_nextId_threadLocal() {
+    return threadLocal.nextId();
+  }
+
+  @Benchmark @Group("high_contention") @GroupThreads(8)
+  public long high_contention_nextId_threadLocal() {
+    return threadLocal.nextId();
+  }
+
+  @Benchmark @Group("no_contention") @GroupThreads(1)
+  public long no_contention_nextTraceIdHigh_threadLocal() {
+    return threadLocal.nextTraceIdHigh();
+  }
+
+  @Benchmark @Group("high_contention") @GroupThreads(8)
+  public long high_contention_nextTraceIdHigh_threadLocal() {
+    return threadLocal.nextTraceIdHigh();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + IdGeneratorBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -13,6 +13,7 @@
  */
 package brave.internal;
 
+import brave.AnchoredClock;
 import brave.Clock;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
@@ -40,6 +41,7 @@ public class PlatformBenchmarks {
   static final Platform jre9 = new Platform.Jre9();
   static final Clock jre7Clock = jre7.clock();
   static final Clock jre9Clock = jre9.clock();
+  static final Clock anchoredClock = AnchoredClock.create();
 
   @Benchmark @Group("no_contention") @GroupThreads(1)
   public long no_contention_nextTraceIdHigh_jre6() {
@@ -131,6 +133,21 @@ public class PlatformBenchmarks {
     return jre9Clock.currentTimeMicroseconds();
   }
 
+  @Benchmark @Group("no_contention") @GroupThreads(1)
+  public long no_contention_clock_anchored() {
+    return anchoredClock.currentTimeMicroseconds();
+  }
+
+  @Benchmark @Group("mild_contention") @GroupThreads(2)
+  public long mild_contention_clock_anchored() {
+    return anchoredClock.currentTimeMicroseconds();
+  }
+
+  @Benchmark @Group("high_contention") @GroupThreads(8)
+  public long high_contention_clock_anchored() {
+    return anchoredClock.currentTimeMicroseconds();
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt = new OptionsBuilder()
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.internal.recorder;
+
+import brave.Tracing;
+import brave.TracingMetrics;
+import brave.handler.FinishedSpanHandler;
+import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Compares a single stripe, which is like before striping, to the count used by default. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class PendingSpansBenchmarks {
+  static {
+    Tracing.newBuilder().build().close(); // ensure internal hooks are wired
+  }
+
+  @Param({"1", "64"})
+  int stripeCount;
+
+  PendingSpans pendingSpans;
+
+  /** Avoids a shared ID counter, which would otherwise be the point of contention. */
+  @State(Scope.Thread)
+  public static class Ids {
+    long nextId = new Random().nextLong();
+  }
+
+  @Setup public void init() {
+    pendingSpans = new PendingSpans(new MutableSpan(), () -> 1L, FinishedSpanHandler.NOOP, false,
+      new AtomicBoolean(), null, null, TracingMetrics.NOOP, stripeCount);
+  }
+
+  @Benchmark @Group("no_contention") @GroupThreads(1)
+  public boolean no_contention_createAndFinish(Ids ids) {
+    return createAndFinish(ids);
+  }
+
+  @Benchmark @Group("mild_contention") @GroupThreads(8)
+  public boolean mild_contention_createAndFinish(Ids ids) {
+    return createAndFinish(ids);
+  }
+
+  @Benchmark @Group("high_contention") @GroupThreads(64)
+  public boolean high_contention_createAndFinish(Ids ids) {
+    return createAndFinish(ids);
+  }
+
+  /** This includes a lookup, as tracers usually check for an existing span before finishing. */
+  boolean createAndFinish(Ids ids) {
+    long id = ids.nextId++;
+    TraceContext context = TraceContext.newBuilder().traceId(id).spanId(id).build();
+    pendingSpans.getOrCreate(null, context, true);
+    pendingSpans.get(context);
+    return pendingSpans.finish(context, 0L);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + PendingSpansBenchmarks.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -107,6 +107,29 @@ public class SamplerBenchmarks {
   // Use fixed-seed Random so performance of runs can be compared.
   static final Sampler SAMPLER_RATE = new CountingSampler(SAMPLE_PROBABILITY, new Random(1000));
 
+  @Benchmark @Threads(8) public boolean sampler_counting_8threads(Args args) {
+    return SAMPLER_RATE.isSampled(args.traceId);
+  }
+
+  @Benchmark @Threads(32) public boolean sampler_counting_32threads(Args args) {
+    return SAMPLER_RATE.isSampled(args.traceId);
+  }
+
+  @Benchmark public boolean sampler_counting_striped(Args args) {
+    return SAMPLER_RATE_STRIPED.isSampled(args.traceId);
+  }
+
+  @Benchmark @Threads(8) public boolean sampler_counting_striped_8threads(Args args) {
+    return SAMPLER_RATE_STRIPED.isSampled(args.traceId);
+  }
+
+  @Benchmark @Threads(32) public boolean sampler_counting_striped_32threads(Args args) {
+    return SAMPLER_RATE_STRIPED.isSampled(args.traceId);
+  }
+
+  static final Sampler SAMPLER_RATE_STRIPED =
+    new StripedCountingSampler(SAMPLE_PROBABILITY, 64, new Random(1000));
+
   @Benchmark public boolean sampler_rateLimited_1(Args args) {
     return SAMPLER_RATE_LIMITED.isSampled(args.traceId);
   }
@@ -119,6 +142,20 @@ public class SamplerBenchmarks {
 
   static final Sampler SAMPLER_RATE_LIMITED_100 = RateLimitingSampler.create(100);
 
+  @Benchmark @Threads(32) public boolean sampler_rateLimited_100_32threads(Args args) {
+    return SAMPLER_RATE_LIMITED_100.isSampled(args.traceId);
+  }
+
+  @Benchmark public boolean sampler_rateLimited_100_striped(Args args) {
+    return SAMPLER_RATE_LIMITED_100_STRIPED.isSampled(args.traceId);
+  }
+
+  @Benchmark @Threads(32) public boolean sampler_rateLimited_100_striped_32threads(Args args) {
+    return SAMPLER_RATE_LIMITED_100_STRIPED.isSampled(args.traceId);
+  }
+
+  static final Sampler SAMPLER_RATE_LIMITED_100_STRIPED = StripedRateLimitingSampler.create(100);
+
   @Benchmark public boolean sampler_rateLimited_1_xray(Args args) {
     return RESERVOIR_RATE_LIMITED.take();
   }
@@ -14,10 +14,10 @@
 package brave.http;
 
 import brave.Tracing;
+import brave.internal.IndexedRuleSampler;
 import brave.internal.Nullable;
 import brave.sampler.CountingSampler;
 import brave.sampler.Matcher;
-import brave.sampler.ParameterizedSampler;
 import brave.sampler.RateLimitingSampler;
 import brave.sampler.Sampler;
 import brave.sampler.SamplerFunction;
@@ -61,6 +61,12 @@ import static brave.sampler.Matchers.and;
  * <h3>Implementation notes</h3>
  * Be careful when implementing matchers as {@link HttpRequest} methods can return null.
  *
+ * <p>Rules made of {@link HttpRequestMatchers#methodEquals(String)}, {@link
+ * HttpRequestMatchers#pathStartsWith(String)} or an {@link brave.sampler.Matchers#and(Matcher[])
+ * and} of both are indexed in a prefix trie per method. This makes the cost of sampling
+ * proportional to the length of the path, instead of the count of rules. Other matchers are
+ * evaluated in order, so the first matching rule always wins.
+ *
  * @since 4.4
  */
 public final class HttpRuleSampler extends HttpSampler implements SamplerFunction<HttpRequest> {
@@ -71,7 +77,7 @@ public final class HttpRuleSampler extends HttpSampler implements SamplerFunctio
 
   /** @since 4.4 */
   public static final class Builder {
-    final ParameterizedSampler.Builder<HttpRequest> delegate = ParameterizedSampler.newBuilder();
+    final IndexedRuleSampler.Builder<HttpRequest> delegate = IndexedRuleSampler.newBuilder();
 
     /**
      * @since 4.4
@@ -81,11 +87,9 @@ public final class HttpRuleSampler extends HttpSampler implements SamplerFunctio
       if (path == null) throw new NullPointerException("path == null");
       Sampler sampler = CountingSampler.create(probability);
       if (method == null) {
-        delegate.putRule(pathStartsWith(path), RateLimitingSampler.create(10));
-        return this;
+        return putRule(pathStartsWith(path), RateLimitingSampler.create(10));
       }
-      delegate.putRule(and(methodEquals(method), pathStartsWith(path)), sampler);
-      return this;
+      return putRule(and(methodEquals(method), pathStartsWith(path)), sampler);
     }
 
     /**
@@ -117,16 +121,16 @@ public final class HttpRuleSampler extends HttpSampler implements SamplerFunctio
     }
 
     public HttpRuleSampler build() {
-      return new HttpRuleSampler(delegate.build());
+      return new HttpRuleSampler(delegate.build(HttpRuleTrie.INDEXER));
     }
 
     Builder() {
     }
   }
 
-  final ParameterizedSampler<HttpRequest> delegate;
+  final IndexedRuleSampler<HttpRequest> delegate;
 
-  HttpRuleSampler(ParameterizedSampler<HttpRequest> delegate) {
+  HttpRuleSampler(IndexedRuleSampler<HttpRequest> delegate) {
     this.delegate = delegate;
   }
 
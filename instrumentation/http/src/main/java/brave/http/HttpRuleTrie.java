@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.http;
+
+import brave.http.HttpRequestMatchers.MethodEquals;
+import brave.http.HttpRequestMatchers.PathStartsWith;
+import brave.internal.IndexedRuleSampler.IndexBuilder;
+import brave.internal.IndexedRuleSampler.Indexer;
+import brave.internal.InternalMatchers;
+import brave.internal.Nullable;
+import brave.sampler.Matcher;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes a run of consecutive rules made of {@link HttpRequestMatchers#methodEquals(String)} and
+ * {@link HttpRequestMatchers#pathStartsWith(String)}, so that the first matching rule is found in
+ * time proportional to the path length instead of the count of rules.
+ *
+ * <p>There is one prefix trie per HTTP method, and one for rules that match any method. Each node
+ * records the lowest index of the rules whose prefix ends there. Walking the request path through
+ * both tries and keeping the lowest index gives the same result as evaluating the rules in order.
+ */
+final class HttpRuleTrie implements SamplerFunction<HttpRequest> {
+  static final Indexer<HttpRequest, String[]> INDEXER = new Indexer<HttpRequest, String[]>() {
+    @Override public String[] attributes(Matcher<HttpRequest> matcher) {
+      return methodAndPathPrefix(matcher);
+    }
+
+    @Override public Builder newIndexBuilder() {
+      return new Builder();
+    }
+  };
+
+  /**
+   * Returns the method (possibly null) and path prefix (possibly empty) of a rule, or null if the
+   * matcher can't be indexed.
+   */
+  @Nullable static String[] methodAndPathPrefix(Matcher<HttpRequest> matcher) {
+    if (matcher instanceof MethodEquals) {
+      return new String[] {((MethodEquals) matcher).method, ""};
+    }
+    if (matcher instanceof PathStartsWith) {
+      return new String[] {null, ((PathStartsWith) matcher).pathPrefix};
+    }
+    Matcher<HttpRequest>[] and = InternalMatchers.and(matcher);
+    if (and == null || and.length != 2) return null;
+    String method = null, pathPrefix = null;
+    for (Matcher<HttpRequest> next : and) {
+      if (method == null && next instanceof MethodEquals) {
+        method = ((MethodEquals) next).method;
+      } else if (pathPrefix == null && next instanceof PathStartsWith) {
+        pathPrefix = ((PathStartsWith) next).pathPrefix;
+      } else {
+        return null;
+      }
+    }
+    return new String[] {method, pathPrefix};
+  }
+
+  static final class Builder extends IndexBuilder<HttpRequest, String[]> {
+    final Map<String, Node> methodTries = new LinkedHashMap<>();
+    final Node anyMethodTrie = new Node();
+    final List<Sampler> samplers = new ArrayList<>();
+
+    @Override public void addRule(String[] methodAndPathPrefix, Sampler sampler) {
+      String method = methodAndPathPrefix[0], pathPrefix = methodAndPathPrefix[1];
+      Node node;
+      if (method == null) {
+        node = anyMethodTrie;
+      } else {
+        node = methodTries.get(method);
+        if (node == null) methodTries.put(method, node = new Node());
+      }
+      for (int i = 0, length = pathPrefix.length(); i < length; i++) {
+        node = node.getOrCreateChild(pathPrefix.charAt(i));
+      }
+      // Only the first rule for the same method and prefix can match
+      if (node.rule == Node.NO_RULE) node.rule = samplers.size();
+      samplers.add(sampler);
+    }
+
+    @Override public HttpRuleTrie build() {
+      return new HttpRuleTrie(this);
+    }
+  }
+
+  final Map<String, Node> methodTries;
+  final Node anyMethodTrie;
+  final Sampler[] samplers;
+
+  HttpRuleTrie(Builder builder) {
+    this.methodTries = builder.methodTries;
+    this.anyMethodTrie = builder.anyMethodTrie;
+    this.samplers = builder.samplers.toArray(new Sampler[0]);
+  }
+
+  @Override public @Nullable Boolean trySample(HttpRequest request) {
+    String path = request.path();
+    int rule = anyMethodTrie.firstRule(path);
+    if (!methodTries.isEmpty()) {
+      String method = request.method();
+      Node methodTrie = method != null ? methodTries.get(method) : null;
+      if (methodTrie != null) rule = Math.min(rule, methodTrie.firstRule(path));
+    }
+    if (rule == Node.NO_RULE) return null;
+    return samplers[rule].isSampled(0L); // counting sampler ignores the input
+  }
+
+  @Override public String toString() {
+    return "HttpRuleTrie{rules=" + samplers.length + "}";
+  }
+
+  static final class Node {
+    static final int NO_RULE = Integer.MAX_VALUE;
+    static final char[] NO_KEYS = new char[0];
+    static final Node[] NO_CHILDREN = new Node[0];
+
+    char[] keys = NO_KEYS; // sorted for binary search
+    Node[] children = NO_CHILDREN;
+    int rule = NO_RULE;
+
+    /** Returns the lowest rule index of this node and its descendants along the path. */
+    int firstRule(@Nullable String path) {
+      int result = rule;
+      if (path == null) return result; // only rules without a path prefix match
+      Node node = this;
+      for (int i = 0, length = path.length(); i < length; i++) {
+        node = node.child(path.charAt(i));
+        if (node == null) break;
+        if (node.rule < result) result = node.rule;
+      }
+      return result;
+    }
+
+    @Nullable Node child(char c) {
+      int i = Arrays.binarySearch(keys, c);
+      return i < 0 ? null : children[i];
+    }
+
+    Node getOrCreateChild(char c) {
+      int i = Arrays.binarySearch(keys, c);
+      if (i >= 0) return children[i];
+      int insertAt = -(i + 1), length = keys.length;
+      char[] newKeys = new char[length + 1];
+      Node[] newChildren = new Node[length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, insertAt);
+      System.arraycopy(children, 0, newChildren, 0, insertAt);
+      System.arraycopy(keys, insertAt, newKeys, insertAt + 1, length - insertAt);
+      System.arraycopy(children, insertAt, newChildren, insertAt + 1, length - insertAt);
+      newKeys[insertAt] = c;
+      Node result = newChildren[insertAt] = new Node();
+      keys = newKeys;
+      children = newChildren;
+      return result;
+    }
+  }
+}
@@ -166,6 +166,74 @@ public class HttpRuleSamplerTest {
       .isFalse();
   }
 
+  @Test public void indexesMethodAndPath() {
+    HttpRuleSampler sampler = HttpRuleSampler.newBuilder()
+      .putRule(and(methodEquals("GET"), pathStartsWith("/foo")), Sampler.ALWAYS_SAMPLE)
+      .putRule(and(pathStartsWith("/foo"), methodEquals("POST")), Sampler.NEVER_SAMPLE)
+      .putRule(methodEquals("PUT"), Sampler.NEVER_SAMPLE)
+      .build();
+
+    assertThat(sampler.delegate.steps()).hasSize(1).allMatch(HttpRuleTrie.class::isInstance);
+
+    when(httpServerRequest.method()).thenReturn("GET");
+    when(httpServerRequest.path()).thenReturn("/foo/bar");
+    assertThat(sampler.trySample(httpServerRequest))
+      .isTrue();
+
+    when(httpServerRequest.method()).thenReturn("POST");
+    assertThat(sampler.trySample(httpServerRequest))
+      .isFalse();
+
+    when(httpServerRequest.method()).thenReturn("GET");
+    when(httpServerRequest.path()).thenReturn("/fo");
+    assertThat(sampler.trySample(httpServerRequest))
+      .isNull();
+
+    when(httpServerRequest.method()).thenReturn("PUT");
+    when(httpServerRequest.path()).thenReturn(null);
+    assertThat(sampler.trySample(httpServerRequest))
+      .isFalse(); // method matchers don't need a path
+  }
+
+  /** The trie must return the first rule that matches, not the longest prefix. */
+  @Test public void indexed_firstMatchWins() {
+    HttpRuleSampler sampler = HttpRuleSampler.newBuilder()
+      .putRule(pathStartsWith("/foo"), Sampler.NEVER_SAMPLE)
+      .putRule(pathStartsWith("/foo/bar"), Sampler.ALWAYS_SAMPLE)
+      .putRule(pathStartsWith("/"), Sampler.ALWAYS_SAMPLE)
+      .build();
+
+    when(httpServerRequest.path()).thenReturn("/foo/bar/baz");
+    assertThat(sampler.trySample(httpServerRequest))
+      .isFalse();
+
+    when(httpServerRequest.path()).thenReturn("/fob");
+    assertThat(sampler.trySample(httpServerRequest))
+      .isTrue();
+  }
+
+  @Test public void customMatchersKeepOrder() {
+    HttpRuleSampler sampler = HttpRuleSampler.newBuilder()
+      .putRule(pathStartsWith("/a"), Sampler.NEVER_SAMPLE)
+      .putRule(request -> "/b".equals(request.path()), Sampler.ALWAYS_SAMPLE)
+      .putRule(pathStartsWith("/"), Sampler.NEVER_SAMPLE)
+      .build();
+
+    assertThat(sampler.delegate.steps()).hasSize(3);
+
+    when(httpServerRequest.path()).thenReturn("/b");
+    assertThat(sampler.trySample(httpServerRequest))
+      .isTrue();
+
+    when(httpServerRequest.path()).thenReturn("/a");
+    assertThat(sampler.trySample(httpServerRequest))
+      .isFalse();
+
+    when(httpServerRequest.path()).thenReturn("/c");
+    assertThat(sampler.trySample(httpServerRequest))
+      .isFalse();
+  }
+
   // empty may sound unintuitive, but it allows use of the same type when always deferring
   @Test public void noRulesOk() {
     HttpRuleSampler.newBuilder().build();
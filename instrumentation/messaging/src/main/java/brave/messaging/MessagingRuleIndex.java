@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.messaging;
+
+import brave.internal.ExactMatchIndex;
+import brave.internal.IndexedRuleSampler.IndexBuilder;
+import brave.internal.IndexedRuleSampler.Indexer;
+import brave.internal.InternalMatchers;
+import brave.internal.Nullable;
+import brave.messaging.MessagingRequestMatchers.MessagingChannelKindEquals;
+import brave.messaging.MessagingRequestMatchers.MessagingChannelNameEquals;
+import brave.messaging.MessagingRequestMatchers.MessagingOperationEquals;
+import brave.sampler.Matcher;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Indexes a run of consecutive rules made of {@link MessagingRequestMatchers} equality matchers,
+ * so that the first matching rule is found in constant time instead of in order.
+ */
+final class MessagingRuleIndex implements SamplerFunction<MessagingRequest> {
+  static final Indexer<MessagingRequest, String[]> INDEXER =
+    new Indexer<MessagingRequest, String[]>() {
+      @Override public String[] attributes(Matcher<MessagingRequest> matcher) {
+        return MessagingRuleIndex.attributes(matcher);
+      }
+
+      @Override public Builder newIndexBuilder() {
+        return new Builder();
+      }
+    };
+
+  /**
+   * Returns the operation, channel kind and channel name of a rule, or null if the matcher can't be
+   * indexed. Null elements are attributes the rule doesn't constrain.
+   */
+  @Nullable static String[] attributes(Matcher<MessagingRequest> matcher) {
+    Matcher<MessagingRequest>[] and = InternalMatchers.and(matcher);
+    if (and == null) {
+      @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+      Matcher<MessagingRequest>[] single = new Matcher[] {matcher};
+      and = single;
+    }
+    String[] result = new String[3];
+    for (Matcher<MessagingRequest> next : and) {
+      int i;
+      String value;
+      if (next instanceof MessagingOperationEquals) {
+        i = 0;
+        value = ((MessagingOperationEquals) next).operation;
+      } else if (next instanceof MessagingChannelKindEquals) {
+        i = 1;
+        value = ((MessagingChannelKindEquals) next).channelKind;
+      } else if (next instanceof MessagingChannelNameEquals) {
+        i = 2;
+        value = ((MessagingChannelNameEquals) next).channelName;
+      } else {
+        return null;
+      }
+      if (result[i] != null) return null; // don't bother with redundant matchers
+      result[i] = value;
+    }
+    return result;
+  }
+
+  static final class Builder extends IndexBuilder<MessagingRequest, String[]> {
+    final ExactMatchIndex.Builder index = new ExactMatchIndex.Builder();
+    final List<Sampler> samplers = new ArrayList<>();
+    final boolean[] used = new boolean[3];
+
+    @Override public void addRule(String[] attributes, Sampler sampler) {
+      for (int i = 0; i < 3; i++) used[i] |= attributes[i] != null;
+      index.addRule(attributes[0], attributes[1], attributes[2], samplers.size());
+      samplers.add(sampler);
+    }
+
+    @Override public MessagingRuleIndex build() {
+      return new MessagingRuleIndex(this);
+    }
+  }
+
+  final ExactMatchIndex index;
+  final Sampler[] samplers;
+  // Only read attributes that rules constrain, as some are expensive, such as JMS destinations.
+  final boolean useOperation, useChannelKind, useChannelName;
+
+  MessagingRuleIndex(Builder builder) {
+    this.index = builder.index.build();
+    this.samplers = builder.samplers.toArray(new Sampler[0]);
+    this.useOperation = builder.used[0];
+    this.useChannelKind = builder.used[1];
+    this.useChannelName = builder.used[2];
+  }
+
+  @Override public @Nullable Boolean trySample(MessagingRequest request) {
+    int rule = index.firstRule(
+      useOperation ? request.operation() : null,
+      useChannelKind ? request.channelKind() : null,
+      useChannelName ? request.channelName() : null
+    );
+    if (rule == ExactMatchIndex.NO_RULE) return null;
+    return samplers[rule].isSampled(0L); // counting sampler ignores the input
+  }
+
+  @Override public String toString() {
+    return "MessagingRuleIndex{rules=" + samplers.length + "}";
+  }
+}
@@ -14,8 +14,8 @@
 package brave.messaging;
 
 import brave.Tracing;
+import brave.internal.IndexedRuleSampler;
 import brave.sampler.Matcher;
-import brave.sampler.ParameterizedSampler;
 import brave.sampler.Sampler;
 import brave.sampler.SamplerFunction;
 
@@ -40,6 +40,11 @@ import brave.sampler.SamplerFunction;
  * <h3>Implementation notes</h3>
  * Be careful when implementing matchers as {@link MessagingRequest} operations can return null.
  *
+ * <p>Rules made of {@link MessagingRequestMatchers} equality matchers, alone or combined with
+ * {@link brave.sampler.Matchers#and(Matcher[]) and}, are served from hash tables. This keeps the
+ * cost of sampling constant, even with thousands of channel names. Other matchers are evaluated in
+ * order, so the first matching rule always wins.
+ *
  * @see MessagingRequestMatchers
  * @since 5.9
  */
@@ -53,8 +58,7 @@ public final class MessagingRuleSampler implements SamplerFunction<MessagingRequ
 
   /** @since 5.9 */
   public static final class Builder {
-    final ParameterizedSampler.Builder<MessagingRequest> delegate =
-      ParameterizedSampler.newBuilder();
+    final IndexedRuleSampler.Builder<MessagingRequest> delegate = IndexedRuleSampler.newBuilder();
 
     /**
      * Adds or replaces all rules in this sampler with those of the input.
@@ -85,16 +89,16 @@ public final class MessagingRuleSampler implements SamplerFunction<MessagingRequ
     }
 
     public MessagingRuleSampler build() {
-      return new MessagingRuleSampler(delegate.build());
+      return new MessagingRuleSampler(delegate.build(MessagingRuleIndex.INDEXER));
     }
 
     Builder() {
     }
   }
 
-  final ParameterizedSampler<MessagingRequest> delegate;
+  final IndexedRuleSampler<MessagingRequest> delegate;
 
-  MessagingRuleSampler(ParameterizedSampler delegate) {
+  MessagingRuleSampler(IndexedRuleSampler<MessagingRequest> delegate) {
     this.delegate = delegate;
   }
 
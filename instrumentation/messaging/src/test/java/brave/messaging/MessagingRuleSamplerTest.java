@@ -23,7 +23,9 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import static brave.messaging.MessagingRequestMatchers.channelNameEquals;
 import static brave.messaging.MessagingRequestMatchers.operationEquals;
+import static brave.sampler.Matchers.and;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.when;
 
@@ -110,6 +112,51 @@ public class MessagingRuleSamplerTest {
       .isNull();
   }
 
+  @Test public void indexesEqualityMatchers() {
+    MessagingRuleSampler.Builder builder = MessagingRuleSampler.newBuilder()
+      .putRule(and(operationEquals("receive"), channelNameEquals("alerts")), Sampler.NEVER_SAMPLE);
+    for (int i = 0; i < 1000; i++) {
+      builder.putRule(channelNameEquals("topic" + i), Sampler.ALWAYS_SAMPLE);
+    }
+    sampler = builder.build();
+
+    assertThat(sampler.delegate.steps()).hasSize(1).allMatch(MessagingRuleIndex.class::isInstance);
+
+    when(request.channelName()).thenReturn("topic999");
+    assertThat(sampler.trySample(request))
+      .isTrue();
+
+    when(request.channelName()).thenReturn("alerts");
+    when(request.operation()).thenReturn("receive");
+    assertThat(sampler.trySample(request))
+      .isFalse();
+
+    when(request.operation()).thenReturn("send");
+    assertThat(sampler.trySample(request))
+      .isNull();
+  }
+
+  @Test public void customMatchersKeepOrder() {
+    Matcher<MessagingRequest> receive = request -> "receive".equals(request.operation());
+
+    sampler = MessagingRuleSampler.newBuilder()
+      .putRule(channelNameEquals("alerts"), Sampler.NEVER_SAMPLE)
+      .putRule(receive, Sampler.ALWAYS_SAMPLE)
+      .putRule(operationEquals("receive"), Sampler.NEVER_SAMPLE)
+      .build();
+
+    assertThat(sampler.delegate.steps()).hasSize(3);
+
+    when(request.operation()).thenReturn("receive");
+    when(request.channelName()).thenReturn("alerts");
+    assertThat(sampler.trySample(request))
+      .isFalse();
+
+    when(request.channelName()).thenReturn("complaints");
+    assertThat(sampler.trySample(request))
+      .isTrue();
+  }
+
   // empty may sound unintuitive, but it allows use of the same type when always deferring
   @Test public void noRulesOk() {
     MessagingRuleSampler.newBuilder().build();
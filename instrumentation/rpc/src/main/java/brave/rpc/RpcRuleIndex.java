@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013-2020 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.rpc;
+
+import brave.internal.ExactMatchIndex;
+import brave.internal.IndexedRuleSampler.IndexBuilder;
+import brave.internal.IndexedRuleSampler.Indexer;
+import brave.internal.InternalMatchers;
+import brave.internal.Nullable;
+import brave.rpc.RpcRequestMatchers.RpcMethodEquals;
+import brave.rpc.RpcRequestMatchers.RpcServiceEquals;
+import brave.sampler.Matcher;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Indexes a run of consecutive rules made of {@link RpcRequestMatchers} equality matchers, so that
+ * the first matching rule is found in constant time instead of in order.
+ */
+final class RpcRuleIndex implements SamplerFunction<RpcRequest> {
+  static final Indexer<RpcRequest, String[]> INDEXER = new Indexer<RpcRequest, String[]>() {
+    @Override public String[] attributes(Matcher<RpcRequest> matcher) {
+      return RpcRuleIndex.attributes(matcher);
+    }
+
+    @Override public Builder newIndexBuilder() {
+      return new Builder();
+    }
+  };
+
+  /**
+   * Returns the service and method of a rule, or null if the matcher can't be indexed. Null
+   * elements are attributes the rule doesn't constrain.
+   */
+  @Nullable static String[] attributes(Matcher<RpcRequest> matcher) {
+    Matcher<RpcRequest>[] and = InternalMatchers.and(matcher);
+    if (and == null) {
+      @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+      Matcher<RpcRequest>[] single = new Matcher[] {matcher};
+      and = single;
+    }
+    String[] result = new String[2];
+    for (Matcher<RpcRequest> next : and) {
+      int i;
+      String value;
+      if (next instanceof RpcServiceEquals) {
+        i = 0;
+        value = ((RpcServiceEquals) next).service;
+      } else if (next instanceof RpcMethodEquals) {
+        i = 1;
+        value = ((RpcMethodEquals) next).method;
+      } else {
+        return null;
+      }
+      if (result[i] != null) return null; // don't bother with redundant matchers
+      result[i] = value;
+    }
+    return result;
+  }
+
+  static final class Builder extends IndexBuilder<RpcRequest, String[]> {
+    final ExactMatchIndex.Builder index = new ExactMatchIndex.Builder();
+    final List<Sampler> samplers = new ArrayList<>();
+    final boolean[] used = new boolean[2];
+
+    @Override public void addRule(String[] attributes, Sampler sampler) {
+      for (int i = 0; i < 2; i++) used[i] |= attributes[i] != null;
+      index.addRule(attributes[0], attributes[1], null, samplers.size());
+      samplers.add(sampler);
+    }
+
+    @Override public RpcRuleIndex build() {
+      return new RpcRuleIndex(this);
+    }
+  }
+
+  final ExactMatchIndex index;
+  final Sampler[] samplers;
+  final boolean useService, useMethod;
+
+  RpcRuleIndex(Builder builder) {
+    this.index = builder.index.build();
+    this.samplers = builder.samplers.toArray(new Sampler[0]);
+    this.useService = builder.used[0];
+    this.useMethod = builder.used[1];
+  }
+
+  @Override public @Nullable Boolean trySample(RpcRequest request) {
+    int rule = index.firstRule(
+      useService ? request.service() : null,
+      useMethod ? request.method() : null,
+      null
+    );
+    if (rule == ExactMatchIndex.NO_RULE) return null;
+    return samplers[rule].isSampled(0L); // counting sampler ignores the input
+  }
+
+  @Override public String toString() {
+    return "RpcRuleIndex{rules=" + samplers.length + "}";
+  }
+}
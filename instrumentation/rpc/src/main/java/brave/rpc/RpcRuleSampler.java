@@ -14,8 +14,8 @@
 package brave.rpc;
 
 import brave.Tracing;
+import brave.internal.IndexedRuleSampler;
 import brave.sampler.Matcher;
-import brave.sampler.ParameterizedSampler;
 import brave.sampler.Sampler;
 import brave.sampler.SamplerFunction;
 
@@ -38,6 +38,11 @@ import brave.sampler.SamplerFunction;
  * <h3>Implementation notes</h3>
  * Be careful when implementing matchers as {@link RpcRequest} methods can return null.
  *
+ * <p>Rules made of {@link RpcRequestMatchers} equality matchers, alone or combined with {@link
+ * brave.sampler.Matchers#and(Matcher[]) and}, are served from hash tables. This keeps the cost of
+ * sampling constant, regardless of the count of services and methods. Other matchers are evaluated
+ * in order, so the first matching rule always wins.
+ *
  * @see RpcRequestMatchers
  * @since 5.8
  */
@@ -51,7 +56,7 @@ public final class RpcRuleSampler implements SamplerFunction<RpcRequest> {
 
   /** @since 5.8 */
   public static final class Builder {
-    final ParameterizedSampler.Builder<RpcRequest> delegate = ParameterizedSampler.newBuilder();
+    final IndexedRuleSampler.Builder<RpcRequest> delegate = IndexedRuleSampler.newBuilder();
 
     /**
      * Adds or replaces all rules in this sampler with those of the input.
@@ -82,16 +87,16 @@ public final class RpcRuleSampler implements SamplerFunction<RpcRequest> {
     }
 
     public RpcRuleSampler build() {
-      return new RpcRuleSampler(delegate.build());
+      return new RpcRuleSampler(delegate.build(RpcRuleIndex.INDEXER));
     }
 
     Builder() {
     }
   }
 
-  final ParameterizedSampler<RpcRequest> delegate;
+  final IndexedRuleSampler<RpcRequest> delegate;
 
-  RpcRuleSampler(ParameterizedSampler delegate) {
+  RpcRuleSampler(IndexedRuleSampler<RpcRequest> delegate) {
     this.delegate = delegate;
   }
 
@@ -24,6 +24,8 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import static brave.rpc.RpcRequestMatchers.methodEquals;
+import static brave.rpc.RpcRequestMatchers.serviceEquals;
+import static brave.sampler.Matchers.and;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.when;
 
@@ -109,6 +111,50 @@ public class RpcRuleSamplerTest {
       .isNull();
   }
 
+  @Test public void indexesEqualityMatchers() {
+    sampler = RpcRuleSampler.newBuilder()
+      .putRule(and(serviceEquals("scribe"), methodEquals("Log")), Sampler.ALWAYS_SAMPLE)
+      .putRule(serviceEquals("scribe"), Sampler.NEVER_SAMPLE)
+      .putRule(methodEquals("health"), Sampler.ALWAYS_SAMPLE)
+      .build();
+
+    assertThat(sampler.delegate.steps()).hasSize(1).allMatch(RpcRuleIndex.class::isInstance);
+
+    when(request.service()).thenReturn("scribe");
+    when(request.method()).thenReturn("Log");
+    assertThat(sampler.trySample(request))
+      .isTrue();
+
+    when(request.method()).thenReturn("health");
+    assertThat(sampler.trySample(request))
+      .isFalse(); // first match wins
+
+    when(request.service()).thenReturn("zipkin");
+    assertThat(sampler.trySample(request))
+      .isTrue();
+
+    when(request.method()).thenReturn("Report");
+    assertThat(sampler.trySample(request))
+      .isNull();
+  }
+
+  @Test public void customMatchersKeepOrder() {
+    Matcher<RpcRequest> health = request -> "health".equals(request.method());
+
+    sampler = RpcRuleSampler.newBuilder()
+      .putRule(serviceEquals("scribe"), Sampler.NEVER_SAMPLE)
+      .putRule(health, Sampler.ALWAYS_SAMPLE)
+      .putRule(methodEquals("health"), Sampler.NEVER_SAMPLE)
+      .build();
+
+    assertThat(sampler.delegate.steps()).hasSize(3);
+
+    when(request.service()).thenReturn("zipkin");
+    when(request.method()).thenReturn("health");
+    assertThat(sampler.trySample(request))
+      .isTrue();
+  }
+
   // empty may sound unintuitive, but it allows use of the same type when always deferring
   @Test public void noRulesOk() {
     RpcRuleSampler.newBuilder().build();